@@ -0,0 +1,134 @@
+package org.gameontext.map.load;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Latency, retries and response codes for one kind of request, shared by
+ * all of the threads sending it.
+ * <p>
+ * Latency is measured from the first attempt to the last, so it includes
+ * the time spent retrying.
+ * </p>
+ */
+public class OperationStats {
+
+    /** Longest latency that can be recorded: longer requests are clamped */
+    static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(2);
+
+    final String name;
+    final Histogram latency = new ConcurrentHistogram(MAX_LATENCY_MICROS, 3);
+
+    final LongAdder completed = new LongAdder();
+    final LongAdder failed = new LongAdder();
+    final LongAdder retries = new LongAdder();
+    final Map<Integer, LongAdder> statusCodes = new ConcurrentHashMap<>();
+
+    long startNanos;
+    long elapsedNanos;
+
+    /** Change in the service's counters (GET /metrics) while the phase ran */
+    Map<String, Long> serverCounters;
+
+    /** CouchDB requests made while the phase ran, or -1 if unknown */
+    long couchRequests = -1;
+
+    public OperationStats(String name) {
+        this.name = name;
+    }
+
+    void start() {
+        startNanos = System.nanoTime();
+    }
+
+    void stop() {
+        elapsedNanos = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * @param status response code of an attempt
+     */
+    void status(int status) {
+        statusCodes.computeIfAbsent(status, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * @param startNanos when the first attempt was sent
+     * @param success true if the last attempt succeeded
+     */
+    void done(long startNanos, boolean success) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        latency.recordValue(Math.min(micros, MAX_LATENCY_MICROS));
+        if ( success ) {
+            completed.increment();
+        } else {
+            failed.increment();
+        }
+    }
+
+    long count() {
+        return completed.sum() + failed.sum();
+    }
+
+    double throughput() {
+        return elapsedNanos == 0 ? 0 : count() / (elapsedNanos / 1e9);
+    }
+
+    public ObjectNode toJson(ObjectNode node) {
+        long count = count();
+        node.put("count", count);
+        node.put("failed", failed.sum());
+        node.put("retries", retries.sum());
+        node.put("durationMillis", TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        node.put("throughput", Math.round(throughput() * 10) / 10.0);
+
+        ObjectNode codes = node.putObject("status");
+        new TreeMap<>(statusCodes).forEach((code, n) -> codes.put(code.toString(), n.sum()));
+
+        ObjectNode micros = node.putObject("latencyMicros");
+        micros.put("min", latency.getMinValue());
+        micros.put("mean", Math.round(latency.getMean()));
+        micros.put("p50", latency.getValueAtPercentile(50));
+        micros.put("p90", latency.getValueAtPercentile(90));
+        micros.put("p99", latency.getValueAtPercentile(99));
+        micros.put("p99.9", latency.getValueAtPercentile(99.9));
+        micros.put("max", latency.getMaxValue());
+
+        // the whole histogram, for merging or comparing runs with HdrHistogram tools
+        ByteBuffer buffer = ByteBuffer.allocate(latency.getNeededByteBufferCapacity());
+        int length = latency.encodeIntoCompressedByteBuffer(buffer);
+        node.put("histogram", Base64.getEncoder().encodeToString(Arrays.copyOf(buffer.array(), length)));
+
+        if ( serverCounters != null ) {
+            ObjectNode server = node.putObject("server");
+            serverCounters.forEach(server::put);
+        }
+        if ( couchRequests >= 0 ) {
+            node.put("couchdbRequests", couchRequests);
+            node.put("couchdbRequestsPerOp", count == 0 ? 0 : Math.round(couchRequests * 100.0 / count) / 100.0);
+        }
+        return node;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-7s %7d ok %5d failed %5d retries %9.1f/s   p50 %7.2fms  p99 %8.2fms  p99.9 %8.2fms  max %8.2fms%s",
+                name, completed.sum(), failed.sum(), retries.sum(), throughput(),
+                latency.getValueAtPercentile(50) / 1000.0,
+                latency.getValueAtPercentile(99) / 1000.0,
+                latency.getValueAtPercentile(99.9) / 1000.0,
+                latency.getMaxValue() / 1000.0,
+                couchRequests < 0 ? "" : String.format("  couchdb %d", couchRequests));
+    }
+}
@@ -0,0 +1,311 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.gameontext.map.auth.PlayerClient;
+import org.gameontext.map.db.CouchDbHealth;
+import org.gameontext.map.kafka.Kafka;
+
+/**
+ * Checks the services the map depends on (CouchDB, the player service and
+ * Kafka) on a background thread, and keeps the results.
+ * <p>
+ * Health requests are answered from the last results, so they never wait
+ * for a slow dependency: a probe that hangs shows up as results that are
+ * no longer current ({@link Snapshot#isCurrent(long)}), and the service
+ * stops being ready.
+ * </p>
+ */
+@ApplicationScoped
+public class HealthMonitor {
+
+    /** Default seconds between checks */
+    static final long DEFAULT_INTERVAL = 10;
+
+    /** Results older than this many intervals are stale: a check is stuck */
+    static final int STALE_INTERVALS = 3;
+
+    /** The result of checking one dependency */
+    public static final class Check {
+        final boolean healthy;
+        final long checkedAt;
+        final long since;
+        final long durationMillis;
+        final String error;
+
+        Check(boolean healthy, long checkedAt, long since, long durationMillis, String error) {
+            this.healthy = healthy;
+            this.checkedAt = checkedAt;
+            this.since = since;
+            this.durationMillis = durationMillis;
+            this.error = error;
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        /**
+         * @return {@code status}, when it was checked and how long the check
+         *      took, since when the status has been the same, and the error
+         *      thrown by the check (if any)
+         */
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("status", healthy ? "UP" : "DOWN");
+            map.put("checked", Instant.ofEpochMilli(checkedAt).toString());
+            map.put("since", Instant.ofEpochMilli(since).toString());
+            map.put("durationMillis", durationMillis);
+            if ( error != null ) {
+                map.put("error", error);
+            }
+            return map;
+        }
+    }
+
+    /** Results of checking every dependency once: replaced, never changed */
+    public static final class Snapshot {
+        final Map<String, Check> checks;
+        final long takenAt;
+
+        Snapshot(Map<String, Check> checks, long takenAt) {
+            this.checks = Collections.unmodifiableMap(checks);
+            this.takenAt = takenAt;
+        }
+
+        /**
+         * @return true if every dependency has been checked, and was healthy
+         */
+        public boolean isHealthy() {
+            return takenAt > 0 && checks.values().stream().allMatch(Check::isHealthy);
+        }
+
+        /**
+         * @param now Current time (ms)
+         * @param maxAge Oldest acceptable results (ms)
+         * @return true if the dependencies were checked recently enough
+         */
+        public boolean isCurrent(long now, long maxAge) {
+            return takenAt > 0 && now - takenAt <= maxAge;
+        }
+
+        public Check get(String name) {
+            return checks.get(name);
+        }
+    }
+
+    private static final Snapshot NOT_CHECKED = new Snapshot(Collections.emptyMap(), 0);
+
+    @Inject
+    protected CouchDbHealth dbHealth;
+
+    @Inject
+    protected PlayerClient playerClient;
+
+    @Inject
+    protected Kafka kafka;
+
+    /** CDI injection of Java EE7 Managed thread factory */
+    @Resource
+    protected ManagedThreadFactory threadFactory;
+
+    /** Seconds between checks */
+    @Resource(lookup="healthInterval")
+    String healthInterval;
+
+    private final Map<String, BooleanSupplier> probes = new LinkedHashMap<>();
+    private final LongSupplier clock;
+    private final long started;
+
+    private long intervalMillis = DEFAULT_INTERVAL * 1000;
+    private volatile Snapshot snapshot = NOT_CHECKED;
+    private volatile boolean keepGoing = true;
+    private Thread prober;
+
+    public HealthMonitor() {
+        this(System::currentTimeMillis);
+    }
+
+    HealthMonitor(LongSupplier clock) {
+        this.clock = clock;
+        this.started = clock.getAsLong();
+    }
+
+    @PostConstruct
+    protected void postConstruct() {
+        long interval = Settings.longValue("healthInterval", healthInterval, DEFAULT_INTERVAL);
+        intervalMillis = (interval > 0 ? interval : DEFAULT_INTERVAL) * 1000;
+        register("couchdb", dbHealth::probe);
+        register("playerClient", playerClient::isHealthy);
+        register("kafka", kafka::isHealthy);
+        Metrics.gauge("health_up", () -> snapshot.isHealthy() ? 1 : 0);
+        Metrics.gauge("health_check_age_seconds", () -> snapshot.takenAt > 0 ? (clock.getAsLong() - snapshot.takenAt) / 1000 : -1);
+        start(threadFactory);
+    }
+
+    /**
+     * Observing application start creates the monitor then, so the first
+     * checks are done before the first health request (not when it arrives).
+     */
+    protected void initialized(@Observes @Initialized(ApplicationScoped.class) Object init) {
+        Log.log(Level.FINE, this, "Checking dependencies every {0}ms", intervalMillis);
+    }
+
+    @PreDestroy
+    protected void preDestroy() {
+        stop();
+    }
+
+    /**
+     * @param name Name of the dependency in health responses
+     * @param probe Checks the dependency: may block, and may throw
+     */
+    void register(String name, BooleanSupplier probe) {
+        probes.put(name, probe);
+    }
+
+    /**
+     * Check the dependencies now, and every interval after that, on a thread
+     * created by the given factory. Without one, they are only checked when
+     * {@link #probe()} is called.
+     * @param threadFactory Factory for the thread running the checks
+     */
+    void start(ThreadFactory threadFactory) {
+        if ( threadFactory == null ) {
+            Log.log(Level.WARNING, this, "No thread factory: dependencies will be checked once");
+            probe();
+            return;
+        }
+        prober = threadFactory.newThread(this::probeLoop);
+        prober.start();
+    }
+
+    void stop() {
+        keepGoing = false;
+        if ( prober != null ) {
+            prober.interrupt();
+        }
+    }
+
+    private void probeLoop() {
+        while (keepGoing) {
+            probe();
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Check each dependency in turn, and replace the results
+     * @return the new results
+     */
+    Snapshot probe() {
+        Snapshot previous = snapshot;
+        Map<String, Check> checks = new LinkedHashMap<>();
+        probes.forEach((name, probe) -> {
+            long start = clock.getAsLong();
+            boolean healthy;
+            String error = null;
+            try {
+                healthy = probe.getAsBoolean();
+            } catch (RuntimeException e) {
+                healthy = false;
+                error = e.toString();
+            }
+            long now = clock.getAsLong();
+
+            Check last = previous.get(name);
+            if ( last != null && last.healthy != healthy ) {
+                Log.log(healthy ? Level.INFO : Level.WARNING, this, "{0} is {1}", name, healthy ? "UP" : "DOWN");
+            }
+            long since = last == null || last.healthy != healthy ? now : last.since;
+            checks.put(name, new Check(healthy, now, since, now - start, error));
+        });
+
+        Snapshot next = new Snapshot(checks, clock.getAsLong());
+        snapshot = next;
+        return next;
+    }
+
+    /**
+     * @return the last results: doesn't check anything
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return true if the last results are healthy, and current
+     */
+    public boolean isReady() {
+        Snapshot current = snapshot;
+        return current.isHealthy() && current.isCurrent(clock.getAsLong(), STALE_INTERVALS * intervalMillis);
+    }
+
+    /**
+     * @return readiness: {@code status}, when the dependencies were last
+     *      checked, whether those results are stale, and each dependency
+     */
+    public Map<String, Object> readiness() {
+        Snapshot current = snapshot;
+        long now = clock.getAsLong();
+        boolean stale = !current.isCurrent(now, STALE_INTERVALS * intervalMillis);
+
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("status", current.isHealthy() && !stale ? "UP" : "DOWN");
+        if ( current.takenAt > 0 ) {
+            map.put("checked", Instant.ofEpochMilli(current.takenAt).toString());
+        }
+        map.put("stale", stale);
+        Map<String, Object> checks = new LinkedHashMap<>();
+        current.checks.forEach((name, check) -> checks.put(name, check.toMap()));
+        map.put("checks", checks);
+        return map;
+    }
+
+    /**
+     * @return liveness: the service is running. Doesn't depend on anything
+     *      else, so a slow dependency can't get the service restarted.
+     */
+    public Map<String, Object> liveness() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("status", "UP");
+        map.put("started", Instant.ofEpochMilli(started).toString());
+        return map;
+    }
+}
@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Minimal JSON Patch (RFC 6902): the {@code add}, {@code remove} and
+ * {@code replace} operations.
+ * <p>
+ * {@link #diff(JsonNode, JsonNode)} walks objects field by field, and
+ * replaces anything else (including arrays) as a whole: the patches it makes
+ * are small for documents like sites, where a change touches a few fields.
+ * </p>
+ */
+public final class JsonPatch {
+
+    private JsonPatch() {}
+
+    /**
+     * @return operations that turn {@code from} into {@code to}: empty if they are equal
+     */
+    public static ArrayNode diff(JsonNode from, JsonNode to) {
+        ArrayNode ops = JsonNodeFactory.instance.arrayNode();
+        diff("", from, to, ops);
+        return ops;
+    }
+
+    private static void diff(String path, JsonNode from, JsonNode to, ArrayNode ops) {
+        if ( from.equals(to) ) {
+            return;
+        }
+        if ( !from.isObject() || !to.isObject() ) {
+            op(ops, "replace", path, to);
+            return;
+        }
+
+        Iterator<Map.Entry<String, JsonNode>> fields = from.fields();
+        while ( fields.hasNext() ) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            String child = path + "/" + escape(field.getKey());
+            JsonNode value = to.get(field.getKey());
+            if ( value == null ) {
+                op(ops, "remove", child, null);
+            } else {
+                diff(child, field.getValue(), value, ops);
+            }
+        }
+        fields = to.fields();
+        while ( fields.hasNext() ) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            if ( !from.has(field.getKey()) ) {
+                op(ops, "add", path + "/" + escape(field.getKey()), field.getValue());
+            }
+        }
+    }
+
+    private static void op(ArrayNode ops, String op, String path, JsonNode value) {
+        ObjectNode node = ops.addObject();
+        node.put("op", op);
+        node.put("path", path);
+        if ( value != null ) {
+            node.set("value", value.deepCopy());
+        }
+    }
+
+    /**
+     * @param target Document to patch (not modified)
+     * @param patch Array of operations
+     * @return the patched copy of the document
+     * @throws IllegalArgumentException if the patch is invalid, uses an
+     *      unsupported operation, or doesn't fit the document
+     */
+    public static JsonNode apply(JsonNode target, JsonNode patch) {
+        if ( patch == null || !patch.isArray() ) {
+            throw new IllegalArgumentException("Patch must be an array of operations");
+        }
+
+        JsonNode result = target.deepCopy();
+        for (JsonNode op : patch) {
+            String name = op.path("op").asText();
+            JsonNode pathNode = op.get("path");
+            if ( pathNode == null || !pathNode.isTextual() ) {
+                throw new IllegalArgumentException("Operation without a path: " + op);
+            }
+            JsonNode value = op.get("value");
+            boolean needsValue = "add".equals(name) || "replace".equals(name);
+            if ( !needsValue && !"remove".equals(name) ) {
+                throw new IllegalArgumentException("Unsupported operation: " + op);
+            }
+            if ( needsValue && value == null ) {
+                throw new IllegalArgumentException("Operation without a value: " + op);
+            }
+
+            List<String> tokens = parse(pathNode.asText());
+            if ( tokens.isEmpty() ) {
+                if ( !needsValue ) {
+                    throw new IllegalArgumentException("Can't remove the document: " + op);
+                }
+                result = value.deepCopy();
+                continue;
+            }
+
+            JsonNode parent = result;
+            for (String token : tokens.subList(0, tokens.size() - 1)) {
+                parent = child(parent, token, op);
+            }
+            String last = tokens.get(tokens.size() - 1);
+
+            if ( parent.isObject() ) {
+                ObjectNode object = (ObjectNode) parent;
+                if ( !"add".equals(name) && !object.has(last) ) {
+                    throw new IllegalArgumentException("No such member: " + op);
+                }
+                if ( needsValue ) {
+                    object.set(last, value.deepCopy());
+                } else {
+                    object.remove(last);
+                }
+            } else if ( parent.isArray() ) {
+                ArrayNode array = (ArrayNode) parent;
+                boolean append = "add".equals(name) && "-".equals(last);
+                int i = append ? array.size() : index(last, op);
+                int limit = "add".equals(name) ? array.size() : array.size() - 1;
+                if ( i > limit ) {
+                    throw new IllegalArgumentException("Index out of bounds: " + op);
+                }
+                if ( "add".equals(name) ) {
+                    array.insert(i, value.deepCopy());
+                } else if ( "replace".equals(name) ) {
+                    array.set(i, value.deepCopy());
+                } else {
+                    array.remove(i);
+                }
+            } else {
+                throw new IllegalArgumentException("Path doesn't lead to an object or array: " + op);
+            }
+        }
+        return result;
+    }
+
+    private static JsonNode child(JsonNode parent, String token, JsonNode op) {
+        JsonNode child = parent.isArray() ? parent.get(index(token, op)) : parent.get(token);
+        if ( child == null ) {
+            throw new IllegalArgumentException("Path not found: " + op);
+        }
+        return child;
+    }
+
+    private static int index(String token, JsonNode op) {
+        try {
+            int i = Integer.parseInt(token);
+            if ( i >= 0 ) {
+                return i;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        throw new IllegalArgumentException("Invalid array index: " + op);
+    }
+
+    /**
+     * @param pointer JSON pointer (RFC 6901), e.g. {@code /info/name}
+     * @return the unescaped reference tokens (empty for the whole document)
+     */
+    static List<String> parse(String pointer) {
+        List<String> tokens = new ArrayList<>();
+        if ( pointer.isEmpty() ) {
+            return tokens;
+        }
+        if ( pointer.charAt(0) != '/' ) {
+            throw new IllegalArgumentException("Invalid JSON pointer: " + pointer);
+        }
+        for (String token : pointer.substring(1).split("/", -1)) {
+            tokens.add(token.replace("~1", "/").replace("~0", "~"));
+        }
+        return tokens;
+    }
+
+    static String escape(String name) {
+        return name.replace("~", "~0").replace("/", "~1");
+    }
+}
@@ -15,50 +15,196 @@
  *******************************************************************************/
 package org.gameontext.map;
 
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 
 /**
  * Wrapper for a single logger
+ * <p>
+ * Each method checks the level before doing anything else. There are
+ * overloads for up to three arguments (and two ints, for coordinates), so
+ * a disabled call doesn't allocate an array or box its arguments.
+ * </p>
+ * <p>
+ * Once {@link #start(ThreadFactory, int)} has been called, enabled records
+ * are handed to a writer thread through a {@link LogRing}, so request
+ * threads don't wait for each other on the log handler. Arguments are
+ * converted to strings first (immutable values are kept as they are).
+ * </p>
  */
 public class Log {
     private final static Logger log = Logger.getLogger("net.wasdev.gameon.map");
     private final static Logger detailLog = Logger.getLogger("map.details");
 
-    private static final String log_format = "%s: %s";
+    /** Passes records to the writer thread: null to write on the calling thread */
+    private static volatile LogRing ring;
+
+    /**
+     * Write records on a thread created by the given factory
+     * @param threadFactory Factory for the writer thread
+     * @param capacity Records that can wait for the writer: when it is
+     *      full, callers wait for room (so each thread's records stay in order)
+     */
+    public static synchronized void start(ThreadFactory threadFactory, int capacity) {
+        stop();
+        LogRing next = new LogRing(capacity);
+        next.start(threadFactory);
+        ring = next;
+    }
+
+    /**
+     * Write the records waiting for the writer thread, and write later
+     * records on the calling thread.
+     */
+    public static synchronized void stop() {
+        LogRing current = ring;
+        ring = null;
+        if ( current != null ) {
+            current.stop();
+        }
+    }
+
+    /**
+     * @return true if messages at the level are written: check before building
+     *      an expensive argument
+     */
+    public static boolean isLoggable(Level level) {
+        return log.isLoggable(level);
+    }
+
+    /**
+     * @return true if map operations at the level are written
+     */
+    public static boolean isDetailLoggable(Level level) {
+        return detailLog.isLoggable(level);
+    }
+
+    public static void log(Level level, Object source, String message) {
+        if (log.isLoggable(level)) {
+            writeLog(log, level, source, message, null, null);
+        }
+    }
+
+    public static void log(Level level, Object source, String message, Object arg) {
+        if (log.isLoggable(level)) {
+            writeLog(log, level, source, message, new Object[] { value(arg) }, null);
+        }
+    }
+
+    public static void log(Level level, Object source, String message, Object arg0, Object arg1) {
+        if (log.isLoggable(level)) {
+            writeLog(log, level, source, message, new Object[] { value(arg0), value(arg1) }, null);
+        }
+    }
+
+    public static void log(Level level, Object source, String message, Object arg0, Object arg1, Object arg2) {
+        if (log.isLoggable(level)) {
+            writeLog(log, level, source, message, new Object[] { value(arg0), value(arg1), value(arg2) }, null);
+        }
+    }
 
     public static void log(Level level, Object source, String message, Object... args) {
-        writeLog(log, level, source, message, args);
+        if (log.isLoggable(level)) {
+            writeLog(log, level, source, message, values(args), null);
+        }
     }
 
     public static void log(Level level, Object source, String message, Throwable thrown) {
-        writeLog(log, level, source, message, thrown);
+        if (log.isLoggable(level)) {
+            writeLog(log, level, source, message, null, thrown);
+        }
+    }
+
+    public static void mapOperations(Level level, Object source, String message, Object arg) {
+        if (detailLog.isLoggable(level)) {
+            writeLog(detailLog, level, source, message, new Object[] { value(arg) }, null);
+        }
+    }
+
+    public static void mapOperations(Level level, Object source, String message, Object arg0, Object arg1) {
+        if (detailLog.isLoggable(level)) {
+            writeLog(detailLog, level, source, message, new Object[] { value(arg0), value(arg1) }, null);
+        }
+    }
+
+    public static void mapOperations(Level level, Object source, String message, Object arg0, Object arg1, Object arg2) {
+        if (detailLog.isLoggable(level)) {
+            writeLog(detailLog, level, source, message, new Object[] { value(arg0), value(arg1), value(arg2) }, null);
+        }
+    }
+
+    /**
+     * A map operation at a coordinate
+     */
+    public static void mapOperations(Level level, Object source, String message, int x, int y, Object arg) {
+        if (detailLog.isLoggable(level)) {
+            writeLog(detailLog, level, source, message, new Object[] { x, y, value(arg) }, null);
+        }
     }
 
     public static void mapOperations(Level level, Object source, String message, Object... args) {
-        writeLog(detailLog, level, source, message, args);
+        if (detailLog.isLoggable(level)) {
+            writeLog(detailLog, level, source, message, values(args), null);
+        }
     }
 
     public static void logDetails(Level level, Object source, String message, Throwable thrown) {
-        writeLog(detailLog, level, source, message, thrown);
+        if (detailLog.isLoggable(level)) {
+            writeLog(detailLog, level, source, message, null, thrown);
+        }
     }
 
-    private static void writeLog(Logger logger, Level level, Object source, String message, Object... args) {
-        if (logger.isLoggable(level)) {
-            String msg = String.format(log_format, getObjectInfo(source), message);
-            logger.log(useLevel(level), msg, args);
+    private static void writeLog(Logger logger, Level level, Object source, String message, Object[] params, Throwable thrown) {
+        LogRing current = ring;
+        if ( current == null || !current.offer(logger, level, source, message, params, thrown) ) {
+            logger.log(record(logger, level, source == null ? null : source.getClass(),
+                    System.identityHashCode(source), message, params, thrown,
+                    System.currentTimeMillis(), (int) Thread.currentThread().getId()));
         }
     }
 
-    private static void writeLog(Logger logger, Level level, Object source, String message, Throwable thrown) {
-        if (logger.isLoggable(level)) {
-            String msg = String.format(log_format, getObjectInfo(source), message);
-            logger.log(useLevel(level), msg, thrown);
+    /**
+     * Build the record to write, on the writer thread or the calling thread
+     * @param sourceClass Class of the object logging, or null
+     * @param sourceId Identity of the object logging
+     * @param millis When the message was logged
+     * @param threadId The thread that logged it
+     */
+    static LogRecord record(Logger logger, Level level, Class<?> sourceClass, int sourceId, String message,
+            Object[] params, Throwable thrown, long millis, int threadId) {
+        String info = sourceClass == null ? "null" : sourceClass.getSimpleName() + "(" + sourceId + ")";
+        LogRecord record = new LogRecord(useLevel(level), info + ": " + message);
+        record.setLoggerName(logger.getName());
+        record.setParameters(params);
+        record.setThrown(thrown);
+        record.setMillis(millis);
+        record.setThreadID(threadId);
+        record.setSourceClassName(sourceClass == null ? null : sourceClass.getName());
+        return record;
+    }
+
+    /**
+     * @return the argument as it is now: immutable values as they are, others as a String
+     */
+    static Object value(Object arg) {
+        if ( arg == null || arg instanceof String || arg instanceof Number
+                || arg instanceof Boolean || arg instanceof Enum || arg instanceof Character ) {
+            return arg;
         }
+        return String.valueOf(arg);
     }
 
-    private static String getObjectInfo(Object source) {
-        return source == null ? "null" : source.getClass().getSimpleName() + "("+ System.identityHashCode(source) + ")";
+    private static Object[] values(Object[] args) {
+        if ( args == null ) {
+            return null;
+        }
+        Object[] params = new Object[args.length];
+        for (int i = 0; i < args.length; i++) {
+            params[i] = value(args[i]);
+        }
+        return params;
     }
 
     /**
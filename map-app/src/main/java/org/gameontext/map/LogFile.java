@@ -0,0 +1,299 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Pattern;
+
+/**
+ * Reads parts of a (possibly very large) log file for {@link LogView}: a
+ * byte range, the last lines, or the lines that contain a string or match
+ * a regular expression.
+ * <p>
+ * The file is read with positional reads into one buffer of a fixed size,
+ * and each request reads a bounded number of bytes: a search that stops
+ * early says where to carry on from.
+ * </p>
+ */
+public class LogFile implements AutoCloseable {
+
+    /** Bytes read at a time */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    /** Most bytes returned for a range or a tail */
+    static final long MAX_RANGE = 4 * 1024 * 1024;
+
+    /** Most bytes read by one search */
+    static final long MAX_SCAN = 64 * 1024 * 1024;
+
+    /** Longest line a search looks at (and writes): the rest is ignored */
+    static final int MAX_LINE = 8 * 1024;
+
+    /** Lines written for a tail, unless asked for fewer */
+    static final int DEFAULT_TAIL_LINES = 1000;
+
+    /** Matching lines written by a search, unless asked for fewer */
+    static final int DEFAULT_MATCHES = 1000;
+
+    /** Where a search stopped */
+    public static final class Search {
+        final int matches;
+        final long next;
+
+        Search(int matches, long next) {
+            this.matches = matches;
+            this.next = next;
+        }
+
+        /**
+         * @return lines that matched
+         */
+        public int getMatches() {
+            return matches;
+        }
+
+        /**
+         * @return where to carry on searching, or -1 if the search reached the end of the file
+         */
+        public long getNext() {
+            return next;
+        }
+    }
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+
+    public LogFile(Path path) throws IOException {
+        this(path, CHUNK_SIZE);
+    }
+
+    LogFile(Path path, int chunkSize) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.buffer = ByteBuffer.allocate(chunkSize);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Write a range of the file (as UTF-8 text)
+     * @param start First byte, or (if negative) bytes from the end of the file
+     * @param length Bytes to write: at most {@link #MAX_RANGE}
+     * @param out Writer for the text
+     * @return the byte after the last one written
+     */
+    public long range(long start, long length, Writer out) throws IOException {
+        long size = channel.size();
+        long from = start < 0 ? Math.max(0, size + start) : Math.min(start, size);
+        long to = Math.min(size, from + Math.min(Math.max(0, length), MAX_RANGE));
+
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer chars = CharBuffer.allocate(buffer.capacity());
+
+        long position = from;
+        buffer.clear();
+        while (position < to) {
+            buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + to - position));
+            int n = channel.read(buffer, position);
+            if ( n <= 0 ) {
+                break;
+            }
+            position += n;
+            buffer.flip();
+            decode(decoder, chars, false, out);
+            buffer.compact();
+        }
+        buffer.flip();
+        decode(decoder, chars, true, out);
+        decoder.flush(chars);
+        write(chars, out);
+        return position;
+    }
+
+    private void decode(CharsetDecoder decoder, CharBuffer chars, boolean endOfInput, Writer out) throws IOException {
+        while (decoder.decode(buffer, chars, endOfInput).isOverflow()) {
+            write(chars, out);
+        }
+        write(chars, out);
+    }
+
+    private static void write(CharBuffer chars, Writer out) throws IOException {
+        chars.flip();
+        out.write(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
+        chars.clear();
+    }
+
+    /**
+     * Write the last lines of the file, from at most {@link #MAX_RANGE} bytes
+     * before the end
+     * @param lines Lines to write
+     * @param out Writer for the text
+     * @return the first byte written
+     */
+    public long tail(int lines, Writer out) throws IOException {
+        long start = tailStart(lines);
+        range(start, channel.size() - start, out);
+        return start;
+    }
+
+    /**
+     * @return where the last lines of the file start (a newline that ends the
+     *      file doesn't start another line)
+     */
+    long tailStart(int lines) throws IOException {
+        long size = channel.size();
+        if ( lines <= 0 ) {
+            return size;
+        }
+        long limit = Math.max(0, size - MAX_RANGE);
+        long earliest = -1;
+        int found = 0;
+
+        long position = size;
+        while (position > limit) {
+            int length = (int) Math.min(buffer.capacity(), position - limit);
+            position -= length;
+            readFully(position, length);
+
+            byte[] bytes = buffer.array();
+            for (int i = length - 1; i >= 0; i--) {
+                long offset = position + i;
+                if ( bytes[i] == '\n' && offset != size - 1 ) {
+                    if ( ++found == lines ) {
+                        return offset + 1;
+                    }
+                    earliest = offset;
+                }
+            }
+        }
+        // not that many lines: the whole file, or the lines that start within range
+        return limit == 0 || earliest < 0 ? limit : earliest + 1;
+    }
+
+    /**
+     * Write the lines that contain a string or match a pattern, with the
+     * offset each line starts at: {@code 1234: line}. Stops after the
+     * given number of matching lines, or {@link #MAX_SCAN} bytes.
+     * @param start Where to start (the start of a line)
+     * @param text String to look for, or null
+     * @param pattern Expression to find in each line (if there is no string to look for)
+     * @param maxMatches Most lines to write
+     * @param out Writer for matching lines
+     * @return how many lines matched, and where to carry on
+     */
+    public Search search(long start, String text, Pattern pattern, int maxMatches, Writer out) throws IOException {
+        long size = channel.size();
+        long end = Math.min(size, Math.max(0, start) + MAX_SCAN);
+        byte[] needle = text == null ? null : text.getBytes(StandardCharsets.UTF_8);
+
+        byte[] line = new byte[MAX_LINE];
+        int lineLength = 0;
+        long lineStart = Math.max(0, start);
+        int matches = 0;
+
+        long position = lineStart;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int n = channel.read(buffer, position);
+            if ( n <= 0 ) {
+                break;
+            }
+
+            byte[] bytes = buffer.array();
+            for (int i = 0; i < n; i++) {
+                if ( bytes[i] == '\n' ) {
+                    if ( matches(line, lineLength, needle, pattern) ) {
+                        write(lineStart, line, lineLength, out);
+                        if ( ++matches == maxMatches ) {
+                            return new Search(matches, position + i + 1 < size ? position + i + 1 : -1);
+                        }
+                    }
+                    lineLength = 0;
+                    lineStart = position + i + 1;
+                } else if ( lineLength < line.length ) {
+                    line[lineLength++] = bytes[i];
+                }
+            }
+            position += n;
+        }
+
+        if ( position < size ) {
+            // out of bytes to read: carry on from the line that was cut short
+            // (or from here, if it is too long to fit)
+            return new Search(matches, lineStart > Math.max(0, start) ? lineStart : position);
+        }
+        if ( lineLength > 0 && matches(line, lineLength, needle, pattern) ) {
+            write(lineStart, line, lineLength, out);
+            matches++;
+        }
+        return new Search(matches, -1);
+    }
+
+    private static boolean matches(byte[] line, int length, byte[] needle, Pattern pattern) {
+        if ( needle != null ) {
+            return indexOf(line, length, needle) >= 0;
+        }
+        return pattern != null && pattern.matcher(new String(line, 0, length, StandardCharsets.UTF_8)).find();
+    }
+
+    static int indexOf(byte[] line, int length, byte[] needle) {
+        outer:
+        for (int i = 0; i <= length - needle.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if ( line[i + j] != needle[j] ) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static void write(long offset, byte[] line, int length, Writer out) throws IOException {
+        out.write(Long.toString(offset));
+        out.write(": ");
+        out.write(new String(line, 0, length, StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+
+    private void readFully(long position, int length) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if ( channel.read(buffer, position + buffer.position()) < 0 ) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Passes log records from any number of threads to a single writer thread.
+ * <p>
+ * The slots are allocated up front. A thread claims the next sequence
+ * number (if the slot for it has been written), fills the slot, and
+ * publishes it by setting the slot's sequence. The writer takes slots in
+ * order, builds the record and writes it. When every slot is taken, the
+ * caller waits for the writer to make room: nothing is dropped, and the
+ * records of each thread are written in order.
+ * </p>
+ */
+final class LogRing {
+
+    /** Longest the writer sleeps without being woken (a wakeup can't be missed, this is a backstop) */
+    static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /** Time a caller waits before looking for room again, when every slot is taken */
+    static final long FULL_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /** Longest {@link #stop()} waits for waiting records to be written */
+    static final long STOP_MILLIS = 1000;
+
+    /** Records that waited for room */
+    private static final LongAdder full = Metrics.counter("log_buffer_full");
+
+    /** A record, waiting to be written */
+    private static final class Slot {
+        /** Sequence of the record in the slot, once it can be written */
+        volatile long sequence = -1;
+
+        Logger logger;
+        Level level;
+        Class<?> sourceClass;
+        int sourceId;
+        String message;
+        Object[] params;
+        Throwable thrown;
+        long millis;
+        int threadId;
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+
+    /** Next sequence to be claimed */
+    private final AtomicLong claimed = new AtomicLong();
+
+    /** Next sequence to be written: only the writer changes it */
+    private volatile long written;
+
+    private volatile boolean running = true;
+    private volatile boolean parked;
+    private Thread writer;
+
+    /**
+     * @param capacity Records that can wait to be written (rounded up to a power of 2)
+     */
+    LogRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        mask = size - 1;
+    }
+
+    void start(ThreadFactory threadFactory) {
+        writer = threadFactory.newThread(this::drain);
+        writer.start();
+        Metrics.gauge("log_buffer_size", this::size);
+    }
+
+    /**
+     * Stop taking records, and write those already waiting
+     */
+    void stop() {
+        running = false;
+        if ( writer != null ) {
+            LockSupport.unpark(writer);
+            try {
+                writer.join(STOP_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return records waiting to be written
+     */
+    long size() {
+        return claimed.get() - written;
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Pass a record to the writer thread, waiting for room if every slot is taken
+     * @return false if the record wasn't taken (the writer is stopped or
+     *      gone, or this is the writer): the caller should write it
+     */
+    boolean offer(Logger logger, Level level, Object source, String message, Object[] params, Throwable thrown) {
+        if ( Thread.currentThread() == writer ) {
+            return false;
+        }
+        boolean waited = false;
+        long seq;
+        while (true) {
+            if ( !running ) {
+                return false;
+            }
+            seq = claimed.get();
+            if ( seq - written >= slots.length ) {
+                if ( !writer.isAlive() ) {
+                    return false; // nothing will make room
+                }
+                if ( !waited ) {
+                    full.increment();
+                    waited = true;
+                }
+                LockSupport.parkNanos(this, FULL_NANOS);
+            } else if ( claimed.compareAndSet(seq, seq + 1) ) {
+                break;
+            }
+        }
+
+        Slot slot = slots[(int) seq & mask];
+        slot.logger = logger;
+        slot.level = level;
+        slot.sourceClass = source == null ? null : source.getClass();
+        slot.sourceId = System.identityHashCode(source);
+        slot.message = message;
+        slot.params = params;
+        slot.thrown = thrown;
+        slot.millis = System.currentTimeMillis();
+        slot.threadId = (int) Thread.currentThread().getId();
+        slot.sequence = seq;
+
+        if ( parked ) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    private void drain() {
+        try {
+            drainUntilStopped();
+        } finally {
+            // stopped, or ended by an Error: callers write their own records from now on
+            running = false;
+        }
+    }
+
+    private void drainUntilStopped() {
+        long next = written;
+        while ( running || next < claimed.get() ) {
+            Slot slot = slots[(int) next & mask];
+            if ( slot.sequence != next ) {
+                // nothing to write (or a record is still being filled in):
+                // say so before looking again, so a publisher wakes us
+                parked = true;
+                if ( slot.sequence != next ) {
+                    if ( running ) {
+                        LockSupport.parkNanos(this, PARK_NANOS);
+                    } else {
+                        Thread.yield();
+                    }
+                }
+                parked = false;
+                continue;
+            }
+
+            Logger logger = slot.logger;
+            LogRecord record = Log.record(logger, slot.level, slot.sourceClass, slot.sourceId,
+                    slot.message, slot.params, slot.thrown, slot.millis, slot.threadId);
+            slot.logger = null;
+            slot.sourceClass = null;
+            slot.params = null;
+            slot.thrown = null;
+            written = ++next;
+
+            try {
+                logger.log(record);
+            } catch (RuntimeException e) {
+                // a handler failed: nowhere left to report it
+            }
+        }
+    }
+}
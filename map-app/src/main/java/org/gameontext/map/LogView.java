@@ -19,11 +19,13 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
-import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Base64;
 import java.util.StringTokenizer;
-import java.util.stream.Stream;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
@@ -41,6 +43,11 @@ import javax.ws.rs.core.MediaType;
 public class LogView extends HttpServlet {
     private static final long serialVersionUID = 1L;
 
+    /** Files read at once: more requests are turned away */
+    static final int MAX_READERS = 2;
+
+    private static final Semaphore reading = new Semaphore(MAX_READERS);
+
     /**
      * @see HttpServlet#HttpServlet()
      */
@@ -59,7 +66,8 @@ public class LogView extends HttpServlet {
                     out.println(" - " + prefix + count + " - " + c + " (dir)<br>");
                 } else {
                     out.println(" - " + prefix + count + " - <a href=\"?cmd=view&choice=" + prefix + count + "\">" + c
-                            + "</a><br>");
+                            + "</a> (" + cf.length() + " bytes, <a href=\"?cmd=view&choice=" + prefix + count
+                            + "&start=0\">from the start</a>)<br>");
                 }
                 count++;
             }
@@ -71,7 +79,8 @@ public class LogView extends HttpServlet {
         }
     }
 
-    public void viewFile(PrintWriter out, String dir, String countString) {
+    public void viewFile(HttpServletRequest request, HttpServletResponse response, PrintWriter out,
+            String dir, String countString) throws IOException {
         File f = new File(dir);
         if (f.list() != null) {
             long count = 0;
@@ -79,11 +88,7 @@ public class LogView extends HttpServlet {
                 if (countString.equals("" + count)) {
                     System.out.println(
                             "LOGVIEW: Asked to view " + dir + " " + countString + " " + Paths.get(dir, c).toString());
-                    try (Stream<String> stream = Files.lines(Paths.get(dir, c))) {
-                        stream.forEach(out::println);
-                    } catch (IOException io) {
-                        out.println("ERROR READING FILE " + c + " " + io.getMessage());
-                    }
+                    viewFile(request, response, out, Paths.get(dir, c));
                 }
                 count++;
             }
@@ -92,6 +97,65 @@ public class LogView extends HttpServlet {
         }
     }
 
+    /**
+     * Write part of a file: the last lines (tail=n, the last 1000 lines by
+     * default), a byte range (start=offset, negative from the end, and
+     * length=bytes), or the lines that contain a string (search=text) or
+     * match an expression (regex=expression), from start, up to max lines.
+     * Each request reads a bounded part of the file (see {@link LogFile}).
+     */
+    void viewFile(HttpServletRequest request, HttpServletResponse response, PrintWriter out, Path file)
+            throws IOException {
+        Long start;
+        Long length;
+        Integer tail;
+        Integer max;
+        Pattern pattern = null;
+        String search = request.getParameter("search");
+        String regex = request.getParameter("regex");
+        try {
+            start = parse(request.getParameter("start"));
+            length = parse(request.getParameter("length"));
+            Long lines = parse(request.getParameter("tail"));
+            tail = lines == null ? null : (int) Math.max(1, Math.min(lines, Integer.MAX_VALUE));
+            Long matches = parse(request.getParameter("max"));
+            max = matches == null ? null : (int) Math.max(1, Math.min(matches, Integer.MAX_VALUE));
+            if (search == null && regex != null) {
+                pattern = Pattern.compile(regex);
+            }
+        } catch (NumberFormatException | PatternSyntaxException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "invalid parameter: " + e.getMessage());
+            return;
+        }
+
+        if (!reading.tryAcquire()) {
+            response.setHeader("Retry-After", "5");
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "already reading " + MAX_READERS + " files");
+            return;
+        }
+        try (LogFile log = new LogFile(file)) {
+            response.setHeader("X-Log-Size", Long.toString(log.size()));
+            if (search != null || pattern != null) {
+                LogFile.Search result = log.search(start == null ? 0 : start, search, pattern,
+                        max == null ? LogFile.DEFAULT_MATCHES : max, out);
+                out.println("-- " + result.getMatches() + " matching lines"
+                        + (result.getNext() < 0 ? "" : ", carry on with start=" + result.getNext()));
+            } else if (start != null) {
+                log.range(start, length == null ? LogFile.MAX_RANGE : length, out);
+            } else {
+                log.tail(tail == null ? LogFile.DEFAULT_TAIL_LINES : tail, out);
+            }
+        } catch (IOException io) {
+            out.println("ERROR READING FILE " + file.getFileName() + " " + io.getMessage());
+        } finally {
+            reading.release();
+        }
+    }
+
+    private static Long parse(String value) {
+        return value == null || value.isEmpty() ? null : Long.valueOf(value.trim());
+    }
+
     /**
      * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse
      *      response)
@@ -186,14 +250,14 @@ public class LogView extends HttpServlet {
                                     if (choice != null) {
                                         if (choice.startsWith("o")) {
                                             String outdir = System.getenv("WLP_OUTPUT_DIR");
-                                            viewFile(out, outdir, choice.substring(1).trim());
+                                            viewFile(request, response, out, outdir, choice.substring(1).trim());
                                         } else if (choice.startsWith("l")) {
                                             String logdir = System.getenv("X_LOG_DIR");
                                             if (logdir == null) {
                                                 String outdir = System.getenv("WLP_OUTPUT_DIR");
                                                 logdir = Paths.get(outdir, "defaultServer", "logs").toString();
                                             }
-                                            viewFile(out, logdir, choice.substring(1).trim());
+                                            viewFile(request, response, out, logdir, choice.substring(1).trim());
                                         } else if (choice.startsWith("f")) {
                                             String logdir = System.getenv("X_LOG_DIR");
                                             if (logdir == null) {
@@ -201,13 +265,13 @@ public class LogView extends HttpServlet {
                                                 logdir = Paths.get(outdir, "defaultServer", "logs").toString();
                                             }
                                             String ffdcDir = new File(new File(logdir), "ffdc").getAbsolutePath();
-                                            viewFile(out, ffdcDir, choice.substring(1).trim());
+                                            viewFile(request, response, out, ffdcDir, choice.substring(1).trim());
                                         } else if (choice.startsWith("x")) {
                                             String hardcoded = "/logs";
-                                            viewFile(out, hardcoded, choice.substring(1).trim());
+                                            viewFile(request, response, out, hardcoded, choice.substring(1).trim());
                                         } else if (choice.startsWith("y")) {
                                             String hardcoded = "/logs/ffdc";
-                                            viewFile(out, hardcoded, choice.substring(1).trim());
+                                            viewFile(request, response, out, hardcoded, choice.substring(1).trim());
                                         }
                                     } else {
                                         response.sendError(HttpServletResponse.SC_BAD_REQUEST,
@@ -218,6 +282,9 @@ public class LogView extends HttpServlet {
                                     out.println("<center><h1>Welcome to LogView.</h1></center>"
                                             + "<center>Your friendly logging choice.</center><hr><p><p><center>This logging console is shoeware, you may use it, but you must buy Ozzy shoes.</center><p><p>");
                                     out.println("<center><a href=\"?cmd=list\">Take me to the logs!!... </a></center>");
+                                    out.println("<center>Viewing a file shows its last lines (&amp;tail=n), a range of bytes"
+                                            + " (&amp;start=offset&amp;length=bytes), or the lines that contain a string"
+                                            + " (&amp;search=text) or match a regular expression (&amp;regex=expression).</center>");
                                 }
                             }
                         } else {
@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map;
+
+import java.util.logging.Level;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+
+/**
+ * Starts the thread that writes log records (see {@link Log}) when the
+ * application starts, and writes what is left when it stops.
+ */
+@ApplicationScoped
+public class LogWriter {
+
+    /** Default for the records that can wait for the writer thread */
+    static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /** CDI injection of Java EE7 Managed thread factory */
+    @Resource
+    protected ManagedThreadFactory threadFactory;
+
+    /** Records that can wait for the writer thread: 0 to write on the calling thread */
+    @Resource(lookup="logBufferSize")
+    String logBufferSize;
+
+    protected void start(@Observes @Initialized(ApplicationScoped.class) Object init) {
+        int size = Math.max(0, Settings.intValue("logBufferSize", logBufferSize, DEFAULT_BUFFER_SIZE));
+        if ( threadFactory == null || size == 0 ) {
+            Log.log(Level.INFO, this, "Log records are written on the calling thread");
+            return;
+        }
+        Log.start(threadFactory, size);
+        Log.log(Level.INFO, this, "Log records are written by a separate thread ({0} buffered)", size);
+    }
+
+    @PreDestroy
+    protected void stop() {
+        Log.stop();
+    }
+}
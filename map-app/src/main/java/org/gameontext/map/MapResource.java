@@ -15,21 +15,20 @@
  *******************************************************************************/
 package org.gameontext.map;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 
 import javax.inject.Inject;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
-
-import org.gameontext.map.auth.PlayerClient;
-import org.gameontext.map.db.CouchDbHealth;
-import org.gameontext.map.db.MapRepository;
-import org.gameontext.map.kafka.Kafka;
+import javax.ws.rs.core.StreamingOutput;
 
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
@@ -39,13 +38,7 @@ import io.swagger.annotations.ApiOperation;
 public class MapResource {
 
     @Inject
-    protected CouchDbHealth dbHealth;
-
-    @Inject
-    Kafka kafka;
-
-    @Inject
-    PlayerClient playerClient;
+    HealthMonitor health;
 
     @GET
     @ApiOperation(value="basic ping", hidden = true)
@@ -53,26 +46,73 @@ public class MapResource {
         return Response.ok().build();
     }
 
+    /**
+     * GET /map/v1/metrics
+     * <p>
+     * Prometheus text format, or JSON (counters and gauges only) for clients
+     * that prefer {@code application/json}.
+     */
+    @GET
+    @Path("metrics")
+    @Produces({MediaType.TEXT_PLAIN, MediaType.APPLICATION_JSON})
+    @ApiOperation(value="service metrics", hidden = true)
+    public Response metrics(@Context HttpHeaders headers) {
+        for (MediaType type : headers.getAcceptableMediaTypes()) {
+            if ( type.isWildcardType() || type.isCompatible(MediaType.TEXT_PLAIN_TYPE) ) {
+                break;
+            }
+            if ( type.isCompatible(MediaType.APPLICATION_JSON_TYPE) ) {
+                return Response.ok(Metrics.snapshot(), MediaType.APPLICATION_JSON_TYPE).build();
+            }
+        }
+
+        StreamingOutput body = out -> {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            Metrics.writePrometheus(writer);
+            writer.flush();
+        };
+        return Response.ok(body, Metrics.PROMETHEUS_TYPE).build();
+    }
+
     /**
      * GET /map/v1/health
+     * <p>
+     * The last results of checking the dependencies (see {@link HealthMonitor}):
+     * nothing is checked while the request waits.
      */
     @GET
     @Path("health")
     @Produces(MediaType.APPLICATION_JSON)
     @ApiOperation(value="health check", hidden = true)
     public Response healthCheck() {
-        if ( dbHealth.isHealthy()
-             && playerClient.isHealthy()
-             && kafka.isHealthy() ) {
-            return Response.ok().entity("{\"status\":\"UP\"}").build();
-        } else {
-            Map<String,String> map = new HashMap<>();
-            map.put("status", "DOWN");
-            map.put("mapRepository", dbHealth.isHealthy()+"");
-            map.put("playerClient", playerClient.isHealthy()+"");
-            map.put("kafka", kafka.isHealthy()+"");
+        return readiness();
+    }
 
-            return Response.status(Status.SERVICE_UNAVAILABLE).entity(map).build();
-        }
+    /**
+     * GET /map/v1/health/live
+     * <p>
+     * UP while the service can answer requests, whatever the state of its dependencies.
+     */
+    @GET
+    @Path("health/live")
+    @Produces(MediaType.APPLICATION_JSON)
+    @ApiOperation(value="liveness check", hidden = true)
+    public Response liveness() {
+        return Response.ok(health.liveness()).build();
+    }
+
+    /**
+     * GET /map/v1/health/ready
+     * <p>
+     * UP (200) if the dependencies were healthy when last checked, and
+     * they were checked recently. DOWN (503) otherwise.
+     */
+    @GET
+    @Path("health/ready")
+    @Produces(MediaType.APPLICATION_JSON)
+    @ApiOperation(value="readiness check", hidden = true)
+    public Response readiness() {
+        Status status = health.isReady() ? Status.OK : Status.SERVICE_UNAVAILABLE;
+        return Response.status(status).entity(health.readiness()).build();
     }
 }
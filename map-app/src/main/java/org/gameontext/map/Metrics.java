@@ -0,0 +1,296 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide registry of named counters, gauges and histograms.
+ * <p>
+ * Look a counter or histogram up once (e.g. into a static final field), and
+ * update it on the hot path: {@link LongAdder} is striped, so contended
+ * increments don't serialize threads, and recording doesn't allocate.
+ * </p>
+ * <p>
+ * Labels (Prometheus style) are part of the name a metric is registered
+ * with: {@code counter("couchdb_calls", "view", "all")} is the series
+ * {@code couchdb_calls{view="all"}}.
+ * </p>
+ */
+public class Metrics {
+    /** Prefix of metric names in the Prometheus exposition */
+    static final String PREFIX = "map_";
+
+    /** Content type of the Prometheus text exposition */
+    public static final String PROMETHEUS_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /** Bucket bounds for latencies, in nanoseconds (1ms to 30s) */
+    public static final long[] LATENCY_NANOS = nanos(
+            1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000);
+
+    /** Bucket bounds for small counts (retries, calls per request) */
+    public static final long[] COUNTS = { 0, 1, 2, 3, 5, 10, 20, 50, 100 };
+
+    private static final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, DoubleSupplier> ratios = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * Values sorted into buckets (cumulative in the exposition), with their
+     * count and sum: lock-free, and recording doesn't allocate.
+     */
+    public static final class Histogram {
+        final long[] bounds;
+        final LongAdder[] buckets;
+        final LongAdder sum = new LongAdder();
+        final double scale;
+
+        Histogram(long[] bounds, double scale) {
+            this.bounds = bounds;
+            this.scale = scale;
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * @param value Value to record, in the histogram's units (e.g. nanoseconds)
+         */
+        public void record(long value) {
+            int i = Arrays.binarySearch(bounds, value);
+            buckets[i < 0 ? -i - 1 : i].increment();
+            sum.add(value);
+        }
+
+        /**
+         * Record the time since {@code startNanos}
+         * @param startNanos Start time, from {@link System#nanoTime()}
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * @return number of values recorded
+         */
+        public long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+    }
+
+    /**
+     * @param name Counter name
+     * @return the counter with the given name, created if necessary
+     */
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    /**
+     * @param name Counter name
+     * @param labels Label names and values: name, value, name, value...
+     * @return the counter with the given name and labels, created if necessary
+     */
+    public static LongAdder counter(String name, String... labels) {
+        return counter(series(name, labels));
+    }
+
+    /**
+     * Register (or replace) a gauge: a value sampled when metrics are read.
+     * @param name Gauge name
+     * @param value Supplier of the current value
+     */
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Register (or replace) a gauge for the share of events counted by
+     * {@code hits}: {@code hits / (hits + misses)}, 0 before there are any.
+     * @param name Gauge name
+     * @param hits Counter of events in the share
+     * @param misses Counter of the other events
+     */
+    public static void ratio(String name, LongAdder hits, LongAdder misses) {
+        ratios.put(name, () -> {
+            long h = hits.sum();
+            long total = h + misses.sum();
+            return total == 0 ? 0 : (double) h / total;
+        });
+    }
+
+    /**
+     * @param name Histogram name
+     * @param bounds Upper bounds (inclusive) of the buckets, ascending
+     * @param labels Label names and values: name, value, name, value...
+     * @return the histogram with the given name and labels, created if necessary
+     */
+    public static Histogram histogram(String name, long[] bounds, String... labels) {
+        return histograms.computeIfAbsent(series(name, labels), k -> new Histogram(bounds, 1));
+    }
+
+    /**
+     * Latency histogram: record nanoseconds, exposed as {@code <name>_seconds}.
+     * @param name Histogram name, without unit
+     * @param labels Label names and values: name, value, name, value...
+     * @return the histogram with the given name and labels, created if necessary
+     */
+    public static Histogram timer(String name, String... labels) {
+        return histograms.computeIfAbsent(series(name + "_seconds", labels),
+                k -> new Histogram(LATENCY_NANOS, TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    /**
+     * @return current value of all counters and gauges (and the count of
+     *      values in each histogram), sorted by name
+     */
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> result = new TreeMap<>();
+        counters.forEach((k, v) -> result.put(k, v.sum()));
+        gauges.forEach((k, v) -> result.put(k, v.getAsLong()));
+        histograms.forEach((k, v) -> result.put(suffixed(k, "_count"), v.count()));
+        return result;
+    }
+
+    /**
+     * Write all metrics in the Prometheus text format (version 0.0.4).
+     * Counter names get a {@code _total} suffix (their family is named with
+     * it too), and all names a {@code map_} prefix.
+     * @param out Destination
+     */
+    public static void writePrometheus(Appendable out) throws IOException {
+        Map<String, String> types = new TreeMap<>();
+        Map<String, StringBuilder> families = new TreeMap<>();
+
+        new TreeMap<>(counters).forEach((k, v) ->
+            sample(families, types, total(k), "counter", "", null, Long.toString(v.sum())));
+        new TreeMap<>(gauges).forEach((k, v) ->
+            sample(families, types, k, "gauge", "", null, Long.toString(v.getAsLong())));
+        new TreeMap<>(ratios).forEach((k, v) ->
+            sample(families, types, k, "gauge", "", null, Double.toString(v.getAsDouble())));
+        new TreeMap<>(histograms).forEach((k, h) -> {
+            long cumulative = 0;
+            for (int i = 0; i < h.buckets.length; i++) {
+                cumulative += h.buckets[i].sum();
+                String le = i < h.bounds.length ? Double.toString(h.bounds[i] / h.scale) : "+Inf";
+                sample(families, types, k, "histogram", "_bucket", "le=\"" + le + "\"", Long.toString(cumulative));
+            }
+            sample(families, types, k, "histogram", "_sum", null, Double.toString(h.sum.sum() / h.scale));
+            sample(families, types, k, "histogram", "_count", null, Long.toString(cumulative));
+        });
+
+        for (Map.Entry<String, StringBuilder> family : families.entrySet()) {
+            out.append("# TYPE ").append(PREFIX).append(family.getKey())
+               .append(' ').append(types.get(family.getKey())).append('\n');
+            out.append(family.getValue());
+        }
+    }
+
+    /**
+     * @return the series, with {@code _total} added to its name
+     */
+    private static String total(String series) {
+        int brace = series.indexOf('{');
+        return brace < 0 ? series + "_total" : series.substring(0, brace) + "_total" + series.substring(brace);
+    }
+
+    /**
+     * Add a sample line to the family of the series
+     * @param series Registered name, with labels
+     * @param suffix Added to the name (e.g. {@code _bucket})
+     * @param extraLabel Label added to the series' labels, or null
+     */
+    private static void sample(Map<String, StringBuilder> families, Map<String, String> types,
+            String series, String type, String suffix, String extraLabel, String value) {
+        int brace = series.indexOf('{');
+        String name = brace < 0 ? series : series.substring(0, brace);
+        String labels = brace < 0 ? "" : series.substring(brace + 1, series.length() - 1);
+        if ( extraLabel != null ) {
+            labels = labels.isEmpty() ? extraLabel : labels + "," + extraLabel;
+        }
+
+        types.putIfAbsent(name, type);
+        StringBuilder lines = families.computeIfAbsent(name, k -> new StringBuilder());
+        lines.append(PREFIX).append(name).append(suffix);
+        if ( !labels.isEmpty() ) {
+            lines.append('{').append(labels).append('}');
+        }
+        lines.append(' ').append(value).append('\n');
+    }
+
+    /**
+     * @return {@code name{label="value",...}}, or the name if there are no labels
+     */
+    static String series(String name, String... labels) {
+        if ( labels.length % 2 != 0 ) {
+            throw new IllegalArgumentException("Labels must be name, value pairs: " + Arrays.toString(labels));
+        }
+        if ( labels.length == 0 ) {
+            return name;
+        }
+        StringBuilder sb = new StringBuilder(name).append('{');
+        for (int i = 0; i < labels.length; i += 2) {
+            if ( i > 0 ) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"");
+            String value = labels[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if ( c == '\\' || c == '"' ) {
+                    sb.append('\\').append(c);
+                } else if ( c == '\n' ) {
+                    sb.append("\\n");
+                } else {
+                    sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * @return the series with a suffix added to its name (before the labels)
+     */
+    private static String suffixed(String series, String suffix) {
+        int brace = series.indexOf('{');
+        return brace < 0 ? series + suffix : series.substring(0, brace) + suffix + series.substring(brace);
+    }
+
+    private static long[] nanos(long... millis) {
+        long[] nanos = new long[millis.length];
+        for (int i = 0; i < millis.length; i++) {
+            nanos[i] = TimeUnit.MILLISECONDS.toNanos(millis[i]);
+        }
+        return nanos;
+    }
+}
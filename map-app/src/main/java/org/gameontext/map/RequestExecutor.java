@@ -0,0 +1,332 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.enterprise.context.ApplicationScoped;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.gameontext.map.db.CouchCalls;
+
+/**
+ * Runs the work for suspended (asynchronous) requests.
+ * <p>
+ * Requests that read or write the database are handed to a small pool of
+ * dedicated threads, so slow CouchDB responses don't hold on to the
+ * (few) HTTP threads. The pool has a bounded queue, and each endpoint
+ * has its own limit on work in progress, so one slow operation (listing
+ * every site, say) can't starve the others. Requests over a limit, or that
+ * don't fit in the queue, get a 503 with Retry-After straight away.
+ * </p>
+ */
+@ApplicationScoped
+public class RequestExecutor {
+
+    /** Endpoints, with the most requests each may have in progress */
+    public enum Endpoint {
+        LIST_SITES(2),
+        GET_SITE(16),
+        CREATE_SITE(4),
+        UPDATE_SITE(4),
+        DELETE_SITE(4),
+        SWAP_SITES(2);
+
+        final int limit;
+
+        /** Time from submission to response */
+        final Metrics.Histogram latency;
+
+        /** Requests that ended with an exception */
+        final LongAdder errors;
+
+        Endpoint(int limit) {
+            this.limit = limit;
+            this.latency = Metrics.timer("request", "endpoint", label());
+            this.errors = Metrics.counter("request_errors", "endpoint", label());
+        }
+
+        /**
+         * @return name of the endpoint in metrics
+         */
+        public String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /** Threads in the request pool */
+    static final int POOL_SIZE = 16;
+
+    /** Requests waiting for a thread, beyond which requests are refused */
+    static final int QUEUE_SIZE = 64;
+
+    /** Longest a client waits for a response before we give up (503) */
+    static final long TIMEOUT_SECONDS = 30;
+
+    /** Seconds a refused client should wait before trying again */
+    static final String RETRY_AFTER = "2";
+
+    /** Response header with the CouchDB calls made for the request, when enabled */
+    static final String COUCHDB_CALLS = "X-CouchDB-Calls";
+
+    private static final LongAdder rejected = Metrics.counter("request_rejected");
+    private static final LongAdder timedOut = Metrics.counter("request_timeout");
+
+    /** CDI injection of Java EE7 Managed thread factory */
+    @Resource
+    protected ManagedThreadFactory threadFactory;
+
+    private final Map<Endpoint, Semaphore> permits = new EnumMap<>(Endpoint.class);
+
+    private volatile ThreadPoolExecutor executor;
+
+    public RequestExecutor() {
+        for (Endpoint endpoint : Endpoint.values()) {
+            permits.put(endpoint, new Semaphore(endpoint.limit));
+        }
+    }
+
+    @PostConstruct
+    protected void postConstruct() {
+        start(threadFactory);
+    }
+
+    @PreDestroy
+    protected void preDestroy() {
+        stop();
+    }
+
+    /**
+     * Start the request pool. Without one, work runs on the calling thread.
+     * @param threadFactory Factory for pool threads
+     */
+    void start(ThreadFactory threadFactory) {
+        if ( threadFactory == null ) {
+            Log.log(Level.WARNING, this, "No thread factory: requests will be handled synchronously");
+            return;
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        Metrics.gauge("request_queue_size", () -> pool.getQueue().size());
+        Metrics.gauge("request_active", pool::getActiveCount);
+        executor = pool;
+    }
+
+    void stop() {
+        ThreadPoolExecutor pool = executor;
+        executor = null;
+        if ( pool != null ) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Produce the response for a suspended request. Exceptions thrown by the
+     * work are passed to the container, and mapped (see {@link ErrorResponseMapper}).
+     *
+     * @param endpoint Endpoint the request is for
+     * @param response Suspended response
+     * @param work Produces the response. Must not use request-scoped
+     *     (thread-local) context: read what is needed first.
+     */
+    public void submit(Endpoint endpoint, AsyncResponse response, Supplier<Response> work) {
+        long start = System.nanoTime();
+        Semaphore semaphore = permits.get(endpoint);
+        if ( !semaphore.tryAcquire() ) {
+            reject(endpoint, response, "too many requests in progress");
+            return;
+        }
+
+        ThreadPoolExecutor pool = executor;
+        if ( pool == null ) {
+            Response result;
+            try {
+                result = counted(endpoint, work).get();
+            } catch (RuntimeException e) {
+                semaphore.release();
+                endpoint.errors.increment();
+                endpoint.latency.recordSince(start);
+                response.resume(e);
+                return;
+            }
+            endpoint.latency.recordSince(start);
+            resume(response, result, semaphore);
+            return;
+        }
+
+        response.setTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        response.setTimeoutHandler(r -> {
+            timedOut.increment();
+            Log.log(Level.WARNING, this, "Request for {0} timed out after {1}s", endpoint, TIMEOUT_SECONDS);
+            r.resume(unavailable());
+        });
+
+        try {
+            CompletableFuture.supplyAsync(counted(endpoint, work), pool).whenComplete((result, t) -> {
+                endpoint.latency.recordSince(start);
+                if ( t == null ) {
+                    resume(response, result, semaphore);
+                } else {
+                    semaphore.release();
+                    endpoint.errors.increment();
+                    response.resume(t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            semaphore.release();
+            reject(endpoint, response, "request queue is full");
+        }
+    }
+
+    /**
+     * Resume the request with the result. A {@link StreamedEntity} keeps the
+     * permit until it has been written, or the request is complete (it may
+     * never be written: the client went away, or a filter failed). If the
+     * request was resumed already (it timed out), the result is discarded:
+     * a streamed entity is closed.
+     */
+    private void resume(AsyncResponse response, Response result, Semaphore semaphore) {
+        Object entity = result == null ? null : result.getEntity();
+        if ( entity instanceof StreamedEntity ) {
+            StreamedEntity streamed = (StreamedEntity) entity;
+            streamed.onClose(semaphore::release);
+            response.register((CompletionCallback) t -> streamed.close());
+        } else {
+            semaphore.release();
+        }
+
+        if ( !response.resume(result) && entity instanceof StreamedEntity ) {
+            Log.log(Level.FINE, this, "Response already sent: closing streamed entity");
+            ((StreamedEntity) entity).close();
+        }
+    }
+
+    /**
+     * A response entity that is written after the work has finished (reading
+     * from CouchDB as it goes). It holds on to what it reads from, and to the
+     * endpoint's permit, until it has been written, or discarded.
+     */
+    public static class StreamedEntity implements StreamingOutput {
+
+        /** Writes the entity */
+        @FunctionalInterface
+        public interface Writer {
+            void writeTo(OutputStream out) throws IOException;
+        }
+
+        private final Writer writer;
+        private final Closeable resource;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile Runnable onClose;
+
+        /**
+         * @param writer Writes the entity
+         * @param resource Closed once the entity has been written (or discarded)
+         */
+        public StreamedEntity(Writer writer, Closeable resource) {
+            this.writer = writer;
+            this.resource = resource;
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
+            try {
+                writer.writeTo(out);
+            } finally {
+                close();
+            }
+        }
+
+        void onClose(Runnable action) {
+            onClose = action;
+        }
+
+        /**
+         * Close the resource, and release the permit: only the first call does anything
+         */
+        public void close() {
+            if ( closed.compareAndSet(false, true) ) {
+                try {
+                    resource.close();
+                } catch (IOException e) {
+                    Log.log(Level.FINEST, this, "Unable to close streamed entity", e);
+                } finally {
+                    Runnable action = onClose;
+                    if ( action != null ) {
+                        action.run();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Count the CouchDB calls made by the work (see {@link CouchCalls}), and
+     * add them to the response if that is enabled
+     */
+    private static Supplier<Response> counted(Endpoint endpoint, Supplier<Response> work) {
+        return () -> {
+            CouchCalls.begin(endpoint);
+            try {
+                Response response = work.get();
+                if ( CouchCalls.isHeaderEnabled() && response != null ) {
+                    response = Response.fromResponse(response).header(COUCHDB_CALLS, CouchCalls.summary()).build();
+                }
+                return response;
+            } finally {
+                CouchCalls.end();
+            }
+        };
+    }
+
+    private void reject(Endpoint endpoint, AsyncResponse response, String reason) {
+        rejected.increment();
+        Log.log(Level.FINE, this, "Rejected request for {0}: {1}", endpoint, reason);
+        response.resume(unavailable());
+    }
+
+    private static Response unavailable() {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER)
+                .build();
+    }
+}
@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map;
+
+import java.util.logging.Level;
+
+/**
+ * Reads settings injected from JNDI entries (see server.xml). An entry for
+ * an environment variable that isn't set holds the unresolved expression
+ * (e.g. {@code ${env.MAP_STORE}}): that is treated as unset, like a missing
+ * or empty value, and the default is used. A value that can't be read is
+ * logged, and the default is used.
+ */
+public final class Settings {
+
+    private static final Settings settings = new Settings();
+
+    private Settings() {
+    }
+
+    /**
+     * @return true if the value is set: not null, blank, or an unresolved {@code ${...}}
+     */
+    public static boolean isSet(String value) {
+        return value != null && !value.trim().isEmpty() && !value.trim().startsWith("${");
+    }
+
+    /**
+     * @param name Name of the setting, for the log
+     * @return the value as an int, or the default if it is unset or invalid
+     */
+    public static int intValue(String name, String value, int defaultValue) {
+        if ( isSet(value) ) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                invalid(name, value, defaultValue);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * @param name Name of the setting, for the log
+     * @return the value as a long, or the default if it is unset or invalid
+     */
+    public static long longValue(String name, String value, long defaultValue) {
+        if ( isSet(value) ) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                invalid(name, value, defaultValue);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * @param name Name of the setting, for the log
+     * @return the value as a double, or the default if it is unset or invalid
+     */
+    public static double doubleValue(String name, String value, double defaultValue) {
+        if ( isSet(value) ) {
+            try {
+                return Double.parseDouble(value.trim());
+            } catch (NumberFormatException e) {
+                invalid(name, value, defaultValue);
+            }
+        }
+        return defaultValue;
+    }
+
+    private static void invalid(String name, String value, Object defaultValue) {
+        Log.log(Level.WARNING, settings, "Invalid {0} {1}, using {2}", name, value, defaultValue);
+    }
+}
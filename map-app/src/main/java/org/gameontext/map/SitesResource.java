@@ -15,8 +15,11 @@
  *******************************************************************************/
 package org.gameontext.map;
 
+import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Level;
 
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
@@ -30,20 +33,31 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.UriInfo;
 
+import org.gameontext.map.RequestExecutor.Endpoint;
+import org.gameontext.map.RequestExecutor.StreamedEntity;
 import org.gameontext.map.auth.ResourceAccessPolicy;
 import org.gameontext.map.auth.ResourceAccessPolicyFactory;
 import org.gameontext.map.db.MapRepository;
+import org.gameontext.map.db.SiteCursor;
+import org.gameontext.map.db.SiteFields;
+import org.gameontext.map.db.SiteStream;
 import org.gameontext.map.model.ErrorResponse;
 import org.gameontext.map.model.RoomInfo;
 import org.gameontext.map.model.Site;
 import org.gameontext.signed.SignedRequest;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
@@ -65,11 +79,23 @@ public class SitesResource {
     @Inject
     protected MapRepository mapRepository;
 
+    @Inject
+    protected RequestExecutor requests;
+
     @Context
     protected HttpServletRequest httpRequest;
 
+    @Context
+    protected UriInfo uriInfo;
+
     private enum AuthMode { AUTHENTICATION_REQUIRED, UNAUTHENTICATED_OK };
 
+    /** Page size used when a cursor is given without a limit */
+    static final int DEFAULT_PAGE_SIZE = 100;
+
+    /** Largest page: a page is buffered before it is sent */
+    static final int MAX_PAGE_SIZE = 1000;
+
     /**
      * GET /map/v1/sites
      */
@@ -85,21 +111,103 @@ public class SitesResource {
             @ApiResponse(code = HttpServletResponse.SC_NO_CONTENT, message = Messages.NOT_FOUND)
         })
     @Produces(MediaType.APPLICATION_JSON)
-    public Response listAll(
+    public void listAll(
+            @Suspended AsyncResponse response,
             @ApiParam(value = "filter by owner") @QueryParam("owner") String owner,
-            @ApiParam(value = "filter by name") @QueryParam("name") String name) {
+            @ApiParam(value = "filter by name") @QueryParam("name") String name,
+            @ApiParam(value = "maximum number of sites to return (at most " + MAX_PAGE_SIZE + ")") @QueryParam("limit") Integer limit,
+            @ApiParam(value = "position to start from: use the link header of the previous page") @QueryParam("cursor") String cursor,
+            @ApiParam(value = "fields to return, e.g. coord,info.name (site id is always included)") @QueryParam("fields") String fields) {
 
         String authenticatedId = getAuthenticatedId(AuthMode.UNAUTHENTICATED_OK);
         ResourceAccessPolicy auth = resourceAccessPolicyFactory.createPolicyForUser(authenticatedId);
 
-        // TODO: pagination,  fields to include in list (i.e. just Exits).
-        List<JsonNode> sites = mapRepository.listSites(auth, owner, name);
+        SiteFields selected = SiteFields.parse(fields);
+        SiteCursor start = SiteCursor.decode(cursor);
+        int pageSize = pageSize(limit, start);
+        // read on the request thread: the page is read on another
+        UriBuilder link = uriInfo.getRequestUriBuilder();
+
+        requests.submit(Endpoint.LIST_SITES, response,
+                () -> listSites(auth, owner, name, selected, start, pageSize, link));
+    }
+
+    private Response listSites(ResourceAccessPolicy auth, String owner, String name, SiteFields selected,
+            SiteCursor start, int pageSize, UriBuilder link) {
+        // Sites are copied from the database response to ours one at a time
+        SiteStream sites = null;
+        try {
+            sites = mapRepository.streamSites(auth, owner, name, selected, start, pageSize);
+            if ( pageSize > 0 ) {
+                return page(sites, pageSize, link);
+            }
+
+            ObjectNode first = sites.next();
+            if ( first == null ) {
+                sites.close();
+                return Response.noContent().build();
+            }
+
+            // the stream (and the LIST_SITES permit) is released once written
+            final SiteStream stream = sites;
+            return Response.ok().entity(new StreamedEntity(out -> stream.writeTo(out, first), stream)).build();
+        } catch (IOException e) {
+            closeQuietly(sites);
+            Log.log(Level.WARNING, this, "Unable to list sites", e);
+            throw new MapModificationException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "Unable to list sites", e.getMessage());
+        } catch (RuntimeException e) {
+            closeQuietly(sites);
+            throw e;
+        }
+    }
+
+    /**
+     * @return size of the page to return, or 0 for all sites
+     */
+    private int pageSize(Integer limit, SiteCursor cursor) {
+        if ( limit == null ) {
+            return cursor == null ? 0 : DEFAULT_PAGE_SIZE;
+        }
+        if ( limit < 1 || limit > MAX_PAGE_SIZE ) {
+            throw new MapModificationException(Response.Status.BAD_REQUEST,
+                    "Invalid limit",
+                    "Limit should be between 1 and " + MAX_PAGE_SIZE + ", was " + limit);
+        }
+        return limit;
+    }
+
+    /**
+     * Read a page of sites, with a link to the next page if there is one
+     * @param link This request's URI
+     */
+    private Response page(SiteStream sites, int pageSize, UriBuilder link) throws IOException {
+        List<ObjectNode> page = new ArrayList<>(Math.min(pageSize, DEFAULT_PAGE_SIZE));
+        SiteCursor next;
+        try {
+            next = sites.readPage(pageSize, page);
+        } finally {
+            sites.close();
+        }
 
-        if ( sites.isEmpty() )
+        if ( page.isEmpty() )
             return Response.noContent().build();
-        else {
-            // TODO -- this should be done better. Stream, something.
-            return Response.ok().entity(sites.toString()).build();
+
+        Response.ResponseBuilder response = Response.ok().entity(page.toString());
+        if ( next != null ) {
+            // Same request (still encoded), next page (RFC 5988 link header)
+            response.link(link.replaceQueryParam("cursor", next.encode()).build(), "next");
+        }
+        return response.build();
+    }
+
+    private void closeQuietly(SiteStream sites) {
+        if ( sites != null ) {
+            try {
+                sites.close();
+            } catch (IOException e) {
+                Log.log(Level.FINEST, this, "Unable to close site stream", e);
+            }
         }
     }
 
@@ -124,13 +232,17 @@ public class SitesResource {
         })
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response createRoom(
+    public void createRoom(
+            @Suspended AsyncResponse response,
             @ApiParam(value = "New room attributes", required = true) RoomInfo newRoom) {
 
-        // NOTE: Thrown exeptions are mapped (see MapModificationException)
-        Site mappedRoom = mapRepository.connectRoom(getAuthenticatedId(AuthMode.AUTHENTICATION_REQUIRED), newRoom);
+        String authenticatedId = getAuthenticatedId(AuthMode.AUTHENTICATION_REQUIRED);
 
-        return Response.created(URI.create("/map/v1/sites/" + mappedRoom.getId())).entity(mappedRoom).build();
+        // NOTE: Thrown exeptions are mapped (see MapModificationException)
+        requests.submit(Endpoint.CREATE_SITE, response, () -> {
+            Site mappedRoom = mapRepository.connectRoom(authenticatedId, newRoom);
+            return Response.created(URI.create("/map/v1/sites/" + mappedRoom.getId())).entity(mappedRoom).build();
+        });
     }
 
     /**
@@ -148,13 +260,61 @@ public class SitesResource {
             @ApiResponse(code = HttpServletResponse.SC_NOT_FOUND, message = Messages.NOT_FOUND, response = ErrorResponse.class)
         })
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getRoom(
-            @ApiParam(value = "target room id", required = true) @PathParam("id") String roomId) {
+    public void getRoom(
+            @Suspended AsyncResponse response,
+            @ApiParam(value = "target room id", required = true) @PathParam("id") String roomId,
+            @ApiParam(value = "fields to return, e.g. exits (site id is always included)") @QueryParam("fields") String fields) {
         String authenticatedId = getAuthenticatedId(AuthMode.UNAUTHENTICATED_OK);
         ResourceAccessPolicy auth = resourceAccessPolicyFactory.createPolicyForUser(authenticatedId);
 
-        Site mappedRoom = mapRepository.getRoom(auth,roomId);
-        return Response.ok(mappedRoom).build();
+        SiteFields selected = SiteFields.parse(fields);
+        boolean withExits = selected == null || selected.includes("exits");
+        String variant = selected == null ? "" : "." + Integer.toHexString(selected.toString().hashCode());
+        String ifNoneMatch = httpRequest.getHeader(HttpHeaders.IF_NONE_MATCH);
+
+        requests.submit(Endpoint.GET_SITE, response,
+                () -> getSite(auth, roomId, selected, withExits, variant, ifNoneMatch));
+    }
+
+    private Response getSite(ResourceAccessPolicy auth, String roomId, SiteFields selected,
+            boolean withExits, String variant, String ifNoneMatch) {
+        // Unchanged? Answer without reading the site or working out its exits
+        if ( ifNoneMatch != null ) {
+            EntityTag current = mapRepository.currentEntityTag(auth, roomId, withExits, variant);
+            if ( current != null && matchesAny(ifNoneMatch, current) ) {
+                return Response.notModified(current).build();
+            }
+        }
+
+        // Exits are only looked up if they were asked for
+        Site mappedRoom = mapRepository.getRoom(auth, roomId, withExits);
+        EntityTag tag = mapRepository.entityTag(auth, mappedRoom, withExits, variant);
+        if ( selected == null ) {
+            return Response.ok(mappedRoom).tag(tag).build();
+        }
+
+        ObjectNode node = mapRepository.mapper().valueToTree(mappedRoom);
+        selected.retain(node);
+        return Response.ok(node.toString()).tag(tag).build();
+    }
+
+    /**
+     * Weak comparison of the tags listed in an If-None-Match header
+     * with the current tag (RFC 7232)
+     */
+    static boolean matchesAny(String ifNoneMatch, EntityTag current) {
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if ( tag.equals("*") ) {
+                return true;
+            }
+            tag = tag.startsWith("W/") ? tag.substring(2) : tag;
+            tag = tag.length() > 1 && tag.startsWith("\"") && tag.endsWith("\"") ? tag.substring(1, tag.length() - 1) : tag;
+            if ( tag.equals(current.getValue()) ) {
+                return true;
+            }
+        }
+        return false;
     }
 
 
@@ -177,12 +337,58 @@ public class SitesResource {
         })
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response updateRoom(
+    public void updateRoom(
+            @Suspended AsyncResponse response,
             @ApiParam(value = "target room id", required = true) @PathParam("id") String roomId,
             @ApiParam(value = "Updated room attributes", required = true) RoomInfo roomInfo) {
 
-        Site mappedRoom = mapRepository.updateRoom(getAuthenticatedId(AuthMode.AUTHENTICATION_REQUIRED), roomId, roomInfo);
-        return Response.ok(mappedRoom).build();
+        String authenticatedId = getAuthenticatedId(AuthMode.AUTHENTICATION_REQUIRED);
+        String ifMatch = httpRequest.getHeader(HttpHeaders.IF_MATCH);
+
+        requests.submit(Endpoint.UPDATE_SITE, response, () -> {
+            String expectedRev = ifMatchRevision(roomId, ifMatch);
+            Site mappedRoom = mapRepository.updateRoom(authenticatedId, roomId, roomInfo, expectedRev);
+            ResourceAccessPolicy auth = resourceAccessPolicyFactory.createPolicyForUser(authenticatedId);
+            return Response.ok(mappedRoom).tag(mapRepository.entityTag(auth, mappedRoom, true, "")).build();
+        });
+    }
+
+    /**
+     * The revision named by the If-Match header. Entity tags start with the
+     * revision of the site (see {@link MapRepository#entityTag}); a bare
+     * revision is accepted too.
+     *
+     * @return the revision to update, or null for any revision
+     * @throws MapModificationException (412) if no listed revision is current
+     */
+    private String ifMatchRevision(String roomId, String ifMatch) {
+        if ( ifMatch == null || ifMatch.trim().equals("*") ) {
+            return null;
+        }
+
+        List<String> revs = new ArrayList<>();
+        for (String tag : ifMatch.split(",")) {
+            tag = tag.trim();
+            if ( tag.startsWith("W/") || tag.length() < 2 ) {
+                continue; // weak tags never match
+            }
+            tag = tag.startsWith("\"") && tag.endsWith("\"") ? tag.substring(1, tag.length() - 1) : tag;
+            int dot = tag.indexOf('.');
+            revs.add(dot < 0 ? tag : tag.substring(0, dot));
+        }
+
+        if ( revs.size() == 1 ) {
+            return revs.get(0);
+        }
+        if ( !revs.isEmpty() ) {
+            String current = mapRepository.getCurrentRevision(roomId);
+            if ( revs.contains(current) ) {
+                return current;
+            }
+        }
+        throw new MapModificationException(Response.Status.PRECONDITION_FAILED,
+                "Room " + roomId + " could not be updated",
+                "Room " + roomId + " does not match " + ifMatch);
     }
 
 
@@ -202,11 +408,16 @@ public class SitesResource {
         @ApiResponse(code = HttpServletResponse.SC_NOT_FOUND, message = Messages.NOT_FOUND, response = ErrorResponse.class),
         @ApiResponse(code = HttpServletResponse.SC_CONFLICT, message = Messages.CONFLICT, response = ErrorResponse.class)
     })
-    public Response deleteRoom(
+    public void deleteRoom(
+            @Suspended AsyncResponse response,
             @ApiParam(value = "target room id", required = true) @PathParam("id") String roomId) {
 
-        mapRepository.deleteSite(getAuthenticatedId(AuthMode.AUTHENTICATION_REQUIRED), roomId);
-        return Response.noContent().build();
+        String authenticatedId = getAuthenticatedId(AuthMode.AUTHENTICATION_REQUIRED);
+
+        requests.submit(Endpoint.DELETE_SITE, response, () -> {
+            mapRepository.deleteSite(authenticatedId, roomId);
+            return Response.noContent().build();
+        });
     }
 
     private String getAuthenticatedId(AuthMode mode){
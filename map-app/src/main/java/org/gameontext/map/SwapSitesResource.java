@@ -27,10 +27,13 @@ import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import org.gameontext.map.RequestExecutor.Endpoint;
 import org.gameontext.map.auth.ResourceAccessPolicy;
 import org.gameontext.map.auth.ResourceAccessPolicyFactory;
 import org.gameontext.map.db.MapRepository;
@@ -58,6 +61,9 @@ public class SwapSitesResource {
     @Inject
     protected MapRepository mapRepository;
 
+    @Inject
+    protected RequestExecutor requests;
+
     @Context
     protected HttpServletRequest httpRequest;
 
@@ -71,15 +77,18 @@ public class SwapSitesResource {
     @SignedRequest
     @ApiOperation(value="deprecated", hidden=true)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response swapSites(@QueryParam("room1Id") String room1Id,
+    public void swapSites(@Suspended AsyncResponse response,
+            @QueryParam("room1Id") String room1Id,
             @QueryParam("room2Id") String room2Id) {
 
         String authenticatedId = getAuthenticatedId(AuthMode.AUTHENTICATION_REQUIRED);
         ResourceAccessPolicy auth = resourceAccessPolicyFactory.createPolicyForUser(authenticatedId);
 
         // NOTE: Thrown exceptions are mapped (see MapModificationException)
-        Collection<Site> mappedRooms = mapRepository.swapRooms(auth, authenticatedId, room1Id, room2Id);
-        return Response.ok(mappedRooms).build();
+        requests.submit(Endpoint.SWAP_SITES, response, () -> {
+            Collection<Site> mappedRooms = mapRepository.swapRooms(auth, authenticatedId, room1Id, room2Id);
+            return Response.ok(mappedRooms).build();
+        });
     }
 
     /**
@@ -103,15 +112,18 @@ public class SwapSitesResource {
         })
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response swapSites(
+    public void swapSites(
+            @Suspended AsyncResponse response,
             @ApiParam(value = "Sites to swap", required = true) SiteSwap siteSwap) {
 
         String authenticatedId = getAuthenticatedId(AuthMode.AUTHENTICATION_REQUIRED);
         ResourceAccessPolicy auth = resourceAccessPolicyFactory.createPolicyForUser(authenticatedId);
 
         // NOTE: Thrown exceptions are mapped (see MapModificationException)
-        Collection<Site> mappedRooms = mapRepository.swapSites(auth, authenticatedId, siteSwap);
-        return Response.ok(mappedRooms).build();
+        requests.submit(Endpoint.SWAP_SITES, response, () -> {
+            Collection<Site> mappedRooms = mapRepository.swapSites(auth, authenticatedId, siteSwap);
+            return Response.ok(mappedRooms).build();
+        });
     }
 
 
@@ -26,26 +26,47 @@ import java.security.cert.CertificateException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedThreadFactory;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import javax.net.ssl.SSLContext;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.client.BasicResponseHandler;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.gameontext.map.Log;
+import org.gameontext.map.Metrics;
+import org.gameontext.map.Settings;
 import org.gameontext.map.kafka.Kafka;
 import org.gameontext.map.kafka.KafkaEventHandler;
 import org.gameontext.signed.SignedRequestSecretProvider;
@@ -82,11 +103,52 @@ public class PlayerClient implements SignedRequestSecretProvider, KafkaEventHand
 
     private static final Duration hours24 = Duration.ofHours(24);
 
+    /** Signed JWTs are reused until this close to expiring */
+    private static final Duration jwtRenewal = Duration.ofHours(1);
+
+    /** Not in {@link Response.Status} until JAX-RS 2.1 */
+    static final int TOO_MANY_REQUESTS = 429;
+
+    /** Default for the most connections to the player service */
+    static final int DEFAULT_MAX_CONNECTIONS = 20;
+
+    /** Default for the longest an idle connection is kept open (seconds) */
+    static final int DEFAULT_KEEP_ALIVE = 30;
+
+    /** Default for the most player secrets to cache */
+    static final int DEFAULT_SECRET_CACHE_SIZE = 10000;
+
+    /** Default point (fraction of time to live) when cached secrets are refreshed */
+    static final double DEFAULT_SECRET_REFRESH = 0.75;
+
+    /** Background refreshes that can wait for a thread, beyond which they are skipped */
+    static final int REFRESH_QUEUE_SIZE = 100;
+
+    private static final LongAdder requests = Metrics.counter("player_requests");
+    private static final LongAdder connectionsOpened = Metrics.counter("player_connections_opened");
+    private static final LongAdder jwtsSigned = Metrics.counter("player_jwt_signed");
+
     /** The Key to Sign JWT's with (once it's loaded) */
     private Key signingKey = null;
 
-    /** Cache of player API keys */
-    private ConcurrentMap<String,TimestampedKey> playerSecrets = new ConcurrentHashMap<>();
+    /** Cache of player API keys (replaced with the configured cache at startup) */
+    private PlayerSecretCache playerSecrets = new PlayerSecretCache(this::getPlayerSecret,
+            DEFAULT_SECRET_CACHE_SIZE, hours24, DEFAULT_SECRET_REFRESH, null);
+
+    /** Ids the player service doesn't know, and lookup rate limits */
+    private final PlayerLookupGuard lookupGuard = new PlayerLookupGuard();
+
+    /** Fetches secrets that are due to expire */
+    private ThreadPoolExecutor refreshExecutor;
+
+    /** Cache of signed JWTs, by player id */
+    private ConcurrentMap<String,TimestampedKey> playerJwts = new ConcurrentHashMap<>();
+
+    /** Most signed JWTs to keep: the size of the secret cache */
+    private int maxJwts = DEFAULT_SECRET_CACHE_SIZE;
+
+    /** Shared client (pooled, keep-alive connections) for the player service */
+    private volatile CloseableHttpClient httpClient;
 
     /** Listen for secret updates */
     @Inject
@@ -123,6 +185,26 @@ public class PlayerClient implements SignedRequestSecretProvider, KafkaEventHand
     @Resource(lookup="sweepSecret")
     String sweepSecret;
 
+    /** Most connections to the player service (pool size) */
+    @Resource(lookup="playerMaxConnections")
+    String maxConnections;
+
+    /** Longest an idle connection to the player service is kept (seconds) */
+    @Resource(lookup="playerKeepAlive")
+    String keepAlive;
+
+    /** Most player secrets to cache */
+    @Resource(lookup="playerSecretCacheSize")
+    String secretCacheSize;
+
+    /** Fraction (0-1) of their 24h lifetime after which secrets are refreshed */
+    @Resource(lookup="playerSecretRefresh")
+    String secretRefresh;
+
+    /** CDI injection of Java EE7 Managed thread factory */
+    @Resource
+    protected ManagedThreadFactory threadFactory;
+
     String systemSecret;
 
     /**
@@ -132,6 +214,31 @@ public class PlayerClient implements SignedRequestSecretProvider, KafkaEventHand
     protected void init() {
         Log.log(Level.INFO, this, "PostConstruct: Subscribing to playerEvents");
         kafka.subscribe(this);
+
+        if ( threadFactory != null ) {
+            refreshExecutor = new ThreadPoolExecutor(1, 2, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(REFRESH_QUEUE_SIZE), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+        }
+        maxJwts = Math.max(1, Settings.intValue("playerSecretCacheSize", secretCacheSize, DEFAULT_SECRET_CACHE_SIZE));
+        playerSecrets = new PlayerSecretCache(this::getPlayerSecret, maxJwts, hours24,
+                Settings.doubleValue("playerSecretRefresh", secretRefresh, DEFAULT_SECRET_REFRESH), refreshExecutor);
+    }
+
+    @PreDestroy
+    protected void destroy() {
+        if ( refreshExecutor != null ) {
+            refreshExecutor.shutdownNow();
+        }
+
+        CloseableHttpClient client = httpClient;
+        httpClient = null;
+        if ( client != null ) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                Log.log(Level.FINEST, this, "Unable to close player client", e);
+            }
+        }
     }
 
     public boolean isHealthy() {
@@ -178,6 +285,12 @@ public class PlayerClient implements SignedRequestSecretProvider, KafkaEventHand
      * @throws IOException
      */
     private String buildClientJwtForId(String playerId) throws IOException{
+        // JWTs are valid for 24 hours: reuse them until they are nearly expired
+        TimestampedKey cached = playerJwts.get(playerId);
+        if ( cached != null && !cached.hasExpired() ) {
+            return cached.getKey();
+        }
+
         // grab the key if needed
         if (signingKey == null)
             getKeyStoreInfo();
@@ -205,13 +318,31 @@ public class PlayerClient implements SignedRequestSecretProvider, KafkaEventHand
                 .setClaims(onwardsClaims)
                 .signWith(SignatureAlgorithm.RS256, signingKey)
                 .compact();
+        jwtsSigned.increment();
 
-
+        playerJwts.put(playerId, new TimestampedKey(newJwt, hours24.minus(jwtRenewal)));
+        if ( playerJwts.size() > maxJwts ) {
+            pruneJwts();
+        }
         return newJwt;
     }
 
+    /**
+     * Drop expired JWTs and, if there are still too many, others: a JWT is
+     * signed again when it is next needed.
+     */
+    private void pruneJwts() {
+        playerJwts.values().removeIf(TimestampedKey::hasExpired);
+        Iterator<String> ids = playerJwts.keySet().iterator();
+        while ( playerJwts.size() > maxJwts && ids.hasNext() ) {
+            ids.next();
+            ids.remove();
+        }
+    }
+
     /**
      * Obtain the apiKey for the given id, using a local cache to avoid hitting couchdb too much.
+     * @see PlayerSecretCache
      */
     @Override
     public String getSecretForId(String id) {
@@ -222,52 +353,33 @@ public class PlayerClient implements SignedRequestSecretProvider, KafkaEventHand
             return sweepSecret;
         }
 
-        String playerSecret = null;
-
-        TimestampedKey timedKey =  playerSecrets.get(id);
-        if ( timedKey != null ) {
-            playerSecret = timedKey.getKey();
-            if ( !timedKey.hasExpired() ) {
-                // CACHED VALUE! the id has been seen, and hasn't expired. Shortcut!
-                Log.log(Level.FINER,"Map using cached key for {0}",id);
-                return playerSecret;
-            }
-        }
-
-        TimestampedKey newKey = new TimestampedKey(hours24);
-        Log.log(Level.FINER,"Map asking player service for key for id {0}",id);
-
-        try {
-            playerSecret = getPlayerSecret(id);
-            newKey.setKey(playerSecret);
-        } catch (WebApplicationException e) {
-            if ( playerSecret != null ) {
-                // we have a stale value, return it
-                return playerSecret;
-            }
-
-            // no dice at all, rethrow
-            throw e;
-        }
-
-        // replace expired timedKey with newKey always.
-        playerSecrets.put(id, newKey);
-
-        // return fetched playerSecret
-        return playerSecret;
+        return playerSecrets.get(id);
     }
 
     /**
      * Obtain sharedSecret for player id.
+     * <p>
+     * Ids the player service has recently rejected fail straight away, and
+     * lookups for any one id are rate limited (see {@link PlayerLookupGuard}).
+     * </p>
      *
      * @param playerId
      *            The player id
      * @return The apiKey for the player
      */
     private String getPlayerSecret(String playerId) throws WebApplicationException {
+        if ( lookupGuard.isRejected(playerId) ) {
+            Log.log(Level.FINER, this, "Player service recently rejected {0}", playerId);
+            throw new WebApplicationException("Unknown player " + playerId, Response.Status.FORBIDDEN);
+        }
+        if ( !lookupGuard.tryAcquire(playerId) ) {
+            Log.log(Level.FINER, this, "Too many lookups for {0}", playerId);
+            throw new WebApplicationException("Too many requests for player " + playerId, TOO_MANY_REQUESTS);
+        }
+
         try{
             String jwt = buildClientJwtForId(playerId);
-            return new GetPlayerSecretCommand(jwt, playerId, playerLocation).execute();
+            return new GetPlayerSecretCommand(getHttpClient(), jwt, playerId, playerLocation).execute();
         }catch(HystrixRuntimeException e){
             //unwrap hysterix exceptions..
             Throwable cause = e.getCause();
@@ -278,6 +390,12 @@ public class PlayerClient implements SignedRequestSecretProvider, KafkaEventHand
                 throw new WebApplicationException("Unknown error during communication with player service",cause);
             }
         }catch(HystrixBadRequestException e){
+            if ( e.getCause() instanceof HttpResponseException ) {
+                // The player service doesn't know this id: remember that
+                lookupGuard.reject(playerId);
+                Log.log(Level.FINER, this, "Player service rejected {0}: {1}", playerId, e.getCause().getMessage());
+                throw new WebApplicationException("Unknown player " + playerId, Response.Status.FORBIDDEN);
+            }
             throw new WebApplicationException("Internal issue communicating with player service",e);
         }catch(IOException io){
             Log.log(Level.FINEST, this, "Unexpected exception getting token for playerService: {0}", io);
@@ -285,14 +403,92 @@ public class PlayerClient implements SignedRequestSecretProvider, KafkaEventHand
         }
     }
 
+    /**
+     * The client is created on first use, and shared after that: connections
+     * to the player service are pooled and kept alive between requests,
+     * rather than paying for a new connection (and TLS handshake) each time.
+     */
+    private CloseableHttpClient getHttpClient() {
+        CloseableHttpClient client = httpClient;
+        if ( client == null ) {
+            synchronized (this) {
+                client = httpClient;
+                if ( client == null ) {
+                    client = httpClient = buildHttpClient();
+                }
+            }
+        }
+        return client;
+    }
+
+    private CloseableHttpClient buildHttpClient() {
+        RegistryBuilder<ConnectionSocketFactory> sockets = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory());
+
+        if("development".equals(System.getenv("MAP_PLAYER_MODE"))){
+            System.out.println("Using development mode player connection. (DefaultSSL,NoHostNameValidation)");
+            try {
+                //use the default ssl context, we have a trust store configured for player cert.
+                //disable hostname validation, because we'll need to access the cert via a different hostname.
+                sockets.register("https", new SSLConnectionSocketFactory(SSLContext.getDefault(), NoopHostnameVerifier.INSTANCE));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("Unable to get default SSL context", e);
+            }
+        } else {
+            sockets.register("https", SSLConnectionSocketFactory.getSocketFactory());
+        }
+        Registry<ConnectionSocketFactory> registry = sockets.build();
+
+        // Count new connections: requests - opened connections = reused connections
+        HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> connections = (route, config) -> {
+            connectionsOpened.increment();
+            return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
+        };
+
+        int max = Settings.intValue("playerMaxConnections", maxConnections, DEFAULT_MAX_CONNECTIONS);
+        long keepAliveMillis = TimeUnit.SECONDS.toMillis(Settings.intValue("playerKeepAlive", keepAlive, DEFAULT_KEEP_ALIVE));
+
+        PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager(registry, connections);
+        pool.setMaxTotal(max);
+        pool.setDefaultMaxPerRoute(max); // all requests go to the player service
+        pool.setValidateAfterInactivity(2000);
+        Metrics.gauge("player_connections_leased", () -> pool.getTotalStats().getLeased());
+        Metrics.gauge("player_connections_available", () -> pool.getTotalStats().getAvailable());
+
+        // builder methods are called separately (not chained)
+        HttpClientBuilder b = HttpClientBuilder.create();
+        b.setConnectionManager(pool);
+        b.setKeepAliveStrategy((response, context) -> {
+            // use the server's keep-alive if it sent one, but no longer than ours
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? Math.min(duration, keepAliveMillis) : keepAliveMillis;
+        });
+        // don't wait (past the hystrix timeout) for a connection from the pool
+        b.setDefaultRequestConfig(RequestConfig.custom().setConnectionRequestTimeout(1000).build());
+
+        Log.log(Level.FINE, this, "Created player client: {0} connections, {1}ms keep-alive", max, keepAliveMillis);
+        return b.build();
+    }
+
+    /**
+     * @return true if the player service doesn't know the id. Other errors
+     *     (401 or 403 for our own credentials, timeouts, rate limiting) are
+     *     failures of the call, and aren't remembered against the id.
+     */
+    static boolean isRejection(int status) {
+        return status == Response.Status.NOT_FOUND.getStatusCode();
+    }
+
     private static class GetPlayerSecretCommand extends HystrixCommand<String> {
 
+        private CloseableHttpClient client;
         private String jwt;
         private String playerId;
         private String playerLocation;
 
-        public GetPlayerSecretCommand(String jwt, String playerId, String playerLocation){
+        public GetPlayerSecretCommand(CloseableHttpClient client, String jwt, String playerId, String playerLocation){
             super(HystrixCommandGroupKey.Factory.asKey("Player"));
+            this.client = client;
             this.jwt= jwt;
             this.playerId = playerId;
             this.playerLocation=playerLocation;
@@ -301,27 +497,6 @@ public class PlayerClient implements SignedRequestSecretProvider, KafkaEventHand
         @Override
         protected String run(){
             try{
-                HttpClient client = null;
-                if("development".equals(System.getenv("MAP_PLAYER_MODE"))){
-                    System.out.println("Using development mode player connection. (DefaultSSL,NoHostNameValidation)");
-                    HttpClientBuilder b = HttpClientBuilder.create();
-
-                    //use the default ssl context, we have a trust store configured for player cert.
-                    SSLContext sslContext = SSLContext.getDefault();
-
-                    //use a very trusting truststore.. (not needed..)
-                    //SSLContext sslContext = new SSLContextBuilder().loadTrustMaterial(null, new TrustSelfSignedStrategy()).build();
-
-                    b.setSSLContext( sslContext);
-
-                    //disable hostname validation, because we'll need to access the cert via a different hostname.
-                    b.setSSLHostnameVerifier(NoopHostnameVerifier.INSTANCE);
-
-                    client = b.build();
-                }else{
-                    client = HttpClientBuilder.create().build();
-                }
-
                 HttpGet hg = new HttpGet(playerLocation+"/"+playerId);
                 hg.addHeader("gameon-jwt", jwt);
 
@@ -329,8 +504,12 @@ public class PlayerClient implements SignedRequestSecretProvider, KafkaEventHand
 
                 // Make GET request using the specified target, get result as a
                 // string containing JSON
-                HttpResponse r = client.execute(hg);
-                String result = new BasicResponseHandler().handleResponse(r);
+                // The handler reads the whole entity, so the connection can be reused
+                String result;
+                requests.increment();
+                try (CloseableHttpResponse r = client.execute(hg)) {
+                    result = new BasicResponseHandler().handleResponse(r);
+                }
 
                 // Parse the JSON response, and retrieve the apiKey field value.
                 ObjectMapper om = new ObjectMapper();
@@ -343,8 +522,12 @@ public class PlayerClient implements SignedRequestSecretProvider, KafkaEventHand
 
             } catch (HttpResponseException hre) {
                 Log.log(Level.FINEST, this, "Error communicating with player service: {0} {1}", hre.getStatusCode(), hre.getMessage());
+                if ( isRejection(hre.getStatusCode()) ) {
+                    // Not a failure of the player service: don't count it towards opening the circuit
+                    throw new HystrixBadRequestException("Player service rejected " + playerId, hre);
+                }
                 throw new WebApplicationException("Error communicating with Player service", Response.Status.INTERNAL_SERVER_ERROR);
-            } catch ( IOException | NoSuchAlgorithmException e ) {
+            } catch ( IOException e ) {
                 Log.log(Level.FINEST, this, "Unexpected exception getting secret from playerService: {0}", e);
                 throw new WebApplicationException("Error communicating with Player service", Response.Status.INTERNAL_SERVER_ERROR);
             } catch (WebApplicationException wae) {
@@ -362,6 +545,7 @@ public class PlayerClient implements SignedRequestSecretProvider, KafkaEventHand
     @Override
     public void handleEvent(String key, JsonNode eventData) {
         Log.log(Level.FINEST, this, "Dropping cached key for {0}", key);
-        playerSecrets.remove(key);
+        playerSecrets.invalidate(key);
+        lookupGuard.forget(key);
     }
 }
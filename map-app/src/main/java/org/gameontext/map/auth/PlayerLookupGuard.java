@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map.auth;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.gameontext.map.Metrics;
+
+/**
+ * Protects the player service from lookups for ids it doesn't know.
+ * <p>
+ * Ids the player service has rejected are remembered for a short time,
+ * and lookups for them fail without asking again. Lookups for each id are
+ * also rate limited (token bucket), so a client sending requests signed
+ * with made-up ids can't turn each of them into a call to the player service.
+ * </p>
+ */
+class PlayerLookupGuard {
+
+    /** How long an id rejected by the player service is remembered */
+    static final Duration REJECTED_TTL = Duration.ofSeconds(60);
+
+    /** Lookups allowed for an id in a burst */
+    static final int BURST = 5;
+
+    /** Time for one lookup to be allowed again */
+    static final Duration REFILL = Duration.ofSeconds(12);
+
+    /** Most ids tracked (each) by the negative cache and rate limiter */
+    static final int MAX_TRACKED = 10000;
+
+    static final LongAdder rejectedHits = Metrics.counter("player_unknown_id_hits");
+    static final LongAdder rejectedIds = Metrics.counter("player_unknown_ids");
+    static final LongAdder throttled = Metrics.counter("player_lookups_throttled");
+
+    private final ConcurrentMap<String, Long> rejected = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final LongSupplier clock;
+
+    PlayerLookupGuard() {
+        this(() -> TimeUnit.NANOSECONDS.toMillis(System.nanoTime()));
+    }
+
+    PlayerLookupGuard(LongSupplier clock) {
+        this.clock = clock;
+        Metrics.gauge("player_unknown_ids_cached", rejected::size);
+    }
+
+    /**
+     * @param id Player id
+     * @return true if the player service rejected this id recently
+     */
+    public boolean isRejected(String id) {
+        Long until = rejected.get(id);
+        if ( until == null ) {
+            return false;
+        }
+        if ( until - clock.getAsLong() > 0 ) {
+            rejectedHits.increment();
+            return true;
+        }
+        rejected.remove(id, until);
+        return false;
+    }
+
+    /**
+     * Remember that the player service rejected this id
+     * @param id Player id
+     */
+    public void reject(String id) {
+        long now = clock.getAsLong();
+        if ( rejected.size() >= MAX_TRACKED ) {
+            rejected.values().removeIf(until -> until - now <= 0);
+            if ( rejected.size() >= MAX_TRACKED ) {
+                rejected.clear();
+            }
+        }
+        rejected.put(id, now + REJECTED_TTL.toMillis());
+        rejectedIds.increment();
+    }
+
+    /**
+     * Forget a rejection (e.g. the player has just been created)
+     * @param id Player id
+     */
+    public void forget(String id) {
+        rejected.remove(id);
+    }
+
+    /**
+     * @param id Player id
+     * @return true if the player service can be asked about this id now
+     */
+    public boolean tryAcquire(String id) {
+        long now = clock.getAsLong();
+        if ( buckets.size() >= MAX_TRACKED ) {
+            // ids with a full bucket are no different from new ones
+            buckets.values().removeIf(b -> b.isFull(now));
+            if ( buckets.size() >= MAX_TRACKED ) {
+                buckets.clear();
+            }
+        }
+
+        Bucket bucket = buckets.computeIfAbsent(id, k -> new Bucket(now));
+        if ( bucket.take(now) ) {
+            return true;
+        }
+        throttled.increment();
+        return false;
+    }
+
+    private static class Bucket {
+        private double tokens = BURST;
+        private long updated;
+
+        Bucket(long now) {
+            updated = now;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(BURST, tokens + (double) (now - updated) / REFILL.toMillis());
+            updated = now;
+        }
+
+        synchronized boolean take(long now) {
+            refill(now);
+            if ( tokens >= 1 ) {
+                tokens--;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= BURST;
+        }
+    }
+}
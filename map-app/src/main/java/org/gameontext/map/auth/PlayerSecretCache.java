@@ -0,0 +1,260 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map.auth;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+
+import org.gameontext.map.Log;
+import org.gameontext.map.Metrics;
+
+/**
+ * Cache of player secrets, used to verify signed requests.
+ * <p>
+ * <ul>
+ * <li>Only one fetch per player id is in flight at a time: concurrent
+ *     requests for the same id wait for (and share) the result.</li>
+ * <li>Once an entry is past {@code refreshAfter} of its time to live, it is
+ *     fetched again in the background, and the current value is returned
+ *     in the meantime. Expired values are returned if a fetch fails.</li>
+ * <li>The cache is bounded. When it is full, the least used entries are
+ *     dropped. Use counts are halved every so often (every
+ *     {@link #AGING_PERIOD} lookups per entry), so ids that were busy a
+ *     long time ago don't stay forever.</li>
+ * </ul>
+ * </p>
+ */
+class PlayerSecretCache {
+
+    /** Share of entries dropped when the cache is full */
+    static final int EVICT_PERCENT = 10;
+
+    /** Use counts are halved after this many lookups per entry */
+    static final int AGING_PERIOD = 10;
+
+    static final LongAdder hits = Metrics.counter("player_secret_hits");
+    static final LongAdder misses = Metrics.counter("player_secret_misses");
+    static final LongAdder loads = Metrics.counter("player_secret_loads");
+    static final LongAdder loadFailures = Metrics.counter("player_secret_load_failures");
+    static final LongAdder loadMillis = Metrics.counter("player_secret_load_millis");
+    static final LongAdder refreshes = Metrics.counter("player_secret_refreshes");
+    static final LongAdder evictions = Metrics.counter("player_secret_evictions");
+
+    private final Function<String, String> loader;
+    private final int maxSize;
+    private final long ttl;
+    private final long refreshAfter;
+    private final Executor executor;
+    private final LongSupplier clock;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<String>> loading = new ConcurrentHashMap<>();
+    private final ReentrantLock evicting = new ReentrantLock();
+
+    /** Lookups since use counts were last halved */
+    private final LongAdder lookups = new LongAdder();
+
+    /**
+     * @param loader Fetches the secret for an id
+     * @param maxSize Most entries to keep
+     * @param ttl Time to live
+     * @param refreshFraction Refresh entries once they are this far into their
+     *     time to live (0-1). 1 or more: entries are only fetched when they expire.
+     * @param executor Executor for background refreshes, or null for none
+     */
+    PlayerSecretCache(Function<String, String> loader, int maxSize, Duration ttl, double refreshFraction, Executor executor) {
+        this(loader, maxSize, ttl, refreshFraction, executor, () -> TimeUnit.NANOSECONDS.toMillis(System.nanoTime()));
+    }
+
+    PlayerSecretCache(Function<String, String> loader, int maxSize, Duration ttl, double refreshFraction,
+            Executor executor, LongSupplier clock) {
+        this.loader = loader;
+        this.maxSize = Math.max(1, maxSize);
+        this.ttl = ttl.toMillis();
+        this.refreshAfter = refreshFraction <= 0 || refreshFraction >= 1 ? Long.MAX_VALUE : (long) (this.ttl * refreshFraction);
+        this.executor = executor;
+        this.clock = clock;
+        Metrics.gauge("player_secret_cache_size", entries::size);
+        Metrics.ratio("player_secret_hit_ratio", hits, misses);
+    }
+
+    /**
+     * @param id Player id
+     * @return the secret for the player
+     * @throws RuntimeException thrown by the loader, if there is no value to return
+     */
+    public String get(String id) {
+        lookups.increment();
+        Entry entry = entries.get(id);
+        if ( entry != null ) {
+            entry.uses.incrementAndGet();
+            long age = clock.getAsLong() - entry.loaded;
+            if ( age < ttl ) {
+                hits.increment();
+                if ( age >= refreshAfter && entry.refreshing.compareAndSet(false, true) ) {
+                    refresh(id); // once per entry: if it fails, fetch when it expires
+                }
+                return entry.value;
+            }
+        }
+
+        misses.increment();
+        try {
+            return load(id).join();
+        } catch (CompletionException e) {
+            if ( entry != null ) {
+                // we have a stale value, return it
+                Log.log(Level.FINER, this, "Using expired key for {0}: {1}", id, e.getCause());
+                return entry.value;
+            }
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Drop the cached value (e.g. the secret has changed). A fetch that is
+     * in flight will not be cached.
+     * @param id Player id
+     */
+    public void invalidate(String id) {
+        loading.remove(id);
+        entries.remove(id);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void refresh(String id) {
+        if ( executor == null ) {
+            return;
+        }
+        try {
+            executor.execute(() -> load(id));
+            refreshes.increment();
+        } catch (RejectedExecutionException e) {
+            // busy: the entry will be fetched again when it expires
+        }
+    }
+
+    /**
+     * Fetch the value for an id, or share the fetch that is in flight
+     * @param id Player id
+     */
+    private CompletableFuture<String> load(String id) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        CompletableFuture<String> inFlight = loading.putIfAbsent(id, result);
+        if ( inFlight != null ) {
+            return inFlight;
+        }
+
+        long start = clock.getAsLong();
+        try {
+            String value = loader.apply(id);
+            if ( loading.remove(id, result) ) {
+                put(id, value, clock.getAsLong());
+            }
+            result.complete(value);
+        } catch (RuntimeException e) {
+            loading.remove(id, result);
+            loadFailures.increment();
+            result.completeExceptionally(e);
+        } finally {
+            loads.increment();
+            loadMillis.add(clock.getAsLong() - start);
+        }
+        return result;
+    }
+
+    private void put(String id, String value, long now) {
+        Entry previous = entries.put(id, new Entry(value, now, entries.get(id)));
+        if ( previous == null && entries.size() > maxSize ) {
+            evict();
+        }
+    }
+
+    /**
+     * Drop the least used entries, and (now and then) halve the use count of the rest
+     */
+    private void evict() {
+        if ( !evicting.tryLock() ) {
+            return; // someone else is on it
+        }
+        try {
+            int excess = entries.size() - maxSize;
+            if ( excess <= 0 ) {
+                return;
+            }
+            int count = Math.max(excess, maxSize * EVICT_PERCENT / 100);
+
+            List<Map.Entry<String, Entry>> all = new ArrayList<>(entries.entrySet());
+            boolean aging = lookups.sum() > (long) maxSize * AGING_PERIOD;
+            if ( aging ) {
+                lookups.reset();
+            }
+
+            all.sort(Comparator.comparingInt((Map.Entry<String, Entry> e) -> e.getValue().uses.get())
+                    .thenComparingLong(e -> e.getValue().loaded));
+
+            for (int i = 0; i < all.size(); i++) {
+                Map.Entry<String, Entry> e = all.get(i);
+                if ( i < count ) {
+                    if ( entries.remove(e.getKey(), e.getValue()) ) {
+                        evictions.increment();
+                    }
+                } else if ( aging ) {
+                    e.getValue().uses.updateAndGet(u -> u >> 1);
+                }
+            }
+            Log.log(Level.FINER, this, "Dropped {0} cached keys", count);
+        } finally {
+            evicting.unlock();
+        }
+    }
+
+    private static class Entry {
+        final String value;
+        final long loaded;
+        final AtomicInteger uses;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(String value, long loaded, Entry previous) {
+            this.value = value;
+            this.loaded = loaded;
+            this.uses = new AtomicInteger(previous == null ? 1 : previous.uses.get());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map.db;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Companion document claiming a single cell of the map for a site.
+ * <p>
+ * The document id is derived from the coordinates (see
+ * {@link CoordinateLocks#lockId(int, int)}), so CouchDB's own id uniqueness
+ * guarantees one site per cell.
+ * </p>
+ * <pre>
+ * {
+ *   "_id": "coord:3:-2",
+ *   "_rev": "1-...",
+ *   "type": "coordinate",
+ *   "x": 3,
+ *   "y": -2,
+ *   "site": "1d1e2f39f95ee2ad88f40e67a5006748"
+ * }
+ * </pre>
+ * There is deliberately no {@code coord} or {@code info} attribute, so the
+ * site views don't see these documents.
+ */
+@JsonInclude(Include.NON_NULL)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class CoordinateLock {
+
+    public static final String TYPE = "coordinate";
+
+    @JsonProperty("_id")
+    private String id;
+
+    @JsonProperty("_rev")
+    private String rev;
+
+    private String type = TYPE;
+
+    private int x;
+
+    private int y;
+
+    /** Id of the site at x,y */
+    private String site;
+
+    public CoordinateLock() {}
+
+    public CoordinateLock(int x, int y, String site) {
+        this.id = CoordinateLocks.lockId(x, y);
+        this.x = x;
+        this.y = y;
+        this.site = site;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getRev() {
+        return rev;
+    }
+
+    public void setRev(String rev) {
+        this.rev = rev;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public void setX(int x) {
+        this.x = x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public void setY(int y) {
+        this.y = y;
+    }
+
+    public String getSite() {
+        return site;
+    }
+
+    public void setSite(String site) {
+        this.site = site;
+    }
+
+    @Override
+    public String toString() {
+        return "CoordinateLock[" + id + " " + rev + " -> " + site + "]";
+    }
+}
@@ -0,0 +1,341 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DocumentOperationResult;
+import org.ektorp.UpdateConflictException;
+import org.ektorp.ViewQuery;
+import org.ektorp.ViewResult;
+import org.gameontext.map.Log;
+import org.gameontext.map.Metrics;
+import org.gameontext.map.model.Coordinates;
+import org.gameontext.map.model.Site;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Coordinate lock documents: one per occupied cell, with an id derived from
+ * the coordinates.
+ * <p>
+ * Site ids are stable (rooms are registered with them, swaps move sites
+ * around), so the coordinate-derived id lives on a companion
+ * {@link CoordinateLock} document rather than on the site itself. With the
+ * locks in place:
+ * <ul>
+ * <li>finding the site at x,y is a direct read of {@code coord:x:y} rather
+ *     than a query of the {@code uniqueSite} view, and</li>
+ * <li>two writers racing to fill the same cell are resolved by CouchDB in a
+ *     single write: the second create of {@code coord:x:y} is a conflict.</li>
+ * </ul>
+ * Existing maps are migrated online, in batches, by a background thread
+ * (see {@link #migrate()}). Lookups only trust the locks once a migration
+ * marker document has been written; until then they use the views, while
+ * writes create locks for the sites they touch so nothing is missed.
+ * </p>
+ * <p>
+ * Every instance sharing a database should have locks enabled: an instance
+ * that doesn't will create sites without them.
+ * </p>
+ */
+public class CoordinateLocks {
+
+    /** Prefix for coordinate lock document ids */
+    public static final String PREFIX = "coord:";
+
+    /** Written when all sites have locks */
+    static final String MIGRATED = PREFIX + "migrated";
+
+    /** Sites read per migration batch */
+    static final int BATCH_SIZE = 200;
+
+    /** Cells resolved by reading a lock document */
+    static final LongAdder lookups = Metrics.counter("coordinate_lock_lookups");
+
+    /** Lock documents created by the migration */
+    static final LongAdder migrated = Metrics.counter("coordinate_lock_migrated");
+
+    private final CouchDbConnector db;
+    private final ObjectMapper mapper;
+
+    private volatile boolean complete = false;
+    private volatile Thread migration;
+
+    public CoordinateLocks(CouchDbConnector db, ObjectMapper mapper) {
+        this.db = db;
+        this.mapper = mapper;
+    }
+
+    /**
+     * @return id of the lock document for x,y
+     */
+    public static String lockId(int x, int y) {
+        return PREFIX + x + ":" + y;
+    }
+
+    /**
+     * @return a new site id, in the same format CouchDB would assign
+     */
+    public static String newId() {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+
+    /**
+     * Check for the migration marker, and migrate existing sites in the
+     * background if it isn't there.
+     * @param threadFactory factory for the migration thread
+     */
+    public void start(ThreadFactory threadFactory) {
+        complete = db.contains(MIGRATED);
+        if ( complete ) {
+            Log.log(Level.INFO, this, "Coordinate locks enabled");
+            return;
+        }
+
+        Thread t = threadFactory.newThread(this::migrate);
+        t.setName("map-coordinate-lock-migration");
+        t.setDaemon(true);
+        migration = t;
+        t.start();
+    }
+
+    public void stop() {
+        Thread t = migration;
+        migration = null;
+        if ( t != null ) {
+            t.interrupt();
+        }
+    }
+
+    /**
+     * @return true if every site has a lock, and lookups can rely on them
+     */
+    public boolean isMigrated() {
+        return complete;
+    }
+
+    /**
+     * @return the lock for x,y, or null if the cell isn't locked
+     */
+    public CoordinateLock find(int x, int y) {
+        return db.find(CoordinateLock.class, lockId(x, y));
+    }
+
+    /**
+     * Find the site at x,y using its lock.
+     *
+     * @return the site at x,y (an empty list if there isn't one), or null if
+     *      the lock can't be trusted: it refers to a site that has since been
+     *      deleted or moved.
+     */
+    public List<Site> sitesAt(int x, int y) {
+        lookups.increment();
+
+        CoordinateLock lock = find(x, y);
+        if ( lock == null || lock.getSite() == null ) {
+            return Collections.emptyList();
+        }
+
+        Site site = db.find(Site.class, lock.getSite());
+        if ( site == null || !isAt(site, x, y) ) {
+            Log.mapOperations(Level.FINE, this, "Stale coordinate lock: {0} {1}", lock, site);
+            return null;
+        }
+        return Collections.singletonList(site);
+    }
+
+    /**
+     * Lock x,y for the given site.
+     * @return true if the lock was created, false if the cell is already locked
+     */
+    public boolean acquire(int x, int y, String siteId) {
+        try {
+            db.create(new CoordinateLock(x, y, siteId));
+            return true;
+        } catch (UpdateConflictException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Point an existing lock at a different site
+     * @throws UpdateConflictException if the lock was changed by someone else
+     */
+    public void reassign(CoordinateLock lock, String siteId) {
+        lock.setSite(siteId);
+        db.update(lock);
+    }
+
+    /**
+     * Lock documents updated to follow sites to their (new) coordinates, to
+     * be written in the same bulk update as the sites.
+     *
+     * @param sites Sites with updated coordinates
+     * @return new or updated lock documents
+     */
+    public List<CoordinateLock> follow(Collection<Site> sites) {
+        Map<String, Site> byLock = new LinkedHashMap<>();
+        for (Site site : sites) {
+            Coordinates c = site.getCoord();
+            byLock.put(lockId(c.getX(), c.getY()), site);
+        }
+
+        Map<String, CoordinateLock> existing = findAll(byLock.keySet());
+        List<CoordinateLock> locks = new ArrayList<>();
+        byLock.forEach((id, site) -> {
+            CoordinateLock lock = existing.get(id);
+            if ( lock == null ) {
+                lock = new CoordinateLock(site.getCoord().getX(), site.getCoord().getY(), site.getId());
+            } else {
+                lock.setSite(site.getId());
+            }
+            locks.add(lock);
+        });
+        return locks;
+    }
+
+    /**
+     * Read several locks with one {@code _all_docs?keys=} request
+     * @return existing locks, by id
+     */
+    Map<String, CoordinateLock> findAll(Collection<String> ids) {
+        Map<String, CoordinateLock> result = new HashMap<>();
+        if ( ids.isEmpty() ) {
+            return result;
+        }
+
+        ViewQuery q = new ViewQuery().allDocs().includeDocs(true).keys(ids);
+        for (ViewResult.Row row : db.queryView(q).getRows()) {
+            JsonNode doc = row.getDocAsNode();
+            if ( doc == null || !doc.isObject() ) {
+                continue; // not found, or deleted
+            }
+            try {
+                result.put(row.getKey(), mapper.treeToValue(doc, CoordinateLock.class));
+            } catch (JsonProcessingException e) {
+                Log.log(Level.WARNING, this, "Unable to read coordinate lock " + row.getKey(), e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Create locks for all existing sites, a batch at a time, using the
+     * {@code uniqueSite} view (keys only: no documents are read). Safe to run
+     * while the map is in use, and to run again: cells that are already
+     * locked are left alone.
+     */
+    void migrate() {
+        Log.log(Level.INFO, this, "Migrating sites to coordinate locks");
+        long created = 0;
+        String startKey = null;
+        String startDocId = null;
+
+        try {
+            while ( !Thread.currentThread().isInterrupted() ) {
+                ViewQuery q = new ViewQuery()
+                        .designDocId(SiteDocuments.DESIGN_DOC)
+                        .viewName("uniqueSite")
+                        .reduce(false)
+                        .limit(BATCH_SIZE + 1);
+                if ( startKey != null ) {
+                    q.rawStartKey(startKey).startDocId(startDocId);
+                }
+
+                List<ViewResult.Row> rows = db.queryView(q).getRows();
+                List<ViewResult.Row> batch = rows.size() > BATCH_SIZE ? rows.subList(0, BATCH_SIZE) : rows;
+                created += lockBatch(batch);
+
+                if ( rows.size() <= BATCH_SIZE ) {
+                    break;
+                }
+                ViewResult.Row next = rows.get(BATCH_SIZE);
+                startKey = next.getKeyAsNode().toString();
+                startDocId = next.getId();
+            }
+
+            if ( Thread.currentThread().isInterrupted() ) {
+                Log.log(Level.INFO, this, "Coordinate lock migration interrupted after {0} locks", created);
+                return;
+            }
+
+            ObjectNode marker = mapper.createObjectNode();
+            marker.put("_id", MIGRATED);
+            marker.put("type", "coordinate-migration");
+            marker.put("completedOn", System.currentTimeMillis());
+            try {
+                db.create(marker);
+            } catch (UpdateConflictException e) {
+                // another instance finished first
+            }
+
+            complete = true;
+            Log.log(Level.INFO, this, "Coordinate lock migration complete: {0} locks created", created);
+        } catch (Exception e) {
+            Log.log(Level.WARNING, this, "Coordinate lock migration failed, lookups will continue to use views", e);
+        }
+    }
+
+    /**
+     * Create missing locks for a batch of uniqueSite rows ([x,y] -> site id)
+     * @return number of locks created
+     */
+    private int lockBatch(List<ViewResult.Row> rows) {
+        Map<String, CoordinateLock> wanted = new LinkedHashMap<>();
+        for (ViewResult.Row row : rows) {
+            JsonNode key = row.getKeyAsNode();
+            int x = key.get(0).asInt();
+            int y = key.get(1).asInt();
+            CoordinateLock lock = new CoordinateLock(x, y, row.getId());
+            CoordinateLock previous = wanted.putIfAbsent(lock.getId(), lock);
+            if ( previous != null ) {
+                Log.log(Level.WARNING, this, "Duplicate sites at {0},{1}: {2} and {3}; locking {2}",
+                        x, y, previous.getSite(), row.getId());
+            }
+        }
+
+        wanted.keySet().removeAll(findAll(wanted.keySet()).keySet());
+        if ( wanted.isEmpty() ) {
+            return 0;
+        }
+
+        // failures are conflicts: the cell was locked while we were looking
+        List<DocumentOperationResult> failed = db.executeBulk(wanted.values());
+        int count = wanted.size() - (failed == null ? 0 : failed.size());
+        migrated.add(count);
+        return count;
+    }
+
+    private static boolean isAt(Site site, int x, int y) {
+        Coordinates c = site.getCoord();
+        return c != null && c.getX() == x && c.getY() == y;
+    }
+}
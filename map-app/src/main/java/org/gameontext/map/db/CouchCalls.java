@@ -0,0 +1,332 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map.db;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import org.gameontext.map.Log;
+import org.gameontext.map.Metrics;
+import org.gameontext.map.RequestExecutor.Endpoint;
+
+/**
+ * Accounts for the CouchDB calls made for each request: how many, to which
+ * views, how long they took and how many bytes they moved.
+ * <p>
+ * Calls are recorded by {@link MeteredHttpClient}. The request pool marks
+ * the thread with the endpoint it is working for ({@link #begin(Endpoint)});
+ * calls made outside requests (loading the index, applying site events,
+ * health checks) are counted as {@code background}. When the request ends
+ * ({@link #end()}), the calls are written to a FINE log line, and a request
+ * that made more calls than the budget is logged as a WARNING.
+ * </p>
+ * <p>
+ * Each thread keeps its tally in arrays that are allocated once, and the
+ * counters are created up front: recording a call doesn't allocate.
+ * </p>
+ */
+public class CouchCalls {
+
+    /** CouchDB calls: views by name, other calls by method or URL segment */
+    public enum View {
+        GET("_get"),
+        HEAD("_head"),
+        PUT("_put"),
+        POST("_post"),
+        DELETE("_delete"),
+        COPY("_copy"),
+        BULK("_bulk_docs"),
+        CHANGES("_changes"),
+        ALL_DOCS("_all_docs"),
+        INFO("_info"),
+        UNIQUE_SITE("uniqueSite"),
+        NEIGHBORS("neighbors"),
+        EMPTY_SITES("empty_sites"),
+        ALL("all"),
+        SUMMARY("summary"),
+        NAME("name"),
+        OWNER_NAME("owner_name"),
+        OTHER("other");
+
+        private static final View[] VIEWS = values();
+
+        /** Calls recognized by the last segment of their path */
+        private static final View[] SEGMENTS = { BULK, CHANGES, ALL_DOCS };
+
+        final String label;
+
+        View(String label) {
+            this.label = label;
+        }
+
+        /**
+         * @param s String containing a view name
+         * @param start Start of the view name
+         * @param end End of the view name
+         * @return the view, or OTHER for one that isn't known
+         */
+        static View of(String s, int start, int end) {
+            int length = end - start;
+            for (View view : VIEWS) {
+                if ( view.label.length() == length && s.regionMatches(start, view.label, 0, length) ) {
+                    return view;
+                }
+            }
+            return OTHER;
+        }
+
+        /**
+         * @param method HTTP method
+         * @param uri Request URI (path and query)
+         * @return what the call was for: the view, a bulk, changes or all_docs request,
+         *      information about the server or database, or a document operation
+         */
+        public static View of(String method, String uri) {
+            int end = uri.indexOf('?');
+            if ( end < 0 ) {
+                end = uri.length();
+            }
+
+            int view = uri.lastIndexOf("/_view/", end);
+            if ( view >= 0 ) {
+                int start = view + "/_view/".length();
+                int slash = uri.indexOf('/', start);
+                return of(uri, start, slash < 0 || slash > end ? end : slash);
+            }
+            for (View segment : SEGMENTS) {
+                if ( uri.regionMatches(end - segment.label.length(), segment.label, 0, segment.label.length()) ) {
+                    return segment;
+                }
+            }
+
+            // reading "/" or "/db/": the server or database (POST /db/ creates a document)
+            int segments = 0;
+            for (int i = 0; i < end; i++) {
+                if ( uri.charAt(i) == '/' && i + 1 < end && uri.charAt(i + 1) != '/' ) {
+                    segments++;
+                }
+            }
+            if ( segments <= 1 && (method.equals("GET") || method.equals("HEAD")) ) {
+                return INFO;
+            }
+
+            switch (method) {
+                case "GET":
+                    return GET;
+                case "HEAD":
+                    return HEAD;
+                case "PUT":
+                    return PUT;
+                case "POST":
+                    return POST;
+                case "DELETE":
+                    return DELETE;
+                case "COPY":
+                    return COPY;
+                default:
+                    return OTHER;
+            }
+        }
+    }
+
+    /** Most calls of a request kept for its log line: the totals include the others */
+    static final int MAX_LOGGED_CALLS = 64;
+
+    /** Default for the most calls a request should make */
+    static final int DEFAULT_BUDGET = 25;
+
+    /** The calls of the request on this thread */
+    static final class Tally {
+        Endpoint endpoint;
+        int calls;
+        long nanos;
+        long sent;
+        long received;
+
+        final View[] views = new View[MAX_LOGGED_CALLS];
+        final long[] callNanos = new long[MAX_LOGGED_CALLS];
+        final long[] callBytes = new long[MAX_LOGGED_CALLS];
+
+        void reset(Endpoint endpoint) {
+            this.endpoint = endpoint;
+            calls = 0;
+            nanos = 0;
+            sent = 0;
+            received = 0;
+        }
+    }
+
+    private static final ThreadLocal<Tally> current = ThreadLocal.withInitial(Tally::new);
+
+    /** Most calls a request should make: more are logged as a warning */
+    static volatile int budget = DEFAULT_BUDGET;
+
+    /** True if responses should say which calls were made (see {@link #summary()}) */
+    static volatile boolean header = false;
+
+    /** Calls by endpoint (background last), then view */
+    private static final LongAdder[][] calls = new LongAdder[Endpoint.values().length + 1][View.values().length];
+
+    /** Latency and bytes by view */
+    private static final Metrics.Histogram[] latency = new Metrics.Histogram[View.values().length];
+    private static final LongAdder[] bytesSent = new LongAdder[View.values().length];
+    private static final LongAdder[] bytesReceived = new LongAdder[View.values().length];
+
+    /** Calls made by each request, and requests over budget, by endpoint */
+    private static final Metrics.Histogram[] perRequest = new Metrics.Histogram[Endpoint.values().length];
+    private static final LongAdder[] overBudget = new LongAdder[Endpoint.values().length];
+
+    static {
+        for (int e = 0; e < calls.length; e++) {
+            String endpoint = e < Endpoint.values().length ? Endpoint.values()[e].label() : "background";
+            for (View view : View.values()) {
+                calls[e][view.ordinal()] = Metrics.counter("couchdb_calls", "endpoint", endpoint, "view", view.label);
+            }
+            if ( e < perRequest.length ) {
+                perRequest[e] = Metrics.histogram("couchdb_calls_per_request", Metrics.COUNTS, "endpoint", endpoint);
+                overBudget[e] = Metrics.counter("couchdb_call_budget_exceeded", "endpoint", endpoint);
+            }
+        }
+        for (View view : View.values()) {
+            latency[view.ordinal()] = Metrics.timer("couchdb_call", "view", view.label);
+            bytesSent[view.ordinal()] = Metrics.counter("couchdb_bytes_sent", "view", view.label);
+            bytesReceived[view.ordinal()] = Metrics.counter("couchdb_bytes_received", "view", view.label);
+        }
+    }
+
+    /**
+     * @param callBudget Most calls a request should make, or 0 for the default
+     */
+    public static void setBudget(int callBudget) {
+        budget = callBudget > 0 ? callBudget : DEFAULT_BUDGET;
+    }
+
+    /**
+     * @param enabled True if responses should carry a summary of the calls made for them
+     */
+    public static void setHeaderEnabled(boolean enabled) {
+        header = enabled;
+    }
+
+    /**
+     * @return true if responses should carry a summary of the calls made for them
+     */
+    public static boolean isHeaderEnabled() {
+        return header;
+    }
+
+    /**
+     * Record a call made by this thread
+     * @param view The view queried, or the kind of call
+     * @param nanos Time until the response arrived
+     * @param sent Bytes in the request body
+     * @param received Bytes in the response body, if known (see {@link #received(View, long)})
+     */
+    public static void record(View view, long nanos, long sent, long received) {
+        Tally tally = current.get();
+        Endpoint endpoint = tally.endpoint;
+        calls[endpoint == null ? calls.length - 1 : endpoint.ordinal()][view.ordinal()].increment();
+        latency[view.ordinal()].record(nanos);
+        bytesSent[view.ordinal()].add(sent);
+        bytesReceived[view.ordinal()].add(received);
+
+        if ( tally.calls < MAX_LOGGED_CALLS ) {
+            tally.views[tally.calls] = view;
+            tally.callNanos[tally.calls] = nanos;
+            tally.callBytes[tally.calls] = sent + received;
+        }
+        tally.calls++;
+        tally.nanos += nanos;
+        tally.sent += sent;
+        tally.received += received;
+    }
+
+    /**
+     * Record bytes of a response that are read after the call returned (a
+     * response without a length, like a view). They count towards the
+     * request on the reading thread.
+     * @param view The view queried, or the kind of call
+     * @param bytes Bytes read
+     */
+    public static void received(View view, long bytes) {
+        bytesReceived[view.ordinal()].add(bytes);
+        current.get().received += bytes;
+    }
+
+    /**
+     * Start counting calls for a request handled on this thread
+     * @param endpoint Endpoint of the request
+     */
+    public static void begin(Endpoint endpoint) {
+        current.get().reset(endpoint);
+    }
+
+    /**
+     * Finish the request on this thread: record how many calls it made, and
+     * log them (at FINE, or as a WARNING if they're over budget)
+     * @return number of calls made since {@link #begin(Endpoint)}
+     */
+    public static int end() {
+        Tally tally = current.get();
+        int n = tally.calls;
+        if ( tally.endpoint != null ) {
+            perRequest[tally.endpoint.ordinal()].record(n);
+            if ( n > budget ) {
+                overBudget[tally.endpoint.ordinal()].increment();
+                Log.log(Level.WARNING, tally, "Request for {0} made {1} CouchDB calls (budget {2}): {3}",
+                        tally.endpoint.label(), n, budget, describe(tally));
+            } else if ( Log.isLoggable(Level.FINE) ) {
+                Log.log(Level.FINE, tally, "Request for {0} made {1} CouchDB calls: {2}",
+                        tally.endpoint.label(), n, describe(tally));
+            }
+        }
+        tally.reset(null);
+        return n;
+    }
+
+    /**
+     * @return the calls made so far by the request on this thread, for a
+     *      response header: {@code calls=7; ms=12.3; bytes=4567}
+     */
+    public static String summary() {
+        Tally tally = current.get();
+        return String.format(Locale.ROOT, "calls=%d; ms=%.1f; bytes=%d%s", tally.calls, tally.nanos / 1e6,
+                tally.sent + tally.received, tally.calls > budget ? "; over-budget" : "");
+    }
+
+    /**
+     * @return totals, then each call: {@code 3 calls, 4.2ms, 1200 bytes: uniqueSite 1.1ms 400B, ...}
+     */
+    static String describe(Tally tally) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(tally.calls).append(" calls, ")
+          .append(TimeUnit.NANOSECONDS.toMicros(tally.nanos) / 1000.0).append("ms, ")
+          .append(tally.sent + tally.received).append(" bytes:");
+        int logged = Math.min(tally.calls, MAX_LOGGED_CALLS);
+        for (int i = 0; i < logged; i++) {
+            sb.append(i == 0 ? " " : ", ")
+              .append(tally.views[i].label).append(' ')
+              .append(TimeUnit.NANOSECONDS.toMicros(tally.callNanos[i]) / 1000.0).append("ms ")
+              .append(tally.callBytes[i]).append('B');
+        }
+        if ( tally.calls > logged ) {
+            sb.append(", ...");
+        }
+        return sb.toString();
+    }
+}
@@ -40,31 +40,52 @@ public class CouchDbHealth {
 
     @PostConstruct
     public void init() {
-        client = db.getConnection();
+        if ( db != null ) {
+            client = db.getConnection();
+        }
     }
 
     // doesn't need to be synchronized.
     // If it happens twice, will be close enough
     public boolean isHealthy() {
+        if ( db == null ) {
+            // sites are kept in memory or in a local file
+            return true;
+        }
         if ( client == null ) {
             return false;
         }
 
         Instant current = Instant.now();
-        boolean result = healthCheck;
-
         if ( last == null || Duration.between(last, current).toMillis() > 30000 ) {
-           try {
-                client.head("/");
-                result = healthCheck = true;
+            boolean result = probe();
+            if ( result ) {
                 last = current;
-            } catch (Exception e) {
-                Log.log(Level.SEVERE, this, "Unable to connect to {0}", getDatabaseName(), e);
-                result = healthCheck = false;
             }
+            return result;
         }
+        return healthCheck;
+    }
 
-        return result;
+    /**
+     * Check the connection to CouchDB now (used by {@link org.gameontext.map.HealthMonitor},
+     * which checks on a background thread)
+     * @return true if the server responded
+     */
+    public boolean probe() {
+        if ( db == null ) {
+            return true;
+        }
+        if ( client == null ) {
+            return false;
+        }
+        try {
+            client.head("/");
+            return healthCheck = true;
+        } catch (Exception e) {
+            Log.log(Level.SEVERE, this, "Unable to connect to {0}", getDatabaseName(), e);
+            return healthCheck = false;
+        }
     }
 
 	public String getDatabaseName() {
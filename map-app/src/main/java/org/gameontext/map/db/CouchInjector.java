@@ -28,6 +28,7 @@ import org.ektorp.http.HttpClient;
 import org.ektorp.http.StdHttpClient;
 import org.ektorp.impl.StdCouchDbInstance;
 import org.gameontext.map.Log;
+import org.gameontext.map.Settings;
 
 public class CouchInjector {
 
@@ -40,17 +41,40 @@ public class CouchInjector {
     @Resource(lookup="couchdb/url")
     protected String url;
 
+    /** Most CouchDB calls a request should make before it is logged as a warning */
+    @Resource(lookup="couchdb/callBudget")
+    protected String callBudget;
+
+    /** True to add the CouchDB calls made for a request to its response */
+    @Resource(lookup="couchdb/callHeader")
+    protected String callHeader;
+
+    /** Where sites are kept, see {@link MapStore.Engine} */
+    @Resource(lookup="mapStore")
+    protected String mapStore;
+
     public static final String DB_NAME = "map_repository";
 
+    /**
+     * @return connector for the map database, or null when sites are
+     *      kept somewhere else
+     */
     @Produces
     public CouchDbConnector expose() {
+        if ( MapStore.Engine.of(mapStore) != MapStore.Engine.COUCHDB ) {
+            Log.log(Level.INFO, this, "Sites are kept in {0}, not connecting to CouchDB", MapStore.Engine.of(mapStore));
+            return null;
+        }
 
         try {
-            HttpClient authenticatedHttpClient = new StdHttpClient.Builder()
+            HttpClient authenticatedHttpClient = new MeteredHttpClient(new StdHttpClient.Builder()
                     .url(url)
                     .username(username)
                     .password(password)
-                    .build();
+                    .build());
+
+            CouchCalls.setBudget(Settings.intValue("couchdb/callBudget", callBudget, 0));
+            CouchCalls.setHeaderEnabled(Boolean.parseBoolean(callHeader));
 
             CouchDbInstance dbi = new StdCouchDbInstance(authenticatedHttpClient);
 
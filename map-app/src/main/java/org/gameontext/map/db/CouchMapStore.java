@@ -0,0 +1,318 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+import org.ektorp.BulkDeleteDocument;
+import org.ektorp.ComplexKey;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DocumentNotFoundException;
+import org.ektorp.DocumentOperationResult;
+import org.ektorp.StreamingViewResult;
+import org.ektorp.ViewQuery;
+import org.ektorp.ViewResult;
+import org.gameontext.map.Log;
+import org.gameontext.map.model.Coordinates;
+import org.gameontext.map.model.Site;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Sites kept in CouchDB, using the views of the {@code _design/site}
+ * design document (see {@code site.json}).
+ */
+public class CouchMapStore implements MapStore {
+
+    protected final CouchDbConnector db;
+    protected final ObjectMapper mapper;
+    protected final ViewQuery allEmptySites;
+
+    /** False if the design document doesn't have the summary view */
+    private volatile boolean summaryView = true;
+
+    public CouchMapStore(CouchDbConnector db, ObjectMapper mapper) {
+        this.db = db;
+        this.mapper = mapper;
+        allEmptySites = new ViewQuery().designDocId(SiteDocuments.DESIGN_DOC).viewName("empty_sites");
+    }
+
+    @Override
+    public Site get(String id) {
+        return db.get(Site.class, id);
+    }
+
+    @Override
+    public String getCurrentRevision(String id) {
+        return db.getCurrentRevision(id);
+    }
+
+    @Override
+    public void create(Site site) {
+        db.create(site);
+    }
+
+    @Override
+    public void update(Site site) {
+        db.update(site);
+    }
+
+    @Override
+    public String delete(Site site) {
+        return db.delete(site);
+    }
+
+    @Override
+    public Set<String> saveAll(Collection<?> docs) {
+        Set<String> failed = new HashSet<>();
+        List<DocumentOperationResult> results = db.executeBulk(docs);
+        if ( results != null ) {
+            for (DocumentOperationResult r : results) {
+                Log.mapOperations(Level.FINE, this, "Bulk update failed: {0}", r);
+                failed.add(r.getId());
+            }
+        }
+        return failed;
+    }
+
+    @Override
+    public void deleteAll(Collection<Site> sites) {
+        List<Object> deletes = new ArrayList<>();
+        for (Site site : sites) {
+            deletes.add(BulkDeleteDocument.of(site));
+        }
+        db.executeBulk(deletes);
+    }
+
+    /**
+     * Find sites at x,y using the uniqueSite view
+     */
+    @Override
+    public List<Site> getByCoordinate(int x, int y) {
+        ViewQuery getByCoordinate = new ViewQuery()
+                .designDocId(SiteDocuments.DESIGN_DOC)
+                .viewName("uniqueSite")
+                .reduce(false)
+                .includeDocs(true)
+                .key(ComplexKey.of(x, y));
+
+        List<Site> list = db.queryView(getByCoordinate, Site.class);
+
+        // protect caller from null
+        return list == null ? Collections.emptyList() : list;
+    }
+
+    /**
+     * Find sites in several cells with one uniqueSite query
+     */
+    @Override
+    public List<Site> getByCoordinates(Collection<Coordinates> cells) {
+        List<ComplexKey> keys = new ArrayList<>();
+        for (Coordinates cell : cells) {
+            keys.add(ComplexKey.of(cell.getX(), cell.getY()));
+        }
+        ViewQuery getByCoordinates = new ViewQuery()
+                .designDocId(SiteDocuments.DESIGN_DOC)
+                .viewName("uniqueSite")
+                .reduce(false)
+                .includeDocs(true)
+                .keys(keys);
+
+        List<Site> list = db.queryView(getByCoordinates, Site.class);
+        return list == null ? Collections.emptyList() : list;
+    }
+
+    @Override
+    public Map<String, Site> getNeighbors(int x, int y) {
+        // Query for the neighbors of this node. Use "A" to "Z" to capture the
+        // directional index (N/S/E/W/U/D), but skip this node (" "), as we have
+        // that already.
+        ViewQuery getNeighbors = new ViewQuery()
+                .designDocId(SiteDocuments.DESIGN_DOC)
+                .viewName("neighbors")
+                .reduce(false) // do not reduce the result
+                .includeDocs(true) // include referenced documents
+                .startKey(ComplexKey.of(x, y, "A"))
+                .endKey(ComplexKey.of(x, y, "Z"));
+
+        ViewResult result = db.queryView(getNeighbors);
+        Log.mapOperations(Level.FINEST, this, "Found neighbors: {0}", result);
+
+        Map<String, Site> neighbors = new LinkedHashMap<>();
+        for(ViewResult.Row row : result.getRows() ) {
+            JsonNode key = row.getKeyAsNode();
+            String direction = key.get(2).asText(); // [0, 1, "n"]
+
+            try {
+                neighbors.put(direction, mapper.treeToValue(row.getDocAsNode(), Site.class));
+            } catch (JsonProcessingException e) {
+                // Disagreement between our model class and what is in the data store :(
+                Log.log(Level.SEVERE, this, "Unable to assign exit for {0} due to exception {1}", key, e);
+                Log.log(Level.SEVERE, this, "Exception reading value from database", e);
+            }
+        }
+        return neighbors;
+    }
+
+    @Override
+    public Site getEmptySite(boolean last) {
+        ViewQuery oneEmptySite = new ViewQuery()
+                .designDocId(SiteDocuments.DESIGN_DOC)
+                .viewName("empty_sites")
+                .limit(1);
+        if ( last ) {
+            oneEmptySite.descending(true);
+        }
+
+        List<Site> sites = db.queryView(oneEmptySite, Site.class);
+        if ( sites.isEmpty() )
+            return null;
+        else
+            return sites.get(0);
+    }
+
+    @Override
+    public List<Site> getEmptySites() {
+        return db.queryView(allEmptySites, Site.class);
+    }
+
+    @Override
+    public List<JsonNode> listSites(String owner, String name) {
+        ViewQuery viewQuery = createQueryToAppropriateView(owner, name);
+        List<JsonNode> sites = db.queryView(viewQuery, JsonNode.class);
+
+        if ( sites == null )
+            return Collections.emptyList();
+
+        return sites;
+    }
+
+    @Override
+    public SiteStream streamSites(String owner, String name, SiteFields fields, SiteCursor cursor, int limit,
+            Consumer<ObjectNode> filter) throws IOException {
+        boolean summary = owner == null && name == null && fields != null
+                && summaryView && fields.isCoveredBy(SiteFields.SUMMARY);
+
+        ViewQuery viewQuery = summary
+                ? new ViewQuery().designDocId(SiteDocuments.DESIGN_DOC).viewName("summary").cacheOk(true)
+                : createQueryToAppropriateView(owner, name);
+        if ( cursor != null ) {
+            // seek: deep pages cost the same as the first
+            viewQuery.rawStartKey(cursor.getRawKey()).startDocId(cursor.getId());
+        }
+        if ( limit > 0 ) {
+            viewQuery.limit(limit + 1);
+        }
+
+        // "all" and "summary" emit the document as the value, the others include docs
+        String field = viewQuery.isIncludeDocs() ? "doc" : "value";
+
+        InputStream in;
+        try {
+            in = db.queryForStream(viewQuery);
+        } catch (DocumentNotFoundException e) {
+            if ( !summary ) {
+                throw e;
+            }
+            // design document predates the summary view: same keys, so use "all"
+            Log.log(Level.WARNING, this, "Summary view not found, listing full documents: {0}", e.getMessage());
+            summaryView = false;
+            return streamSites(owner, name, fields, cursor, limit, filter);
+        }
+
+        try {
+            return new SiteStream(in, mapper, field, filter);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void forEach(Consumer<Site> action) {
+        ViewQuery all = new ViewQuery().designDocId(SiteDocuments.DESIGN_DOC).viewName("all");
+        StreamingViewResult result = db.queryForStreamingView(all);
+        try {
+            for (ViewResult.Row row : result) {
+                try {
+                    action.accept(mapper.treeToValue(row.getValueAsNode(), Site.class));
+                } catch (JsonProcessingException e) {
+                    Log.log(Level.FINEST, this, "Unable to read {0}: {1}", row.getId(), e.getMessage());
+                }
+            }
+        } finally {
+            result.close();
+        }
+    }
+
+    private ViewQuery createQueryToAppropriateView(String owner, String name) {
+        if (owner == null && name == null) {
+            return new ViewQuery().designDocId(SiteDocuments.DESIGN_DOC).viewName("all").cacheOk(true);
+        } else if (owner != null) {
+            return createQueryToOwnerNameView(owner, name);
+        } else {
+            return createQueryToNameView(name);
+        }
+    }
+
+    private ViewQuery createQueryToNameView(String name) {
+        // start/end rather than key, so a cursor can replace the start
+        return createQueryWithoutKeys("name")
+                .startKey(name)
+                .endKey(name);
+    }
+
+    private ViewQuery createQueryToOwnerNameView(String owner, String name) {
+        ViewQuery ownerNameQuery = createQueryWithoutKeys("owner_name");
+        if (name == null) {
+            ownerNameQuery = addKeyRangeForAllWithSameFirstEntryInComplexKey(ownerNameQuery, owner);
+        } else {
+            ownerNameQuery = addComplexKeyRange(ownerNameQuery, owner, name);
+        }
+        return ownerNameQuery;
+    }
+
+    private ViewQuery addKeyRangeForAllWithSameFirstEntryInComplexKey(ViewQuery ownerNameQuery, String key) {
+        return ownerNameQuery.startKey(ComplexKey.of(key))
+                            .endKey(ComplexKey.of(key, ComplexKey.emptyObject()));
+    }
+
+    private ViewQuery addComplexKeyRange(ViewQuery ownerNameQuery, String key1, String key2) {
+        ComplexKey key = ComplexKey.of(key1, key2);
+        return ownerNameQuery.startKey(key).endKey(key);
+    }
+
+    private ViewQuery createQueryWithoutKeys(String viewName) {
+        return new ViewQuery()
+                .designDocId(SiteDocuments.DESIGN_DOC)
+                .viewName(viewName)
+                .includeDocs(true);
+    }
+}
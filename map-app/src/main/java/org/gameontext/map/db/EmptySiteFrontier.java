@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map.db;
+
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.gameontext.map.Metrics;
+
+/**
+ * Lock-free frontier of empty sites, in the same order as the
+ * {@code empty_sites} view: {@code [|x|+|y|, x, y]}.
+ * <p>
+ * {@link #claim()} atomically removes the best candidate, so concurrent
+ * callers get distinct sites rather than all racing for the first row of the
+ * view. The database update remains the final arbiter: a claim that loses
+ * (someone else got there first) is reported with {@link #conflict(Candidate)}
+ * and the caller moves on to the next candidate.
+ * </p>
+ */
+public class EmptySiteFrontier {
+
+    /** Claims handed out */
+    static final LongAdder claims = Metrics.counter("placement_frontier_claims");
+
+    /** Claims that lost the race in the database: contention */
+    static final LongAdder conflicts = Metrics.counter("placement_frontier_conflicts");
+
+    /** Frontier had nothing to offer: caller used the view */
+    static final LongAdder misses = Metrics.counter("placement_frontier_misses");
+
+    /**
+     * An empty site that can be claimed
+     */
+    public static final class Candidate {
+        final int x;
+        final int y;
+        final String id;
+        final String rev;
+
+        Candidate(int x, int y, String id, String rev) {
+            this.x = x;
+            this.y = y;
+            this.id = id;
+            this.rev = rev;
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public int getY() {
+            return y;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getRev() {
+            return rev;
+        }
+
+        @Override
+        public String toString() {
+            return "Candidate[" + x + "," + y + " " + id + " " + rev + "]";
+        }
+    }
+
+    /** Matches the empty_sites view key; id breaks ties between duplicates */
+    static final Comparator<Candidate> ORDER = Comparator
+            .comparingLong((Candidate c) -> Math.abs((long) c.x) + Math.abs((long) c.y))
+            .thenComparingInt(c -> c.x)
+            .thenComparingInt(c -> c.y)
+            .thenComparing(c -> c.id);
+
+    private final ConcurrentSkipListSet<Candidate> candidates = new ConcurrentSkipListSet<>(ORDER);
+
+    /** Size of candidates: counting the set walks all of it */
+    private final AtomicInteger count = new AtomicInteger();
+
+    /** Current candidate for each site id */
+    private final ConcurrentMap<String, Candidate> byId = new ConcurrentHashMap<>();
+
+    /** Revisions handed out by claim(), which should not be offered again */
+    private final ConcurrentMap<String, String> claimed = new ConcurrentHashMap<>();
+
+    public EmptySiteFrontier() {
+        Metrics.gauge("placement_frontier_size", count::get);
+    }
+
+    /**
+     * Add (or move) an empty site.
+     */
+    public void offer(int x, int y, String id, String rev) {
+        if ( rev != null && rev.equals(claimed.get(id)) ) {
+            return; // this revision is already being claimed
+        }
+
+        Candidate c = new Candidate(x, y, id, rev);
+        Candidate previous = byId.put(id, c);
+        if ( previous != null && candidates.remove(previous) ) {
+            count.decrementAndGet();
+        }
+        if ( candidates.add(c) ) {
+            count.incrementAndGet();
+        }
+    }
+
+    /**
+     * Remove a site (it has been assigned, moved or deleted)
+     */
+    public void withdraw(String id) {
+        Candidate previous = byId.remove(id);
+        if ( previous != null && candidates.remove(previous) ) {
+            count.decrementAndGet();
+        }
+    }
+
+    /**
+     * Claim the empty site closest to the origin.
+     * @return a candidate no other caller will be given, or null if the frontier is empty
+     */
+    public Candidate claim() {
+        // the winner of pollFirst owns the candidate
+        Candidate c = candidates.pollFirst();
+        if ( c == null ) {
+            misses.increment();
+            return null;
+        }
+        count.decrementAndGet();
+
+        byId.remove(c.id, c);
+        if ( c.rev != null ) {
+            claimed.put(c.id, c.rev);
+        }
+        claims.increment();
+        return c;
+    }
+
+    /**
+     * The claimed candidate was successfully updated in the database.
+     */
+    public void assigned(Candidate c) {
+        claimed.remove(c.id, c.rev);
+    }
+
+    /**
+     * The claimed candidate could not be updated: it changed since it was indexed.
+     * If it is still empty, the new revision will be offered again.
+     */
+    public void conflict(Candidate c) {
+        conflicts.increment();
+        claimed.remove(c.id, c.rev);
+    }
+
+    /**
+     * The claimed candidate was not used (e.g. the update failed for some other
+     * reason): put it back.
+     */
+    public void release(Candidate c) {
+        claimed.remove(c.id, c.rev);
+        offer(c.x, c.y, c.id, c.rev);
+    }
+
+    public int size() {
+        return count.get();
+    }
+}
@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map.db;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+
+import org.ektorp.DbAccessException;
+import org.gameontext.map.Log;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Sites kept in memory, and in a file that survives restarts.
+ * <p>
+ * Each change is appended to the file (one JSON document per line, deletions
+ * as {@code {"_id": ..., "_deleted": true}}) and flushed before it is made
+ * in memory: a change that can't be written isn't made at all. The file is
+ * replayed when the store is opened, and rewritten with only the current
+ * documents once most of its lines are out of date.
+ * </p>
+ */
+public class FileMapStore extends MemoryMapStore {
+
+    /** Lines beyond the live documents that are tolerated before rewriting the file */
+    static final int COMPACT_THRESHOLD = 1000;
+
+    private final Path file;
+
+    /** Lines in the file */
+    private int lines = 0;
+
+    private BufferedWriter writer;
+
+    /**
+     * @param mapper Mapper for reading and writing documents
+     * @param file File holding the documents
+     */
+    public FileMapStore(ObjectMapper mapper, Path file) {
+        super(mapper);
+        this.file = file;
+    }
+
+    /**
+     * Read the documents in the file
+     * @return number of documents read
+     */
+    public synchronized int open() throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        if ( Files.exists(file) ) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ( (line = reader.readLine()) != null ) {
+                    if ( line.trim().isEmpty() ) {
+                        continue;
+                    }
+                    try {
+                        JsonNode doc = mapper.readTree(line);
+                        String id = doc.path("_id").asText(null);
+                        if ( id == null ) {
+                            continue;
+                        }
+                        restore(id, doc.path("_deleted").asBoolean() ? null : (ObjectNode) doc);
+                    } catch (IOException | ClassCastException e) {
+                        // a partial line, written as the server stopped
+                        Log.log(Level.WARNING, this, "Skipping unreadable document in {0}: {1}", file, line);
+                    }
+                }
+            }
+        }
+        rewrite();
+        Log.log(Level.INFO, this, "Read {0} sites from {1}", size(), file);
+        return size();
+    }
+
+    public synchronized void close() throws IOException {
+        if ( writer != null ) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    @Override
+    protected void write(String id, String rev, byte[] json) {
+        if ( writer == null ) {
+            throw new DbAccessException("Site store " + file + " is not open");
+        }
+        try {
+            if ( json == null ) {
+                ObjectNode deleted = mapper.createObjectNode();
+                deleted.put("_id", id);
+                deleted.put("_rev", rev);
+                deleted.put("_deleted", true);
+                writer.write(mapper.writeValueAsString(deleted));
+            } else {
+                writer.write(new String(json, StandardCharsets.UTF_8));
+            }
+            writer.newLine();
+            writer.flush();
+            lines++;
+        } catch (IOException e) {
+            // don't leave part of a line for the next change to be appended to
+            try {
+                rewrite();
+            } catch (IOException re) {
+                Log.log(Level.WARNING, this, "Unable to rewrite {0}", file, re);
+            }
+            throw new DbAccessException(e);
+        }
+    }
+
+    @Override
+    protected void written() {
+        if ( lines > 2 * size() + COMPACT_THRESHOLD ) {
+            try {
+                rewrite();
+            } catch (IOException e) {
+                // the change is in the file already: compact next time
+                Log.log(Level.WARNING, this, "Unable to rewrite {0}", file, e);
+            }
+        }
+    }
+
+    /**
+     * Replace the file with the current documents
+     */
+    private void rewrite() throws IOException {
+        close();
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+            forEachDocument((id, json) -> {
+                try {
+                    out.write(json);
+                    out.write('\n');
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lines = size();
+
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+}
@@ -15,19 +15,29 @@
  *******************************************************************************/
 package org.gameontext.map.db;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.logging.Level;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedThreadFactory;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.Response;
 
 import org.ektorp.CouchDbConnector;
 import org.ektorp.DocumentNotFoundException;
 import org.gameontext.map.Log;
 import org.gameontext.map.MapModificationException;
+import org.gameontext.map.Settings;
 import org.gameontext.map.auth.ResourceAccessPolicy;
 import org.gameontext.map.auth.SiteSwapPermission;
 import org.gameontext.map.kafka.Kafka;
@@ -57,6 +67,34 @@ public class MapRepository {
     @Inject
     Kafka kafka;
 
+    /** CDI injection of Java EE7 Managed thread factory */
+    @Resource
+    protected ManagedThreadFactory threadFactory;
+
+    /** Use coordinate lock documents (true/false), see {@link CoordinateLocks} */
+    @Resource(lookup="couchdb/coordinateLocks")
+    protected String coordinateLocks;
+
+    /** Copy all rooms to the map state topic at startup (true/false), see {@link MapStateBackfill} */
+    @Resource(lookup="kafkaMapStateBackfill")
+    protected String mapStateBackfill;
+
+    /** Where sites are kept: couchdb (default), memory or file, see {@link MapStore.Engine} */
+    @Resource(lookup="mapStore")
+    protected String mapStore;
+
+    /** File for the file store (default: map/sites.jsonl under the server output directory) */
+    @Resource(lookup="mapStoreFile")
+    protected String mapStoreFile;
+
+    @Resource(lookup="serverOutputDir")
+    protected String serverOutputDir;
+
+    private MapStateBackfill backfill;
+
+    /** File store, closed when the application stops */
+    private FileMapStore fileStore;
+
     @PostConstruct
     protected void postConstruct() {
         // Create an ObjectMapper for marshalling responses back to REST clients
@@ -64,8 +102,11 @@ public class MapRepository {
 
         try {
             // Ensure required views exist
-            sites = new SiteDocuments(db, mapper);
+            sites = createSiteDocuments();
+            startIndex();
             sites.postConstruct();
+            subscribe();
+            startBackfill();
         } catch (Exception e) {
             // Log the warning, and then re-throw to prevent this class from going into service,
             // which will prevent injection to the Health check, which will make the app stay down.
@@ -74,6 +115,98 @@ public class MapRepository {
         }
     }
 
+    private SiteDocuments createSiteDocuments() {
+        MapStore.Engine engine = MapStore.Engine.of(mapStore);
+        Log.log(Level.INFO, this, "Sites are kept in {0}", engine);
+
+        switch (engine) {
+            case MEMORY:
+                return new SiteDocuments(new MemoryMapStore(mapper), null, mapper);
+            case FILE:
+                // unset: under the server's output directory
+                Path file = Settings.isSet(mapStoreFile)
+                        ? Paths.get(mapStoreFile.trim())
+                        : Paths.get(serverOutputDir == null ? "." : serverOutputDir, "map", "sites.jsonl");
+                fileStore = new FileMapStore(mapper, file);
+                try {
+                    fileStore.open();
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Unable to read sites from " + file, e);
+                }
+                return new SiteDocuments(fileStore, null, mapper);
+            default:
+                return new SiteDocuments(db, mapper);
+        }
+    }
+
+    private void startIndex() {
+        if ( sites.db == null ) {
+            // the store isn't shared: load the index from it, no thread required
+            sites.startIndex(threadFactory);
+            return;
+        }
+        if ( threadFactory == null ) {
+            return;
+        }
+
+        try {
+            sites.startIndex(threadFactory);
+        } catch (Exception e) {
+            // Not fatal: without the index, all lookups go to the database
+            Log.log(Level.WARNING, this, "Unable to load coordinate index, using views only", e);
+        }
+
+        if ( Boolean.parseBoolean(coordinateLocks) ) {
+            try {
+                sites.startCoordinateLocks(threadFactory);
+            } catch (Exception e) {
+                Log.log(Level.WARNING, this, "Unable to enable coordinate locks, using views only", e);
+            }
+        }
+    }
+
+    /**
+     * Apply site events from other instances to the index
+     * @see SiteEventHandler
+     */
+    private void subscribe() {
+        if ( kafka == null ) {
+            return;
+        }
+        for (SiteEvent type : SiteEvent.values()) {
+            kafka.subscribe(new SiteEventHandler(type, kafka.getInstanceId(), sites.index, mapper));
+        }
+    }
+
+    private void startBackfill() {
+        if ( kafka == null || threadFactory == null || !Boolean.parseBoolean(mapStateBackfill) ) {
+            return;
+        }
+        if ( !kafka.isPublishing() ) {
+            Log.log(Level.WARNING, this, "Kafka is unavailable, map state backfill skipped");
+            return;
+        }
+        backfill = new MapStateBackfill(sites, kafka);
+        threadFactory.newThread(backfill).start();
+    }
+
+    @PreDestroy
+    protected void preDestroy() {
+        if ( backfill != null ) {
+            backfill.stop();
+        }
+        if ( sites != null ) {
+            sites.stopIndex();
+        }
+        if ( fileStore != null ) {
+            try {
+                fileStore.close();
+            } catch (IOException e) {
+                Log.log(Level.WARNING, this, "Unable to close site store", e);
+            }
+        }
+    }
+
     public boolean connectionReady() {
         return true;
     }
@@ -91,22 +224,47 @@ public class MapRepository {
 
         //we have to step through any results to remove the connectionDetails blocks.
         for(JsonNode j : result){
-            JsonNode ownerNode = j.get("owner");
-            if(ownerNode!=null && ownerNode.getNodeType().equals(JsonNodeType.STRING)){
-                String ownerNodeString = ownerNode.textValue();
-                //remove connectionDetailsBlocks unless requested by owner or the system id
-                if( stripSensitiveData(accessPolicy, ownerNodeString)){
-                    JsonNode info = j.get("info");
-                    if(info.getNodeType() == JsonNodeType.OBJECT){
-                        ObjectNode infoObj = (ObjectNode)info;
-                        if(infoObj.has("connectionDetails")){
-                            infoObj.remove("connectionDetails");
-                        }
+            stripConnectionDetails(accessPolicy, j);
+        }
+        return result;
+    }
+
+    /**
+     * List of all not-empty rooms, read incrementally. Connection details
+     * are removed from each site as it is read.
+     * @param accessPolicy access policy of the person requesting the list
+     * @param fields fields to return, or null for all
+     * @param cursor position to start from, or null
+     * @param limit size of the page, or 0 for all sites
+     * @return Stream of sites, possibly filtered by owner and/or name. Caller must close it.
+     * @throws IOException if the sites can't be read from the database
+     */
+    public SiteStream streamSites(ResourceAccessPolicy accessPolicy, String owner, String name,
+            SiteFields fields, SiteCursor cursor, int limit) throws IOException {
+        Log.log(Level.FINER, this, "Stream rooms: {0} {1} {2}", fields, cursor, limit);
+        return sites.streamSites(nullEmpty(owner), nullEmpty(name), fields, cursor, limit, j -> {
+            stripConnectionDetails(accessPolicy, j);
+            if ( fields != null ) {
+                fields.retain(j);
+            }
+        });
+    }
+
+    private void stripConnectionDetails(ResourceAccessPolicy accessPolicy, JsonNode j) {
+        JsonNode ownerNode = j.get("owner");
+        if(ownerNode!=null && ownerNode.getNodeType().equals(JsonNodeType.STRING)){
+            String ownerNodeString = ownerNode.textValue();
+            //remove connectionDetailsBlocks unless requested by owner or the system id
+            if( stripSensitiveData(accessPolicy, ownerNodeString)){
+                JsonNode info = j.get("info");
+                if(info != null && info.getNodeType() == JsonNodeType.OBJECT){
+                    ObjectNode infoObj = (ObjectNode)info;
+                    if(infoObj.has("connectionDetails")){
+                        infoObj.remove("connectionDetails");
                     }
                 }
             }
         }
-        return result;
     }
 
     private String nullEmpty(String parameter) {
@@ -182,9 +340,22 @@ public class MapRepository {
      * @throws DocumentNotFoundException for unknown room
      */
     public Site getRoom(ResourceAccessPolicy accessPolicy, String id) {
+        return getRoom(accessPolicy, id, true);
+    }
+
+    /**
+     * Get room by id
+     *
+     * @param user person requesting the room, or null if unauthenticated
+     * @param id Site/Room id
+     * @param withExits false if the exits aren't needed (saves a query for neighbors)
+     * @return Information for the specified room/site
+     * @throws DocumentNotFoundException for unknown room
+     */
+    public Site getRoom(ResourceAccessPolicy accessPolicy, String id, boolean withExits) {
         Log.log(Level.FINER, this, "Lookup site: {0}", id);
 
-        Site result = sites.getSite(id);
+        Site result = withExits ? sites.getSite(id) : sites.getSiteWithoutExits(id);
         String owner = result.getOwner();
 
         if( stripSensitiveData(accessPolicy, owner) ){
@@ -208,7 +379,22 @@ public class MapRepository {
      * @throws MapModificationException if something goes awry creating the room
      */
     public Site updateRoom(String authenticatedId, String id, RoomInfo roomInfo) {
-        Log.log(Level.FINER, this, "Update site: {0} {1}", id, roomInfo);
+        return updateRoom(authenticatedId, id, roomInfo, null);
+    }
+
+    /**
+     * Update room by id, if it is still at the expected revision
+     *
+     * @param authenticatedId person attempting the update.
+     * @param id Site/Room id
+     * @param updatedInfo Updated room information
+     * @param expectedRev Revision being updated (from If-Match), or null
+     * @return Complete information for the specified room/site
+     * @throws MapModificationException if something goes awry creating the room,
+     *      with PRECONDITION_FAILED if the room is no longer at expectedRev
+     */
+    public Site updateRoom(String authenticatedId, String id, RoomInfo roomInfo, String expectedRev) {
+        Log.log(Level.FINER, this, "Update site: {0} {1} {2}", id, expectedRev, roomInfo);
 
         if ( authenticatedId == null ) {
             throw new MapModificationException(Response.Status.FORBIDDEN,
@@ -216,11 +402,13 @@ public class MapRepository {
                     "User was not specified (unauthenticated)");
         }
 
-        Site result = sites.updateRoom(authenticatedId, id, roomInfo);
+        // the event carries the change from the previous revision
+        Site previous = sites.getIndexedSite(id);
+        Site result = sites.updateRoom(authenticatedId, id, roomInfo, expectedRev);
 
         //publish event.
         if ( kafka != null )
-            kafka.publishSiteEvent(SiteEvent.UPDATE, result);
+            kafka.publishSiteEvent(SiteEvent.UPDATE, result, previous);
 
         return result;
     }
@@ -238,11 +426,13 @@ public class MapRepository {
                     "User " + user + " does not have permission to swap rooms.",
                     "Rooms " + room1Id + " and " + room2Id + " have not been swapped.");
         }
+        Site previous1 = sites.getIndexedSite(room1Id);
+        Site previous2 = sites.getIndexedSite(room2Id);
         Collection<Site> results = sites.swapRooms(room1Id, room2Id);
 
         //publish events
         if ( kafka != null )
-            results.forEach(site -> kafka.publishSiteEvent(SiteEvent.UPDATE, site));
+            publishSwap(new ArrayList<>(results), previous1, previous2);
 
         return results;
     }
@@ -255,15 +445,30 @@ public class MapRepository {
                     "User " + user + " does not have permission to swap rooms.",
                     "Sites " + siteSwap.getSite1().getId() + " and " + siteSwap.getSite2().getId() + " have not been swapped.");
         }
+        Site previous1 = sites.getIndexedSite(siteSwap.getSite1().getId());
+        Site previous2 = sites.getIndexedSite(siteSwap.getSite2().getId());
         List<Site> results = sites.swapSites(siteSwap);
 
         //publish events
         if ( kafka != null )
-            results.forEach(site -> kafka.publishSiteEvent(SiteEvent.UPDATE, site));
+            publishSwap(results, previous1, previous2);
 
         return results;
     }
 
+    /**
+     * Publish the two sites of a swap: each moved to where the other was
+     * @param swapped Both sites, after the swap
+     * @param previous1 First site before the swap, or null
+     * @param previous2 Second site before the swap, or null
+     */
+    private void publishSwap(List<Site> swapped, Site previous1, Site previous2) {
+        Site site1 = swapped.get(0);
+        Site site2 = swapped.get(1);
+        kafka.publishSiteMove(site1, previous1, site2.getCoord());
+        kafka.publishSiteMove(site2, previous2, site1.getCoord());
+    }
+
     /**
      * Delete site by id
      * @param authenticatedId person attempting the delete
@@ -272,18 +477,71 @@ public class MapRepository {
     public void deleteSite(String authenticatedId, String id) {
         Log.log(Level.FINER, this, "Delete site {0} by {1}", id, authenticatedId);
 
-        sites.deleteSite(authenticatedId, id);
+        String revision = sites.deleteSite(authenticatedId, id);
 
         //publish event..
-        //we don't have a full site to send, but notifying by id is fine.
+        //we don't have a full site to send, but notifying by id (and revision) is fine.
         Site deleted = new Site();
         deleted.setId(id);
+        deleted.setRev(revision);
 
         if ( kafka != null )
             kafka.publishSiteEvent(SiteEvent.DELETE, deleted);
 
     }
 
+    /**
+     * Entity tag for a site as returned to a caller. Changes with the revision
+     * of the site, with its neighborhood (exits), and with what the caller is
+     * allowed to see.
+     *
+     * @param accessPolicy access policy of the caller
+     * @param site Site as read
+     * @param withExits true if the representation includes exits
+     * @param variant Distinguishes other representations (e.g. selected fields)
+     * @return the entity tag, or null if the version of the neighborhood isn't known
+     */
+    public EntityTag entityTag(ResourceAccessPolicy accessPolicy, Site site, boolean withExits, String variant) {
+        if ( site == null || site.getRev() == null ) {
+            return null;
+        }
+
+        String neighborhood = withExits ? sites.getNeighborhoodVersion(site.getCoord()) : "x";
+        if ( neighborhood == null ) {
+            return null;
+        }
+
+        String visibility = stripSensitiveData(accessPolicy, site.getOwner()) ? "p" : "f";
+        return new EntityTag(site.getRev() + "." + neighborhood + "." + visibility + variant);
+    }
+
+    /**
+     * Entity tag for the current version of a site, without reading the
+     * site or its neighbors: a HEAD request confirms that the indexed copy
+     * of the site is current.
+     *
+     * @return the entity tag, or null if it can't be worked out cheaply
+     * @throws DocumentNotFoundException for unknown room
+     * @see #entityTag(ResourceAccessPolicy, Site, boolean, String)
+     */
+    public EntityTag currentEntityTag(ResourceAccessPolicy accessPolicy, String id, boolean withExits, String variant) {
+        String rev = sites.getCurrentRevision(id);
+        Site indexed = sites.getIndexedSite(id, rev);
+        if ( indexed == null ) {
+            return null;
+        }
+        return entityTag(accessPolicy, indexed, withExits, variant);
+    }
+
+    /**
+     * @param id Site/Room id
+     * @return current revision of the site
+     * @throws DocumentNotFoundException for unknown room
+     */
+    public String getCurrentRevision(String id) {
+        return sites.getCurrentRevision(id);
+    }
+
     public ObjectMapper mapper() {
         return mapper;
     }
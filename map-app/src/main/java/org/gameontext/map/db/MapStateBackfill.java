@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map.db;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import org.ektorp.DbAccessException;
+import org.gameontext.map.Log;
+import org.gameontext.map.Metrics;
+import org.gameontext.map.kafka.Kafka;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Copies every room in the database to the map state topic
+ * ({@link Kafka#MAP_STATE_TOPIC}).
+ * <p>
+ * Sites are read from the {@code all} view a page at a time, and queued
+ * for the publisher, waiting whenever it falls behind. Changes made while
+ * the backfill runs are published as they happen; a site the index has
+ * already seen a newer revision of is skipped, so the backfill doesn't
+ * overwrite a newer state with the one it read.
+ * </p>
+ * <p>
+ * Running it more than once (or on more than one instance) is harmless:
+ * the topic is compacted, only the latest state of each site is kept.
+ * </p>
+ */
+class MapStateBackfill implements Runnable {
+
+    /** Sites read from the view at once */
+    static final int BATCH_SIZE = 500;
+
+    /** Give up if the publisher can't take a site for this long */
+    static final long OFFER_TIMEOUT = 60000;
+
+    static final LongAdder backfilled = Metrics.counter("map_state_backfilled");
+
+    private final SiteDocuments sites;
+    private final Kafka kafka;
+
+    private volatile boolean keepGoing = true;
+
+    MapStateBackfill(SiteDocuments sites, Kafka kafka) {
+        this.sites = sites;
+        this.kafka = kafka;
+    }
+
+    @Override
+    public void run() {
+        Log.log(Level.INFO, this, "Map state backfill started");
+
+        int count = 0;
+        SiteCursor cursor = null;
+        List<ObjectNode> page = new ArrayList<>(BATCH_SIZE);
+        try {
+            do {
+                page.clear();
+                try (SiteStream stream = sites.streamSites(null, null, null, cursor, BATCH_SIZE, site -> {})) {
+                    cursor = stream.readPage(BATCH_SIZE, page);
+                }
+
+                for (ObjectNode site : page) {
+                    String id = site.path("_id").asText(null);
+                    if ( id == null || "empty".equals(site.path("type").asText()) || isStale(id, site.path("_rev").asText(null)) ) {
+                        continue;
+                    }
+                    if ( !keepGoing ) {
+                        break;
+                    }
+                    if ( !kafka.offerSiteState(id, site, OFFER_TIMEOUT) ) {
+                        Log.log(Level.WARNING, this, "Map state backfill stopped after {0} sites: events can't be published", count);
+                        return;
+                    }
+                    count++;
+                    backfilled.increment();
+                }
+            } while ( cursor != null && keepGoing );
+
+            Log.log(Level.INFO, this, "Map state backfill {0} after {1} sites", keepGoing ? "finished" : "stopped", count);
+        } catch (IOException | DbAccessException e) {
+            Log.log(Level.WARNING, this, "Map state backfill failed after " + count + " sites", e);
+        } catch (InterruptedException e) {
+            Log.log(Level.INFO, this, "Map state backfill interrupted after {0} sites", count);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void stop() {
+        keepGoing = false;
+    }
+
+    /**
+     * @return true if a newer revision than the one read has been seen (and published)
+     */
+    private boolean isStale(String id, String rev) {
+        SiteGridIndex.Cell cell = sites.index.getById(id);
+        return cell != null && SiteGridIndex.generation(cell.getRev()) > SiteGridIndex.generation(rev);
+    }
+}
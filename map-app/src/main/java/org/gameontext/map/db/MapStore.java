@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map.db;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.ektorp.DocumentNotFoundException;
+import org.ektorp.UpdateConflictException;
+import org.gameontext.map.model.Coordinates;
+import org.gameontext.map.model.Site;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Where site documents are kept: the storage operations used by
+ * {@link SiteDocuments}.
+ * <p>
+ * Documents follow CouchDB conventions whatever the engine: each has an
+ * {@code _id} and a {@code _rev} ({@code generation-hash}), writes must
+ * name the revision they replace, and a write that doesn't fails with an
+ * {@link UpdateConflictException}. Unknown ids fail with a
+ * {@link DocumentNotFoundException}. Exits are not stored.
+ * </p>
+ *
+ * @see CouchMapStore
+ * @see MemoryMapStore
+ * @see FileMapStore
+ */
+public interface MapStore {
+
+    /** Storage engines, selected with the {@code mapStore} JNDI entry */
+    enum Engine {
+        COUCHDB, MEMORY, FILE;
+
+        /**
+         * @param value Configured engine name (any case)
+         * @return the engine, COUCHDB if unset or unknown
+         */
+        public static Engine of(String value) {
+            if ( value != null ) {
+                for (Engine e : values()) {
+                    if ( e.name().equalsIgnoreCase(value.trim()) ) {
+                        return e;
+                    }
+                }
+            }
+            return COUCHDB;
+        }
+    }
+
+    /**
+     * @return the site with the given id
+     * @throws DocumentNotFoundException for unknown site
+     */
+    Site get(String id);
+
+    /**
+     * @return current revision of the site
+     * @throws DocumentNotFoundException for unknown site
+     */
+    String getCurrentRevision(String id);
+
+    /**
+     * Add a new site. Sets its id (if it has none) and revision.
+     * @throws UpdateConflictException if a site with that id exists
+     */
+    void create(Site site);
+
+    /**
+     * Replace a site. Sets its new revision.
+     * @throws UpdateConflictException if the site is no longer at its revision
+     */
+    void update(Site site);
+
+    /**
+     * @return the revision of the deletion
+     * @throws UpdateConflictException if the site is no longer at its revision
+     */
+    String delete(Site site);
+
+    /**
+     * Create or update several documents at once (each on its own: not as a
+     * transaction). Documents with a revision are updated, the others are created.
+     * @param docs Sites (and, for CouchDB, coordinate locks)
+     * @return ids of the documents that weren't saved (conflicts)
+     */
+    Set<String> saveAll(Collection<?> docs);
+
+    /**
+     * Delete several sites at once, ignoring failures
+     */
+    void deleteAll(Collection<Site> sites);
+
+    /**
+     * @return sites at x,y: normally one, or none
+     */
+    List<Site> getByCoordinate(int x, int y);
+
+    /**
+     * @return sites in any of the given cells, with one read
+     */
+    List<Site> getByCoordinates(Collection<Coordinates> cells);
+
+    /**
+     * @return sites next to x,y, by direction ({@code N}, {@code S}, {@code E}, {@code W})
+     */
+    Map<String, Site> getNeighbors(int x, int y);
+
+    /**
+     * Empty sites are ordered by their distance from the origin
+     * (|x| + |y|), then by x and y.
+     * @param last true for the furthest empty site, false for the closest
+     * @return an empty site, or null if there are none
+     */
+    Site getEmptySite(boolean last);
+
+    /**
+     * @return all empty sites, closest to the origin first
+     */
+    List<Site> getEmptySites();
+
+    /**
+     * @param owner Owner of sites (optional)
+     * @param name Name of site/room (optional)
+     * @return all sites (including empty ones) when neither is given, or rooms
+     *      with the given owner and/or name. Will not return null.
+     */
+    List<JsonNode> listSites(String owner, String name);
+
+    /**
+     * @see SiteDocuments#streamSites(String, String, SiteFields, SiteCursor, int, Consumer)
+     */
+    SiteStream streamSites(String owner, String name, SiteFields fields, SiteCursor cursor, int limit,
+            Consumer<ObjectNode> filter) throws IOException;
+
+    /**
+     * Read every site: used to load the grid index of engines that are not
+     * shared with other instances (which have no changes feed to follow).
+     */
+    void forEach(Consumer<Site> action);
+}
@@ -0,0 +1,488 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import org.ektorp.DbAccessException;
+import org.ektorp.DocumentNotFoundException;
+import org.ektorp.UpdateConflictException;
+import org.gameontext.map.model.Coordinates;
+import org.gameontext.map.model.Site;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Sites kept in memory: for tests, demos and single-instance deployments
+ * that can start from an empty map.
+ * <p>
+ * Documents are held serialized (without exits), as a database would, so
+ * callers never share a {@link Site} with the store. The fields the views
+ * are keyed on are indexed. Revisions and conflicts behave as they do in
+ * CouchDB. Nothing is shared with other instances.
+ * </p>
+ */
+public class MemoryMapStore implements MapStore {
+
+    /** Empty sites: closest to the origin first, as the empty_sites view */
+    private static final Comparator<Site> EMPTY_SITE_ORDER = Comparator
+            .comparingInt((Site s) -> Math.abs(s.getCoord().getX()) + Math.abs(s.getCoord().getY()))
+            .thenComparingInt(s -> s.getCoord().getX())
+            .thenComparingInt(s -> s.getCoord().getY());
+
+    protected final ObjectMapper mapper;
+
+    /** Documents by id */
+    private final Map<String, Entry> docs = new TreeMap<>();
+
+    /** Ids of sites by packed coordinate */
+    private final Map<Long, Set<String>> byCoord = new HashMap<>();
+
+    /** Ids of rooms by name, as the name view */
+    private final Map<String, Set<String>> byName = new HashMap<>();
+
+    /** Ids of empty sites */
+    private final Set<String> empty = new HashSet<>();
+
+    public MemoryMapStore(ObjectMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    @Override
+    public synchronized Site get(String id) {
+        return toSite(find(id));
+    }
+
+    @Override
+    public synchronized String getCurrentRevision(String id) {
+        return find(id).rev;
+    }
+
+    @Override
+    public synchronized void create(Site site) {
+        if ( site.getId() == null ) {
+            site.setId(CoordinateLocks.newId());
+        } else if ( docs.containsKey(site.getId()) ) {
+            throw new UpdateConflictException(site.getId(), site.getRev());
+        }
+        put(site, nextRevision(null));
+    }
+
+    @Override
+    public synchronized void update(Site site) {
+        String rev = find(site.getId()).rev;
+        if ( !rev.equals(site.getRev()) ) {
+            throw new UpdateConflictException(site.getId(), site.getRev());
+        }
+        put(site, nextRevision(rev));
+    }
+
+    @Override
+    public synchronized String delete(Site site) {
+        String rev = find(site.getId()).rev;
+        if ( !rev.equals(site.getRev()) ) {
+            throw new UpdateConflictException(site.getId(), site.getRev());
+        }
+        String deleted = nextRevision(rev);
+        write(site.getId(), deleted, null);
+        remove(site.getId());
+        written();
+        return deleted;
+    }
+
+    @Override
+    public synchronized Set<String> saveAll(Collection<?> docs) {
+        Set<String> failed = new HashSet<>();
+        for (Object doc : docs) {
+            if ( !(doc instanceof Site) ) {
+                throw new IllegalArgumentException("Only sites can be stored: " + doc);
+            }
+            Site site = (Site) doc;
+            try {
+                if ( site.getRev() == null ) {
+                    create(site);
+                } else {
+                    update(site);
+                }
+            } catch (UpdateConflictException | DocumentNotFoundException e) {
+                failed.add(site.getId());
+            }
+        }
+        return failed;
+    }
+
+    @Override
+    public synchronized void deleteAll(Collection<Site> sites) {
+        for (Site site : sites) {
+            try {
+                delete(site);
+            } catch (UpdateConflictException | DocumentNotFoundException e) {
+                // ignored, as failures of a bulk delete
+            }
+        }
+    }
+
+    @Override
+    public synchronized List<Site> getByCoordinate(int x, int y) {
+        List<Site> sites = new ArrayList<>();
+        for (String id : byCoord.getOrDefault(SiteGridIndex.pack(x, y), new HashSet<>())) {
+            sites.add(toSite(docs.get(id)));
+        }
+        return sites;
+    }
+
+    @Override
+    public synchronized List<Site> getByCoordinates(Collection<Coordinates> cells) {
+        List<Site> sites = new ArrayList<>();
+        for (Coordinates cell : cells) {
+            sites.addAll(getByCoordinate(cell.getX(), cell.getY()));
+        }
+        return sites;
+    }
+
+    @Override
+    public synchronized Map<String, Site> getNeighbors(int x, int y) {
+        // same order as the neighbors view
+        Map<String, Site> neighbors = new LinkedHashMap<>();
+        addNeighbor(neighbors, "E", x + 1, y);
+        addNeighbor(neighbors, "N", x, y + 1);
+        addNeighbor(neighbors, "S", x, y - 1);
+        addNeighbor(neighbors, "W", x - 1, y);
+        return neighbors;
+    }
+
+    @Override
+    public synchronized Site getEmptySite(boolean last) {
+        List<Site> sites = getEmptySites();
+        if ( sites.isEmpty() )
+            return null;
+        return last ? sites.get(sites.size() - 1) : sites.get(0);
+    }
+
+    @Override
+    public synchronized List<Site> getEmptySites() {
+        List<Site> sites = new ArrayList<>();
+        for (String id : empty) {
+            sites.add(toSite(docs.get(id)));
+        }
+        sites.sort(EMPTY_SITE_ORDER);
+        return sites;
+    }
+
+    @Override
+    public synchronized List<JsonNode> listSites(String owner, String name) {
+        List<JsonNode> sites = new ArrayList<>();
+        for (Row row : rows(owner, name)) {
+            sites.add(toNode(row.entry));
+        }
+        return sites;
+    }
+
+    /**
+     * Rows are in the order of the matching view: by key, then id. The
+     * cursor is the key and id of the first row to return.
+     */
+    @Override
+    public synchronized SiteStream streamSites(String owner, String name, SiteFields fields, SiteCursor cursor, int limit,
+            Consumer<ObjectNode> filter) throws IOException {
+        List<Row> matches = rows(owner, name);
+
+        // the response of the view, with the stored documents as they are
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator generator = mapper.getFactory().createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeNumberField("total_rows", matches.size());
+            generator.writeArrayFieldStart("rows");
+            int count = 0;
+            for (Row row : matches) {
+                if ( cursor != null && row.compareTo(cursor.getRawKey(), cursor.getId()) < 0 ) {
+                    continue;
+                }
+                if ( limit > 0 && count > limit ) {
+                    break; // one more than the page: the start of the next one
+                }
+                generator.writeStartObject();
+                generator.writeStringField("id", row.id);
+                generator.writeFieldName("key");
+                generator.writeTree(row.key);
+                generator.writeFieldName("value");
+                generator.writeRawValue(new String(row.entry.json, StandardCharsets.UTF_8));
+                generator.writeEndObject();
+                count++;
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+
+        return new SiteStream(new ByteArrayInputStream(out.toByteArray()), mapper, "value", filter);
+    }
+
+    @Override
+    public synchronized void forEach(Consumer<Site> action) {
+        for (Entry entry : docs.values()) {
+            action.accept(toSite(entry));
+        }
+    }
+
+    /**
+     * @return number of documents held
+     */
+    public synchronized int size() {
+        return docs.size();
+    }
+
+    /**
+     * Called (with the store locked) before each change is made in memory:
+     * a hook for stores that keep the documents elsewhere as well. If it
+     * throws, the change isn't made.
+     *
+     * @param id Document id
+     * @param rev New revision
+     * @param json New content, or null if the document was deleted
+     */
+    protected void write(String id, String rev, byte[] json) {
+    }
+
+    /**
+     * Called (with the store locked) once a change written by
+     * {@link #write(String, String, byte[])} has been made in memory.
+     */
+    protected void written() {
+    }
+
+    /**
+     * Restore a document without checking its revision (or calling
+     * {@link #write(String, String, byte[])}), as when reloading a store.
+     *
+     * @param doc Document with {@code _id} and {@code _rev}, or null to delete
+     */
+    protected synchronized void restore(String id, ObjectNode doc) throws IOException {
+        remove(id);
+        if ( doc != null ) {
+            index(id, doc, mapper.writeValueAsBytes(doc));
+        }
+    }
+
+    /**
+     * Read every stored document, in id order
+     * @param action Given the id and (serialized) content of each document
+     */
+    protected synchronized void forEachDocument(BiConsumer<String, byte[]> action) {
+        for (Map.Entry<String, Entry> e : docs.entrySet()) {
+            action.accept(e.getKey(), e.getValue().json);
+        }
+    }
+
+    private Entry find(String id) {
+        Entry entry = id == null ? null : docs.get(id);
+        if ( entry == null ) {
+            throw new DocumentNotFoundException(id);
+        }
+        return entry;
+    }
+
+    /**
+     * Store the site with a new revision: the site is only given the revision
+     * once the change has been written.
+     */
+    private void put(Site site, String rev) {
+        ObjectNode doc = mapper.valueToTree(site);
+        doc.remove("exits");
+        doc.put("_rev", rev);
+        byte[] json;
+        try {
+            json = mapper.writeValueAsBytes(doc);
+        } catch (IOException e) {
+            throw new DbAccessException(e);
+        }
+        write(site.getId(), rev, json);
+        remove(site.getId());
+        index(site.getId(), doc, json);
+        site.setRev(rev);
+        written();
+    }
+
+    private void index(String id, JsonNode doc, byte[] json) {
+        Entry entry = new Entry(doc, json);
+        docs.put(id, entry);
+        if ( entry.coord != null ) {
+            byCoord.computeIfAbsent(entry.coord, k -> new HashSet<>()).add(id);
+        }
+        if ( entry.name != null ) {
+            byName.computeIfAbsent(entry.name, k -> new HashSet<>()).add(id);
+        }
+        if ( entry.empty ) {
+            empty.add(id);
+        }
+    }
+
+    private void remove(String id) {
+        Entry old = docs.remove(id);
+        if ( old == null ) {
+            return;
+        }
+        if ( old.coord != null ) {
+            unindex(byCoord, old.coord, id);
+        }
+        if ( old.name != null ) {
+            unindex(byName, old.name, id);
+        }
+        empty.remove(id);
+    }
+
+    private static <K> void unindex(Map<K, Set<String>> ids, K key, String id) {
+        Set<String> set = ids.get(key);
+        if ( set != null ) {
+            set.remove(id);
+            if ( set.isEmpty() ) {
+                ids.remove(key);
+            }
+        }
+    }
+
+    private void addNeighbor(Map<String, Site> neighbors, String direction, int x, int y) {
+        Set<String> ids = byCoord.get(SiteGridIndex.pack(x, y));
+        if ( ids != null && !ids.isEmpty() ) {
+            neighbors.put(direction, toSite(docs.get(ids.iterator().next())));
+        }
+    }
+
+    private Site toSite(Entry entry) {
+        try {
+            return mapper.readValue(entry.json, Site.class);
+        } catch (IOException e) {
+            throw new DbAccessException(e);
+        }
+    }
+
+    private JsonNode toNode(Entry entry) {
+        try {
+            return mapper.readTree(entry.json);
+        } catch (IOException e) {
+            throw new DbAccessException(e);
+        }
+    }
+
+    /**
+     * @return documents matching the view CouchDB would use, in view order
+     */
+    private List<Row> rows(String owner, String name) {
+        List<Row> rows = new ArrayList<>();
+
+        // only rooms with the name can match: no need to look at the others
+        Collection<String> ids = name == null ? docs.keySet() : byName.getOrDefault(name, new HashSet<>());
+        for (String id : ids) {
+            Entry entry = docs.get(id);
+            JsonNode key;
+            if ( owner == null && name == null ) {
+                key = NullNode.getInstance();
+            } else if ( entry.name == null
+                    || (name != null && !name.equals(entry.name))
+                    || (owner != null && !owner.equals(entry.owner)) ) {
+                continue;
+            } else if ( owner != null ) {
+                ArrayNode k = JsonNodeFactory.instance.arrayNode();
+                k.add(owner);
+                k.add(entry.name);
+                key = k;
+            } else {
+                key = JsonNodeFactory.instance.textNode(entry.name);
+            }
+            rows.add(new Row(id, key, entry));
+        }
+        if ( owner != null || name != null ) {
+            rows.sort(null); // otherwise already in id order
+        }
+        return rows;
+    }
+
+    private static String nextRevision(String rev) {
+        int generation = rev == null ? 0 : SiteGridIndex.generation(rev);
+        return (generation + 1) + "-" + UUID.randomUUID().toString().replace("-", "");
+    }
+
+    /**
+     * A stored document, with the fields the views use
+     */
+    private static class Entry {
+        final byte[] json;
+        final String rev;
+        /** Packed coordinates, or null */
+        final Long coord;
+        /** Room name (info.name), or null */
+        final String name;
+        final String owner;
+        final boolean empty;
+
+        Entry(JsonNode doc, byte[] json) {
+            this.json = json;
+            this.rev = doc.path("_rev").asText(null);
+            JsonNode c = doc.path("coord");
+            this.coord = c.isObject() ? SiteGridIndex.pack(c.path("x").asInt(), c.path("y").asInt()) : null;
+            JsonNode info = doc.path("info");
+            this.name = info.isObject() ? info.path("name").asText(null) : null;
+            this.owner = doc.path("owner").asText(null);
+            this.empty = "empty".equals(doc.path("type").asText(null));
+        }
+    }
+
+    /**
+     * A row of a view
+     */
+    private static class Row implements Comparable<Row> {
+        final String id;
+        final JsonNode key;
+        final Entry entry;
+
+        Row(String id, JsonNode key, Entry entry) {
+            this.id = id;
+            this.key = key;
+            this.entry = entry;
+        }
+
+        int compareTo(String otherKey, String otherId) {
+            int result = key.toString().compareTo(otherKey);
+            return result != 0 ? result : id.compareTo(otherId);
+        }
+
+        @Override
+        public int compareTo(Row o) {
+            return compareTo(o.key.toString(), o.id);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map.db;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.apache.http.HttpEntity;
+import org.ektorp.http.HttpClient;
+import org.ektorp.http.HttpResponse;
+import org.gameontext.map.db.CouchCalls.View;
+
+/**
+ * Wraps the HTTP client used by the CouchDB connector, so that every call
+ * (whichever class makes it) is recorded by {@link CouchCalls}: what it was
+ * for, how long the response took, and the bytes sent and received.
+ * <p>
+ * The time is until the response arrives. Responses without a length
+ * (views are streamed) are counted as they are read.
+ * </p>
+ */
+public class MeteredHttpClient implements HttpClient {
+
+    private final HttpClient delegate;
+
+    public MeteredHttpClient(HttpClient delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public HttpResponse get(String uri) {
+        long start = System.nanoTime();
+        return received(View.of("GET", uri), start, 0, delegate.get(uri));
+    }
+
+    @Override
+    public HttpResponse get(String uri, Map<String, String> headers) {
+        long start = System.nanoTime();
+        return received(View.of("GET", uri), start, 0, delegate.get(uri, headers));
+    }
+
+    @Override
+    public HttpResponse getUncached(String uri) {
+        long start = System.nanoTime();
+        return received(View.of("GET", uri), start, 0, delegate.getUncached(uri));
+    }
+
+    @Override
+    public HttpResponse head(String uri) {
+        long start = System.nanoTime();
+        return received(View.of("HEAD", uri), start, 0, delegate.head(uri));
+    }
+
+    @Override
+    public HttpResponse put(String uri) {
+        long start = System.nanoTime();
+        return received(View.of("PUT", uri), start, 0, delegate.put(uri));
+    }
+
+    @Override
+    public HttpResponse put(String uri, String content) {
+        long start = System.nanoTime();
+        return received(View.of("PUT", uri), start, utf8Length(content), delegate.put(uri, content));
+    }
+
+    @Override
+    public HttpResponse put(String uri, InputStream data, String contentType, long contentLength) {
+        long start = System.nanoTime();
+        CountingInputStream counted = new CountingInputStream(data, null);
+        HttpResponse response = delegate.put(uri, counted, contentType, contentLength);
+        return received(View.of("PUT", uri), start, counted.count, response);
+    }
+
+    @Override
+    public HttpResponse put(String uri, HttpEntity entity) {
+        long start = System.nanoTime();
+        return received(View.of("PUT", uri), start, Math.max(0, entity.getContentLength()), delegate.put(uri, entity));
+    }
+
+    @Override
+    public HttpResponse post(String uri, String content) {
+        long start = System.nanoTime();
+        return received(View.of("POST", uri), start, utf8Length(content), delegate.post(uri, content));
+    }
+
+    @Override
+    public HttpResponse postUncached(String uri, String content) {
+        long start = System.nanoTime();
+        return received(View.of("POST", uri), start, utf8Length(content), delegate.postUncached(uri, content));
+    }
+
+    @Override
+    public HttpResponse post(String uri, InputStream content) {
+        // bulk requests: the body is written as the request is sent
+        long start = System.nanoTime();
+        CountingInputStream counted = new CountingInputStream(content, null);
+        HttpResponse response = delegate.post(uri, counted);
+        return received(View.of("POST", uri), start, counted.count, response);
+    }
+
+    @Override
+    public HttpResponse post(String uri, HttpEntity entity) {
+        long start = System.nanoTime();
+        return received(View.of("POST", uri), start, Math.max(0, entity.getContentLength()), delegate.post(uri, entity));
+    }
+
+    @Override
+    public HttpResponse delete(String uri) {
+        long start = System.nanoTime();
+        return received(View.of("DELETE", uri), start, 0, delegate.delete(uri));
+    }
+
+    @Override
+    public HttpResponse copy(String sourceUri, String destination) {
+        long start = System.nanoTime();
+        return received(View.of("COPY", sourceUri), start, 0, delegate.copy(sourceUri, destination));
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    /**
+     * Record the call. Exceptions (the server couldn't be reached) aren't
+     * recorded: the response is only null in tests.
+     */
+    private HttpResponse received(View view, long start, long sent, HttpResponse response) {
+        long nanos = System.nanoTime() - start;
+        long length = response == null ? 0 : response.getContentLength();
+        CouchCalls.record(view, nanos, sent, Math.max(0, length));
+        return response == null || length >= 0 ? response : new MeteredResponse(response, view);
+    }
+
+    /**
+     * @return bytes in the UTF-8 encoding of the string
+     */
+    static long utf8Length(String s) {
+        if ( s == null ) {
+            return 0;
+        }
+        long bytes = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ( c < 0x80 ) {
+                bytes++;
+            } else if ( c < 0x800 ) {
+                bytes += 2;
+            } else if ( Character.isHighSurrogate(c) ) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /** Counts bytes read, and reports them to CouchCalls for a response */
+    static class CountingInputStream extends FilterInputStream {
+        final View view;
+        long count;
+
+        /**
+         * @param view the call the response is for, or null for a request body
+         */
+        CountingInputStream(InputStream in, View view) {
+            super(in);
+            this.view = view;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if ( b >= 0 ) {
+                counted(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if ( n > 0 ) {
+                counted(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            counted(skipped);
+            return skipped;
+        }
+
+        private void counted(long n) {
+            count += n;
+            if ( view != null ) {
+                CouchCalls.received(view, n);
+            }
+        }
+    }
+
+    /** A response without a length: its bytes are counted as they are read */
+    static class MeteredResponse implements HttpResponse {
+        private final HttpResponse delegate;
+        private final View view;
+        private InputStream content;
+
+        MeteredResponse(HttpResponse delegate, View view) {
+            this.delegate = delegate;
+            this.view = view;
+        }
+
+        @Override
+        public InputStream getContent() {
+            if ( content == null ) {
+                InputStream in = delegate.getContent();
+                content = in == null ? null : new CountingInputStream(in, view);
+            }
+            return content;
+        }
+
+        @Override
+        public boolean isSuccessful() {
+            return delegate.isSuccessful();
+        }
+
+        @Override
+        public int getCode() {
+            return delegate.getCode();
+        }
+
+        @Override
+        public String getRequestURI() {
+            return delegate.getRequestURI();
+        }
+
+        @Override
+        public String getContentType() {
+            return delegate.getContentType();
+        }
+
+        @Override
+        public long getContentLength() {
+            return delegate.getContentLength();
+        }
+
+        @Override
+        public String getETag() {
+            return delegate.getETag();
+        }
+
+        @Override
+        public void releaseConnection() {
+            delegate.releaseConnection();
+        }
+
+        @Override
+        public void abort() {
+            delegate.abort();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map.db;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import javax.ws.rs.core.Response;
+
+import org.gameontext.map.MapModificationException;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+
+/**
+ * Position in a view: the key and document id of the first row of a page.
+ * <p>
+ * Pages are read with {@code startkey} and {@code startkey_docid}, so CouchDB
+ * seeks straight to the page rather than skipping over the rows before it.
+ * Callers see the cursor as an opaque (base64url) string.
+ * </p>
+ */
+public final class SiteCursor {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final JsonNode key;
+    private final String id;
+
+    SiteCursor(JsonNode key, String id) {
+        this.key = key == null ? NullNode.getInstance() : key;
+        this.id = id;
+    }
+
+    /**
+     * @return the view key as JSON, for {@code startkey}
+     */
+    public String getRawKey() {
+        return key.toString();
+    }
+
+    /**
+     * @return the document id, for {@code startkey_docid}
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return opaque string form of this cursor
+     */
+    public String encode() {
+        ArrayNode value = mapper.createArrayNode();
+        value.add(key);
+        value.add(id);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param cursor String returned by {@link #encode()}
+     * @return the cursor, or null if cursor is null or empty
+     * @throws MapModificationException (400) if the cursor isn't valid
+     */
+    public static SiteCursor decode(String cursor) {
+        if ( cursor == null || cursor.trim().isEmpty() ) {
+            return null;
+        }
+
+        try {
+            JsonNode value = mapper.readTree(Base64.getUrlDecoder().decode(cursor.trim()));
+            if ( value != null && value.isArray() && value.size() == 2 && value.get(1).isTextual() ) {
+                return new SiteCursor(value.get(0), value.get(1).textValue());
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // fall through
+        }
+
+        throw new MapModificationException(Response.Status.BAD_REQUEST,
+                "Invalid cursor",
+                "Cursor " + cursor + " was not returned by this service");
+    }
+
+    @Override
+    public String toString() {
+        return "SiteCursor[" + key + " " + id + "]";
+    }
+}
@@ -15,22 +15,30 @@
  *******************************************************************************/
 package org.gameontext.map.db;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 
 import javax.ws.rs.core.Response;
 
-import org.ektorp.ComplexKey;
 import org.ektorp.CouchDbConnector;
 import org.ektorp.DocumentNotFoundException;
 import org.ektorp.UpdateConflictException;
-import org.ektorp.ViewQuery;
-import org.ektorp.ViewResult;
 import org.gameontext.map.Log;
 import org.gameontext.map.MapModificationException;
+import org.gameontext.map.Metrics;
 import org.gameontext.map.model.Coordinates;
 import org.gameontext.map.model.Exit;
 import org.gameontext.map.model.Exits;
@@ -42,6 +50,7 @@ import org.gameontext.map.model.SiteSwap;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
  * Repository tracking and working with Sites (sites) in the map
@@ -80,83 +89,134 @@ public class SiteDocuments {
 
     protected static final String DESIGN_DOC = "_design/site";
 
+    /** Placement attempts that lost an update conflict, and had to try again */
+    static final LongAdder placementConflicts = Metrics.counter("placement_conflicts");
+
+    /** Rooms placed */
+    static final LongAdder placements = Metrics.counter("placements");
+
+    /** Conflicts lost by each placement before it succeeded */
+    static final Metrics.Histogram placementRetries = Metrics.histogram("placement_retries", Metrics.COUNTS);
+
+    /** Attempts at locking a cell before giving up */
+    static final int LOCK_ATTEMPTS = 5;
+
+    /** CouchDB connector, or null if sites are kept elsewhere */
     protected final CouchDbConnector db;
-    protected final ViewQuery allEmptySites;
-    protected final ViewQuery all;
+
+    /** Where sites are kept */
+    protected final MapStore store;
 
     protected final ObjectMapper mapper;
 
+    /** In-memory coordinate index, answers lookups once loaded */
+    protected final SiteGridIndex index;
+
+    /** Coordinate lock documents, null unless enabled */
+    protected CoordinateLocks locks;
+
     protected SiteDocuments(CouchDbConnector db, ObjectMapper mapper) {
+        this.store = new CouchMapStore(db, mapper);
         this.db = db;
         this.mapper = mapper;
-        all = new ViewQuery().designDocId(DESIGN_DOC).viewName("all").cacheOk(true);
-        allEmptySites = new ViewQuery().designDocId(DESIGN_DOC).viewName("empty_sites");
-    }
-
-    protected void postConstruct() {
-        // Make sure that first room has neighbors (should always do, but.. )
-        Exits exits = new Exits();
-        createEmptyNeighbors(new Coordinates(0, 0), exits);
+        this.index = new SiteGridIndex(db, mapper);
     }
 
     /**
-     * LIST
-     * @param owner Owner of sites (optional)
-     * @param name Name of site/room (optional)
-     * @return List of all sites, possibly filtered by owner and/or name. Will not return null.
+     * @param store Where sites are kept
+     * @param db CouchDB connector when the store is CouchDB (used for the
+     *      changes feed and coordinate locks), or null for a store that isn't
+     *      shared with other instances (see {@link #startIndex(ThreadFactory)})
      */
-    public List<JsonNode> listSites(String owner, String name) {
-
-        List<JsonNode> sites = Collections.emptyList();
-
-        ViewQuery viewQuery = createQueryToAppropriateView(owner, name);
-        sites = db.queryView(viewQuery, JsonNode.class);
-
-        if ( sites == null )
-            return Collections.emptyList();
-
-        return sites;
+    protected SiteDocuments(MapStore store, CouchDbConnector db, ObjectMapper mapper) {
+        this.store = store;
+        this.db = db;
+        this.mapper = mapper;
+        this.index = new SiteGridIndex(db, mapper);
     }
 
-    private ViewQuery createQueryToAppropriateView(String owner, String name) {
-        if (owner == null && name == null) {
-            return all;
-        } else if (owner != null) {
-            return createQueryToOwnerNameView(owner, name);
+    /**
+     * Load the coordinate index and keep it current using the changes feed.
+     * Until (or unless) this is called, all lookups go to the views.
+     * <p>
+     * Without CouchDB, this instance is the only writer: the index is loaded
+     * from the store, and kept current with our own writes.
+     * </p>
+     * @param threadFactory factory for the thread following the changes feed
+     */
+    protected void startIndex(ThreadFactory threadFactory) {
+        if ( db != null ) {
+            index.start(threadFactory);
         } else {
-            return createQueryToNameView(name);
+            index.load(store::forEach);
         }
     }
 
-    private ViewQuery createQueryToNameView(String name) {
-        return createQueryWithoutKeys("name")
-                .key(name);
+    protected void stopIndex() {
+        index.stop();
+        if ( locks != null ) {
+            locks.stop();
+        }
     }
 
-    private ViewQuery createQueryToOwnerNameView(String owner, String name) {
-        ViewQuery ownerNameQuery = createQueryWithoutKeys("owner_name");
-        if (name == null) {
-            ownerNameQuery = addKeyRangeForAllWithSameFirstEntryInComplexKey(ownerNameQuery, owner);
-        } else {
-            ownerNameQuery = addComplexKey(ownerNameQuery, owner, name);
+    /**
+     * Use coordinate lock documents to find and claim cells, migrating
+     * existing sites in the background if necessary.
+     * @param threadFactory factory for the migration thread
+     */
+    protected void startCoordinateLocks(ThreadFactory threadFactory) {
+        if ( db == null ) {
+            Log.log(Level.INFO, this, "Coordinate locks are only used with CouchDB");
+            return;
         }
-        return ownerNameQuery;
+        CoordinateLocks locks = new CoordinateLocks(db, mapper);
+        locks.start(threadFactory);
+        this.locks = locks;
     }
 
-    private ViewQuery addKeyRangeForAllWithSameFirstEntryInComplexKey(ViewQuery ownerNameQuery, String key) {
-        return ownerNameQuery.startKey(ComplexKey.of(key))
-                            .endKey(ComplexKey.of(key, ComplexKey.emptyObject()));
+    protected void postConstruct() {
+        // Make sure that first room has neighbors (should always do, but.. )
+        Exits exits = new Exits();
+        assignExistingExit(exits, "n", 0, 1);
+        assignExistingExit(exits, "s", 0, -1);
+        assignExistingExit(exits, "e", 1, 0);
+        assignExistingExit(exits, "w", -1, 0);
+        createEmptyNeighbors(new Coordinates(0, 0), exits);
     }
 
-    private ViewQuery addComplexKey(ViewQuery ownerNameQuery, String key1, String key2) {
-        return ownerNameQuery.key(ComplexKey.of(key1, key2));
+    private void assignExistingExit(Exits exits, String direction, int x, int y) {
+        List<Site> existing = getByCoordinate(x, y);
+        if ( !existing.isEmpty() ) {
+            assignExit(exits, direction, existing.get(0));
+        }
     }
 
-    private ViewQuery createQueryWithoutKeys(String viewName) {
-        return new ViewQuery()
-                .designDocId(DESIGN_DOC)
-                .viewName(viewName)
-                .includeDocs(true);
+    /**
+     * LIST
+     * @param owner Owner of sites (optional)
+     * @param name Name of site/room (optional)
+     * @return List of all sites, possibly filtered by owner and/or name. Will not return null.
+     */
+    public List<JsonNode> listSites(String owner, String name) {
+        return store.listSites(owner, name);
+    }
+
+    /**
+     * LIST, incrementally: sites are read from the view response one at a time.
+     * @param owner Owner of sites (optional)
+     * @param name Name of site/room (optional)
+     * @param fields Fields that will be returned (optional): the lighter
+     *      summary view is used if it has all of them
+     * @param cursor Position to start from (optional)
+     * @param limit Size of the page, or 0 for all sites. One more row than
+     *      this is read, so the caller can tell whether there is another page.
+     * @param filter Applied to each site as it is read
+     * @return Stream of sites, possibly filtered by owner and/or name. Caller must close it.
+     * @throws IOException if the view response can't be read
+     */
+    public SiteStream streamSites(String owner, String name, SiteFields fields, SiteCursor cursor, int limit,
+            Consumer<ObjectNode> filter) throws IOException {
+        return store.streamSites(owner, name, fields, cursor, limit, filter);
     }
 
     /**
@@ -179,9 +239,13 @@ public class SiteDocuments {
         }
 
         Site candidateSite = null;
+        int retries = -1;
         while (candidateSite == null ) {
             candidateSite = assignEmptySite(owner, newRoom);
+            retries++;
         }
+        placements.increment();
+        placementRetries.record(retries);
 
         // Yay! We have an allocated, previously-empty node
         // that has already been updated to point to this room.
@@ -225,9 +289,22 @@ public class SiteDocuments {
 
         // use last empty site to find periphery of map
         Site emptySite = getLastEmptySite();
-        candidateSite.setCoord(findUnusedCoordinate(emptySite.getCoord()));
+        Coordinates target = findUnusedCoordinate(emptySite.getCoord());
+        if ( locks != null ) {
+            // claim the cell: someone else may be filling it too
+            for (int i = 0; !claimCell(target, id); i++) {
+                if ( i >= LOCK_ATTEMPTS ) {
+                    throw new MapModificationException(Response.Status.CONFLICT,
+                            "Unable to place room in the map",
+                            "Unable to lock an unused coordinate for room " + id);
+                }
+                target = findUnusedCoordinate(target);
+            }
+        }
+        candidateSite.setCoord(target);
 
-        db.create(candidateSite);
+        store.create(candidateSite);
+        index.observe(candidateSite);
 
         // Now we need to prep the response (with existing exits)..
         Exits exits = getExits(candidateSite.getCoord());
@@ -260,14 +337,15 @@ public class SiteDocuments {
         return site;
     }
 
-    private Site getSiteWithoutExits(String id) throws DocumentNotFoundException{
+    protected Site getSiteWithoutExits(String id) throws DocumentNotFoundException{
         if (id == null || id.isEmpty()) {
             throw new MapModificationException(Response.Status.BAD_REQUEST,
                     "Site id must be set.",
                     "Site id passed in is " + id);
         }
         // get the document from the DB
-        Site site = db.get(Site.class, id);
+        Site site = store.get(id);
+        index.observe(site);
         return site;
     }
 
@@ -279,10 +357,30 @@ public class SiteDocuments {
      * @return Wired site containing the room or Suite
      */
     public Site updateRoom(String user, String id, RoomInfo roomInfo) {
-        Log.mapOperations(Level.FINE, this, "Update room: {0} {1}", id, roomInfo);
+        return updateRoom(user, id, roomInfo, null);
+    }
 
-        // Get the site (includes reconstructing the exits)
-        Site site = getSite(id);
+    /**
+     * UDPATE ROOM, if it hasn't changed
+     * @param user Owner(?) of the room
+     * @param id of room to update
+     * @param roomInfo updated Room or Suite information
+     * @param expectedRev Revision the caller is updating, or null for the current revision.
+     *      If the index has this revision, the site isn't read before it is updated.
+     * @return Wired site containing the room or Suite
+     * @throws MapModificationException with PRECONDITION_FAILED if the site is no longer at expectedRev
+     */
+    public Site updateRoom(String user, String id, RoomInfo roomInfo, String expectedRev) {
+        Log.mapOperations(Level.FINE, this, "Update room: {0} {1} {2}", id, expectedRev, roomInfo);
+
+        // Get the site (exits are rebuilt after the update)
+        Site site = expectedRev == null ? null : getIndexedSite(id, expectedRev);
+        if ( site == null ) {
+            site = getSiteWithoutExits(id);
+            if ( expectedRev != null && !expectedRev.equals(site.getRev()) ) {
+                throw preconditionFailed(id, expectedRev);
+            }
+        }
         RoomInfo oldInfo = site.getInfo();
 
         // Revisit this with orgs.. *sigh*
@@ -294,15 +392,24 @@ public class SiteDocuments {
 
         site.setExits(null); // make sure exits is empty
         site.setInfo(roomInfo);
-        db.update(site); // update DB
+        try {
+            store.update(site); // update DB
+        } catch (UpdateConflictException e) {
+            if ( expectedRev != null ) {
+                throw preconditionFailed(id, expectedRev);
+            }
+            throw e;
+        }
+        index.observe(site);
 
         // Room name change! check for duplicates..
-        if ( !oldInfo.getName().equals(roomInfo.getName()) ) {
+        if ( oldInfo != null && !oldInfo.getName().equals(roomInfo.getName()) ) {
             List<JsonNode> rooms = listSites(user, roomInfo.getName());
             if ( rooms.size() > 1 ) {
 
                 site.setInfo(oldInfo); // revert!
-                db.update(site);
+                store.update(site);
+                index.observe(site);
 
                 throw new MapModificationException(Response.Status.CONFLICT,
                         "Room " + id + " could not be updated",
@@ -316,6 +423,86 @@ public class SiteDocuments {
         return site;
     }
 
+    private MapModificationException preconditionFailed(String id, String expectedRev) {
+        return new MapModificationException(Response.Status.PRECONDITION_FAILED,
+                "Room " + id + " could not be updated",
+                "Room " + id + " is no longer at revision " + expectedRev);
+    }
+
+    /**
+     * @param id Site id
+     * @return the last version of the site seen by the index (shared: must
+     *      not be modified), or null if the index doesn't have it
+     */
+    protected Site getIndexedSite(String id) {
+        SiteGridIndex.Cell cell = index.getById(id);
+        return cell == null ? null : cell.site;
+    }
+
+    /**
+     * @param id Site id
+     * @param rev Revision
+     * @return a new Site with the indexed content of revision rev of the site,
+     *      or null if the index doesn't have that revision
+     */
+    protected Site getIndexedSite(String id, String rev) {
+        SiteGridIndex.Cell cell = index.getById(id);
+        if ( cell == null || cell.site == null || !rev.equals(cell.getRev()) ) {
+            return null;
+        }
+
+        Site site = new Site();
+        site.setId(cell.site.getId());
+        site.setRev(cell.site.getRev());
+        site.setType(cell.site.getType());
+        site.setOwner(cell.site.getOwner());
+        site.setCoord(new Coordinates(cell.site.getCoord()));
+        site.setInfo(cell.site.getInfo() == null ? null : mapper.convertValue(cell.site.getInfo(), RoomInfo.class));
+        site.setCreatedOn(cell.site.getCreatedOn());
+        site.setAssignedOn(cell.site.getAssignedOn());
+        return site;
+    }
+
+    /**
+     * @param id Site id
+     * @return current revision of the site (a HEAD request: the document isn't read)
+     * @throws DocumentNotFoundException for unknown site
+     */
+    public String getCurrentRevision(String id) {
+        return store.getCurrentRevision(id);
+    }
+
+    /**
+     * Version of a site's neighborhood: changes when a neighbor is added,
+     * removed or updated, which is when its exits change.
+     *
+     * @param coord Position of the site in the map
+     * @return version of the neighborhood, or null if the index isn't able to say
+     */
+    public String getNeighborhoodVersion(Coordinates coord) {
+        if ( !index.isReady() )
+            return null;
+
+        int x = coord.getX();
+        int y = coord.getY();
+        long hash = 0xcbf29ce484222325L; // FNV-1a
+        hash = hashCell(hash, y < Integer.MAX_VALUE ? index.get(x, y+1) : null);
+        hash = hashCell(hash, y > Integer.MIN_VALUE ? index.get(x, y-1) : null);
+        hash = hashCell(hash, x < Integer.MAX_VALUE ? index.get(x+1, y) : null);
+        hash = hashCell(hash, x > Integer.MIN_VALUE ? index.get(x-1, y) : null);
+        return Long.toHexString(hash);
+    }
+
+    private static long hashCell(long hash, SiteGridIndex.Cell cell) {
+        String value = cell == null ? "-" : cell.getId() + "@" + cell.getRev();
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= '|';
+        return hash * 0x100000001b3L;
+    }
+
     /**
      * SWAP ROOMS
      * @param id1 First site in swap
@@ -344,7 +531,7 @@ public class SiteDocuments {
         sites.add(site1);
         sites.add(site2);
 
-        db.executeBulk(sites);
+        observeBulk(sites, store.saveAll(withLocks(sites)));
         return sites;
     }
 
@@ -382,7 +569,7 @@ public class SiteDocuments {
         sites.add(site1);
         sites.add(site2);
 
-        db.executeBulk(sites);
+        observeBulk(sites, store.saveAll(withLocks(sites)));
         // checking...
         return sites;
     }
@@ -396,7 +583,7 @@ public class SiteDocuments {
      */
     public String deleteSite(String user, String id) throws DocumentNotFoundException {
         // Get the site first (need the coordinates)
-        Site site = db.get(Site.class, id);
+        Site site = store.get(id);
 
         // Revisit this with orgs.. *sigh*
         if ( site.getOwner() == null || !site.getOwner().equals(user) ) {
@@ -406,7 +593,8 @@ public class SiteDocuments {
         }
 
         Coordinates coord = site.getCoord();
-        String revision = db.delete(site);
+        String revision = store.delete(site);
+        index.remove(id, revision);
 
         // Replace this site with an empty placeholder
         createEmptySite(coord);
@@ -422,18 +610,126 @@ public class SiteDocuments {
      * @return List of sites located at x,y in the map (hopefully only one!)
      */
     protected List<Site> getByCoordinate(int x, int y) {
-        ViewQuery getByCoordinate = new ViewQuery()
-                .designDocId(DESIGN_DOC)
-                .viewName("uniqueSite")
-                .reduce(false)
-                .includeDocs(true)
-                .key(ComplexKey.of(x, y));
-
-        List<Site> list = db.queryView(getByCoordinate, Site.class);
+        // Occupied cells can be answered from memory. A miss could just be the
+        // index running behind, so confirm those with the view.
+        Site known = index.getSite(x, y);
+        if ( known != null ) {
+            Log.mapOperations(Level.FINEST, this, "Get by coordinate (indexed): {0},{1}: {2}", x, y, known.getId());
+            return Collections.singletonList(known);
+        }
+
+        // Once every site has a lock, the lock document answers directly
+        if ( locks != null && locks.isMigrated() ) {
+            List<Site> locked = locks.sitesAt(x, y);
+            if ( locked != null ) {
+                Log.mapOperations(Level.FINEST, this, "Get by coordinate (locked): {0},{1}: {2}", x, y, locked);
+                locked.forEach(index::observe);
+                return locked;
+            }
+        }
+
+        return queryByCoordinate(x, y);
+    }
+
+    /**
+     * Find sites at x,y in the store
+     */
+    private List<Site> queryByCoordinate(int x, int y) {
+        List<Site> list = store.getByCoordinate(x, y);
         Log.mapOperations(Level.FINEST, this, "Get by coordinate: {0},{1}: {2}", x, y, list);
 
-        // protect caller from null
-        return ( list == null ) ? Collections.emptyList() : list;
+        list.forEach(index::observe);
+        return list;
+    }
+
+    /**
+     * @param sites Sites being moved
+     * @return documents for a bulk update: the sites, and their coordinate
+     *      locks if those are enabled
+     */
+    private Collection<?> withLocks(Collection<Site> sites) {
+        if ( locks == null ) {
+            return sites;
+        }
+        List<Object> docs = new ArrayList<>(sites);
+        docs.addAll(locks.follow(sites));
+        return docs;
+    }
+
+    /**
+     * Lock the cell at coord for a site. A lock left behind by a site that has
+     * since been deleted or moved is taken over, once the view confirms that
+     * nothing else is there.
+     *
+     * @return true if the cell is locked for siteId
+     */
+    private boolean claimCell(Coordinates coord, String siteId) {
+        int x = coord.getX();
+        int y = coord.getY();
+        if ( locks.acquire(x, y, siteId) ) {
+            return true;
+        }
+
+        CoordinateLock lock = locks.find(x, y);
+        if ( lock == null ) {
+            return locks.acquire(x, y, siteId); // released in the meanwhile
+        }
+        if ( siteId.equals(lock.getSite()) ) {
+            return true;
+        }
+        if ( locks.sitesAt(x, y) != null || !queryByCoordinate(x, y).isEmpty() ) {
+            return false; // occupied
+        }
+
+        try {
+            locks.reassign(lock, siteId);
+            return true;
+        } catch (UpdateConflictException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Record the result of a bulk write in the index: documents that
+     * failed to update are left alone.
+     */
+    private void observeBulk(Collection<Site> sites, Set<String> failed) {
+        for (Site site : sites) {
+            if ( !failed.contains(site.getId()) ) {
+                index.observe(site);
+            }
+        }
+    }
+
+    /**
+     * Build exits from the coordinate index.
+     *
+     * @param coord Position of the site in the map
+     * @param partial true if missing neighbors should be skipped (rather than
+     *      abandoning the attempt)
+     * @return Exits for the site, or null if the index couldn't provide all
+     *      four neighbors and partial was false
+     */
+    protected Exits getExitsFromIndex(Coordinates coord, boolean partial) {
+        if ( !index.isReady() )
+            return null;
+
+        int x = coord.getX();
+        int y = coord.getY();
+        Site n = y < Integer.MAX_VALUE ? index.getSite(x, y+1) : null;
+        Site s = y > Integer.MIN_VALUE ? index.getSite(x, y-1) : null;
+        Site e = x < Integer.MAX_VALUE ? index.getSite(x+1, y) : null;
+        Site w = x > Integer.MIN_VALUE ? index.getSite(x-1, y) : null;
+
+        if ( !partial && (n == null || s == null || e == null || w == null) )
+            return null;
+
+        Exits exits = new Exits();
+        if ( n != null ) assignExit(exits, "n", n);
+        if ( s != null ) assignExit(exits, "s", s);
+        if ( e != null ) assignExit(exits, "e", e);
+        if ( w != null ) assignExit(exits, "w", w);
+        return exits;
     }
 
 
@@ -443,34 +739,15 @@ public class SiteDocuments {
      * @throws JsonProcessingException
      */
     protected Exits getExits(Coordinates coord) {
-        // Query for the neighbors of this node. Use "A" to "Z" to capture the
-        // directional index (N/S/E/W/U/D), but skip this node (" "), as we have
-        // that already.
-        ViewQuery getNeighbors = new ViewQuery()
-                .designDocId(DESIGN_DOC)
-                .viewName("neighbors")
-                .reduce(false) // do not reduce the result
-                .includeDocs(true) // include referenced documents
-                .startKey(ComplexKey.of(coord.getX(), coord.getY(), "A"))
-                .endKey(ComplexKey.of(coord.getX(), coord.getY(), "Z"));
-
-        ViewResult result = db.queryView(getNeighbors);
-        Log.mapOperations(Level.FINEST, this, "Found neighbors: {0}", result);
+        Exits indexed = getExitsFromIndex(coord, false);
+        if ( indexed != null ) {
+            return indexed;
+        }
 
         Exits exits = new Exits();
-
-        for(ViewResult.Row row : result.getRows() ) {
-            JsonNode key = row.getKeyAsNode();
-            String direction = key.get(2).asText(); // [0, 1, "n"]
-
-            try {
-                Site targetSite = mapper.treeToValue(row.getDocAsNode(), Site.class);
-                assignExit(exits, direction, targetSite);
-            } catch (JsonProcessingException e) {
-                // Disagreement between our model class and what is in the data store :(
-                Log.log(Level.SEVERE, this, "Unable to assign exit for {0} due to exception {1}", key, e);
-                Log.log(Level.SEVERE, this, "Exception reading value from database", e);
-            }
+        for (Map.Entry<String, Site> neighbor : store.getNeighbors(coord.getX(), coord.getY()).entrySet()) {
+            index.observe(neighbor.getValue());
+            assignExit(exits, neighbor.getKey(), neighbor.getValue());
         }
 
         return exits;
@@ -508,8 +785,10 @@ public class SiteDocuments {
 
     protected Site assignEmptySite(String owner, RoomInfo newRoom) {
 
-        // Get an unassigned empty site
-        Site candidateSite = getEmptySite();
+        // Get an unassigned empty site: concurrent callers are given different
+        // candidates by the frontier. Fall back to the view if it has none.
+        EmptySiteFrontier.Candidate claim = index.isReady() ? index.getFrontier().claim() : null;
+        Site candidateSite = claim == null ? getEmptySite() : claimedSite(claim);
         Log.mapOperations(Level.FINEST, this, "Found empty node: {0}", candidateSite);
 
         candidateSite.setOwner(owner);
@@ -517,11 +796,24 @@ public class SiteDocuments {
         candidateSite.setType("room");
 
         try {
-            db.update(candidateSite);
+            store.update(candidateSite);
+            index.observe(candidateSite);
+            if ( claim != null ) {
+                index.getFrontier().assigned(claim);
+            }
         } catch (UpdateConflictException ex) {
+            placementConflicts.increment();
+            if ( claim != null ) {
+                index.getFrontier().conflict(claim);
+            }
             // If there is a conflict, we'll return null so that the caller tries again.
             // RETURN NULL: Caller should retry
             return null;
+        } catch (RuntimeException ex) {
+            if ( claim != null ) {
+                index.release(claim);
+            }
+            throw ex;
         }
 
         // Check again for duplicate owner/room name
@@ -532,7 +824,8 @@ public class SiteDocuments {
             candidateSite.setOwner(null);
             candidateSite.setInfo(null);
             candidateSite.setType("empty");
-            db.update(candidateSite);
+            store.update(candidateSite);
+            index.observe(candidateSite);
 
             throw new MapModificationException(Response.Status.CONFLICT,
                     "Unable to place room in the map",
@@ -543,28 +836,35 @@ public class SiteDocuments {
         return candidateSite;
     }
 
+    /**
+     * @param claim Empty site claimed from the frontier
+     * @return a new Site document for the claimed revision of the empty site
+     */
+    private Site claimedSite(EmptySiteFrontier.Candidate claim) {
+        Site site = new Site();
+        SiteGridIndex.Cell cell = index.getById(claim.getId());
+        if ( cell != null && cell.site != null ) {
+            site.setCreatedOn(cell.site.getCreatedOn());
+        }
+        site.setId(claim.getId());
+        site.setRev(claim.getRev());
+        site.setType("empty");
+        site.setCoord(new Coordinates(claim.getX(), claim.getY()));
+        return site;
+    }
+
     /**
      * @return a list of all empty sites
      */
     protected List<Site> getEmptySites() {
-        return db.queryView(allEmptySites, Site.class);
+        return store.getEmptySites();
     }
 
     /**
      * @return a single empty site selected in reverse order
      */
     protected Site getLastEmptySite() {
-        ViewQuery oneEmptySite = new ViewQuery()
-                .designDocId(DESIGN_DOC)
-                .viewName("empty_sites")
-                .descending(true)
-                .limit(1);
-
-        List<Site> sites = db.queryView(oneEmptySite, Site.class);
-        if ( sites.isEmpty() )
-            return null;
-        else
-            return sites.get(0);
+        return store.getEmptySite(true);
     }
 
 
@@ -572,32 +872,61 @@ public class SiteDocuments {
      * @return a single empty site
      */
     protected Site getEmptySite() {
-        ViewQuery oneEmptySite = new ViewQuery()
-                .designDocId(DESIGN_DOC)
-                .viewName("empty_sites")
-                .limit(1);
-
-        List<Site> sites = db.queryView(oneEmptySite, Site.class);
-        if ( sites.isEmpty() )
-            return null;
-        else
-            return sites.get(0);
+        return store.getEmptySite(false);
     }
 
     protected Site createEmptySite(Coordinates coord) {
+        if ( locks != null && locks.isMigrated() ) {
+            return createLockedEmptySite(coord);
+        }
+
         Coordinates emptyCoord = findUnusedCoordinate(coord);
 
         if ( emptyCoord.equals(coord) ) {
             Site newSite = new Site();
             newSite.setType("empty");
             newSite.setCoord(emptyCoord);
-            db.create(newSite);
+            store.create(newSite);
+            index.observe(newSite);
+            if ( locks != null ) {
+                // migration in progress: lock what we create
+                locks.acquire(emptyCoord.getX(), emptyCoord.getY(), newSite.getId());
+            }
         }
 
         // return the x, y neighbor (in case of conflict)
         return getByCoordinate(coord.getX(), coord.getY()).get(0);
     }
 
+    /**
+     * Create an empty site at x,y by locking the cell first: losing the race
+     * for the lock means someone else's site is there, and that is returned
+     * instead.
+     */
+    private Site createLockedEmptySite(Coordinates coord) {
+        for (int i = 0; i < LOCK_ATTEMPTS; i++) {
+            String id = CoordinateLocks.newId();
+            if ( claimCell(coord, id) ) {
+                Site newSite = new Site();
+                newSite.setId(id);
+                newSite.setType("empty");
+                newSite.setCoord(new Coordinates(coord));
+                store.create(newSite);
+                index.observe(newSite);
+                return newSite;
+            }
+
+            List<Site> existing = getByCoordinate(coord.getX(), coord.getY());
+            if ( !existing.isEmpty() ) {
+                return existing.get(0);
+            }
+        }
+
+        throw new MapModificationException(Response.Status.CONFLICT,
+                "Unable to create empty site",
+                "Unable to lock coordinate " + coord.getX() + "," + coord.getY());
+    }
+
     /**
      * Create an empty site for the specified x,y, coordinates
      *
@@ -615,7 +944,12 @@ public class SiteDocuments {
         List<Site> existingSite = getByCoordinate(target.getX(), target.getY());
         while ( existingSite.size() > 0 ) {
             // rather than delete, see if we can just move it over, and place it there.
-            Exits exits = getExits(target);
+            // Only occupied neighbors matter here: use what the index knows, as
+            // the candidate is confirmed with getByCoordinate anyway.
+            Exits exits = getExitsFromIndex(target, true);
+            if ( exits == null ) {
+                exits = getExits(target);
+            }
 
             if ( exits.getN() == null && target.getY() < Integer.MAX_VALUE ) {
                 target.setY(target.getY()+1);
@@ -639,28 +973,111 @@ public class SiteDocuments {
      * Create empty sites for every unbound side. Called only for rooms/suites,
      * this makes sure we always have empty rooms to choose from when adding new
      * rooms.
+     * <p>
+     * The exits are the neighborhood read: sides without an exit are empty.
+     * The new sites (and their coordinate locks, if enabled) are created with
+     * a single bulk request. With coordinate locks, cells lost to a concurrent
+     * writer are found by the conflict on the lock, and looked at again.
+     * </p>
+     * <p>
+     * Without locks, every empty site has its own id, so the bulk request
+     * can't conflict. The exits may come from the index, which lags writes
+     * made by other instances, so the cells are read again (with one query)
+     * just before the bulk request, as the per-cell path did. Two placements
+     * that overlap between that read and the bulk request can still create
+     * two sites in one cell: coordinate locks close that gap.
+     * </p>
      *
      * @param newRoom X,Y coordinates for the new room
-     * @param exits List of exits to be completed
+     * @param exits Exits of the new room, read from the database. Will be
+     *      completed with the new empty sites.
      */
     protected void createEmptyNeighbors(Coordinates newRoom, Exits exits) {
         // Protect against MAX/MIN values so we can use the corners for testing.
+        Map<String, Site> pending = new LinkedHashMap<>();
 
         if ( exits.getN() == null && newRoom.getY() < Integer.MAX_VALUE ) {
-            Site newSite = createEmptySite(newRoom.getX(), newRoom.getY()+1);
-            assignExit(exits, "n", newSite);
+            pending.put("n", newEmptySite(newRoom.getX(), newRoom.getY()+1));
         }
         if ( exits.getS() == null && newRoom.getY() > Integer.MIN_VALUE  ) {
-            Site newSite = createEmptySite(newRoom.getX(), newRoom.getY()-1);
-            assignExit(exits, "s", newSite);
+            pending.put("s", newEmptySite(newRoom.getX(), newRoom.getY()-1));
         }
         if ( exits.getE() == null  && newRoom.getX() < Integer.MAX_VALUE ) {
-            Site newSite = createEmptySite(newRoom.getX()+1, newRoom.getY());
-            assignExit(exits, "e", newSite);
+            pending.put("e", newEmptySite(newRoom.getX()+1, newRoom.getY()));
         }
         if ( exits.getW() == null  && newRoom.getX() > Integer.MIN_VALUE ) {
-            Site newSite = createEmptySite(newRoom.getX()-1, newRoom.getY());
-            assignExit(exits, "w", newSite);
+            pending.put("w", newEmptySite(newRoom.getX()-1, newRoom.getY()));
+        }
+
+        if ( locks == null && !pending.isEmpty() ) {
+            List<Coordinates> cells = new ArrayList<>();
+            pending.values().forEach(site -> cells.add(site.getCoord()));
+            for (Site existing : store.getByCoordinates(cells)) {
+                index.observe(existing);
+                Iterator<Map.Entry<String, Site>> i = pending.entrySet().iterator();
+                while ( i.hasNext() ) {
+                    Map.Entry<String, Site> entry = i.next();
+                    if ( entry.getValue().getCoord().equals(existing.getCoord()) ) {
+                        // already there: use it
+                        assignExit(exits, entry.getKey(), existing);
+                        i.remove();
+                    }
+                }
+            }
+        }
+
+        if ( pending.isEmpty() )
+            return;
+
+        List<Object> docs = new ArrayList<>(pending.values());
+        Map<String, Site> byLock = new HashMap<>();
+        if ( locks != null ) {
+            for (Site site : pending.values()) {
+                CoordinateLock lock = new CoordinateLock(site.getCoord().getX(), site.getCoord().getY(), site.getId());
+                byLock.put(lock.getId(), site);
+                docs.add(lock);
+            }
+        }
+
+        // Sites that failed to save, and sites whose cell was locked by someone else
+        Set<String> failed = new HashSet<>();
+        List<Site> orphans = new ArrayList<>();
+        for (String id : store.saveAll(docs)) {
+            Log.mapOperations(Level.FINE, this, "Empty site not created: {0}", id);
+            Site lost = byLock.get(id);
+            if ( lost != null ) {
+                failed.add(lost.getId());
+                orphans.add(lost);
+            } else {
+                failed.add(id);
+            }
         }
+
+        // Remove sites created in cells that turned out to be locked
+        orphans.removeIf(site -> site.getRev() == null);
+        if ( !orphans.isEmpty() ) {
+            store.deleteAll(orphans);
+        }
+
+        for (Map.Entry<String, Site> entry : pending.entrySet()) {
+            Site site = entry.getValue();
+            if ( failed.contains(site.getId()) ) {
+                // someone else got here first: use what they put there
+                site = createEmptySite(site.getCoord());
+            } else {
+                index.observe(site);
+            }
+            assignExit(exits, entry.getKey(), site);
+        }
+    }
+
+    /**
+     * @return a new (unsaved) empty site at x,y, with an id
+     */
+    private Site newEmptySite(int x, int y) {
+        Site site = new Site(x, y);
+        site.setId(CoordinateLocks.newId());
+        site.setType("empty");
+        return site;
     }
 }
@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map.db;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import org.gameontext.map.JsonPatch;
+import org.gameontext.map.Log;
+import org.gameontext.map.Metrics;
+import org.gameontext.map.kafka.Kafka.SiteEvent;
+import org.gameontext.map.kafka.KafkaEventHandler;
+import org.gameontext.map.model.Site;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Applies site events published by other map instances to the local
+ * {@link SiteGridIndex}.
+ * <p>
+ * The index follows the database changes feed regardless; site events
+ * usually arrive sooner, so neighborhoods (exits, entity tags) served by this
+ * instance catch up with writes made elsewhere without waiting for the feed.
+ * Events carry the revision of the site, so events and feed changes can
+ * arrive in any order: older revisions are ignored by the index. Updates
+ * that carry a patch are applied to the indexed copy of the site when it is
+ * at the revision the patch was made from.
+ * </p>
+ * <p>
+ * Events published by this instance are skipped: our own writes are
+ * recorded in the index as they are made.
+ * </p>
+ */
+class SiteEventHandler implements KafkaEventHandler {
+
+    static final LongAdder applied = Metrics.counter("site_events_applied");
+    static final LongAdder ownEvents = Metrics.counter("site_events_own");
+    static final LongAdder missedPatches = Metrics.counter("site_events_missed_patches");
+
+    private final SiteEvent type;
+    private final String instanceId;
+    private final SiteGridIndex index;
+    private final ObjectMapper mapper;
+
+    /**
+     * @param type Site event to handle
+     * @param instanceId Origin of events published by this instance
+     * @param index Index to update
+     * @param mapper Mapper used to read sites
+     */
+    SiteEventHandler(SiteEvent type, String instanceId, SiteGridIndex index, ObjectMapper mapper) {
+        this.type = type;
+        this.instanceId = instanceId;
+        this.index = index;
+        this.mapper = mapper;
+    }
+
+    @Override
+    public String getTopic() {
+        return "siteEvents";
+    }
+
+    @Override
+    public String getEventType() {
+        return type.name();
+    }
+
+    @Override
+    public void handleEvent(String key, JsonNode eventData) {
+        if ( instanceId != null && instanceId.equals(eventData.path("origin").asText(null)) ) {
+            ownEvents.increment();
+            return;
+        }
+
+        JsonNode site = eventData.path("site");
+        String id = eventData.path("id").asText(site.path("_id").asText(key));
+        String rev = eventData.path("rev").asText(site.path("_rev").asText(null));
+        Log.log(Level.FINER, this, "Site event {0} {1} {2}", type, id, rev);
+
+        if ( id == null ) {
+            return;
+        }
+
+        if ( type == SiteEvent.DELETE ) {
+            index.remove(id, rev);
+        } else if ( rev == null ) {
+            // can't tell how this compares with what we have: forget it, the changes feed catches up
+            index.remove(id, null);
+        } else if ( eventData.has("patch") ) {
+            applyPatch(id, rev, eventData.path("prevRev").asText(null), eventData.get("patch"));
+        } else {
+            try {
+                index.observe(mapper.treeToValue(site, Site.class));
+            } catch (JsonProcessingException e) {
+                Log.log(Level.FINEST, this, "Unable to read site from event {0}: {1}", id, e.getMessage());
+                index.remove(id, null);
+            }
+        }
+        applied.increment();
+    }
+
+    /**
+     * Apply a patch to the indexed copy of the site, if the index has the
+     * revision the patch was made from. Otherwise, the site is dropped from
+     * the index until the changes feed (or the next snapshot) catches up.
+     */
+    private void applyPatch(String id, String rev, String prevRev, JsonNode patch) {
+        SiteGridIndex.Cell cell = index.getById(id);
+        if ( cell != null && SiteGridIndex.generation(cell.getRev()) >= SiteGridIndex.generation(rev) ) {
+            return; // already have this (or a later) revision
+        }
+        if ( cell == null || cell.site == null || prevRev == null || !prevRev.equals(cell.getRev()) ) {
+            missedPatches.increment();
+            index.remove(id, null);
+            return;
+        }
+
+        try {
+            Site patched = mapper.treeToValue(JsonPatch.apply(mapper.valueToTree(cell.site), patch), Site.class);
+            patched.setRev(rev);
+            index.observe(patched);
+        } catch (JsonProcessingException | IllegalArgumentException e) {
+            Log.log(Level.FINEST, this, "Unable to patch site {0}: {1}", id, e.getMessage());
+            missedPatches.increment();
+            index.remove(id, null);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SiteEventHandler[" + type + "]";
+    }
+}
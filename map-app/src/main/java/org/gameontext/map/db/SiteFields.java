@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map.db;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.ws.rs.core.Response;
+
+import org.gameontext.map.MapModificationException;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Fields requested with {@code ?fields=}: a comma separated list of
+ * attributes, using dots for nested attributes, e.g.
+ * {@code fields=coord,info.name}. The site id is always included.
+ */
+public final class SiteFields {
+
+    /** Longest fields parameter we'll parse */
+    static final int MAX_LENGTH = 512;
+
+    /** Fields emitted by the summary view */
+    static final SiteFields SUMMARY = parse("_rev,type,owner,coord,info.name,info.fullName");
+
+    /** Selected attributes; an empty map selects the whole value */
+    private final Map<String, SiteFields> children = new LinkedHashMap<>();
+
+    private SiteFields() {}
+
+    /**
+     * @param fields Comma separated field list
+     * @return selected fields, or null to select everything
+     * @throws MapModificationException (400) if the list isn't valid
+     */
+    public static SiteFields parse(String fields) {
+        if ( fields == null || fields.trim().isEmpty() ) {
+            return null;
+        }
+        if ( fields.length() > MAX_LENGTH ) {
+            throw invalid(fields, "fields should be at most " + MAX_LENGTH + " characters");
+        }
+
+        SiteFields root = new SiteFields();
+        root.children.put("_id", new SiteFields());
+
+        for (String field : fields.split(",")) {
+            SiteFields node = root;
+            String[] path = field.trim().split("\\.", -1);
+            for (int i = 0; i < path.length; i++) {
+                String name = path[i].trim();
+                if ( name.isEmpty() ) {
+                    throw invalid(fields, "empty field name");
+                }
+                SiteFields child = node.children.get(name);
+                if ( child == null ) {
+                    child = new SiteFields();
+                    node.children.put(name, child);
+                } else if ( child.children.isEmpty() ) {
+                    break; // already selecting the whole value
+                }
+                if ( i == path.length - 1 ) {
+                    child.children.clear(); // whole value
+                }
+                node = child;
+            }
+        }
+        return root;
+    }
+
+    /**
+     * @param name Top-level attribute
+     * @return true if the attribute (or part of it) is selected
+     */
+    public boolean includes(String name) {
+        return children.containsKey(name);
+    }
+
+    /**
+     * @param available Fields that are present
+     * @return true if every selected field is within the available fields
+     */
+    boolean isCoveredBy(SiteFields available) {
+        if ( available.children.isEmpty() ) {
+            return true; // everything is available
+        }
+        if ( children.isEmpty() ) {
+            return false; // whole value selected, only part available
+        }
+        for (Map.Entry<String, SiteFields> entry : children.entrySet()) {
+            if ( "_id".equals(entry.getKey()) ) {
+                continue;
+            }
+            SiteFields other = available.children.get(entry.getKey());
+            if ( other == null || !entry.getValue().isCoveredBy(other) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove everything that isn't selected
+     * @param node Site to prune (in place)
+     */
+    public void retain(ObjectNode node) {
+        if ( children.isEmpty() ) {
+            return;
+        }
+
+        Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+        while ( fields.hasNext() ) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            SiteFields selected = children.get(field.getKey());
+            if ( selected == null ) {
+                fields.remove();
+            } else if ( field.getValue().isObject() ) {
+                selected.retain((ObjectNode) field.getValue());
+            }
+        }
+    }
+
+    private static MapModificationException invalid(String fields, String reason) {
+        return new MapModificationException(Response.Status.BAD_REQUEST,
+                "Invalid fields parameter",
+                "Unable to use fields " + fields + ": " + reason);
+    }
+
+    @Override
+    public String toString() {
+        return children.isEmpty() ? "*" : children.toString();
+    }
+}
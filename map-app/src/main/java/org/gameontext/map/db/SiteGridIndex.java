@@ -0,0 +1,622 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map.db;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.StreamingViewResult;
+import org.ektorp.ViewQuery;
+import org.ektorp.ViewResult;
+import org.ektorp.changes.ChangesCommand;
+import org.ektorp.changes.DocumentChange;
+import org.gameontext.map.Log;
+import org.gameontext.map.model.Coordinates;
+import org.gameontext.map.model.RoomInfo;
+import org.gameontext.map.model.Site;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * In-process index of the map grid: which site occupies each (x,y) coordinate.
+ * <p>
+ * Cells are kept in an open-addressed table keyed by the packed coordinate
+ * (see {@link #pack(int, int)}), and each cell points to the site id, type and
+ * revision (plus the last document seen for it). The index is loaded once from
+ * the {@code all} view, and then kept current by following the database
+ * {@code _changes} feed.
+ * </p>
+ * <p>
+ * The index is a hint, not the source of truth: an occupied cell can be answered
+ * from memory, but a miss (or a cell with more than one claimant) should be
+ * confirmed with the existing view queries. Documents read or written by this
+ * instance are fed back in with {@link #observe(Site)}, so the index doesn't
+ * have to wait for the changes feed to catch up with our own writes.
+ * </p>
+ * <p>
+ * Empty sites are also kept in an {@link EmptySiteFrontier}, which hands out
+ * distinct placement candidates to concurrent callers.
+ * </p>
+ */
+public class SiteGridIndex {
+
+    /** CouchDB long-poll timeout: must stay below the http client socket timeout (10s) */
+    static final String LONGPOLL_TIMEOUT = "5000";
+
+    /** Back off for this long when the changes feed fails */
+    static final long RETRY_DELAY = 5000;
+
+    /**
+     * A single occupied coordinate
+     */
+    public static final class Cell {
+        final long coord;
+        final String id;
+        final String rev;
+        final String type;
+        final Site site;
+
+        /** More than one site claims this coordinate: don't trust the cell */
+        final boolean duplicate;
+
+        Cell(long coord, String id, String rev, String type, Site site, boolean duplicate) {
+            this.coord = coord;
+            this.id = id;
+            this.rev = rev;
+            this.type = type;
+            this.site = site;
+            this.duplicate = duplicate;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getRev() {
+            return rev;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public boolean isEmpty() {
+            return "empty".equals(type);
+        }
+
+        @Override
+        public String toString() {
+            return "Cell[" + unpackX(coord) + "," + unpackY(coord) + " " + id + " " + rev + " " + type
+                    + (duplicate ? " DUPLICATE" : "") + "]";
+        }
+    }
+
+    protected final CouchDbConnector db;
+    protected final ObjectMapper mapper;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final CellTable cells = new CellTable(1024);
+    private final Map<String, Cell> byId = new HashMap<>();
+
+    /** Ids claiming a contested coordinate (normally empty: these are transient, e.g. during swaps) */
+    private final Map<Long, Set<String>> contested = new HashMap<>();
+
+    /** Empty sites available for placement */
+    private final EmptySiteFrontier frontier = new EmptySiteFrontier();
+
+    private volatile boolean ready = false;
+    private volatile boolean keepGoing = true;
+    private volatile String lastSequence;
+    private Thread follower;
+
+    public SiteGridIndex(CouchDbConnector db, ObjectMapper mapper) {
+        this.db = db;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Pack an x,y coordinate into a single long: x in the high
+     * 32 bits, y in the low 32 bits.
+     */
+    public static long pack(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    public static int unpackX(long coord) {
+        return (int) (coord >> 32);
+    }
+
+    public static int unpackY(long coord) {
+        return (int) coord;
+    }
+
+    /**
+     * @param rev Document revision (e.g. {@code 3-2ab4...})
+     * @return the numeric generation of the revision, or 0 if it can't be parsed
+     */
+    public static int generation(String rev) {
+        if ( rev == null )
+            return 0;
+
+        int dash = rev.indexOf('-');
+        try {
+            return Integer.parseInt(dash < 0 ? rev : rev.substring(0, dash));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the frontier of empty sites maintained by this index
+     */
+    public EmptySiteFrontier getFrontier() {
+        return frontier;
+    }
+
+    /**
+     * @return true once the initial load has completed, while the changes
+     *      feed is being followed
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @return number of indexed sites
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return byId.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Load the index from the {@code all} view, and start following the
+     * changes feed on a thread created by the given factory.
+     *
+     * @param threadFactory Factory for the thread following the changes feed
+     */
+    public void start(ThreadFactory threadFactory) {
+        // Remember where the database is _before_ reading the view, so that the
+        // changes feed replays anything that changes while we load.
+        lastSequence = db.getDbInfo().getUpdateSeqAsString();
+
+        ViewQuery all = new ViewQuery().designDocId(SiteDocuments.DESIGN_DOC).viewName("all");
+        int count = 0;
+        StreamingViewResult result = db.queryForStreamingView(all);
+        try {
+            for (ViewResult.Row row : result) {
+                if ( apply(row.getId(), row.getValueAsNode(), false) )
+                    count++;
+            }
+        } finally {
+            result.close();
+        }
+
+        ready = true;
+        Log.log(Level.INFO, this, "Grid index loaded {0} sites (seq {1})", count, lastSequence);
+
+        follower = threadFactory.newThread(this::followChanges);
+        follower.start();
+    }
+
+    /**
+     * Load the index from a store that isn't shared with other instances:
+     * there is no changes feed to follow, writes are observed as they are made.
+     *
+     * @param source Reads every site in the store
+     */
+    public void load(Consumer<Consumer<Site>> source) {
+        int[] count = {0};
+        source.accept(site -> {
+            observe(site);
+            count[0]++;
+        });
+
+        ready = true;
+        Log.log(Level.INFO, this, "Grid index loaded {0} sites", count[0]);
+    }
+
+    public void stop() {
+        keepGoing = false;
+        ready = false;
+        if ( follower != null ) {
+            follower.interrupt();
+        }
+    }
+
+    /**
+     * Apply changes until stopped. While the feed (or a change) fails, the
+     * index isn't ready, so callers use the views instead: it is ready again
+     * once the changes have been read. If this ends for any other reason
+     * than {@link #stop()}, the index stays not ready.
+     */
+    private void followChanges() {
+        Log.log(Level.FINER, this, "Following changes feed from {0}", lastSequence);
+        try {
+            follow();
+        } finally {
+            ready = false;
+            if ( keepGoing ) {
+                Log.log(Level.SEVERE, this, "Stopped following changes feed at {0}: using views", lastSequence);
+            }
+        }
+        Log.log(Level.FINER, this, "Stopped following changes feed at {0}", lastSequence);
+    }
+
+    private void follow() {
+        while (keepGoing) {
+            try {
+                ChangesCommand cmd = new ChangesCommand.Builder()
+                        .since(lastSequence)
+                        .includeDocs(true)
+                        .param("feed", "longpoll")
+                        .param("timeout", LONGPOLL_TIMEOUT)
+                        .build();
+
+                List<DocumentChange> changes = db.changes(cmd);
+                for (DocumentChange change : changes) {
+                    if ( change.isDeleted() ) {
+                        remove(change.getId(), change.getRevision());
+                    } else {
+                        apply(change.getId(), change.getDocAsNode(), true);
+                    }
+                    lastSequence = change.getStringSequence();
+                }
+                ready = true;
+            } catch (RuntimeException e) {
+                if ( !keepGoing )
+                    break;
+
+                // DbAccessException, or a change we couldn't read: try again from the same place
+                ready = false;
+                Log.log(Level.WARNING, this, "Unable to read changes feed, will retry", e);
+                try {
+                    Thread.sleep(RETRY_DELAY);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply a document from the view or the changes feed
+     * @return true if the document was a site
+     */
+    private boolean apply(String id, JsonNode doc, boolean removeNonSite) {
+        if ( id == null || id.startsWith("_design/") || doc == null || !doc.has("coord") ) {
+            if ( removeNonSite && id != null ) {
+                remove(id, null);
+            }
+            return false;
+        }
+
+        try {
+            observe(mapper.treeToValue(doc, Site.class));
+            return true;
+        } catch (JsonProcessingException e) {
+            // Not something we can place: make sure we aren't remembering an older version
+            Log.log(Level.FINEST, this, "Unable to index {0}: {1}", id, e.getMessage());
+            remove(id, null);
+            return false;
+        }
+    }
+
+    /**
+     * Record a site document that was read from or written to the database.
+     * Older revisions than the one already indexed are ignored.
+     *
+     * @param site Site with id, revision and coordinates
+     */
+    public void observe(Site site) {
+        if ( site == null || site.getId() == null || site.getCoord() == null )
+            return;
+
+        Coordinates c = site.getCoord();
+        long coord = pack(c.getX(), c.getY());
+
+        lock.writeLock().lock();
+        try {
+            Cell known = byId.get(site.getId());
+            if ( known != null ) {
+                if ( generation(site.getRev()) < generation(known.rev) ) {
+                    return; // stale
+                }
+                detach(known);
+            }
+
+            Cell occupant = cells.get(coord);
+            boolean duplicate = occupant != null && !occupant.id.equals(site.getId());
+            if ( duplicate ) {
+                // Keep track of all claimants, but don't answer anything from this cell
+                Set<String> claimants = contested.computeIfAbsent(coord, k -> new HashSet<>());
+                claimants.add(occupant.id);
+                claimants.add(site.getId());
+                if ( !occupant.duplicate ) {
+                    cells.put(coord, new Cell(coord, occupant.id, occupant.rev, occupant.type, occupant.site, true));
+                }
+                // nobody should be placed on a contested cell
+                frontier.withdraw(occupant.id);
+            }
+
+            // detached copy, without exits: only read by us
+            Site copy = copyOf(site);
+            Cell cell = new Cell(coord, site.getId(), site.getRev(), site.getType(), copy, false);
+            byId.put(site.getId(), cell);
+            if ( duplicate ) {
+                frontier.withdraw(cell.id);
+            } else {
+                cells.put(coord, cell);
+                updateFrontier(cell);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove a site from the index
+     *
+     * @param id Site id
+     * @param rev Revision of the deletion, or null to remove unconditionally
+     */
+    public void remove(String id, String rev) {
+        lock.writeLock().lock();
+        try {
+            Cell known = byId.get(id);
+            if ( known == null )
+                return;
+            if ( rev != null && generation(rev) < generation(known.rev) )
+                return;
+
+            byId.remove(id);
+            frontier.withdraw(id);
+            detach(known);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Remove a known site from its cell. Caller holds write lock. */
+    private void detach(Cell known) {
+        Cell occupant = cells.get(known.coord);
+        if ( occupant == null )
+            return;
+
+        if ( occupant.duplicate ) {
+            Set<String> claimants = contested.get(known.coord);
+            if ( claimants != null ) {
+                claimants.remove(known.id);
+                if ( claimants.size() > 1 ) {
+                    return; // still contested
+                }
+                contested.remove(known.coord);
+                for (String id : claimants) {
+                    // the remaining claimant owns the cell again
+                    Cell remaining = byId.get(id);
+                    if ( remaining != null && remaining.coord == known.coord ) {
+                        cells.put(known.coord, remaining);
+                        updateFrontier(remaining);
+                        return;
+                    }
+                }
+            }
+            cells.remove(known.coord);
+        } else if ( occupant.id.equals(known.id) ) {
+            cells.remove(known.coord);
+        }
+    }
+
+    /**
+     * Return an unused frontier claim, if the site hasn't changed since
+     * @param c Candidate returned by {@link EmptySiteFrontier#claim()}
+     */
+    public void release(EmptySiteFrontier.Candidate c) {
+        lock.writeLock().lock();
+        try {
+            Cell known = byId.get(c.getId());
+            if ( known != null && known.isEmpty() && c.getRev() != null && c.getRev().equals(known.rev) ) {
+                frontier.release(c);
+            } else {
+                frontier.assigned(c);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Caller holds write lock. */
+    private void updateFrontier(Cell cell) {
+        if ( cell.isEmpty() ) {
+            frontier.offer(unpackX(cell.coord), unpackY(cell.coord), cell.id, cell.rev);
+        } else {
+            frontier.withdraw(cell.id);
+        }
+    }
+
+    /**
+     * @return the cell at x,y, or null if the cell is unknown (or contested)
+     */
+    public Cell get(int x, int y) {
+        if ( !ready )
+            return null;
+
+        lock.readLock().lock();
+        try {
+            Cell cell = cells.get(pack(x, y));
+            return cell == null || cell.duplicate ? null : cell;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the last document seen for the site at x,y, or null.
+     *      This instance is shared: callers must not modify it.
+     */
+    public Site getSite(int x, int y) {
+        Cell cell = get(x, y);
+        return cell == null ? null : cell.site;
+    }
+
+    /**
+     * @return true if a site is known to be at x,y. False means unknown, not necessarily empty.
+     */
+    public boolean isOccupied(int x, int y) {
+        return get(x, y) != null;
+    }
+
+    /**
+     * @return the indexed cell for the site id, or null.
+     */
+    public Cell getById(String id) {
+        if ( !ready )
+            return null;
+
+        lock.readLock().lock();
+        try {
+            return byId.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Site copyOf(Site site) {
+        Site copy = new Site();
+        copy.setId(site.getId());
+        copy.setRev(site.getRev());
+        copy.setType(site.getType());
+        copy.setOwner(site.getOwner());
+        copy.setCoord(new Coordinates(site.getCoord()));
+        // callers modify room info (e.g. to hide connection details): keep our own
+        copy.setInfo(site.getInfo() == null ? null : mapper.convertValue(site.getInfo(), RoomInfo.class));
+        copy.setCreatedOn(site.getCreatedOn());
+        copy.setAssignedOn(site.getAssignedOn());
+        return copy;
+    }
+
+    /**
+     * Open-addressed (linear probe) table of cells keyed by packed coordinate.
+     * Not thread safe: guarded by the index lock.
+     */
+    static final class CellTable {
+        private long[] keys;
+        private Cell[] values;
+        private int size;
+        private int mask;
+
+        CellTable(int capacity) {
+            int cap = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+            keys = new long[cap];
+            values = new Cell[cap];
+            mask = cap - 1;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        Cell get(long key) {
+            int i = hash(key) & mask;
+            Cell v;
+            while ( (v = values[i]) != null ) {
+                if ( keys[i] == key )
+                    return v;
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        void put(long key, Cell value) {
+            int i = hash(key) & mask;
+            while ( values[i] != null ) {
+                if ( keys[i] == key ) {
+                    values[i] = value;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            if ( ++size > (mask + 1) * 3 / 4 ) {
+                resize();
+            }
+        }
+
+        void remove(long key) {
+            int i = hash(key) & mask;
+            while ( values[i] != null ) {
+                if ( keys[i] == key ) {
+                    values[i] = null;
+                    size--;
+                    shiftBack(i);
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        /** Backward-shift deletion: keep probe sequences unbroken without tombstones */
+        private void shiftBack(int gap) {
+            int i = (gap + 1) & mask;
+            while ( values[i] != null ) {
+                int home = hash(keys[i]) & mask;
+                // can the entry at i move into the gap?
+                if ( ((i - home) & mask) >= ((i - gap) & mask) ) {
+                    keys[gap] = keys[i];
+                    values[gap] = values[i];
+                    values[i] = null;
+                    gap = i;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            Cell[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new Cell[oldValues.length * 2];
+            mask = keys.length - 1;
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if ( oldValues[i] != null ) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map.db;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Sites read incrementally from a CouchDB view response.
+ * <p>
+ * Only one row is held in memory at a time: each row's document is read,
+ * passed through the filter (e.g. to remove connection details), and then
+ * written out before the next row is read.
+ * </p>
+ */
+public class SiteStream implements Closeable {
+
+    private final InputStream in;
+    private final JsonParser parser;
+    private final ObjectMapper mapper;
+    private final String field;
+    private final Consumer<ObjectNode> filter;
+
+    private boolean inRows = false;
+
+    /** Key and id of the row last returned by next() */
+    private JsonNode key;
+    private String id;
+
+    /**
+     * @param in View response
+     * @param mapper ObjectMapper used to read each row
+     * @param field Row attribute holding the site: "value" or "doc" (include_docs)
+     * @param filter Applied to each site before it is returned
+     * @throws IOException if the response can't be read
+     */
+    SiteStream(InputStream in, ObjectMapper mapper, String field, Consumer<ObjectNode> filter) throws IOException {
+        this.in = in;
+        this.mapper = mapper;
+        this.field = field;
+        this.filter = filter;
+        this.parser = mapper.getFactory().createParser(in);
+
+        // { "total_rows": n, "offset": n, "rows": [ ...
+        if ( parser.nextToken() != JsonToken.START_OBJECT ) {
+            return;
+        }
+        while ( parser.nextToken() == JsonToken.FIELD_NAME ) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ( "rows".equals(name) && value == JsonToken.START_ARRAY ) {
+                inRows = true;
+                return;
+            }
+            parser.skipChildren();
+        }
+    }
+
+    /**
+     * @return the next site, or null when there are no more
+     * @throws IOException if the response can't be read
+     */
+    public ObjectNode next() throws IOException {
+        while ( inRows ) {
+            if ( parser.nextToken() != JsonToken.START_OBJECT ) {
+                inRows = false; // end of rows
+                return null;
+            }
+
+            ObjectNode site = null;
+            JsonNode rowKey = null;
+            String rowId = null;
+            while ( parser.nextToken() == JsonToken.FIELD_NAME ) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ( value == JsonToken.START_OBJECT && field.equals(name) ) {
+                    site = (ObjectNode) mapper.readTree(parser);
+                } else if ( "key".equals(name) ) {
+                    rowKey = mapper.readTree(parser);
+                } else if ( "id".equals(name) && value == JsonToken.VALUE_STRING ) {
+                    rowId = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+
+            if ( site != null ) {
+                key = rowKey;
+                id = rowId;
+                filter.accept(site);
+                return site;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return position of the site last returned by {@link #next()}: reading
+     *      from this cursor starts with that site.
+     */
+    public SiteCursor cursor() {
+        return id == null ? null : new SiteCursor(key, id);
+    }
+
+    /**
+     * Read a page of sites.
+     *
+     * @param limit Maximum number of sites
+     * @param page List to add the sites to
+     * @return cursor for the next page, or null if this is the last
+     * @throws IOException if the response can't be read
+     */
+    public SiteCursor readPage(int limit, List<ObjectNode> page) throws IOException {
+        ObjectNode site;
+        while ( page.size() < limit && (site = next()) != null ) {
+            page.add(site);
+        }
+        // the view was asked for one more row than the page: that's the next page
+        return next() == null ? null : cursor();
+    }
+
+    /**
+     * Write the remaining sites as a JSON array.
+     *
+     * @param out Output stream, which is flushed but not closed
+     * @param first Site to write first (already read with {@link #next()}), or null
+     * @throws IOException if the response can't be read or written
+     */
+    public void writeTo(OutputStream out, ObjectNode first) throws IOException {
+        JsonGenerator generator = mapper.getFactory().createGenerator(out);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+        generator.writeStartArray();
+        for (ObjectNode site = first == null ? next() : first; site != null; site = next()) {
+            generator.writeTree(site);
+        }
+        generator.writeEndArray();
+        generator.close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            parser.close();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -30,7 +30,8 @@ import javax.servlet.http.HttpServletResponse;
 
 @WebFilter(
         filterName = "corsFilter",
-        urlPatterns = {"/*"}
+        urlPatterns = {"/*"},
+        asyncSupported = true
           )
 public class CORSFilter implements Filter {
 
@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map.kafka;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.gameontext.map.Log;
+import org.gameontext.map.Metrics;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Hands consumed events to the handlers registered for their topic and type.
+ * <p>
+ * The type of each event is read without parsing the whole event, so events
+ * nobody handles are cheap to skip. Each partition of a batch is handled on
+ * its own thread, in order: events with the same key (same partition) are
+ * handled in the order they were published, and a slow handler for one
+ * partition doesn't hold up the others.
+ * </p>
+ */
+class EventDispatcher {
+
+    static final LongAdder handled = Metrics.counter("kafka_events_handled");
+    static final LongAdder skipped = Metrics.counter("kafka_events_skipped");
+    static final LongAdder errors = Metrics.counter("kafka_event_errors");
+
+    /** Handlers by topic, then by event type */
+    private final ConcurrentMap<String, ConcurrentMap<String, List<KafkaEventHandler>>> handlers = new ConcurrentHashMap<>();
+
+    private final ObjectMapper mapper;
+    private final Executor executor;
+
+    /**
+     * @param mapper Mapper used to parse events
+     * @param executor Executor for partitions, or null to handle them on the calling thread
+     */
+    EventDispatcher(ObjectMapper mapper, Executor executor) {
+        this.mapper = mapper;
+        this.executor = executor == null ? Runnable::run : executor;
+    }
+
+    /**
+     * @param handler Handler to add
+     * @return true if this is the first handler for the handler's topic
+     */
+    boolean register(KafkaEventHandler handler) {
+        boolean newTopic = !handlers.containsKey(handler.getTopic());
+        handlers.computeIfAbsent(handler.getTopic(), k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(handler.getEventType(), k -> new CopyOnWriteArrayList<>())
+                .add(handler);
+        return newTopic;
+    }
+
+    /**
+     * @return topics with registered handlers
+     */
+    Set<String> topics() {
+        return Collections.unmodifiableSet(new TreeSet<>(handlers.keySet()));
+    }
+
+    /**
+     * Handle a batch of events, returning once all partitions are done.
+     */
+    void dispatch(ConsumerRecords<String, String> records) {
+        List<CompletableFuture<Void>> partitions = new ArrayList<>();
+        for (TopicPartition partition : records.partitions()) {
+            List<ConsumerRecord<String, String>> list = records.records(partition);
+            partitions.add(CompletableFuture.runAsync(() -> list.forEach(this::dispatch), executor));
+        }
+        CompletableFuture.allOf(partitions.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    void dispatch(ConsumerRecord<String, String> record) {
+        Log.log(Level.FINER, this, "Consumer Record: {0} {1} {2} {3}", record.topic(), record.key(),
+                record.partition(), record.offset());
+
+        ConcurrentMap<String, List<KafkaEventHandler>> byType = handlers.get(record.topic());
+        try {
+            String type = eventType(record.value());
+            List<KafkaEventHandler> list = byType == null || type == null ? null : byType.get(type);
+            if ( list == null || list.isEmpty() ) {
+                skipped.increment();
+                return;
+            }
+
+            JsonNode tree = mapper.readTree(record.value());
+            for (KafkaEventHandler handler : list) {
+                try {
+                    handler.handleEvent(record.key(), tree);
+                    handled.increment();
+                } catch (RuntimeException e) {
+                    errors.increment();
+                    Log.log(Level.WARNING, this, "Error handling event " + record.key() + " with " + handler, e);
+                }
+            }
+        } catch (IOException e) {
+            errors.increment();
+            Log.log(Level.INFO, this, "Exception parsing JSON: {0}", e.getMessage());
+            Log.log(Level.SEVERE, this, "Error consuming event {0}: {1}", record.key(), record.value());
+        }
+    }
+
+    /**
+     * Read the top-level {@code type} attribute, skipping over everything else
+     * @return the event type, or null if there isn't one
+     */
+    String eventType(String json) throws IOException {
+        if ( json == null ) {
+            return null;
+        }
+        try (JsonParser parser = mapper.getFactory().createParser(json)) {
+            if ( parser.nextToken() != JsonToken.START_OBJECT ) {
+                return null;
+            }
+            while ( parser.nextToken() == JsonToken.FIELD_NAME ) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ( "type".equals(name) ) {
+                    return value == JsonToken.VALUE_STRING ? parser.getText() : null;
+                }
+                parser.skipChildren();
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map.kafka;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import org.gameontext.map.Log;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Events that have not (yet) been acknowledged by Kafka.
+ * <p>
+ * Events are appended to a file (one JSON object per line) before they are
+ * sent, and the file is emptied once everything in it has been acknowledged.
+ * Events still in the file when the server starts are sent again, so events
+ * survive broker outages and restarts. Delivery is at-least-once: an event
+ * acknowledged just before a crash can be sent twice.
+ * </p>
+ * <p>
+ * Without a file, the outbox only holds events in memory.
+ * </p>
+ */
+class EventOutbox {
+
+    /** Most events held, beyond which new events are refused */
+    static final int MAX_PENDING = 100000;
+
+    /** Rewrite the file once this many of its events have been acknowledged */
+    static final int COMPACT_THRESHOLD = 1000;
+
+    private final ObjectMapper mapper;
+    private final Path file;
+
+    /** Unacknowledged events, oldest first */
+    private final Map<Long, Event> pending = new LinkedHashMap<>();
+
+    private long nextSeq = 1;
+
+    /** Events in the file that have since been acknowledged */
+    private int acknowledged = 0;
+
+    private BufferedWriter writer;
+
+    /**
+     * @param mapper Mapper for reading and writing events
+     * @param file File holding the events, or null to keep them in memory
+     */
+    EventOutbox(ObjectMapper mapper, Path file) {
+        this.mapper = mapper;
+        this.file = file;
+    }
+
+    /**
+     * Read events left over from a previous run
+     * @return number of events read
+     */
+    synchronized int open() throws IOException {
+        if ( file == null ) {
+            return 0;
+        }
+        Files.createDirectories(file.getParent());
+        if ( Files.exists(file) ) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ( (line = reader.readLine()) != null ) {
+                    if ( line.trim().isEmpty() ) {
+                        continue;
+                    }
+                    try {
+                        Event event = mapper.readValue(line, Event.class);
+                        event.seq = nextSeq++;
+                        pending.put(event.seq, event);
+                    } catch (IOException e) {
+                        // a partial line, written as the server stopped
+                        Log.log(Level.WARNING, this, "Skipping unreadable event in {0}: {1}", file, line);
+                    }
+                }
+            }
+        }
+        rewrite();
+        return pending.size();
+    }
+
+    /**
+     * Add events (and write them to the file)
+     * @param events Events to add
+     * @return number of events that didn't fit, and were dropped
+     */
+    synchronized int add(List<Event> events) throws IOException {
+        int dropped = 0;
+        for (Event event : events) {
+            if ( pending.size() >= MAX_PENDING ) {
+                dropped++;
+                continue;
+            }
+            event.seq = nextSeq++;
+            pending.put(event.seq, event);
+            if ( writer != null ) {
+                writer.write(mapper.writeValueAsString(event));
+                writer.newLine();
+            }
+        }
+        if ( writer != null ) {
+            writer.flush();
+        }
+        return dropped;
+    }
+
+    /**
+     * @param max Most events to return
+     * @return the oldest events that aren't being sent, marked as being sent
+     */
+    synchronized List<Event> takeUnsent(int max) {
+        List<Event> result = new ArrayList<>();
+        for (Event event : pending.values()) {
+            if ( result.size() >= max ) {
+                break;
+            }
+            if ( !event.sending ) {
+                event.sending = true;
+                result.add(event);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The event has been acknowledged by Kafka
+     */
+    synchronized void sent(Event event) {
+        if ( pending.remove(event.seq) != null ) {
+            acknowledged++;
+        }
+    }
+
+    /**
+     * The event could not be sent: it will be sent again
+     */
+    synchronized void failed(Event event) {
+        event.sending = false;
+    }
+
+    synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Shrink the file: empty it when nothing is pending, or rewrite it
+     * when most of what it holds has been acknowledged.
+     */
+    synchronized void compact() throws IOException {
+        if ( acknowledged > 0 && (pending.isEmpty() || acknowledged >= COMPACT_THRESHOLD) ) {
+            rewrite();
+        }
+    }
+
+    synchronized void close() throws IOException {
+        if ( writer != null ) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    /**
+     * Replace the file with the pending events
+     */
+    private void rewrite() throws IOException {
+        acknowledged = 0;
+        if ( file == null ) {
+            return;
+        }
+        close();
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Event event : pending.values()) {
+                out.write(mapper.writeValueAsString(event));
+                out.newLine();
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * A serialized event
+     */
+    static class Event {
+        public String topic;
+        public String key;
+        /** null for a tombstone */
+        public String value;
+
+        transient long seq;
+        transient boolean sending;
+
+        Event() {}
+
+        Event(String topic, String key, String value) {
+            this.topic = topic;
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
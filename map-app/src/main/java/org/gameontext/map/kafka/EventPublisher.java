@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map.kafka;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.gameontext.map.Log;
+import org.gameontext.map.Metrics;
+import org.gameontext.map.kafka.EventOutbox.Event;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Publishes events from a dedicated thread.
+ * <p>
+ * Callers only add the event to a bounded queue: they never wait for
+ * serialization, for disk, or for Kafka. The publisher thread takes events
+ * from the queue in batches, serializes them, writes them to the
+ * {@link EventOutbox}, and sends them. Events stay in the outbox until
+ * Kafka acknowledges them; events that fail are sent again after a pause.
+ * </p>
+ */
+class EventPublisher implements Runnable {
+
+    /** Events waiting for the publisher thread */
+    static final int QUEUE_SIZE = 10000;
+
+    /** Most events taken from the queue (or sent) at once */
+    static final int BATCH_SIZE = 500;
+
+    /** Pause before sending again after a failure */
+    static final long RETRY_MILLIS = 5000;
+
+    /** Bulk publishers wait while the outbox holds this many events */
+    static final int BACKLOG_LIMIT = 20000;
+
+    /** Pause between checks of the outbox size */
+    static final long BACKLOG_WAIT_MILLIS = 50;
+
+    static final LongAdder queued = Metrics.counter("kafka_events_queued");
+    static final LongAdder dropped = Metrics.counter("kafka_events_dropped");
+    static final LongAdder published = Metrics.counter("kafka_events_published");
+    static final LongAdder failures = Metrics.counter("kafka_events_failed");
+
+    /** An event that hasn't been serialized yet */
+    static class Pending {
+        final String topic;
+        final String key;
+        final Object value;
+
+        /**
+         * @param value String, an object to be serialized as JSON, or null (a tombstone)
+         */
+        Pending(String topic, String key, Object value) {
+            this.topic = topic;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final BlockingQueue<Pending> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final ObjectMapper mapper;
+    private final EventOutbox outbox;
+    private final Producer<String, String> producer;
+
+    private volatile boolean keepGoing = true;
+    private volatile Thread thread;
+
+    /** Time before which nothing is sent (after a failure) */
+    private volatile long retryAt = 0;
+
+    /**
+     * @param mapper Mapper to serialize events with
+     * @param outbox Outbox for unacknowledged events
+     * @param producer Kafka producer, or null if Kafka is unavailable (events are kept in the outbox)
+     */
+    EventPublisher(ObjectMapper mapper, EventOutbox outbox, Producer<String, String> producer) {
+        this.mapper = mapper;
+        this.outbox = outbox;
+        this.producer = producer;
+        Metrics.gauge("kafka_queue_size", queue::size);
+        Metrics.gauge("kafka_outbox_size", outbox::size);
+    }
+
+    /**
+     * Queue an event. Never blocks: if the queue is full, the event is dropped.
+     * @return false if the event was dropped
+     */
+    boolean publish(String topic, String key, Object value) {
+        if ( queue.offer(new Pending(topic, key, value)) ) {
+            queued.increment();
+            return true;
+        }
+        dropped.increment();
+        Log.log(Level.WARNING, this, "Event queue is full, dropping event for {0} {1}", topic, key);
+        return false;
+    }
+
+    /**
+     * Queue an event, waiting for the publisher to catch up if the queue
+     * (or the outbox) is full. For bulk publishing, which would otherwise
+     * have its events dropped.
+     *
+     * @param timeoutMillis Longest time to wait
+     * @return false if the event couldn't be queued in time
+     */
+    boolean offer(String topic, String key, Object value, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while ( outbox.size() >= BACKLOG_LIMIT ) {
+            if ( System.currentTimeMillis() >= deadline ) {
+                return false;
+            }
+            Thread.sleep(BACKLOG_WAIT_MILLIS);
+        }
+        long wait = Math.max(0, deadline - System.currentTimeMillis());
+        if ( queue.offer(new Pending(topic, key, value), wait, TimeUnit.MILLISECONDS) ) {
+            queued.increment();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        Log.log(Level.INFO, this, "Event publisher started, {0} events in outbox", outbox.size());
+
+        List<Pending> batch = new ArrayList<>(BATCH_SIZE);
+        while ( keepGoing ) {
+            try {
+                // Events that arrive while a batch is stored and sent make up the next batch
+                Pending first = queue.poll(outbox.size() > 0 ? 100 : 1000, TimeUnit.MILLISECONDS);
+                if ( first != null ) {
+                    batch.add(first);
+                }
+                store(batch);
+                send();
+            } catch (InterruptedException e) {
+                if ( keepGoing ) {
+                    Log.log(Level.FINEST, this, "Event publisher interrupted", e);
+                }
+            } catch (Exception e) {
+                Log.log(Level.WARNING, this, "Error publishing events", e);
+            }
+        }
+
+        // Save whatever is left, it will be sent when the server starts again
+        try {
+            store(batch);
+            outbox.close();
+        } catch (IOException e) {
+            Log.log(Level.WARNING, this, "Error saving events", e);
+        }
+        Log.log(Level.INFO, this, "Event publisher stopped, {0} events in outbox", outbox.size());
+    }
+
+    void stop() {
+        keepGoing = false;
+        Thread t = thread;
+        if ( t != null ) {
+            t.interrupt();
+        }
+    }
+
+    /**
+     * Serialize queued events, and add them to the outbox
+     */
+    void store(List<Pending> batch) throws IOException {
+        queue.drainTo(batch, BATCH_SIZE - batch.size());
+        while ( !batch.isEmpty() ) {
+            List<Event> events = new ArrayList<>(batch.size());
+            for (Pending pending : batch) {
+                try {
+                    String value = pending.value == null || pending.value instanceof String
+                            ? (String) pending.value
+                            : mapper.writeValueAsString(pending.value);
+                    events.add(new Event(pending.topic, pending.key, value));
+                } catch (JsonProcessingException e) {
+                    Log.log(Level.SEVERE, this, "Error during event publish, could not build json for " + pending.key, e);
+                }
+            }
+            batch.clear();
+
+            int full = outbox.add(events);
+            if ( full > 0 ) {
+                dropped.add(full);
+                Log.log(Level.WARNING, this, "Event outbox is full, dropped {0} events", full);
+            }
+            queue.drainTo(batch, BATCH_SIZE);
+        }
+    }
+
+    /**
+     * Send events from the outbox
+     */
+    void send() throws IOException {
+        if ( producer == null || System.currentTimeMillis() < retryAt ) {
+            return;
+        }
+
+        List<Event> events;
+        while ( !(events = outbox.takeUnsent(BATCH_SIZE)).isEmpty() ) {
+            for (Event event : events) {
+                try {
+                    producer.send(new ProducerRecord<>(event.topic, event.key, event.value), (metadata, e) -> {
+                        if ( e == null ) {
+                            published.increment();
+                            outbox.sent(event);
+                        } else {
+                            failed(event, e);
+                        }
+                    });
+                } catch (KafkaException e) {
+                    failed(event, e);
+                }
+            }
+            if ( System.currentTimeMillis() < retryAt ) {
+                break;
+            }
+        }
+        outbox.compact();
+    }
+
+    private void failed(Event event, Exception e) {
+        failures.increment();
+        outbox.failed(event);
+        retryAt = System.currentTimeMillis() + RETRY_MILLIS;
+        Log.log(Level.FINER, this, "Error publishing event {0} {1}: {2}", event.topic, event.key, e);
+    }
+}
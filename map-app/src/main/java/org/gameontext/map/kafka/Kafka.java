@@ -15,11 +15,15 @@
  *******************************************************************************/
 package org.gameontext.map.kafka;
 import java.io.IOException;
-import java.nio.file.Path;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.file.Paths;
-import java.util.Collections;
-import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import javax.annotation.PostConstruct;
@@ -32,18 +36,21 @@ import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
-import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerConfig;
-import org.apache.kafka.clients.producer.ProducerRecord;
-import org.apache.kafka.clients.producer.RecordMetadata;
 import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.errors.WakeupException;
+import org.gameontext.map.JsonPatch;
 import org.gameontext.map.Log;
+import org.gameontext.map.Settings;
+import org.gameontext.map.db.SiteGridIndex;
+import org.gameontext.map.model.Coordinates;
 import org.gameontext.map.model.Site;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -54,13 +61,48 @@ public class Kafka {
     @Resource(lookup="kafkaUrl")
     protected String kafkaUrl;
 
+    /** Time (ms) the producer waits for more events to batch with (default 20) */
+    @Resource(lookup="kafkaLingerMs")
+    protected String lingerMs;
+
+    /** Producer compression: none, gzip, snappy or lz4 (default gzip) */
+    @Resource(lookup="kafkaCompression")
+    protected String compression;
+
+    /** Site events carry the whole site every this many revisions (default 10, 1 for always) */
+    @Resource(lookup="kafkaSiteSnapshotInterval")
+    protected String siteSnapshotInterval;
+
+    /** Unacknowledged events are kept under here */
+    @Resource(lookup="serverOutputDir")
+    protected String serverOutputDir;
+
     private Producer<String,String> producer=null;
+    private EventPublisher publisher=null;
     private Consumer<String, String> consumer=null;
 
     protected final ObjectMapper mapper = new ObjectMapper();
+
+    /** Identifies this instance: site events it publishes carry it as their origin */
+    private final String instanceId = UUID.randomUUID().toString();
+
     public enum SiteEvent {UPDATE,CREATE,DELETE};
 
+    /**
+     * Log-compacted topic holding the latest state of each room, keyed by
+     * site id: deleted sites (and empty ones) are tombstones (null values).
+     * Like the other topics, it must be created ahead of time
+     * (with {@code cleanup.policy=compact}).
+     */
+    public static final String MAP_STATE_TOPIC = "mapState";
+
+    private int snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+
+    /** Default for the revisions between site snapshots */
+    static final int DEFAULT_SNAPSHOT_INTERVAL = 10;
+
     private volatile boolean keepGoing = true;
+    private boolean consumerStarted = false;
 
     private boolean DISABLE_KAFKA = Boolean.parseBoolean(System.getenv("DISABLE_KAFKA"));
 
@@ -68,8 +110,17 @@ public class Kafka {
     @Resource
     protected ManagedThreadFactory threadFactory;
 
-    // starting with one. can add more later
-    KafkaEventHandler eventHandler;
+    /** Handlers for consumed events */
+    private EventDispatcher dispatcher;
+
+    /** Handles partitions of a batch of consumed events */
+    private ThreadPoolExecutor dispatchExecutor;
+
+    /** Set when handlers for a new topic are added */
+    private volatile boolean resubscribe = false;
+
+    /** Threads handling consumed events (at most one per partition) */
+    static final int DISPATCH_THREADS = 4;
 
     public Kafka(){
     }
@@ -81,6 +132,30 @@ public class Kafka {
         return producer != null && consumer != null;
     }
 
+    /**
+     * @return the name of this host (the pod name in Kubernetes), which stays
+     *      the same when the server restarts; or the instance id if there isn't one
+     */
+    private String hostName() {
+        String name = System.getenv("HOSTNAME");
+        if ( name == null || name.trim().isEmpty() ) {
+            try {
+                name = InetAddress.getLocalHost().getHostName();
+            } catch (UnknownHostException e) {
+                Log.log(Level.WARNING, this, "Unable to find host name: using consumer group for this start only", e);
+                return instanceId;
+            }
+        }
+        return name.trim();
+    }
+
+    /**
+     * @return the origin of site events published by this instance
+     */
+    public String getInstanceId() {
+        return instanceId;
+    }
+
     private boolean multipleHosts(){
         //this is a cheat, we need to enable ssl when talking to message hub, and not to kafka locally
         //the easiest way to know which we are running on, is to check how many hosts are in kafkaUrl
@@ -99,6 +174,8 @@ public class Kafka {
                 System.setProperty("java.security.auth.login.config", "");
             }
 
+            snapshotInterval = Math.max(1, Settings.intValue("kafkaSiteSnapshotInterval", siteSnapshotInterval, DEFAULT_SNAPSHOT_INTERVAL));
+
             Properties producerProps = new Properties();
             Properties consumerProps = new Properties();
 
@@ -109,9 +186,14 @@ public class Kafka {
 
             producerProps.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, kafkaUrl);
             producerProps.put(ProducerConfig.ACKS_CONFIG,"-1");
-            producerProps.put(ProducerConfig.RETRIES_CONFIG,0);
-            producerProps.put(ProducerConfig.BATCH_SIZE_CONFIG,16384);
-            producerProps.put(ProducerConfig.LINGER_MS_CONFIG,1);
+            // retry in order (one request in flight); the outbox covers longer outages
+            producerProps.put(ProducerConfig.RETRIES_CONFIG,10);
+            producerProps.put(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION,1);
+            producerProps.put(ProducerConfig.RETRY_BACKOFF_MS_CONFIG,500);
+            producerProps.put(ProducerConfig.MAX_BLOCK_MS_CONFIG,10000);
+            producerProps.put(ProducerConfig.BATCH_SIZE_CONFIG,65536);
+            producerProps.put(ProducerConfig.LINGER_MS_CONFIG,Settings.intValue("kafkaLingerMs", lingerMs, 20));
+            producerProps.put(ProducerConfig.COMPRESSION_TYPE_CONFIG,compressionType());
             producerProps.put(ProducerConfig.BUFFER_MEMORY_CONFIG,33554432);
             producerProps.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG,"org.apache.kafka.common.serialization.StringSerializer");
             producerProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG,"org.apache.kafka.common.serialization.StringSerializer");
@@ -119,10 +201,12 @@ public class Kafka {
 
             Log.log(Level.INFO, this, "Initializing kafka consumer for url {0}", kafkaUrl);
 
-            // NO GROUP. See subscribe below
+            // A group per instance: every instance sees every event (e.g. to update its caches).
+            // It is named for the host (pod), so a restarted instance picks up from its committed offsets.
             consumerProps.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, kafkaUrl);
-            consumerProps.put(ConsumerConfig.GROUP_ID_CONFIG, "kafka."+this.getClass().getName());
-            consumerProps.put(ConsumerConfig.AUTO_COMMIT_INTERVAL_MS_CONFIG, "1000");
+            consumerProps.put(ConsumerConfig.GROUP_ID_CONFIG, "kafka."+this.getClass().getName()+"."+hostName());
+            // offsets are committed once a batch has been handled
+            consumerProps.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
             consumerProps.put(ConsumerConfig.SESSION_TIMEOUT_MS_CONFIG, "30000");
             consumerProps.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.StringDeserializer");
             consumerProps.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.StringDeserializer");
@@ -141,93 +225,305 @@ public class Kafka {
         } catch(Exception e) {
             Log.log(Level.SEVERE, this, "Unknown error during kafka init, please report ", e);
         }
+
+        if ( threadFactory != null ) {
+            dispatchExecutor = new ThreadPoolExecutor(DISPATCH_THREADS, DISPATCH_THREADS, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), threadFactory);
+            dispatchExecutor.allowCoreThreadTimeOut(true);
+        }
+        dispatcher = new EventDispatcher(mapper, dispatchExecutor);
+
+        if ( !DISABLE_KAFKA ) {
+            startPublisher();
+        }
+    }
+
+    /**
+     * Start the publisher thread. Events are kept in the outbox (and sent
+     * when the server starts again) if there is no producer.
+     */
+    private void startPublisher() {
+        EventOutbox outbox = new EventOutbox(mapper,
+                serverOutputDir == null ? null : Paths.get(serverOutputDir, "outbox", "events.jsonl"));
+        try {
+            outbox.open();
+        } catch (IOException e) {
+            Log.log(Level.SEVERE, this, "Unable to read event outbox, events will only be held in memory", e);
+            outbox = new EventOutbox(mapper, null);
+        }
+
+        publisher = new EventPublisher(mapper, outbox, producer);
+        if ( threadFactory != null ) {
+            threadFactory.newThread(publisher).start();
+        }
+    }
+
+    private String compressionType() {
+        if ( compression == null ) {
+            return "gzip";
+        }
+        switch (compression.trim()) {
+            case "none":
+            case "gzip":
+            case "snappy":
+            case "lz4":
+                return compression.trim();
+            default:
+                return "gzip";
+        }
+    }
+
+    /**
+     * @return true if events can be published (or kept for later)
+     */
+    public boolean isPublishing() {
+        return publisher != null;
     }
 
+    /**
+     * Queue a message to be published. Doesn't block: see {@link EventPublisher}
+     */
     public void publishMessage(String topic, String key, String message){
-        final Callback callback = (RecordMetadata m, Exception e) -> {
-            if ( e == null ) {
-                Log.log(Level.FINER, this, "Published Event");
-            } else {
-                Log.log(Level.FINER, this, "Error publishing event", e);
-            }
-        };
+        publish(topic, key, message);
+    }
+
+    /**
+     * Queue a site event to be published. The site is serialized later (on
+     * the publisher thread), so it must not be changed after this call.
+     */
+    public void publishSiteEvent(SiteEvent eventType, Site site){
+        publishSiteEvent(eventType, site, null, null);
+    }
+
+    /**
+     * Queue a site event to be published, as a patch from the previous
+     * revision of the site when possible (see {@link SiteEventMessage}).
+     * Neither site may be changed after this call.
+     *
+     * @param previous Site before the change, or null if it isn't known
+     */
+    public void publishSiteEvent(SiteEvent eventType, Site site, Site previous){
+        publishSiteEvent(eventType, site, previous, previous == null ? null : previous.getCoord());
+    }
+
+    /**
+     * Queue the event for a site that has moved (e.g. swapped)
+     *
+     * @param previous Site before the move, or null if it isn't known
+     * @param from Coordinates the site moved from
+     */
+    public void publishSiteMove(Site site, Site previous, Coordinates from){
+        publishSiteEvent(SiteEvent.UPDATE, site, previous, from);
+    }
 
-        if(producer!=null){
-            Log.log(Level.FINER, this, "Publishing Event {0} {1} {2}",topic,key,message);
-            ProducerRecord<String,String> pr = new ProducerRecord<>(topic, key, message);
-            producer.send(pr, callback);
+    private void publishSiteEvent(SiteEvent eventType, Site site, Site previous, Coordinates from){
+        //note that messagehub topics are charged, so we must only
+        //create them via the bluemix ui, to avoid accidentally
+        //creating a thousand topics =)
+        String topic = "siteEvents";
+        //siteEvents are keyed by site id.
+        boolean snapshot = eventType != SiteEvent.UPDATE
+                || previous == null || previous.getRev() == null || site.getRev() == null
+                || SiteGridIndex.generation(site.getRev()) % snapshotInterval == 0;
+        publish(topic, site.getId(), new SiteEventMessage(eventType, site, previous, from, snapshot, instanceId, mapper));
+
+        // keep the map state topic in step
+        boolean room = eventType != SiteEvent.DELETE && site.getType() != null && !"empty".equals(site.getType());
+        publish(MAP_STATE_TOPIC, site.getId(), room ? siteState(site) : null);
+    }
+
+    /**
+     * Queue the state of a site for the map state topic, waiting (up to
+     * the timeout) for room in the queue. Used to fill the topic from the
+     * database: see {@code MapStateBackfill}.
+     *
+     * @param id Site id
+     * @param state Site document (without exits)
+     * @return false if Kafka is unavailable, or the event couldn't be queued in time
+     */
+    public boolean offerSiteState(String id, Object state, long timeoutMillis) throws InterruptedException {
+        return publisher != null && publisher.offer(MAP_STATE_TOPIC, id, state, timeoutMillis);
+    }
+
+    /**
+     * @return the site as stored: exits depend on the neighbors, consumers work them out
+     */
+    private Site siteState(Site site) {
+        Site state = new Site();
+        state.setId(site.getId());
+        state.setRev(site.getRev());
+        state.setType(site.getType());
+        state.setOwner(site.getOwner());
+        state.setCoord(site.getCoord());
+        state.setInfo(site.getInfo());
+        state.setCreatedOn(site.getCreatedOn());
+        state.setAssignedOn(site.getAssignedOn());
+        return state;
+    }
+
+    private void publish(String topic, String key, Object value) {
+        if(publisher!=null){
+            Log.log(Level.FINER, this, "Publishing Event {0} {1}",topic,key);
+            publisher.publish(topic, key, value);
         }else{
-            Log.log(Level.FINER, this, "Kafka Unavailable, ignoring event {0} {1} {2}",topic,key,message);
+            Log.log(Level.FINER, this, "Kafka Unavailable, ignoring event {0} {1}",topic,key);
         }
     }
 
-    public void publishSiteEvent(SiteEvent eventType, Site site){
-        try{
-            //note that messagehub topics are charged, so we must only
-            //create them via the bluemix ui, to avoid accidentally
-            //creating a thousand topics =)
-            String topic = "siteEvents";
-            //siteEvents are keyed by site id.
-            String key = site.getId();
-
-            ObjectNode rootNode = mapper.createObjectNode();
-            rootNode.put("type", eventType.name());
-            rootNode.set("site", mapper.valueToTree(site));
-
-            String message = mapper.writeValueAsString(rootNode);
-
-            publishMessage(topic, key, message);
-        }catch(JsonProcessingException e){
-            Log.log(Level.SEVERE, this, "Error during event publish, could not build json for site with id "+site.getId(),e);
+    /**
+     * Body of a site event.
+     * <p>
+     * A snapshot carries the whole site:
+     * {"type": "CREATE", "id": "..", "rev": "..", "site": {...}, "origin": ".."}.
+     * An update of a site whose previous revision is known carries only the
+     * changes, as a JSON Patch from the previous revision (exits aren't part
+     * of the patch: they depend on the neighbors):
+     * {"type": "UPDATE", "id": "..", "rev": "..", "prevRev": "..", "patch": [...], "origin": ".."}.
+     * Sites that moved (swaps) also carry
+     * "move": {"from": {"x":0,"y":0}, "to": {"x":1,"y":0}}.
+     * </p>
+     */
+    @JsonPropertyOrder({"type", "id", "rev", "prevRev", "move", "site", "patch", "origin"})
+    @JsonInclude(Include.NON_NULL)
+    static class SiteEventMessage {
+        private final SiteEvent type;
+        private final Site site;
+        private final Site previous;
+        private final Coordinates from;
+        private final boolean snapshot;
+        private final String origin;
+        private final ObjectMapper mapper;
+
+        /**
+         * A snapshot
+         */
+        SiteEventMessage(SiteEvent type, Site site, String origin) {
+            this(type, site, null, null, true, origin, null);
+        }
+
+        /**
+         * @param previous Previous revision of the site (read only), or null
+         * @param from Previous coordinates of a site that moved, or null
+         * @param snapshot True to send the whole site, false for a patch from the previous revision
+         * @param mapper Mapper used to work out the patch
+         */
+        SiteEventMessage(SiteEvent type, Site site, Site previous, Coordinates from, boolean snapshot,
+                String origin, ObjectMapper mapper) {
+            this.type = type;
+            this.site = site;
+            this.previous = previous;
+            this.from = from;
+            this.snapshot = snapshot || previous == null;
+            this.origin = origin;
+            this.mapper = mapper;
+        }
+
+        public SiteEvent getType() {
+            return type;
+        }
+
+        public String getId() {
+            return site.getId();
+        }
+
+        public String getRev() {
+            return site.getRev();
+        }
+
+        /** Revision the patch applies to */
+        public String getPrevRev() {
+            return snapshot ? null : previous.getRev();
+        }
+
+        public Move getMove() {
+            return from == null || from.equals(site.getCoord()) ? null : new Move(from, site.getCoord());
+        }
+
+        public Site getSite() {
+            return snapshot ? site : null;
+        }
+
+        /** Worked out when the event is serialized (on the publisher thread) */
+        public JsonNode getPatch() {
+            return snapshot ? null : JsonPatch.diff(document(previous), document(site));
+        }
+
+        /** Instance that published the event */
+        public String getOrigin() {
+            return origin;
+        }
+
+        private JsonNode document(Site s) {
+            ObjectNode node = mapper.valueToTree(s);
+            node.remove("exits");
+            node.remove("_rev");
+            return node;
+        }
+    }
+
+    /** Coordinate change of a site */
+    static class Move {
+        private final Coordinates from;
+        private final Coordinates to;
+
+        Move(Coordinates from, Coordinates to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        public Coordinates getFrom() {
+            return from;
+        }
+
+        public Coordinates getTo() {
+            return to;
         }
     }
 
+
+    /**
+     * Add a handler for consumed events. Handlers for any number of topics
+     * and event types can be added.
+     */
     public void subscribe(KafkaEventHandler eventHandler) {
-        Log.log(Level.FINER, this, "Registering event handler {0}", eventHandler);
+        Log.log(Level.FINER, this, "Registering event handler {0} for {1} {2}",
+                eventHandler, eventHandler.getTopic(), eventHandler.getEventType());
 
-        this.eventHandler = eventHandler;
-        startConsumer();
+        if ( dispatcher.register(eventHandler) ) {
+            // the consumer thread picks up the new topic
+            resubscribe = true;
+            startConsumer();
+        }
     }
 
-    private void startConsumer() {
-        if ( consumer == null ) {
+    private synchronized void startConsumer() {
+        if ( consumer == null || consumerStarted ) {
             return;
         }
+        consumerStarted = true;
 
         threadFactory.newThread(() -> {
-            final List<String> topics = Collections.singletonList("playerEvents");
-            Log.log(Level.INFO, this, "Initializing Kafka Consumer ({0}) for topics {1}", eventHandler, topics);
+            Log.log(Level.INFO, this, "Initializing Kafka Consumer for topics {0}", dispatcher.topics());
 
             try {
-                consumer.subscribe(Collections.singletonList("playerEvents"));
-                Log.log(Level.INFO, this, "Kafka Consumer creating subscription to {0}", topics);
-                // Dedicated thread sending messages to the room as fast
-                // as it can take them: maybe we batch these someday.
                 while (keepGoing) {
                     try {
+                        if ( resubscribe ) {
+                            resubscribe = false;
+                            Set<String> topics = dispatcher.topics();
+                            consumer.subscribe(topics);
+                            Log.log(Level.INFO, this, "Kafka Consumer creating subscription to {0}", topics);
+                        }
+
                         final ConsumerRecords<String, String> consumerRecords = consumer.poll(1000);
 
                         if (consumerRecords.count()==0) {
                             continue;
                         }
 
-                        consumerRecords.forEach(record -> {
-                            Log.log(Level.FINER, this, "Consumer Record:", record.key(), record.value(),
-                                    record.partition(), record.offset());
-
-                            JsonNode tree;
-                            try {
-                                tree = mapper.readTree(record.value());
-                                String type = tree.get("type").asText();
-
-                                if ( type.equals(eventHandler.getEventType()) ) {
-                                    eventHandler.handleEvent(record.key(), tree);
-                                }
-                            } catch (IOException e) {
-                                Log.log(Level.INFO, this, "Exception parsing JSON: {0}", e.getMessage());
-                                Log.log(Level.SEVERE, this, "Error consuming event {0}"+record.key(),record.value());
-                            }
-                        });
+                        // Partitions are handled in parallel; offsets are committed once all are done
+                        dispatcher.dispatch(consumerRecords);
+                        consumer.commitSync();
                     } catch (WakeupException e) {
                         // Ignore exception if closing
                         if (!keepGoing) throw e;
@@ -251,8 +547,20 @@ public class Kafka {
 
     @PreDestroy
     protected void stopConsumer() {
-        Log.log(Level.INFO, this, "Stopping Kafka Consumer");
-        keepGoing = false;
-        consumer.wakeup();
+        if ( publisher != null ) {
+            Log.log(Level.INFO, this, "Stopping Kafka Publisher");
+            publisher.stop();
+        }
+        if ( producer != null ) {
+            producer.close(5, TimeUnit.SECONDS);
+        }
+        if ( consumer != null ) {
+            Log.log(Level.INFO, this, "Stopping Kafka Consumer");
+            keepGoing = false;
+            consumer.wakeup();
+        }
+        if ( dispatchExecutor != null ) {
+            dispatchExecutor.shutdown();
+        }
     }
 }
@@ -3,7 +3,21 @@ package org.gameontext.map.kafka;
 import com.fasterxml.jackson.databind.JsonNode;
 
 public interface KafkaEventHandler {
+    /**
+     * @return topic the events are published to
+     */
+    default String getTopic() {
+        return "playerEvents";
+    }
+
+    /**
+     * @return value of the {@code type} attribute of events to handle
+     */
     String getEventType();
 
+    /**
+     * Handle an event. Events with the same key are handled in order, but
+     * events with different keys may be handled at the same time.
+     */
     void handleEvent(String key, JsonNode eventData);
 }
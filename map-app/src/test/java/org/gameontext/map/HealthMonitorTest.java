@@ -0,0 +1,96 @@
+package org.gameontext.map;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+public class HealthMonitorTest {
+
+    @Rule
+    public TestName test = new TestName();
+
+    AtomicLong now = new AtomicLong(1_000_000);
+    AtomicBoolean dbUp = new AtomicBoolean(true);
+    HealthMonitor monitor;
+
+    @Before
+    public void before() {
+        System.out.println("\n====== " + test.getMethodName());
+        monitor = new HealthMonitor(now::get);
+        monitor.register("couchdb", dbUp::get);
+        monitor.register("kafka", () -> true);
+    }
+
+    @SuppressWarnings("unchecked")
+    Map<String, Object> check(String name) {
+        return (Map<String, Object>) ((Map<String, Object>) monitor.readiness().get("checks")).get(name);
+    }
+
+    @Test
+    public void testNotChecked() {
+        Assert.assertFalse("Not ready until the dependencies have been checked", monitor.isReady());
+        Assert.assertEquals("DOWN", monitor.readiness().get("status"));
+        Assert.assertEquals("UP", monitor.liveness().get("status"));
+    }
+
+    @Test
+    public void testReady() {
+        monitor.probe();
+        Assert.assertTrue(monitor.isReady());
+        Assert.assertEquals("UP", monitor.readiness().get("status"));
+        Assert.assertEquals(false, monitor.readiness().get("stale"));
+        Assert.assertEquals("UP", check("couchdb").get("status"));
+        Assert.assertEquals("UP", check("kafka").get("status"));
+    }
+
+    @Test
+    public void testDown() {
+        monitor.probe();
+        String since = (String) check("couchdb").get("since");
+
+        now.addAndGet(1000);
+        dbUp.set(false);
+        monitor.probe();
+        Assert.assertFalse(monitor.isReady());
+        Assert.assertEquals("DOWN", monitor.readiness().get("status"));
+        Assert.assertEquals("DOWN", check("couchdb").get("status"));
+        Assert.assertNotEquals("Status changed", since, check("couchdb").get("since"));
+        Assert.assertEquals("UP", monitor.liveness().get("status"));
+
+        String down = (String) check("couchdb").get("since");
+        now.addAndGet(1000);
+        monitor.probe();
+        Assert.assertEquals("Status didn't change", down, check("couchdb").get("since"));
+        Assert.assertNotEquals(down, check("couchdb").get("checked"));
+    }
+
+    @Test
+    public void testProbeThrows() {
+        monitor.register("playerClient", () -> {
+            throw new IllegalStateException("no secret");
+        });
+        monitor.probe();
+        Assert.assertFalse(monitor.isReady());
+        Assert.assertEquals("DOWN", check("playerClient").get("status"));
+        Assert.assertEquals("java.lang.IllegalStateException: no secret", check("playerClient").get("error"));
+        Assert.assertEquals("UP", check("couchdb").get("status"));
+    }
+
+    @Test
+    public void testStale() {
+        monitor.probe();
+        now.addAndGet(HealthMonitor.STALE_INTERVALS * HealthMonitor.DEFAULT_INTERVAL * 1000);
+        Assert.assertTrue(monitor.isReady());
+
+        now.incrementAndGet();
+        Assert.assertFalse("Checks are stuck: not ready", monitor.isReady());
+        Assert.assertEquals(true, monitor.readiness().get("stale"));
+        Assert.assertEquals("Last results are still shown", "UP", check("couchdb").get("status"));
+    }
+}
@@ -0,0 +1,101 @@
+package org.gameontext.map;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class JsonPatchTest {
+
+    ObjectMapper mapper = new ObjectMapper();
+
+    @Rule
+    public TestName test = new TestName();
+
+    @Before
+    public void before() {
+        System.out.println("\n====== " + test.getMethodName());
+    }
+
+    @Test
+    public void testDiffAndApply() throws IOException {
+        JsonNode from = json("{'_id':'a','owner':'o','coord':{'x':1,'y':2},'info':{'name':'A','doors':{'n':'N'},'tags':['x']}}");
+        JsonNode to = json("{'_id':'a','coord':{'x':3,'y':2},'info':{'name':'A','doors':{'n':'N','s':'S'},'tags':['x','y']},'type':'room'}");
+
+        JsonNode patch = JsonPatch.diff(from, to);
+        Assert.assertEquals(json("["
+                + "{'op':'remove','path':'/owner'},"
+                + "{'op':'replace','path':'/coord/x','value':3},"
+                + "{'op':'add','path':'/info/doors/s','value':'S'},"
+                + "{'op':'replace','path':'/info/tags','value':['x','y']},"
+                + "{'op':'add','path':'/type','value':'room'}]"), patch);
+
+        Assert.assertEquals(to, JsonPatch.apply(from, patch));
+        Assert.assertEquals("The target isn't modified", "o", from.get("owner").asText());
+
+        Assert.assertEquals("Equal documents: empty patch", 0, JsonPatch.diff(from, from.deepCopy()).size());
+    }
+
+    @Test
+    public void testEscapedNames() throws IOException {
+        JsonNode from = json("{'a/b':1,'c~d':{'e':1}}");
+        JsonNode to = json("{'a/b':2,'c~d':{'e':2}}");
+
+        JsonNode patch = JsonPatch.diff(from, to);
+        Assert.assertEquals("/a~1b", patch.get(0).get("path").asText());
+        Assert.assertEquals("/c~0d/e", patch.get(1).get("path").asText());
+        Assert.assertEquals(to, JsonPatch.apply(from, patch));
+
+        Assert.assertEquals(Arrays.asList("a/b", "~1"), JsonPatch.parse("/a~1b/~01"));
+        Assert.assertEquals(Arrays.asList(""), JsonPatch.parse("/"));
+    }
+
+    @Test
+    public void testArrays() throws IOException {
+        JsonNode doc = json("{'list':[1,2,3]}");
+        JsonNode patch = json("["
+                + "{'op':'add','path':'/list/1','value':9},"
+                + "{'op':'add','path':'/list/-','value':4},"
+                + "{'op':'remove','path':'/list/0'},"
+                + "{'op':'replace','path':'/list/0','value':8}]");
+        Assert.assertEquals(json("{'list':[8,2,3,4]}"), JsonPatch.apply(doc, patch));
+
+        Assert.assertEquals(json("[1]"), JsonPatch.apply(doc, json("[{'op':'replace','path':'','value':[1]}]")));
+    }
+
+    @Test
+    public void testInvalidPatches() throws IOException {
+        JsonNode doc = json("{'a':{'b':1},'list':[1]}");
+        String[] invalid = {
+            "{}",
+            "[{'op':'move','from':'/a','path':'/c'}]",
+            "[{'op':'add','path':'/c'}]",
+            "[{'op':'replace','path':'/missing','value':1}]",
+            "[{'op':'remove','path':'/missing/b'}]",
+            "[{'op':'add','path':'/a/b/c','value':1}]",
+            "[{'op':'add','path':'/list/5','value':1}]",
+            "[{'op':'remove','path':'/list/-'}]",
+            "[{'op':'remove','path':''}]",
+            "[{'op':'add','path':'a','value':1}]",
+        };
+        for (String patch : invalid) {
+            try {
+                JsonPatch.apply(doc, json(patch));
+                Assert.fail("Expected IllegalArgumentException for " + patch);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    private JsonNode json(String json) throws IOException {
+        return mapper.readTree(json.replace('\'', '"'));
+    }
+}
@@ -0,0 +1,121 @@
+package org.gameontext.map;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.TestName;
+
+public class LogFileTest {
+
+    @Rule
+    public TestName test = new TestName();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Small chunks, so lines and characters span reads */
+    static final int CHUNK = 7;
+
+    static final String TEXT = "[INFO] one\n[FINE] two \u2713\n[INFO] three\n[WARNING] four\n[INFO] five";
+
+    Path file;
+
+    @Before
+    public void before() throws IOException {
+        System.out.println("\n====== " + test.getMethodName());
+        file = folder.newFile("messages.log").toPath();
+        Files.write(file, TEXT.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testRange() throws IOException {
+        try (LogFile log = new LogFile(file, CHUNK)) {
+            StringWriter out = new StringWriter();
+            Assert.assertEquals(log.size(), log.range(0, Long.MAX_VALUE, out));
+            Assert.assertEquals("Characters that span reads are decoded", TEXT, out.toString());
+
+            out = new StringWriter();
+            Assert.assertEquals(16, log.range(11, 5, out));
+            Assert.assertEquals("[FINE", out.toString());
+
+            out = new StringWriter();
+            log.range(-4, 100, out);
+            Assert.assertEquals("Negative start: from the end", "five", out.toString());
+
+            out = new StringWriter();
+            Assert.assertEquals(log.size(), log.range(1000, 10, out));
+            Assert.assertEquals("", out.toString());
+        }
+    }
+
+    @Test
+    public void testTail() throws IOException {
+        try (LogFile log = new LogFile(file, CHUNK)) {
+            StringWriter out = new StringWriter();
+            log.tail(2, out);
+            Assert.assertEquals("[WARNING] four\n[INFO] five", out.toString());
+
+            out = new StringWriter();
+            Assert.assertEquals("More lines than the file has", 0, log.tail(100, out));
+            Assert.assertEquals(TEXT, out.toString());
+        }
+
+        Files.write(file, (TEXT + "\n").getBytes(StandardCharsets.UTF_8));
+        try (LogFile log = new LogFile(file, CHUNK)) {
+            StringWriter out = new StringWriter();
+            log.tail(1, out);
+            Assert.assertEquals("A final newline doesn't start a line", "[INFO] five\n", out.toString());
+        }
+    }
+
+    @Test
+    public void testSearch() throws IOException {
+        try (LogFile log = new LogFile(file, CHUNK)) {
+            StringWriter out = new StringWriter();
+            LogFile.Search result = log.search(0, "[INFO]", null, 10, out);
+            Assert.assertEquals(3, result.getMatches());
+            Assert.assertEquals(-1, result.getNext());
+            Assert.assertEquals("0: [INFO] one\n26: [INFO] three\n54: [INFO] five\n", out.toString());
+
+            out = new StringWriter();
+            result = log.search(0, "\u2713", null, 10, out);
+            Assert.assertEquals("Multi-byte strings", "11: [FINE] two \u2713\n", out.toString());
+
+            out = new StringWriter();
+            result = log.search(0, null, Pattern.compile("^\\[(FINE|WARNING)\\]"), 10, out);
+            Assert.assertEquals("11: [FINE] two \u2713\n39: [WARNING] four\n", out.toString());
+        }
+    }
+
+    @Test
+    public void testSearchMore() throws IOException {
+        try (LogFile log = new LogFile(file, CHUNK)) {
+            StringWriter out = new StringWriter();
+            LogFile.Search result = log.search(0, "[INFO]", null, 2, out);
+            Assert.assertEquals(2, result.getMatches());
+            Assert.assertEquals("Carry on after the last match", 39, result.getNext());
+
+            out = new StringWriter();
+            result = log.search(result.getNext(), "[INFO]", null, 2, out);
+            Assert.assertEquals("54: [INFO] five\n", out.toString());
+            Assert.assertEquals(-1, result.getNext());
+        }
+    }
+
+    @Test
+    public void testIndexOf() {
+        byte[] line = "abcabd".getBytes(StandardCharsets.UTF_8);
+        Assert.assertEquals(3, LogFile.indexOf(line, line.length, "abd".getBytes(StandardCharsets.UTF_8)));
+        Assert.assertEquals(-1, LogFile.indexOf(line, 5, "abd".getBytes(StandardCharsets.UTF_8)));
+        Assert.assertEquals(0, LogFile.indexOf(line, 0, new byte[0]));
+    }
+}
@@ -0,0 +1,254 @@
+package org.gameontext.map;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+public class LogTest {
+
+    @Rule
+    public TestName test = new TestName();
+
+    final Logger detailLog = Logger.getLogger("map.details");
+    final List<LogRecord> records = new CopyOnWriteArrayList<>();
+
+    final Handler handler = new Handler() {
+        @Override
+        public void publish(LogRecord record) {
+            records.add(record);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /** Replaces the handler, to hold up the writer */
+    Handler blocking;
+
+    Level level;
+    boolean useParentHandlers;
+
+    @Before
+    public void before() {
+        System.out.println("\n====== " + test.getMethodName());
+        level = detailLog.getLevel();
+        useParentHandlers = detailLog.getUseParentHandlers();
+        detailLog.setUseParentHandlers(false);
+        detailLog.addHandler(handler);
+        detailLog.setLevel(Level.ALL);
+    }
+
+    @After
+    public void after() {
+        Log.stop();
+        detailLog.removeHandler(handler);
+        if ( blocking != null ) {
+            detailLog.removeHandler(blocking);
+        }
+        detailLog.setLevel(level);
+        detailLog.setUseParentHandlers(useParentHandlers);
+    }
+
+    @Test
+    public void testDisabled() {
+        AtomicInteger formatted = new AtomicInteger();
+        Object arg = new Object() {
+            @Override
+            public String toString() {
+                formatted.incrementAndGet();
+                return "arg";
+            }
+        };
+
+        detailLog.setLevel(Level.INFO);
+        Log.mapOperations(Level.FINEST, this, "Get by coordinate: {0},{1}: {2}", 1, 2, arg);
+        Log.mapOperations(Level.FINEST, this, "Swap rooms: {0} {1}", arg, arg);
+        Assert.assertTrue(records.isEmpty());
+        Assert.assertEquals("Arguments aren't formatted", 0, formatted.get());
+    }
+
+    @Test
+    public void testCallingThread() {
+        List<String> list = new ArrayList<>(Arrays.asList("a"));
+        Log.mapOperations(Level.FINEST, this, "Get by coordinate: {0},{1}: {2}", 1, -2, list);
+
+        Assert.assertEquals(1, records.size());
+        LogRecord record = records.get(0);
+        Assert.assertEquals("Trace is written as INFO", Level.INFO, record.getLevel());
+        Assert.assertEquals("LogTest(" + System.identityHashCode(this) + "): Get by coordinate: {0},{1}: {2}",
+                record.getMessage());
+        Assert.assertArrayEquals(new Object[] {1, -2, "[a]"}, record.getParameters());
+        Assert.assertEquals("map.details", record.getLoggerName());
+        Assert.assertEquals(LogTest.class.getName(), record.getSourceClassName());
+        Assert.assertEquals((int) Thread.currentThread().getId(), record.getThreadID());
+    }
+
+    @Test
+    public void testWriterThread() throws Exception {
+        Log.start(Thread::new, 16);
+
+        List<String> list = new ArrayList<>(Arrays.asList("a"));
+        Log.mapOperations(Level.FINE, this, "Add new room: {0}", list);
+        list.add("b");
+
+        int threads = 4;
+        int each = 500;
+        List<Thread> loggers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            loggers.add(new Thread(() -> {
+                for (int i = 0; i < each; i++) {
+                    Log.mapOperations(Level.FINEST, this, "{0} {1}", id, i);
+                }
+            }));
+        }
+        loggers.forEach(Thread::start);
+        for (Thread t : loggers) {
+            t.join();
+        }
+        Log.stop();
+
+        Assert.assertEquals("Every record is written, in a full buffer or not", threads * each + 1, records.size());
+        Assert.assertArrayEquals("Arguments are as they were when logged", new Object[] {"[a]"}, records.get(0).getParameters());
+
+        int[] last = new int[threads];
+        Arrays.fill(last, -1);
+        for (LogRecord record : records.subList(1, records.size())) {
+            int id = (Integer) record.getParameters()[0];
+            int i = (Integer) record.getParameters()[1];
+            if ( i < last[id] ) {
+                Assert.fail("Records from one thread out of order: " + i + " after " + last[id]);
+            }
+            last[id] = i;
+        }
+    }
+
+    @Test
+    public void testRingFull() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        detailLog.removeHandler(handler);
+        blocking = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                records.add(record);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        detailLog.addHandler(blocking);
+
+        LogRing ring = new LogRing(3);
+        Assert.assertEquals("Capacity is a power of 2", 4, ring.capacity());
+        ring.start(Thread::new);
+
+        // the writer takes the first record, and waits in the handler
+        Assert.assertTrue(ring.offer(detailLog, Level.FINE, this, "{0}", new Object[] {0}, null));
+        Assert.assertTrue(writing.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= 4; i++) {
+            Assert.assertTrue(ring.offer(detailLog, Level.FINE, this, "{0}", new Object[] {i}, null));
+        }
+        Assert.assertEquals(4, ring.size());
+
+        Thread waiting = new Thread(() -> ring.offer(detailLog, Level.FINE, this, "{0}", new Object[] {5}, null));
+        waiting.start();
+        waiting.join(200);
+        Assert.assertTrue("No room: the caller waits", waiting.isAlive());
+
+        release.countDown();
+        waiting.join(5000);
+        Assert.assertFalse(waiting.isAlive());
+
+        ring.stop();
+        Assert.assertEquals(6, records.size());
+        for (int i = 0; i < records.size(); i++) {
+            Assert.assertEquals(i, records.get(i).getParameters()[0]);
+        }
+        Assert.assertFalse("Stopped: the caller writes the record", ring.offer(detailLog, Level.FINE, this, "{0}", null, null));
+    }
+
+    @Test
+    public void testWriterDies() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        detailLog.removeHandler(handler);
+        blocking = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new AssertionError("writer ended");
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        detailLog.addHandler(blocking);
+
+        LogRing ring = new LogRing(2);
+        ring.start(r -> {
+            Thread thread = new Thread(r);
+            thread.setUncaughtExceptionHandler((t, e) -> { });
+            return thread;
+        });
+        Assert.assertTrue(ring.offer(detailLog, Level.FINE, this, "{0}", new Object[] {0}, null));
+        Assert.assertTrue(writing.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= 2; i++) {
+            Assert.assertTrue(ring.offer(detailLog, Level.FINE, this, "{0}", new Object[] {i}, null));
+        }
+
+        AtomicInteger taken = new AtomicInteger(-1);
+        Thread waiting = new Thread(() ->
+            taken.set(ring.offer(detailLog, Level.FINE, this, "{0}", new Object[] {3}, null) ? 1 : 0));
+        waiting.start();
+        waiting.join(200);
+        Assert.assertTrue("No room: the caller waits", waiting.isAlive());
+
+        release.countDown();
+        waiting.join(5000);
+        Assert.assertFalse("The writer is gone: the caller stops waiting", waiting.isAlive());
+        Assert.assertEquals("The caller writes the record", 0, taken.get());
+        Assert.assertFalse(ring.offer(detailLog, Level.FINE, this, "{0}", null, null));
+    }
+}
@@ -0,0 +1,112 @@
+package org.gameontext.map;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+public class MetricsTest {
+
+    @Rule
+    public TestName test = new TestName();
+
+    @Before
+    public void before() {
+        System.out.println("\n====== " + test.getMethodName());
+    }
+
+    String prometheus() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        Metrics.writePrometheus(sb);
+        return sb.toString();
+    }
+
+    @Test
+    public void testSeries() {
+        Assert.assertEquals("calls", Metrics.series("calls"));
+        Assert.assertEquals("calls{view=\"all\",endpoint=\"get_site\"}",
+                Metrics.series("calls", "view", "all", "endpoint", "get_site"));
+        Assert.assertEquals("Quotes, backslashes and newlines should be escaped",
+                "calls{view=\"a\\\"b\\\\c\\nd\"}", Metrics.series("calls", "view", "a\"b\\c\nd"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSeriesOddLabels() {
+        Metrics.series("calls", "view");
+    }
+
+    @Test
+    public void testCounters() throws IOException {
+        LongAdder all = Metrics.counter("test_counter_calls", "view", "all");
+        Assert.assertSame(all, Metrics.counter("test_counter_calls", "view", "all"));
+        all.add(3);
+        Metrics.counter("test_counter_calls", "view", "name").increment();
+        Metrics.counter("test_counter_plain").add(2);
+
+        String text = prometheus();
+        Assert.assertTrue(text, text.contains("# TYPE map_test_counter_calls_total counter\n"));
+        Assert.assertEquals("One TYPE line for each family", text.indexOf("# TYPE map_test_counter_calls_total counter\n"),
+                text.lastIndexOf("# TYPE map_test_counter_calls_total counter\n"));
+        Assert.assertTrue(text, text.contains("map_test_counter_calls_total{view=\"all\"} 3\n"));
+        Assert.assertTrue(text, text.contains("map_test_counter_calls_total{view=\"name\"} 1\n"));
+        Assert.assertTrue(text, text.contains("# TYPE map_test_counter_plain_total counter\nmap_test_counter_plain_total 2\n"));
+
+        Assert.assertEquals(3L, (long) Metrics.snapshot().get("test_counter_calls{view=\"all\"}"));
+    }
+
+    @Test
+    public void testGauges() throws IOException {
+        Metrics.gauge("test_gauge", () -> 42);
+
+        LongAdder hits = new LongAdder();
+        LongAdder misses = new LongAdder();
+        Metrics.ratio("test_ratio", hits, misses);
+        Assert.assertTrue("No events: no ratio", prometheus().contains("map_test_ratio 0.0\n"));
+
+        hits.add(3);
+        misses.add(1);
+        String text = prometheus();
+        Assert.assertTrue(text, text.contains("# TYPE map_test_gauge gauge\nmap_test_gauge 42\n"));
+        Assert.assertTrue(text, text.contains("# TYPE map_test_ratio gauge\nmap_test_ratio 0.75\n"));
+    }
+
+    @Test
+    public void testHistogram() throws IOException {
+        Metrics.Histogram h = Metrics.histogram("test_retries", new long[] {0, 1, 5}, "endpoint", "create_site");
+        h.record(0);
+        h.record(1);
+        h.record(1);
+        h.record(3);
+        h.record(100);
+        Assert.assertEquals(5, h.count());
+
+        String text = prometheus();
+        Assert.assertTrue(text, text.contains("# TYPE map_test_retries histogram\n"
+                + "map_test_retries_bucket{endpoint=\"create_site\",le=\"0.0\"} 1\n"
+                + "map_test_retries_bucket{endpoint=\"create_site\",le=\"1.0\"} 3\n"
+                + "map_test_retries_bucket{endpoint=\"create_site\",le=\"5.0\"} 4\n"
+                + "map_test_retries_bucket{endpoint=\"create_site\",le=\"+Inf\"} 5\n"
+                + "map_test_retries_sum{endpoint=\"create_site\"} 105.0\n"
+                + "map_test_retries_count{endpoint=\"create_site\"} 5\n"));
+
+        Assert.assertEquals(5L, (long) Metrics.snapshot().get("test_retries_count{endpoint=\"create_site\"}"));
+    }
+
+    @Test
+    public void testTimer() throws IOException {
+        Metrics.Histogram t = Metrics.timer("test_request");
+        t.record(1_500_000);       // 1.5ms
+        t.record(2_000_000_000L);  // 2s
+
+        String text = prometheus();
+        Assert.assertTrue(text, text.contains("map_test_request_seconds_bucket{le=\"0.001\"} 0\n"));
+        Assert.assertTrue(text, text.contains("map_test_request_seconds_bucket{le=\"0.002\"} 1\n"));
+        Assert.assertTrue(text, text.contains("map_test_request_seconds_bucket{le=\"2.5\"} 2\n"));
+        Assert.assertTrue(text, text.contains("map_test_request_seconds_sum 2.0015\n"));
+        Assert.assertTrue(text, text.contains("map_test_request_seconds_count 2\n"));
+    }
+}
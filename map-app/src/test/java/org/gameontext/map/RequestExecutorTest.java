@@ -0,0 +1,247 @@
+package org.gameontext.map;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+
+import org.gameontext.map.RequestExecutor.Endpoint;
+import org.gameontext.map.RequestExecutor.StreamedEntity;
+import org.gameontext.map.db.CouchCalls;
+import org.gameontext.map.db.CouchCalls.View;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import mockit.Delegate;
+import mockit.Expectations;
+import mockit.Mocked;
+
+public class RequestExecutorTest {
+
+    RequestExecutor requests;
+
+    /** Values passed to resume, in order */
+    BlockingQueue<Object> resumed = new LinkedBlockingQueue<>();
+
+    /** Callbacks registered for the end of each request, in order */
+    BlockingQueue<CompletionCallback> callbacks = new LinkedBlockingQueue<>();
+
+    /** Returned by resume: false once the request has been resumed (timed out) */
+    volatile boolean accepted = true;
+
+    @Mocked
+    AsyncResponse response;
+
+    @Rule
+    public TestName test = new TestName();
+
+    @Before
+    public void before() {
+        System.out.println("\n====== " + test.getMethodName());
+
+        requests = new RequestExecutor();
+        new Expectations() {{
+            response.resume(any); minTimes = 0;
+            result = new Delegate<Boolean>() {
+                @SuppressWarnings("unused")
+                boolean resume(Object value) {
+                    return resumed.add(value) && accepted;
+                }
+            };
+            response.register((CompletionCallback) any); minTimes = 0;
+            result = new Delegate<Collection<Class<?>>>() {
+                @SuppressWarnings("unused")
+                Collection<Class<?>> register(Object callback) {
+                    callbacks.add((CompletionCallback) callback);
+                    return Collections.emptyList();
+                }
+            };
+            response.resume((Throwable) any); minTimes = 0;
+            result = new Delegate<Boolean>() {
+                @SuppressWarnings("unused")
+                boolean resume(Throwable value) {
+                    return resumed.add(value);
+                }
+            };
+        }};
+    }
+
+    @After
+    public void after() {
+        requests.stop();
+    }
+
+    @Test
+    public void testInline() {
+        requests.submit(Endpoint.GET_SITE, response, () -> Response.ok("inline").build());
+        Response result = (Response) resumed.poll();
+        Assert.assertEquals("inline", result.getEntity());
+
+        MapModificationException failure = new MapModificationException("failed");
+        requests.submit(Endpoint.GET_SITE, response, () -> { throw failure; });
+        Assert.assertSame("Exceptions should be passed on to be mapped", failure, resumed.poll());
+    }
+
+    @Test
+    public void testMetrics() {
+        long requests0 = Endpoint.LIST_SITES.latency.count();
+        long errors0 = Endpoint.LIST_SITES.errors.sum();
+        LongAdder allCalls = Metrics.counter("couchdb_calls", "endpoint", "list_sites", "view", "all");
+        long calls0 = allCalls.sum();
+
+        requests.submit(Endpoint.LIST_SITES, response, () -> {
+            CouchCalls.record(View.ALL, 1000, 0, 100);
+            CouchCalls.record(View.ALL, 1000, 0, 100);
+            return Response.ok().build();
+        });
+        requests.submit(Endpoint.LIST_SITES, response, () -> { throw new MapModificationException("failed"); });
+
+        Assert.assertEquals(requests0 + 2, Endpoint.LIST_SITES.latency.count());
+        Assert.assertEquals(errors0 + 1, Endpoint.LIST_SITES.errors.sum());
+        Assert.assertEquals("Calls should be counted for the endpoint", calls0 + 2, allCalls.sum());
+        Assert.assertEquals("Calls outside a request aren't counted for it", 0, CouchCalls.end());
+    }
+
+    @Test
+    public void testCouchCallsHeader() {
+        CouchCalls.setHeaderEnabled(true);
+        try {
+            requests.submit(Endpoint.GET_SITE, response, () -> {
+                CouchCalls.record(View.GET, 2_000_000, 0, 300);
+                return Response.ok().build();
+            });
+            Response result = (Response) resumed.poll();
+            Assert.assertEquals("calls=1; ms=2.0; bytes=300", result.getHeaderString(RequestExecutor.COUCHDB_CALLS));
+        } finally {
+            CouchCalls.setHeaderEnabled(false);
+        }
+
+        requests.submit(Endpoint.GET_SITE, response, () -> Response.ok().build());
+        Response result = (Response) resumed.poll();
+        Assert.assertNull("Header should be opt-in", result.getHeaderString(RequestExecutor.COUCHDB_CALLS));
+    }
+
+    @Test
+    public void testPool() throws InterruptedException {
+        requests.start(r -> new Thread(r));
+
+        requests.submit(Endpoint.GET_SITE, response, () -> Response.ok(Thread.currentThread().getName()).build());
+        Response result = (Response) resumed.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotEquals(Thread.currentThread().getName(), result.getEntity());
+
+        MapModificationException failure = new MapModificationException("failed");
+        requests.submit(Endpoint.GET_SITE, response, () -> { throw failure; });
+        Assert.assertSame("Exceptions should be unwrapped", failure, resumed.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testEndpointLimit() throws InterruptedException {
+        requests.start(r -> new Thread(r));
+
+        CountDownLatch started = new CountDownLatch(Endpoint.LIST_SITES.limit);
+        CountDownLatch done = new CountDownLatch(1);
+        for (int i = 0; i < Endpoint.LIST_SITES.limit; i++) {
+            requests.submit(Endpoint.LIST_SITES, response, () -> {
+                started.countDown();
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Response.ok().build();
+            });
+        }
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // The next listing is refused, other endpoints carry on
+        requests.submit(Endpoint.LIST_SITES, response, () -> Response.ok().build());
+        Response refused = (Response) resumed.poll(5, TimeUnit.SECONDS);
+        Assert.assertEquals(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), refused.getStatus());
+        Assert.assertEquals(RequestExecutor.RETRY_AFTER, refused.getHeaderString(HttpHeaders.RETRY_AFTER));
+
+        requests.submit(Endpoint.GET_SITE, response, () -> Response.ok().build());
+        Assert.assertEquals(200, ((Response) resumed.poll(5, TimeUnit.SECONDS)).getStatus());
+
+        // Finished listings give their permits back
+        done.countDown();
+        for (int i = 0; i < Endpoint.LIST_SITES.limit; i++) {
+            Assert.assertEquals(200, ((Response) resumed.poll(5, TimeUnit.SECONDS)).getStatus());
+        }
+        requests.submit(Endpoint.LIST_SITES, response, () -> Response.ok().build());
+        Assert.assertEquals(200, ((Response) resumed.poll(5, TimeUnit.SECONDS)).getStatus());
+    }
+
+    @Test
+    public void testStreamedEntity() throws IOException {
+        AtomicInteger closed = new AtomicInteger();
+        for (int i = 0; i < Endpoint.LIST_SITES.limit; i++) {
+            requests.submit(Endpoint.LIST_SITES, response, () -> Response.ok()
+                    .entity(new StreamedEntity(out -> out.write('x'), closed::incrementAndGet)).build());
+        }
+        Assert.assertEquals("Nothing is closed before it is written", 0, closed.get());
+
+        // Each listing keeps its permit until it has been written
+        StreamedEntity entity = (StreamedEntity) ((Response) resumed.poll()).getEntity();
+        for (int i = 1; i < Endpoint.LIST_SITES.limit; i++) {
+            resumed.poll();
+        }
+        requests.submit(Endpoint.LIST_SITES, response, () -> Response.ok().build());
+        Assert.assertEquals(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), ((Response) resumed.poll()).getStatus());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.write(out);
+        Assert.assertEquals("x", new String(out.toByteArray(), StandardCharsets.UTF_8));
+        Assert.assertEquals(1, closed.get());
+
+        entity.close();
+        Assert.assertEquals("Closed once", 1, closed.get());
+
+        requests.submit(Endpoint.LIST_SITES, response, () -> Response.ok().build());
+        Assert.assertEquals(200, ((Response) resumed.poll()).getStatus());
+    }
+
+    @Test
+    public void testStreamedEntityNotWritten() {
+        AtomicInteger closed = new AtomicInteger();
+        for (int i = 0; i < Endpoint.LIST_SITES.limit; i++) {
+            requests.submit(Endpoint.LIST_SITES, response, () -> Response.ok()
+                    .entity(new StreamedEntity(out -> out.write('x'), closed::incrementAndGet)).build());
+        }
+        resumed.clear();
+
+        // the client went away before the entities were written
+        callbacks.forEach(callback -> callback.onComplete(new IOException("connection reset")));
+        Assert.assertEquals(Endpoint.LIST_SITES.limit, closed.get());
+
+        requests.submit(Endpoint.LIST_SITES, response, () -> Response.ok().build());
+        Assert.assertEquals("Permits should be given back", 200, ((Response) resumed.poll()).getStatus());
+    }
+
+    @Test
+    public void testStreamedEntityDiscarded() {
+        accepted = false;
+        AtomicInteger closed = new AtomicInteger();
+        for (int i = 0; i <= Endpoint.LIST_SITES.limit; i++) {
+            requests.submit(Endpoint.LIST_SITES, response, () -> Response.ok()
+                    .entity(new StreamedEntity(out -> out.write('x'), closed::incrementAndGet)).build());
+        }
+        Assert.assertEquals("Entities that won't be sent are closed, and give their permits back",
+                Endpoint.LIST_SITES.limit + 1, closed.get());
+    }
+}
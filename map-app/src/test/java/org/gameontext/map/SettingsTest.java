@@ -0,0 +1,41 @@
+package org.gameontext.map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+public class SettingsTest {
+
+    @Rule
+    public TestName test = new TestName();
+
+    @Before
+    public void before() {
+        System.out.println("\n====== " + test.getMethodName());
+    }
+
+    @Test
+    public void testUnset() {
+        Assert.assertFalse(Settings.isSet(null));
+        Assert.assertFalse(Settings.isSet(" "));
+        Assert.assertFalse("Unresolved variables are unset", Settings.isSet("${env.MAP_STORE_FILE}"));
+        Assert.assertTrue(Settings.isSet("/tmp/sites.jsonl"));
+
+        Assert.assertEquals(7, Settings.intValue("test", null, 7));
+        Assert.assertEquals(7, Settings.intValue("test", "${env.MAP_TEST}", 7));
+        Assert.assertEquals(7L, Settings.longValue("test", "", 7));
+        Assert.assertEquals(0.5, Settings.doubleValue("test", "${env.MAP_TEST}", 0.5), 0);
+    }
+
+    @Test
+    public void testValues() {
+        Assert.assertEquals(42, Settings.intValue("test", " 42 ", 7));
+        Assert.assertEquals(-1L, Settings.longValue("test", "-1", 7));
+        Assert.assertEquals(0.25, Settings.doubleValue("test", "0.25", 0.5), 0);
+
+        Assert.assertEquals("Invalid values use the default", 7, Settings.intValue("test", "seven", 7));
+        Assert.assertEquals(0.5, Settings.doubleValue("test", "half", 0.5), 0);
+    }
+}
@@ -0,0 +1,51 @@
+package org.gameontext.map.auth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+public class PlayerLookupGuardTest {
+
+    AtomicLong now = new AtomicLong();
+    PlayerLookupGuard guard = new PlayerLookupGuard(now::get);
+
+    @Rule
+    public TestName test = new TestName();
+
+    @Before
+    public void before() {
+        System.out.println("\n====== " + test.getMethodName());
+    }
+
+    @Test
+    public void testRejected() {
+        Assert.assertFalse(guard.isRejected("a"));
+        guard.reject("a");
+        Assert.assertTrue(guard.isRejected("a"));
+        Assert.assertFalse(guard.isRejected("b"));
+
+        now.addAndGet(PlayerLookupGuard.REJECTED_TTL.toMillis() + 1);
+        Assert.assertFalse("Rejections should expire", guard.isRejected("a"));
+
+        guard.reject("a");
+        guard.forget("a");
+        Assert.assertFalse(guard.isRejected("a"));
+    }
+
+    @Test
+    public void testTokenBucket() {
+        for (int i = 0; i < PlayerLookupGuard.BURST; i++) {
+            Assert.assertTrue(guard.tryAcquire("a"));
+        }
+        Assert.assertFalse("Burst should be used up", guard.tryAcquire("a"));
+        Assert.assertTrue("Other ids have their own bucket", guard.tryAcquire("b"));
+
+        now.addAndGet(PlayerLookupGuard.REFILL.toMillis());
+        Assert.assertTrue(guard.tryAcquire("a"));
+        Assert.assertFalse(guard.tryAcquire("a"));
+    }
+}
@@ -0,0 +1,145 @@
+package org.gameontext.map.auth;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+public class PlayerSecretCacheTest {
+
+    AtomicLong now = new AtomicLong();
+    AtomicInteger fetches = new AtomicInteger();
+
+    @Rule
+    public TestName test = new TestName();
+
+    @Before
+    public void before() {
+        System.out.println("\n====== " + test.getMethodName());
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        CountDownLatch fetching = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        PlayerSecretCache cache = cache(id -> {
+            fetches.incrementAndGet();
+            fetching.countDown();
+            await(release);
+            return id + "-secret";
+        }, 10, 1.0, null);
+
+        ExecutorService requests = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(requests.submit(() -> cache.get("a")));
+            }
+            Assert.assertTrue(fetching.await(5, TimeUnit.SECONDS));
+            Thread.sleep(100); // let the other requests queue up behind the fetch
+            release.countDown();
+
+            for (Future<String> result : results) {
+                Assert.assertEquals("a-secret", result.get(5, TimeUnit.SECONDS));
+            }
+            Assert.assertEquals("Concurrent requests should share one fetch", 1, fetches.get());
+        } finally {
+            requests.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRefreshAhead() {
+        List<Runnable> refreshes = new ArrayList<>();
+        PlayerSecretCache cache = cache(id -> id + fetches.incrementAndGet(), 10, 0.5, refreshes::add);
+
+        Assert.assertEquals("a1", cache.get("a"));
+
+        now.set(Duration.ofHours(13).toMillis());
+        Assert.assertEquals("Current value is used while refreshing", "a1", cache.get("a"));
+        Assert.assertEquals("a1", cache.get("a"));
+        Assert.assertEquals("Only one refresh should be started", 1, refreshes.size());
+
+        refreshes.get(0).run();
+        Assert.assertEquals("a2", cache.get("a"));
+        Assert.assertEquals(2, fetches.get());
+    }
+
+    @Test
+    public void testExpiredValueOnFailure() {
+        PlayerSecretCache cache = cache(id -> {
+            if ( fetches.incrementAndGet() > 1 ) {
+                throw new WebApplicationException("player service is down");
+            }
+            return "secret";
+        }, 10, 1.0, null);
+
+        Assert.assertEquals("secret", cache.get("a"));
+        now.set(Duration.ofHours(25).toMillis());
+        Assert.assertEquals("Expired value should be used if the fetch fails", "secret", cache.get("a"));
+
+        try {
+            cache.get("b");
+            Assert.fail("Expected the loader's exception");
+        } catch (WebApplicationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testInvalidate() {
+        PlayerSecretCache cache = cache(id -> id + fetches.incrementAndGet(), 10, 1.0, null);
+        Assert.assertEquals("a1", cache.get("a"));
+        cache.invalidate("a");
+        Assert.assertEquals("a2", cache.get("a"));
+    }
+
+    @Test
+    public void testEvictLeastUsed() {
+        PlayerSecretCache cache = cache(id -> id + fetches.incrementAndGet(), 10, 1.0, null);
+        for (int i = 0; i < 10; i++) {
+            cache.get("busy" + i);
+            cache.get("busy" + i);
+            now.incrementAndGet();
+        }
+        for (int i = 0; i < 10; i++) {
+            cache.get("once" + i);
+            now.incrementAndGet();
+        }
+
+        Assert.assertTrue("Cache should be bounded: " + cache.size(), cache.size() <= 10);
+        int before = fetches.get();
+        for (int i = 0; i < 10; i++) {
+            cache.get("busy" + i);
+        }
+        Assert.assertEquals("Busy entries should have been kept", before, fetches.get());
+    }
+
+    private PlayerSecretCache cache(Function<String, String> loader, int size, double refresh, Executor executor) {
+        return new PlayerSecretCache(loader, size, Duration.ofHours(24), refresh, executor, now::get);
+    }
+
+    private void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -17,6 +17,7 @@ package org.gameontext.map.clients;
 
 import java.io.IOException;
 import java.security.Key;
+import java.util.Map;
 
 import javax.ws.rs.WebApplicationException;
 
@@ -105,6 +106,126 @@ public class PlayerClientTest {
         }};
     }
     
+    @Test
+    public void testReuseClientAndJwt(@Mocked CloseableHttpClient httpClient,
+            @Mocked CloseableHttpResponse response, @Mocked JwtBuilder jwtBuilder,
+            @Mocked BasicResponseHandler responseHandler) throws IOException {
+
+        new Expectations() {{
+            HttpClientBuilder.create(); result = builder;
+            builder.build(); result = httpClient;
+            httpClient.execute((HttpGet)any); result = response;
+            responseHandler.handleResponse(response); result = "{\"credentials\":{\"sharedSecret\":\"WIBBLE\"}}";
+
+            Jwts.builder(); result = jwtBuilder;
+            jwtBuilder.setHeaderParam((String)any,any); result = jwtBuilder;
+            jwtBuilder.setClaims((Claims)any); result = jwtBuilder;
+            jwtBuilder.signWith((SignatureAlgorithm)any, key); result = jwtBuilder;
+            jwtBuilder.compact(); result = "<<BUILTJWT>>";
+        }};
+
+        Assert.assertEquals("WIBBLE", pc.getSecretForId("fish"));
+
+        // key updated: fetched again, with the same client and jwt
+        pc.handleEvent("fish", null);
+        Assert.assertEquals("WIBBLE", pc.getSecretForId("fish"));
+
+        new Verifications() {{
+            builder.build(); times = 1;
+            jwtBuilder.compact(); times = 1;
+            httpClient.execute((HttpGet)any); times = 2;
+            response.close(); times = 2;
+        }};
+    }
+
+    @Test
+    public void testJwtsBounded(@Mocked CloseableHttpClient httpClient,
+            @Mocked CloseableHttpResponse response, @Mocked JwtBuilder jwtBuilder,
+            @Mocked BasicResponseHandler responseHandler) throws IOException {
+        Deencapsulation.setField(pc, "maxJwts", 2);
+
+        new Expectations() {{
+            HttpClientBuilder.create(); result = builder;
+            builder.build(); result = httpClient;
+            httpClient.execute((HttpGet)any); result = response;
+            responseHandler.handleResponse(response); result = "{\"credentials\":{\"sharedSecret\":\"WIBBLE\"}}";
+
+            Jwts.builder(); result = jwtBuilder;
+            jwtBuilder.setHeaderParam((String)any,any); result = jwtBuilder;
+            jwtBuilder.setClaims((Claims)any); result = jwtBuilder;
+            jwtBuilder.signWith((SignatureAlgorithm)any, key); result = jwtBuilder;
+            jwtBuilder.compact(); result = "<<BUILTJWT>>";
+        }};
+
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals("WIBBLE", pc.getSecretForId("fish" + i));
+        }
+        Map<?, ?> jwts = Deencapsulation.getField(pc, "playerJwts");
+        Assert.assertEquals("Signed JWTs kept should be bounded", 2, jwts.size());
+    }
+
+    @Test
+    public void testUnknownPlayer(@Mocked CloseableHttpClient httpClient,
+            @Mocked CloseableHttpResponse response, @Mocked JwtBuilder jwtBuilder) throws IOException {
+
+        new Expectations() {{
+            HttpClientBuilder.create(); result = builder;
+            builder.build(); result = httpClient;
+            httpClient.execute((HttpGet)any); result = new HttpResponseException(404, "not found");
+
+            Jwts.builder(); result = jwtBuilder;
+            jwtBuilder.setHeaderParam((String)any,any); result = jwtBuilder;
+            jwtBuilder.setClaims((Claims)any); result = jwtBuilder;
+            jwtBuilder.signWith((SignatureAlgorithm)any, key); result = jwtBuilder;
+            jwtBuilder.compact(); result = "<<BUILTJWT>>";
+        }};
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                pc.getSecretForId("bogus");
+                Assert.fail("Expected an exception for an unknown player");
+            } catch (WebApplicationException e) {
+                Assert.assertEquals(403, e.getResponse().getStatus());
+            }
+        }
+
+        new Verifications() {{
+            // rejected ids aren't looked up again (for a while)
+            httpClient.execute((HttpGet)any); times = 1;
+        }};
+    }
+
+    @Test
+    public void testCredentialsRefused(@Mocked CloseableHttpClient httpClient,
+            @Mocked CloseableHttpResponse response, @Mocked JwtBuilder jwtBuilder) throws IOException {
+
+        new Expectations() {{
+            HttpClientBuilder.create(); result = builder;
+            builder.build(); result = httpClient;
+            httpClient.execute((HttpGet)any); result = new HttpResponseException(401, "unauthorized");
+
+            Jwts.builder(); result = jwtBuilder;
+            jwtBuilder.setHeaderParam((String)any,any); result = jwtBuilder;
+            jwtBuilder.setClaims((Claims)any); result = jwtBuilder;
+            jwtBuilder.signWith((SignatureAlgorithm)any, key); result = jwtBuilder;
+            jwtBuilder.compact(); result = "<<BUILTJWT>>";
+        }};
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                pc.getSecretForId("fish");
+                Assert.fail("Expected an exception when our credentials are refused");
+            } catch (WebApplicationException e) {
+                Assert.assertEquals(500, e.getResponse().getStatus());
+            }
+        }
+
+        new Verifications() {{
+            // our problem, not the player's: the id isn't remembered as unknown
+            httpClient.execute((HttpGet)any); times = 2;
+        }};
+    }
+
     @Test(expected = WebApplicationException.class)
     public void testFailure(@Mocked CloseableHttpClient httpClient,
             @Mocked CloseableHttpResponse response, @Mocked JwtBuilder jwtBuilder,
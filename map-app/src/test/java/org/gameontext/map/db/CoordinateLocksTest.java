@@ -0,0 +1,113 @@
+package org.gameontext.map.db;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.UpdateConflictException;
+import org.ektorp.ViewQuery;
+import org.ektorp.ViewResult;
+import org.gameontext.map.model.Site;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import mockit.Expectations;
+import mockit.Mocked;
+import mockit.Verifications;
+
+public class CoordinateLocksTest {
+
+    @Mocked
+    CouchDbConnector dbc;
+
+    ObjectMapper mapper = new ObjectMapper();
+    CoordinateLocks locks;
+
+    @Rule
+    public TestName test = new TestName();
+
+    @Before
+    public void before() {
+        System.out.println("\n====== " + test.getMethodName());
+        locks = new CoordinateLocks(dbc, mapper);
+    }
+
+    @Test
+    public void testLockId() {
+        Assert.assertEquals("coord:3:-2", CoordinateLocks.lockId(3, -2));
+        Assert.assertNotEquals(CoordinateLocks.lockId(1, 11), CoordinateLocks.lockId(11, 1));
+        Assert.assertEquals(32, CoordinateLocks.newId().length());
+    }
+
+    @Test
+    public void testAcquireConflict() {
+        new Expectations() {{
+            dbc.create(any); result = new UpdateConflictException();
+        }};
+        Assert.assertFalse("Locked cell should not be acquired", locks.acquire(0, 1, "a"));
+    }
+
+    @Test
+    public void testSitesAt() {
+        CoordinateLock lock = new CoordinateLock(0, 1, "a");
+        Site moved = new Site(5, 5);
+        moved.setId("a");
+
+        new Expectations() {{
+            dbc.find(CoordinateLock.class, "coord:0:1"); result = lock;
+            dbc.find(CoordinateLock.class, "coord:0:2"); result = null;
+            dbc.find(Site.class, "a"); returns(new Site(0, 1), moved);
+        }};
+
+        Assert.assertEquals(1, locks.sitesAt(0, 1).size());
+        Assert.assertTrue("Unlocked cell is empty", locks.sitesAt(0, 2).isEmpty());
+        Assert.assertNull("Lock for a site that moved should not be trusted", locks.sitesAt(0, 1));
+    }
+
+    @Test
+    public void testMigrateBatch() throws IOException {
+        // uniqueSite rows: two sites claim 1,1. 0,0 is already locked.
+        ViewResult sites = viewResult("{\"total_rows\":3,\"offset\":0,\"rows\":["
+                + "{\"id\":\"s0\",\"key\":[0,0],\"value\":1},"
+                + "{\"id\":\"s1\",\"key\":[1,1],\"value\":1},"
+                + "{\"id\":\"s2\",\"key\":[1,1],\"value\":1}]}");
+        ViewResult existing = viewResult("{\"total_rows\":9,\"offset\":0,\"rows\":["
+                + "{\"key\":\"coord:0:0\",\"id\":\"coord:0:0\",\"value\":{\"rev\":\"1-x\"},"
+                + "\"doc\":{\"_id\":\"coord:0:0\",\"_rev\":\"1-x\",\"type\":\"coordinate\",\"x\":0,\"y\":0,\"site\":\"s0\"}},"
+                + "{\"key\":\"coord:1:1\",\"error\":\"not_found\"}]}");
+
+        new Expectations() {{
+            dbc.queryView((ViewQuery) any); returns(sites, existing);
+            dbc.executeBulk((Collection<?>) any); result = Collections.emptyList();
+        }};
+
+        locks.migrate();
+        Assert.assertTrue(locks.isMigrated());
+
+        new Verifications() {{
+            List<Collection<?>> bulk = new ArrayList<>();
+            dbc.executeBulk(withCapture(bulk));
+            Assert.assertEquals(1, bulk.size());
+
+            List<?> created = new ArrayList<>(bulk.get(0));
+            Assert.assertEquals("Only the unlocked cell should be locked", 1, created.size());
+            CoordinateLock lock = (CoordinateLock) created.get(0);
+            Assert.assertEquals("coord:1:1", lock.getId());
+            Assert.assertEquals("First claimant wins", "s1", lock.getSite());
+
+            dbc.create(any); times = 1; // migration marker
+        }};
+    }
+
+    private ViewResult viewResult(String json) throws IOException {
+        return new ViewResult(mapper.readTree(json), true);
+    }
+}
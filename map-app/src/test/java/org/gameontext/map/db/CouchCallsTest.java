@@ -0,0 +1,140 @@
+package org.gameontext.map.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.ektorp.http.HttpClient;
+import org.ektorp.http.HttpResponse;
+import org.gameontext.map.Metrics;
+import org.gameontext.map.RequestExecutor.Endpoint;
+import org.gameontext.map.db.CouchCalls.View;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import mockit.Expectations;
+import mockit.Mocked;
+
+public class CouchCallsTest {
+
+    @Mocked
+    HttpClient delegate;
+
+    @Mocked
+    HttpResponse response;
+
+    @Rule
+    public TestName test = new TestName();
+
+    @Before
+    public void before() {
+        System.out.println("\n====== " + test.getMethodName());
+        CouchCalls.end();
+    }
+
+    @After
+    public void after() {
+        CouchCalls.end();
+        CouchCalls.setBudget(0);
+    }
+
+    @Test
+    public void testViewOf() {
+        String db = "/map_repository/";
+        Assert.assertEquals(View.UNIQUE_SITE, View.of("GET", db + "_design/site/_view/uniqueSite?key=%5B1%2C2%5D&include_docs=true"));
+        Assert.assertEquals(View.NEIGHBORS, View.of("POST", db + "_design/site/_view/neighbors"));
+        Assert.assertEquals(View.ALL, View.of("GET", db + "_design/site/_view/all?startkey=x/y"));
+        Assert.assertEquals(View.OTHER, View.of("GET", db + "_design/site/_view/unknown"));
+        Assert.assertEquals(View.BULK, View.of("POST", db + "_bulk_docs"));
+        Assert.assertEquals(View.CHANGES, View.of("GET", db + "_changes?since=3&feed=normal"));
+        Assert.assertEquals(View.ALL_DOCS, View.of("POST", db + "_all_docs?include_docs=true"));
+
+        Assert.assertEquals(View.INFO, View.of("GET", db));
+        Assert.assertEquals(View.INFO, View.of("GET", "/map_repository"));
+        Assert.assertEquals(View.INFO, View.of("HEAD", "/"));
+
+        Assert.assertEquals(View.GET, View.of("GET", db + "abc"));
+        Assert.assertEquals(View.GET, View.of("GET", db + "_design/site"));
+        Assert.assertEquals(View.HEAD, View.of("HEAD", db + "abc"));
+        Assert.assertEquals(View.PUT, View.of("PUT", db + "abc"));
+        Assert.assertEquals(View.POST, View.of("POST", db));
+        Assert.assertEquals(View.DELETE, View.of("DELETE", db + "abc?rev=1-a"));
+    }
+
+    @Test
+    public void testMeteredClient() throws IOException {
+        String viewUri = "/map_repository/_design/site/_view/uniqueSite?key=%5B1%2C2%5D";
+        String docUri = "/map_repository/abc";
+
+        new Expectations() {{
+            delegate.get(viewUri); result = response;
+            delegate.put(docUri, anyString); result = response;
+            response.getContentLength(); returns(-1L, 20L);
+            response.getContent(); result = new ByteArrayInputStream(new byte[10]);
+        }};
+
+        LongAdder viewCalls = Metrics.counter("couchdb_calls", "endpoint", "create_site", "view", "uniqueSite");
+        LongAdder received = Metrics.counter("couchdb_bytes_received", "view", "uniqueSite");
+        LongAdder putSent = Metrics.counter("couchdb_bytes_sent", "view", "_put");
+        LongAdder background = Metrics.counter("couchdb_calls", "endpoint", "background", "view", "_put");
+        long viewCalls0 = viewCalls.sum();
+        long received0 = received.sum();
+        long putSent0 = putSent.sum();
+        long background0 = background.sum();
+
+        MeteredHttpClient client = new MeteredHttpClient(delegate);
+
+        CouchCalls.begin(Endpoint.CREATE_SITE);
+        HttpResponse viewResponse = client.get(viewUri);
+        Assert.assertEquals("Call should be recorded when the response arrives", viewCalls0 + 1, viewCalls.sum());
+        Assert.assertEquals(received0, received.sum());
+
+        try (InputStream in = viewResponse.getContent()) {
+            Assert.assertEquals(10, in.read(new byte[64]));
+        }
+        Assert.assertEquals("Streamed bytes should be counted as they are read", received0 + 10, received.sum());
+
+        client.put(docUri, "{\"name\":\"h\u00e9\"}");
+        Assert.assertEquals("Request bytes are UTF-8", putSent0 + 14, putSent.sum());
+        Assert.assertEquals(2, CouchCalls.end());
+
+        client.put(docUri, "{}");
+        Assert.assertEquals("Calls outside a request are background", background0 + 1, background.sum());
+    }
+
+    @Test
+    public void testBudget() {
+        LongAdder exceeded = Metrics.counter("couchdb_call_budget_exceeded", "endpoint", "list_sites");
+        long exceeded0 = exceeded.sum();
+        CouchCalls.setBudget(2);
+
+        CouchCalls.begin(Endpoint.LIST_SITES);
+        CouchCalls.record(View.ALL, 1000, 0, 10);
+        CouchCalls.record(View.ALL, 1000, 0, 10);
+        Assert.assertEquals("calls=2; ms=0.0; bytes=20", CouchCalls.summary());
+        Assert.assertEquals(2, CouchCalls.end());
+        Assert.assertEquals("Within budget", exceeded0, exceeded.sum());
+
+        CouchCalls.begin(Endpoint.LIST_SITES);
+        for (int i = 0; i < CouchCalls.MAX_LOGGED_CALLS + 1; i++) {
+            CouchCalls.record(View.NAME, 1000, 0, 10);
+        }
+        Assert.assertTrue(CouchCalls.summary(), CouchCalls.summary().endsWith("; over-budget"));
+        Assert.assertEquals("Calls beyond those kept for the log line are counted",
+                CouchCalls.MAX_LOGGED_CALLS + 1, CouchCalls.end());
+        Assert.assertEquals(exceeded0 + 1, exceeded.sum());
+    }
+
+    @Test
+    public void testUtf8Length() {
+        String s = "a\u00e9\u20ac\ud83d\ude00";
+        Assert.assertEquals(s.getBytes(StandardCharsets.UTF_8).length, MeteredHttpClient.utf8Length(s));
+        Assert.assertEquals(0, MeteredHttpClient.utf8Length(null));
+    }
+}
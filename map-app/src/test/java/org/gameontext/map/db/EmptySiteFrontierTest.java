@@ -0,0 +1,111 @@
+package org.gameontext.map.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+public class EmptySiteFrontierTest {
+
+    EmptySiteFrontier frontier;
+
+    @Rule
+    public TestName test = new TestName();
+
+    @Before
+    public void before() {
+        System.out.println("\n====== " + test.getMethodName());
+        frontier = new EmptySiteFrontier();
+    }
+
+    @Test
+    public void testViewOrder() {
+        // empty_sites view key: [|x|+|y|, x, y]
+        frontier.offer(2, 0, "e", "1-e");
+        frontier.offer(0, -1, "b", "1-b");
+        frontier.offer(-1, 0, "a", "1-a");
+        frontier.offer(1, -1, "d", "1-d");
+        frontier.offer(0, 1, "c", "1-c");
+
+        List<String> order = new ArrayList<>();
+        EmptySiteFrontier.Candidate c;
+        while ( (c = frontier.claim()) != null ) {
+            order.add(c.getId());
+        }
+        Assert.assertEquals("[a, b, c, d, e]", order.toString());
+    }
+
+    @Test
+    public void testClaimedRevisionNotOfferedAgain() {
+        frontier.offer(0, 1, "a", "1-a");
+        EmptySiteFrontier.Candidate c = frontier.claim();
+        Assert.assertEquals("a", c.getId());
+
+        // re-indexing the same revision while the claim is in flight
+        frontier.offer(0, 1, "a", "1-a");
+        Assert.assertEquals(0, frontier.size());
+        Assert.assertNull("Claimed revision should not be handed out twice", frontier.claim());
+
+        // the claim lost: a newer empty revision can be offered
+        frontier.conflict(c);
+        frontier.offer(0, 1, "a", "2-a");
+        Assert.assertEquals(1, frontier.size());
+        Assert.assertEquals("2-a", frontier.claim().getRev());
+    }
+
+    @Test
+    public void testMoveAndWithdraw() {
+        frontier.offer(5, 5, "a", "1-a");
+        frontier.offer(3, 3, "b", "1-b");
+        frontier.offer(1, 1, "a", "2-a"); // moved
+        Assert.assertEquals(2, frontier.size());
+        Assert.assertEquals("a", frontier.claim().getId());
+
+        frontier.withdraw("b");
+        Assert.assertEquals(0, frontier.size());
+        Assert.assertNull(frontier.claim());
+    }
+
+    @Test
+    public void testConcurrentClaimsAreDistinct() throws Exception {
+        int sites = 2000;
+        for (int i = 0; i < sites; i++) {
+            frontier.offer(i % 40, i / 40, "s" + i, "1-" + i);
+        }
+
+        Set<String> claimed = ConcurrentHashMap.newKeySet();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                results.add(pool.submit(() -> {
+                    int count = 0;
+                    EmptySiteFrontier.Candidate c;
+                    while ( (c = frontier.claim()) != null ) {
+                        Assert.assertTrue("Duplicate claim " + c, claimed.add(c.getId()));
+                        count++;
+                    }
+                    return count;
+                }));
+            }
+            int total = 0;
+            for (Future<Integer> f : results) {
+                total += f.get();
+            }
+            Assert.assertEquals(sites, total);
+            Assert.assertEquals(sites, claimed.size());
+            Assert.assertEquals("Every claim should be counted", 0, frontier.size());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
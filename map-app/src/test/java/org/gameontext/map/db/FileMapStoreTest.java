@@ -0,0 +1,139 @@
+package org.gameontext.map.db;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.ektorp.DbAccessException;
+import org.gameontext.map.model.Site;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class FileMapStoreTest {
+
+    ObjectMapper mapper = new ObjectMapper();
+    Path dir;
+    Path file;
+
+    @Rule
+    public TestName test = new TestName();
+
+    @Before
+    public void before() throws IOException {
+        System.out.println("\n====== " + test.getMethodName());
+        dir = Files.createTempDirectory("map-store");
+        file = dir.resolve("map").resolve("sites.jsonl");
+    }
+
+    @After
+    public void after() throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(file.getParent());
+        Files.deleteIfExists(dir);
+    }
+
+    @Test
+    public void testReplay() throws IOException {
+        FileMapStore store = new FileMapStore(mapper, file);
+        Assert.assertEquals(0, store.open());
+
+        Site a = site("a", 0, 1);
+        Site b = site("b", 0, 2);
+        store.create(a);
+        store.create(b);
+        a.setType("room");
+        store.update(a);
+        store.delete(b);
+        store.close();
+
+        // a partial line, as if the server stopped while writing
+        Files.write(file, "{\"_id\":\"c\",\"co".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        FileMapStore reopened = new FileMapStore(mapper, file);
+        Assert.assertEquals(1, reopened.open());
+        Site read = reopened.get("a");
+        Assert.assertEquals(a.getRev(), read.getRev());
+        Assert.assertEquals("room", read.getType());
+        Assert.assertTrue(reopened.getByCoordinate(0, 2).isEmpty());
+        Assert.assertEquals("Opening rewrites the file with current documents",
+                1, Files.readAllLines(file, StandardCharsets.UTF_8).size());
+
+        // revisions carry on from where they were
+        reopened.update(read);
+        Assert.assertEquals(3, SiteGridIndex.generation(read.getRev()));
+        reopened.close();
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        FileMapStore store = new FileMapStore(mapper, file);
+        store.open();
+
+        Site a = site("a", 0, 1);
+        store.create(a);
+        for (int i = 0; i < FileMapStore.COMPACT_THRESHOLD + 10; i++) {
+            store.update(a);
+        }
+        Assert.assertTrue("File is rewritten once most lines are out of date",
+                Files.readAllLines(file, StandardCharsets.UTF_8).size() < FileMapStore.COMPACT_THRESHOLD);
+        store.close();
+
+        FileMapStore reopened = new FileMapStore(mapper, file);
+        reopened.open();
+        Assert.assertEquals(a.getRev(), reopened.getCurrentRevision("a"));
+        reopened.close();
+    }
+
+    @Test
+    public void testFailedWrite() throws IOException {
+        FileMapStore store = new FileMapStore(mapper, file);
+        store.open();
+        Site a = site("a", 0, 1);
+        store.create(a);
+        String rev = a.getRev();
+        store.close();
+
+        // the change can't be written: it isn't made in memory either
+        a.setType("room");
+        try {
+            store.update(a);
+            Assert.fail("Expected the write to fail");
+        } catch (DbAccessException e) {
+            // expected
+        }
+        Assert.assertEquals(rev, a.getRev());
+        Assert.assertEquals(rev, store.getCurrentRevision("a"));
+        Assert.assertEquals("empty", store.get("a").getType());
+
+        try {
+            store.create(site("b", 0, 2));
+            Assert.fail("Expected the write to fail");
+        } catch (DbAccessException e) {
+            // expected
+        }
+        Assert.assertTrue(store.getByCoordinate(0, 2).isEmpty());
+
+        try {
+            store.delete(a);
+            Assert.fail("Expected the write to fail");
+        } catch (DbAccessException e) {
+            // expected
+        }
+        Assert.assertEquals(rev, store.getCurrentRevision("a"));
+    }
+
+    private Site site(String id, int x, int y) {
+        Site site = new Site(x, y);
+        site.setId(id);
+        site.setType("empty");
+        return site;
+    }
+}
@@ -0,0 +1,131 @@
+package org.gameontext.map.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.StreamingViewResult;
+import org.ektorp.ViewQuery;
+import org.gameontext.map.kafka.Kafka;
+import org.gameontext.map.model.Site;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import mockit.Delegate;
+import mockit.Expectations;
+import mockit.Mocked;
+
+public class MapStateBackfillTest {
+
+    @Mocked
+    CouchDbConnector dbc;
+
+    @Mocked
+    StreamingViewResult viewResult;
+
+    @Mocked
+    Kafka kafka;
+
+    ObjectMapper mapper = new ObjectMapper();
+    SiteDocuments sites;
+
+    @Rule
+    public TestName test = new TestName();
+
+    @Before
+    public void before() {
+        System.out.println("\n====== " + test.getMethodName());
+
+        new Expectations() {{
+            dbc.queryForStreamingView((ViewQuery) any); result = viewResult;
+            viewResult.iterator(); result = Collections.emptyIterator();
+        }};
+
+        sites = new SiteDocuments(dbc, mapper);
+        // don't follow the changes feed
+        sites.index.start(r -> new Thread(() -> {}));
+    }
+
+    @Test
+    public void testBackfillInPages() throws Exception {
+        int total = MapStateBackfill.BATCH_SIZE + 100;
+        List<String> published = new ArrayList<>();
+
+        // a newer revision of r3 has already been seen (and published)
+        Site r3 = new Site(3, 0);
+        r3.setId("r3");
+        r3.setRev("9-x");
+        r3.setType("room");
+        sites.index.observe(r3);
+
+        new Expectations() {{
+            // the view is asked for one more row than the page
+            dbc.queryForStream((ViewQuery) any);
+            returns(view(0, MapStateBackfill.BATCH_SIZE + 1), view(MapStateBackfill.BATCH_SIZE, total));
+
+            kafka.offerSiteState(anyString, any, anyLong);
+            result = new Delegate<Boolean>() {
+                @SuppressWarnings("unused")
+                boolean offer(String id, Object state, long timeout) {
+                    published.add(id);
+                    return true;
+                }
+            };
+        }};
+
+        new MapStateBackfill(sites, kafka).run();
+
+        // every 10th site is empty
+        Assert.assertEquals(total - total / 10 - 1, published.size());
+        Assert.assertFalse("Empty sites aren't rooms", published.contains("r10"));
+        Assert.assertFalse("Newer revision already published", published.contains("r3"));
+        Assert.assertEquals("r1", published.get(0));
+        Assert.assertEquals("r" + (total - 1), published.get(published.size() - 1));
+        Assert.assertEquals("No site is published twice", published.size(), published.stream().distinct().count());
+    }
+
+    @Test
+    public void testBackfillStopsWhenPublisherIsStuck() throws Exception {
+        List<String> published = new ArrayList<>();
+
+        new Expectations() {{
+            dbc.queryForStream((ViewQuery) any); result = view(0, 5);
+
+            kafka.offerSiteState(anyString, any, anyLong);
+            result = new Delegate<Boolean>() {
+                @SuppressWarnings("unused")
+                boolean offer(String id, Object state, long timeout) {
+                    published.add(id);
+                    return published.size() < 2;
+                }
+            };
+        }};
+
+        new MapStateBackfill(sites, kafka).run();
+        Assert.assertEquals(2, published.size());
+    }
+
+    private InputStream view(int from, int to) {
+        StringBuilder view = new StringBuilder("{\"total_rows\":0,\"offset\":0,\"rows\":[");
+        for (int i = from; i < to; i++) {
+            if ( i > from ) {
+                view.append(',');
+            }
+            String type = i % 10 == 0 ? "empty" : "room";
+            view.append("{\"id\":\"r").append(i).append("\",\"key\":").append(i)
+                .append(",\"value\":{\"_id\":\"r").append(i).append("\",\"_rev\":\"1-a\",\"type\":\"")
+                .append(type).append("\",\"coord\":{\"x\":").append(i).append(",\"y\":0}}}");
+        }
+        view.append("]}");
+        return new ByteArrayInputStream(view.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,214 @@
+package org.gameontext.map.db;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ektorp.DocumentNotFoundException;
+import org.ektorp.UpdateConflictException;
+import org.gameontext.map.kafka.Kafka;
+import org.gameontext.map.model.Coordinates;
+import org.gameontext.map.model.Doors;
+import org.gameontext.map.model.RoomInfo;
+import org.gameontext.map.model.Site;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import mockit.Mocked;
+
+public class MemoryMapStoreTest {
+
+    @Mocked
+    Kafka kafka;
+
+    ObjectMapper mapper = new ObjectMapper();
+    MemoryMapStore store;
+
+    @Rule
+    public TestName test = new TestName();
+
+    @Before
+    public void before() {
+        System.out.println("\n====== " + test.getMethodName());
+        store = new MemoryMapStore(mapper);
+    }
+
+    @Test
+    public void testRevisions() {
+        Site site = room(null, 1, 2, "o", "A");
+        store.create(site);
+        Assert.assertNotNull(site.getId());
+        Assert.assertEquals(1, SiteGridIndex.generation(site.getRev()));
+        Assert.assertEquals(site.getRev(), store.getCurrentRevision(site.getId()));
+
+        Site copy = store.get(site.getId());
+        Assert.assertEquals("A", copy.getInfo().getName());
+        copy.getInfo().setName("B");
+        Assert.assertEquals("Callers don't share the stored site", "A", store.get(site.getId()).getInfo().getName());
+
+        String first = site.getRev();
+        store.update(copy);
+        Assert.assertEquals(2, SiteGridIndex.generation(copy.getRev()));
+
+        try {
+            site.setRev(first);
+            store.update(site);
+            Assert.fail("Expected UpdateConflictException");
+        } catch (UpdateConflictException e) {
+            // expected
+        }
+
+        try {
+            store.create(room(site.getId(), 5, 5, "o", "C"));
+            Assert.fail("Expected UpdateConflictException");
+        } catch (UpdateConflictException e) {
+            // expected
+        }
+
+        String deleted = store.delete(copy);
+        Assert.assertEquals(3, SiteGridIndex.generation(deleted));
+        try {
+            store.get(site.getId());
+            Assert.fail("Expected DocumentNotFoundException");
+        } catch (DocumentNotFoundException e) {
+            // expected
+        }
+        Assert.assertTrue(store.getByCoordinate(1, 2).isEmpty());
+    }
+
+    @Test
+    public void testSaveAll() {
+        Site a = room("a", 0, 1, "o", "A");
+        Site b = room("b", 0, 2, "o", "B");
+        store.create(a);
+        store.create(b);
+
+        Site stale = store.get("b");
+        store.update(b);
+
+        a.setCoord(new Coordinates(0, 2));
+        stale.setCoord(new Coordinates(0, 1));
+        Set<String> failed = store.saveAll(Arrays.asList(a, stale, room(null, 3, 3, null, null)));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("b")), failed);
+        Assert.assertEquals("a", store.getByCoordinate(0, 2).get(0).getId());
+        Assert.assertEquals(2, store.getByCoordinate(0, 2).size());
+        Assert.assertEquals(1, store.getByCoordinate(3, 3).size());
+    }
+
+    @Test
+    public void testEmptySitesAndNeighbors() {
+        store.create(empty(2, 0));
+        store.create(empty(0, -1));
+        store.create(empty(-1, 0));
+        store.create(room("r", 0, 0, "o", "R"));
+        store.create(room("n", 0, 1, "o", "N"));
+
+        List<Site> empty = store.getEmptySites();
+        Assert.assertEquals(Arrays.asList("-1,0", "0,-1", "2,0"), coords(empty));
+        Assert.assertEquals(-1, store.getEmptySite(false).getCoord().getX());
+        Assert.assertEquals(2, store.getEmptySite(true).getCoord().getX());
+
+        Map<String, Site> neighbors = store.getNeighbors(0, 0);
+        Assert.assertEquals(Arrays.asList("N", "S", "W"), new ArrayList<>(neighbors.keySet()));
+        Assert.assertEquals("n", neighbors.get("N").getId());
+    }
+
+    @Test
+    public void testListAndStream() throws IOException {
+        store.create(room("c", 0, 1, "o", "Same"));
+        store.create(room("a", 0, 2, "p", "Same"));
+        store.create(room("b", 0, 3, "o", "Other"));
+        store.create(empty(0, 4));
+
+        Assert.assertEquals(4, store.listSites(null, null).size());
+        Assert.assertEquals(2, store.listSites(null, "Same").size());
+        Assert.assertEquals(2, store.listSites("o", null).size());
+        List<JsonNode> owned = store.listSites("o", "Same");
+        Assert.assertEquals(1, owned.size());
+        Assert.assertEquals("c", owned.get(0).get("_id").asText());
+
+        // pages of the owner_name view: [owner, name], then id
+        List<ObjectNode> page = new ArrayList<>();
+        SiteCursor next;
+        try (SiteStream stream = store.streamSites("o", null, null, null, 1, s -> s.remove("info"))) {
+            next = stream.readPage(1, page);
+        }
+        Assert.assertEquals("b", page.get(0).get("_id").asText());
+        Assert.assertFalse("Filter is applied", page.get(0).has("info"));
+        Assert.assertNotNull(next);
+
+        page.clear();
+        try (SiteStream stream = store.streamSites("o", null, null, next, 1, s -> {})) {
+            next = stream.readPage(1, page);
+        }
+        Assert.assertEquals("c", page.get(0).get("_id").asText());
+        Assert.assertNull("Last page", next);
+    }
+
+    @Test
+    public void testPlacement() {
+        MapRepository repo = new MapRepository();
+        repo.kafka = kafka;
+        repo.mapStore = "memory";
+        repo.postConstruct();
+        Assert.assertNull(repo.sites.db);
+        Assert.assertTrue(repo.sites.index.isReady());
+
+        Set<String> coords = new HashSet<>();
+        for (int i = 0; i < 10; i++) {
+            Site site = repo.connectRoom("owner", info("room" + i));
+            Assert.assertTrue("Unique coordinates: " + site.getCoord(),
+                    coords.add(site.getCoord().getX() + "," + site.getCoord().getY()));
+            Assert.assertNotNull("North exit should be described: " + site, site.getExits().getN());
+            Assert.assertNotNull("East exit should be described: " + site, site.getExits().getE());
+        }
+
+        Site first = repo.sites.getSite(repo.listSites(null, "owner", "room0").get(0).get("_id").asText());
+        Assert.assertEquals("room0", first.getInfo().getName());
+        Assert.assertTrue(repo.sites.getEmptySites().size() > 0);
+    }
+
+    private List<String> coords(List<Site> sites) {
+        List<String> result = new ArrayList<>();
+        for (Site site : sites) {
+            result.add(site.getCoord().getX() + "," + site.getCoord().getY());
+        }
+        return result;
+    }
+
+    private RoomInfo info(String name) {
+        RoomInfo info = new RoomInfo();
+        info.setName(name);
+        info.setFullName("Room " + name);
+        info.setDoors(new Doors(name));
+        return info;
+    }
+
+    private Site room(String id, int x, int y, String owner, String name) {
+        Site site = new Site(x, y);
+        site.setId(id);
+        site.setOwner(owner);
+        site.setType("room");
+        if ( name != null ) {
+            site.setInfo(info(name));
+        }
+        return site;
+    }
+
+    private Site empty(int x, int y) {
+        Site site = new Site(x, y);
+        site.setType("empty");
+        return site;
+    }
+}
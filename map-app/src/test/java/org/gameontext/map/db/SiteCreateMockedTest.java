@@ -2,7 +2,9 @@ package org.gameontext.map.db;
 
 import static org.junit.Assert.assertNotNull;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
@@ -10,8 +12,11 @@ import org.ektorp.CouchDbConnector;
 import org.ektorp.UpdateConflictException;
 import org.ektorp.ViewQuery;
 import org.gameontext.map.MapModificationException;
+import org.gameontext.map.model.Coordinates;
+import org.gameontext.map.model.Exits;
 import org.gameontext.map.model.RoomInfo;
 import org.gameontext.map.model.Site;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Rule;
@@ -89,7 +94,7 @@ public class SiteCreateMockedTest {
 
         new Verifications() {{
             dbc.update(site); times = 1;
-            dbc.create(any); times = 4;
+            dbc.executeBulk((Collection<?>) any); times = 1;
             assertNotNull( "createdOn should be set: " + site, site.getCreatedOn());
             assertNotNull( "assignedOn should be set: " + site, site.getAssignedOn());
 
@@ -111,12 +116,62 @@ public class SiteCreateMockedTest {
         System.out.println(site);
 
         new Verifications() {{
-            dbc.create(any); times = 4;
+            dbc.executeBulk((Collection<?>) any); times = 1;
             dbc.update(site); times = 2;
             assertNotNull( "createdOn should be set: " + site, site.getCreatedOn());
             assertNotNull( "assignedOn should be set: " + site, site.getAssignedOn());
         }};
     }
 
+    @Test
+    public void testCreateEmptyNeighborsInOneBulkRequest() {
+        Site north = new Site(0, 1);
+        north.setId("N");
+        Exits exits = new Exits();
+        docs.assignExit(exits, "n", north);
 
+        new Expectations() {{
+            dbc.executeBulk((Collection<?>) any); result = Collections.emptyList();
+        }};
+
+        docs.createEmptyNeighbors(new Coordinates(0, 0), exits);
+
+        Assert.assertEquals("N", exits.getN().getId());
+        Assert.assertNotNull("South exit should be created", exits.getS().getId());
+        Assert.assertNotNull("East exit should be created", exits.getE().getId());
+        Assert.assertNotNull("West exit should be created", exits.getW().getId());
+
+        new Verifications() {{
+            List<Collection<?>> bulk = new ArrayList<>();
+            dbc.executeBulk(withCapture(bulk)); times = 1;
+            Assert.assertEquals("Three empty sites should be created", 3, bulk.get(0).size());
+            dbc.create(any); times = 0;
+            dbc.queryView((ViewQuery) any); times = 0;
+        }};
+    }
+
+    @Test
+    public void testCreateEmptyNeighborsRechecksCells() {
+        // the index hasn't seen the site another instance put to the east
+        Site east = new Site(1, 0);
+        east.setId("E");
+        east.setType("empty");
+
+        new Expectations() {{
+            dbc.queryView((ViewQuery) any, Site.class); result = Arrays.asList(east); times = 1;
+            dbc.executeBulk((Collection<?>) any); result = Collections.emptyList();
+        }};
+
+        Exits exits = new Exits();
+        docs.createEmptyNeighbors(new Coordinates(0, 0), exits);
+
+        Assert.assertEquals("The site already there should be used", "E", exits.getE().getId());
+        Assert.assertNotNull(exits.getN().getId());
+
+        new Verifications() {{
+            List<Collection<?>> bulk = new ArrayList<>();
+            dbc.executeBulk(withCapture(bulk)); times = 1;
+            Assert.assertEquals("Three empty sites should be created", 3, bulk.get(0).size());
+        }};
+    }
 }
@@ -0,0 +1,156 @@
+package org.gameontext.map.db;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.StreamingViewResult;
+import org.ektorp.ViewQuery;
+import org.gameontext.map.kafka.Kafka.SiteEvent;
+import org.gameontext.map.model.Site;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import mockit.Expectations;
+import mockit.Mocked;
+
+public class SiteEventHandlerTest {
+
+    @Mocked
+    CouchDbConnector dbc;
+
+    @Mocked
+    StreamingViewResult viewResult;
+
+    ObjectMapper mapper = new ObjectMapper();
+    SiteGridIndex index;
+
+    @Rule
+    public TestName test = new TestName();
+
+    @Before
+    public void before() {
+        System.out.println("\n====== " + test.getMethodName());
+
+        new Expectations() {{
+            dbc.queryForStreamingView((ViewQuery) any); result = viewResult;
+            viewResult.iterator(); result = Collections.emptyIterator();
+        }};
+
+        index = new SiteGridIndex(dbc, mapper);
+        // don't follow the changes feed
+        index.start(r -> new Thread(() -> {}));
+    }
+
+    @Test
+    public void testPeerEvents() {
+        SiteEventHandler create = new SiteEventHandler(SiteEvent.CREATE, "me", index, mapper);
+        SiteEventHandler update = new SiteEventHandler(SiteEvent.UPDATE, "me", index, mapper);
+        SiteEventHandler delete = new SiteEventHandler(SiteEvent.DELETE, "me", index, mapper);
+        Assert.assertEquals("siteEvents", create.getTopic());
+        Assert.assertEquals("UPDATE", update.getEventType());
+
+        create.handleEvent("A", event(SiteEvent.CREATE, site("A", "2-a", 1, 2), "peer"));
+        Assert.assertEquals("room", index.get(1, 2).getType());
+        Assert.assertEquals("2-a", index.get(1, 2).getRev());
+
+        // a swap moves the site
+        update.handleEvent("A", event(SiteEvent.UPDATE, site("A", "3-a", 4, 4), "peer"));
+        Assert.assertFalse(index.isOccupied(1, 2));
+        Assert.assertEquals("A", index.getSite(4, 4).getId());
+
+        // the changes feed (or a late event) with an older revision doesn't undo the update
+        update.handleEvent("A", event(SiteEvent.UPDATE, site("A", "2-a", 1, 2), "peer"));
+        Assert.assertEquals("3-a", index.get(4, 4).getRev());
+
+        delete.handleEvent("A", event(SiteEvent.DELETE, deleted("A", "4-a"), "peer"));
+        Assert.assertFalse(index.isOccupied(4, 4));
+        Assert.assertNull(index.getById("A"));
+    }
+
+    @Test
+    public void testPatch() {
+        Site a = site("A", "2-a", 1, 2);
+        a.setOwner("o");
+        index.observe(a);
+
+        SiteEventHandler update = new SiteEventHandler(SiteEvent.UPDATE, "me", index, mapper);
+        update.handleEvent("A", patch("A", "3-a", "2-a", "[{'op':'replace','path':'/coord/x','value':4},"
+                + "{'op':'add','path':'/info','value':{'name':'Room A'}}]"));
+        Assert.assertFalse(index.isOccupied(1, 2));
+        Assert.assertEquals("3-a", index.get(4, 2).getRev());
+        Assert.assertEquals("Room A", index.getSite(4, 2).getInfo().getName());
+        Assert.assertEquals("o", index.getSite(4, 2).getOwner());
+
+        // already applied
+        update.handleEvent("A", patch("A", "3-a", "2-a", "[{'op':'replace','path':'/coord/x','value':9}]"));
+        Assert.assertEquals("3-a", index.get(4, 2).getRev());
+
+        // a patch from a revision we don't have: drop the site until the feed catches up
+        update.handleEvent("A", patch("A", "5-a", "4-a", "[{'op':'replace','path':'/coord/x','value':9}]"));
+        Assert.assertNull(index.getById("A"));
+    }
+
+    @Test
+    public void testOwnEventsSkipped() {
+        SiteEventHandler create = new SiteEventHandler(SiteEvent.CREATE, "me", index, mapper);
+        create.handleEvent("A", event(SiteEvent.CREATE, site("A", "2-a", 1, 2), "me"));
+        Assert.assertFalse(index.isOccupied(1, 2));
+    }
+
+    @Test
+    public void testEventWithoutRevision() {
+        index.observe(site("A", "2-a", 1, 2));
+
+        SiteEventHandler update = new SiteEventHandler(SiteEvent.UPDATE, "me", index, mapper);
+        update.handleEvent("A", event(SiteEvent.UPDATE, site("A", null, 1, 2), null));
+        Assert.assertNull("Site is dropped until the changes feed catches up", index.getById("A"));
+    }
+
+    private JsonNode patch(String id, String rev, String prevRev, String patch) {
+        try {
+            ObjectNode event = mapper.createObjectNode();
+            event.put("type", "UPDATE");
+            event.put("id", id);
+            event.put("rev", rev);
+            event.put("prevRev", prevRev);
+            event.set("patch", mapper.readTree(patch.replace('\'', '"')));
+            event.put("origin", "peer");
+            return event;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private JsonNode event(SiteEvent type, Site site, String origin) {
+        ObjectNode event = mapper.createObjectNode();
+        event.put("type", type.name());
+        event.set("site", mapper.valueToTree(site));
+        if ( origin != null ) {
+            event.put("origin", origin);
+        }
+        return event;
+    }
+
+    private Site site(String id, String rev, int x, int y) {
+        Site site = new Site(x, y);
+        site.setId(id);
+        site.setRev(rev);
+        site.setType("room");
+        return site;
+    }
+
+    private Site deleted(String id, String rev) {
+        Site site = new Site();
+        site.setId(id);
+        site.setRev(rev);
+        return site;
+    }
+}
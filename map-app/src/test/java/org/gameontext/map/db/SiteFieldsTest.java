@@ -0,0 +1,75 @@
+package org.gameontext.map.db;
+
+import java.io.IOException;
+
+import org.gameontext.map.MapModificationException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class SiteFieldsTest {
+
+    ObjectMapper mapper = new ObjectMapper();
+
+    @Rule
+    public TestName test = new TestName();
+
+    @Before
+    public void before() {
+        System.out.println("\n====== " + test.getMethodName());
+    }
+
+    @Test
+    public void testRetain() throws IOException {
+        ObjectNode site = (ObjectNode) mapper.readTree("{\"_id\":\"a\",\"_rev\":\"1-a\",\"owner\":\"o\","
+                + "\"coord\":{\"x\":1,\"y\":2},"
+                + "\"info\":{\"name\":\"A\",\"fullName\":\"Room A\",\"doors\":{\"n\":\"door\"}}}");
+
+        SiteFields fields = SiteFields.parse("coord, info.name");
+        fields.retain(site);
+
+        Assert.assertEquals("{\"_id\":\"a\",\"coord\":{\"x\":1,\"y\":2},\"info\":{\"name\":\"A\"}}", site.toString());
+        Assert.assertTrue(fields.includes("coord"));
+        Assert.assertFalse(fields.includes("exits"));
+    }
+
+    @Test
+    public void testWholeValueWins() throws IOException {
+        ObjectNode site = (ObjectNode) mapper.readTree("{\"_id\":\"a\",\"info\":{\"name\":\"A\",\"fullName\":\"Room A\"}}");
+        SiteFields.parse("info.name,info").retain(site);
+        Assert.assertEquals("Room A", site.get("info").get("fullName").asText());
+
+        site = (ObjectNode) mapper.readTree("{\"_id\":\"a\",\"info\":{\"name\":\"A\",\"fullName\":\"Room A\"}}");
+        SiteFields.parse("info,info.name").retain(site);
+        Assert.assertEquals("Room A", site.get("info").get("fullName").asText());
+    }
+
+    @Test
+    public void testSummaryCoverage() {
+        Assert.assertTrue(SiteFields.parse("_id,coord,info.name").isCoveredBy(SiteFields.SUMMARY));
+        Assert.assertTrue(SiteFields.parse("coord.x").isCoveredBy(SiteFields.SUMMARY));
+        Assert.assertFalse("Whole info isn't in the summary", SiteFields.parse("info").isCoveredBy(SiteFields.SUMMARY));
+        Assert.assertFalse(SiteFields.parse("info.description").isCoveredBy(SiteFields.SUMMARY));
+        Assert.assertFalse(SiteFields.parse("exits").isCoveredBy(SiteFields.SUMMARY));
+    }
+
+    @Test
+    public void testParse() {
+        Assert.assertNull("No fields: return everything", SiteFields.parse(null));
+        Assert.assertNull(SiteFields.parse(" "));
+
+        for (String invalid : new String[] { "a,,b", "info.", ".name", new String(new char[600]).replace('\0', 'a') }) {
+            try {
+                SiteFields.parse(invalid);
+                Assert.fail("Expected an exception for " + invalid);
+            } catch (MapModificationException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package org.gameontext.map.db;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.changes.ChangesCommand;
+import org.ektorp.StreamingViewResult;
+import org.ektorp.ViewQuery;
+import org.gameontext.map.model.Site;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import mockit.Expectations;
+import mockit.Mocked;
+
+public class SiteGridIndexTest {
+
+    @Mocked
+    CouchDbConnector dbc;
+
+    @Mocked
+    StreamingViewResult viewResult;
+
+    SiteGridIndex index;
+
+    @Rule
+    public TestName test = new TestName();
+
+    @Before
+    public void before() {
+        System.out.println("\n====== " + test.getMethodName());
+
+        new Expectations() {{
+            dbc.queryForStreamingView((ViewQuery) any); result = viewResult;
+            viewResult.iterator(); result = Collections.emptyIterator();
+        }};
+
+        index = new SiteGridIndex(dbc, new ObjectMapper());
+        // don't follow the changes feed
+        index.start(r -> new Thread(() -> {}));
+    }
+
+    @Test
+    public void testFollowerFails() throws InterruptedException {
+        new Expectations() {{
+            dbc.changes((ChangesCommand) any); result = new IllegalStateException("unreadable change");
+        }};
+        Thread[] follower = new Thread[1];
+        SiteGridIndex following = new SiteGridIndex(dbc, new ObjectMapper());
+        following.start(r -> follower[0] = new Thread(r));
+        try {
+            for (int i = 0; i < 100 && following.isReady(); i++) {
+                Thread.sleep(50);
+            }
+            Assert.assertFalse("Views should be used while the changes can't be read", following.isReady());
+            Assert.assertTrue("The follower should retry", follower[0].isAlive());
+        } finally {
+            following.stop();
+        }
+        follower[0].join(5000);
+        Assert.assertFalse(follower[0].isAlive());
+    }
+
+    @Test
+    public void testFollowerEnds() throws InterruptedException {
+        new Expectations() {{
+            dbc.changes((ChangesCommand) any); result = new NoClassDefFoundError("test");
+        }};
+        Thread[] follower = new Thread[1];
+        SiteGridIndex following = new SiteGridIndex(dbc, new ObjectMapper());
+        following.start(r -> follower[0] = new Thread(r));
+        follower[0].join(5000);
+        Assert.assertFalse(follower[0].isAlive());
+        Assert.assertFalse("Nothing will update the index: views should be used", following.isReady());
+    }
+
+    @Test
+    public void testPack() {
+        int[] values = { 0, 1, -1, 42, -42, Integer.MAX_VALUE, Integer.MIN_VALUE };
+        for (int x : values) {
+            for (int y : values) {
+                long packed = SiteGridIndex.pack(x, y);
+                Assert.assertEquals("x should survive packing", x, SiteGridIndex.unpackX(packed));
+                Assert.assertEquals("y should survive packing", y, SiteGridIndex.unpackY(packed));
+            }
+        }
+        Assert.assertNotEquals(SiteGridIndex.pack(1, -1), SiteGridIndex.pack(-1, 1));
+    }
+
+    @Test
+    public void testObserveAndMove() {
+        Site a = site("A", "1-a", 1, 2);
+        index.observe(a);
+
+        Assert.assertTrue(index.isReady());
+        Assert.assertTrue(index.isOccupied(1, 2));
+        Assert.assertFalse(index.isOccupied(2, 1));
+        Assert.assertEquals("A", index.getSite(1, 2).getId());
+        Assert.assertEquals("1-a", index.get(1, 2).getRev());
+
+        // newer revision moves the site
+        index.observe(site("A", "2-a", 5, 5));
+        Assert.assertFalse("Old cell should be released", index.isOccupied(1, 2));
+        Assert.assertEquals("A", index.getSite(5, 5).getId());
+
+        // stale revision is ignored
+        index.observe(site("A", "1-a", 1, 2));
+        Assert.assertFalse("Stale revision should be ignored", index.isOccupied(1, 2));
+        Assert.assertEquals("2-a", index.get(5, 5).getRev());
+
+        // stale delete is ignored, current delete is not
+        index.remove("A", "1-a");
+        Assert.assertTrue(index.isOccupied(5, 5));
+        index.remove("A", "3-a");
+        Assert.assertFalse(index.isOccupied(5, 5));
+        Assert.assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testSwap() {
+        index.observe(site("A", "1-a", 0, 1));
+        index.observe(site("B", "1-b", 0, -1));
+
+        // bulk update: A lands on B's cell before B moves away
+        index.observe(site("A", "2-a", 0, -1));
+        index.observe(site("B", "2-b", 0, 1));
+
+        Assert.assertEquals("B", index.getSite(0, 1).getId());
+        Assert.assertEquals("A", index.getSite(0, -1).getId());
+    }
+
+    @Test
+    public void testDuplicateIsNotTrusted() {
+        index.observe(site("A", "1-a", 3, 3));
+        index.observe(site("B", "1-b", 3, 3));
+
+        Assert.assertNull("Contested cell should not be answered from memory", index.get(3, 3));
+
+        index.observe(site("B", "2-b", 4, 4));
+        Assert.assertEquals("Remaining claimant should own the cell", "A", index.getSite(3, 3).getId());
+        Assert.assertEquals("B", index.getSite(4, 4).getId());
+
+        // three-way contention, resolved one at a time
+        index.observe(site("B", "3-b", 3, 3));
+        index.observe(site("C", "1-c", 3, 3));
+        Assert.assertNull(index.get(3, 3));
+        index.remove("C", null);
+        Assert.assertNull("Cell is still contested", index.get(3, 3));
+        index.remove("A", null);
+        Assert.assertEquals("B", index.getSite(3, 3).getId());
+    }
+
+    @Test
+    public void testCellTable() {
+        SiteGridIndex.CellTable table = new SiteGridIndex.CellTable(16);
+        Map<Long, SiteGridIndex.Cell> expected = new HashMap<>();
+        Random r = new Random(42);
+
+        for (int i = 0; i < 20000; i++) {
+            long key = SiteGridIndex.pack(r.nextInt(100) - 50, r.nextInt(100) - 50);
+            if ( r.nextInt(3) == 0 ) {
+                table.remove(key);
+                expected.remove(key);
+            } else {
+                SiteGridIndex.Cell cell = new SiteGridIndex.Cell(key, "id" + i, "1-x", "empty", null, false);
+                table.put(key, cell);
+                expected.put(key, cell);
+            }
+        }
+
+        Assert.assertEquals(expected.size(), table.size());
+        for (int x = -50; x < 50; x++) {
+            for (int y = -50; y < 50; y++) {
+                long key = SiteGridIndex.pack(x, y);
+                Assert.assertSame(expected.get(key), table.get(key));
+            }
+        }
+    }
+
+    private Site site(String id, String rev, int x, int y) {
+        Site site = new Site(x, y);
+        site.setId(id);
+        site.setRev(rev);
+        site.setType("empty");
+        return site;
+    }
+}
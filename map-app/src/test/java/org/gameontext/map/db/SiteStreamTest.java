@@ -0,0 +1,138 @@
+package org.gameontext.map.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.ws.rs.core.Response;
+
+import org.gameontext.map.MapModificationException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class SiteStreamTest {
+
+    ObjectMapper mapper = new ObjectMapper();
+
+    @Rule
+    public TestName test = new TestName();
+
+    @Before
+    public void before() {
+        System.out.println("\n====== " + test.getMethodName());
+    }
+
+    @Test
+    public void testValueRows() throws IOException {
+        String view = "{\"total_rows\":2,\"offset\":0,\"rows\":["
+                + "{\"id\":\"a\",\"key\":null,\"value\":{\"_id\":\"a\",\"owner\":\"o\",\"info\":{\"name\":\"A\",\"connectionDetails\":{\"type\":\"websocket\"}}}},"
+                + "{\"id\":\"b\",\"key\":null,\"value\":{\"_id\":\"b\",\"coord\":{\"x\":1,\"y\":0}}}"
+                + "]}";
+
+        try (SiteStream stream = stream(view, "value")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            stream.writeTo(out, null);
+
+            JsonNode result = mapper.readTree(out.toByteArray());
+            Assert.assertEquals(2, result.size());
+            Assert.assertEquals("a", result.get(0).get("_id").asText());
+            Assert.assertFalse("Filter should be applied to each row",
+                    result.get(0).get("info").has("connectionDetails"));
+            Assert.assertEquals(1, result.get(1).get("coord").get("x").asInt());
+        }
+    }
+
+    @Test
+    public void testDocRows() throws IOException {
+        // include_docs: value is ignored, missing documents are skipped
+        String view = "{\"total_rows\":3,\"offset\":0,\"rows\":["
+                + "{\"id\":\"a\",\"key\":\"A\",\"value\":null,\"doc\":{\"_id\":\"a\"}},"
+                + "{\"key\":\"B\",\"error\":\"not_found\"},"
+                + "{\"id\":\"c\",\"key\":\"C\",\"value\":{\"rev\":\"1-c\"},\"doc\":{\"_id\":\"c\"}}"
+                + "]}";
+
+        try (SiteStream stream = stream(view, "doc")) {
+            Assert.assertEquals("a", stream.next().get("_id").asText());
+            Assert.assertEquals("c", stream.next().get("_id").asText());
+            Assert.assertNull(stream.next());
+            Assert.assertNull(stream.next());
+        }
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        try (SiteStream stream = stream("{\"total_rows\":0,\"offset\":0,\"rows\":[]}", "value")) {
+            Assert.assertNull(stream.next());
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            stream.writeTo(out, null);
+            Assert.assertEquals("[]", out.toString("UTF-8"));
+        }
+    }
+
+    @Test
+    public void testReadPage() throws IOException {
+        String view = "{\"total_rows\":9,\"offset\":0,\"rows\":["
+                + "{\"id\":\"a\",\"key\":[\"o\",\"A\"],\"value\":null,\"doc\":{\"_id\":\"a\"}},"
+                + "{\"id\":\"b\",\"key\":[\"o\",\"B\"],\"value\":null,\"doc\":{\"_id\":\"b\"}},"
+                + "{\"id\":\"c\",\"key\":[\"o\",\"C\"],\"value\":null,\"doc\":{\"_id\":\"c\"}}"
+                + "]}";
+
+        try (SiteStream stream = stream(view, "doc")) {
+            List<ObjectNode> page = new ArrayList<>();
+            SiteCursor next = stream.readPage(2, page);
+
+            Assert.assertEquals(2, page.size());
+            Assert.assertNotNull("Extra row means there is another page", next);
+            Assert.assertEquals("[\"o\",\"C\"]", next.getRawKey());
+            Assert.assertEquals("c", next.getId());
+        }
+
+        try (SiteStream stream = stream(view, "doc")) {
+            List<ObjectNode> page = new ArrayList<>();
+            Assert.assertNull("No more rows: last page", stream.readPage(3, page));
+            Assert.assertEquals(3, page.size());
+        }
+    }
+
+    @Test
+    public void testCursorEncoding() {
+        SiteCursor cursor = new SiteCursor(mapper.createArrayNode().add("owner").add("name"), "id");
+        SiteCursor decoded = SiteCursor.decode(cursor.encode());
+        Assert.assertEquals(cursor.getRawKey(), decoded.getRawKey());
+        Assert.assertEquals("id", decoded.getId());
+
+        SiteCursor all = SiteCursor.decode(new SiteCursor(null, "x").encode());
+        Assert.assertEquals("null", all.getRawKey());
+
+        Assert.assertNull(SiteCursor.decode(""));
+        for (String invalid : new String[] { "!!!", "e30", "WzEsMl0" }) { // garbage, {}, [1,2]
+            try {
+                SiteCursor.decode(invalid);
+                Assert.fail("Expected an exception for " + invalid);
+            } catch (MapModificationException e) {
+                Assert.assertEquals(Response.Status.BAD_REQUEST, e.getStatus());
+            }
+        }
+    }
+
+    private SiteStream stream(String view, String field) throws IOException {
+        return new SiteStream(new ByteArrayInputStream(view.getBytes(StandardCharsets.UTF_8)), mapper, field,
+                site -> {
+                    JsonNode info = site.get("info");
+                    if ( info != null ) {
+                        ((ObjectNode) info).remove("connectionDetails");
+                    }
+                });
+    }
+}
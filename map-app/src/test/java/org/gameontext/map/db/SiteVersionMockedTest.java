@@ -0,0 +1,141 @@
+package org.gameontext.map.db;
+
+import java.util.Collections;
+
+import javax.ws.rs.core.Response;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.StreamingViewResult;
+import org.ektorp.UpdateConflictException;
+import org.ektorp.ViewQuery;
+import org.gameontext.map.MapModificationException;
+import org.gameontext.map.model.Coordinates;
+import org.gameontext.map.model.RoomInfo;
+import org.gameontext.map.model.Site;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import mockit.Expectations;
+import mockit.Mocked;
+import mockit.Verifications;
+
+public class SiteVersionMockedTest {
+
+    private static final String owner = "testOwner";
+
+    @Mocked
+    CouchDbConnector dbc;
+
+    @Mocked
+    StreamingViewResult viewResult;
+
+    SiteDocuments docs;
+
+    @Rule
+    public TestName test = new TestName();
+
+    @Before
+    public void before() {
+        System.out.println("\n====== " + test.getMethodName());
+
+        new Expectations() {{
+            dbc.queryForStreamingView((ViewQuery) any); result = viewResult;
+            viewResult.iterator(); result = Collections.emptyIterator();
+        }};
+
+        docs = new SiteDocuments(dbc, new ObjectMapper());
+        // don't follow the changes feed
+        docs.startIndex(r -> new Thread(() -> {}));
+
+        docs.index.observe(room("A", "1-a", 0, 0, "A"));
+        docs.index.observe(room("N", "1-n", 0, 1, "N"));
+        docs.index.observe(room("S", "1-s", 0, -1, "S"));
+        docs.index.observe(room("E", "1-e", 1, 0, "E"));
+        docs.index.observe(room("W", "1-w", -1, 0, "W"));
+    }
+
+    @Test
+    public void testNeighborhoodVersion() {
+        Coordinates origin = new Coordinates(0, 0);
+        String version = docs.getNeighborhoodVersion(origin);
+        Assert.assertNotNull(version);
+        Assert.assertEquals("Version should be stable", version, docs.getNeighborhoodVersion(origin));
+
+        // the site itself changing is covered by its own revision
+        docs.index.observe(room("A", "2-a", 0, 0, "A2"));
+        Assert.assertEquals(version, docs.getNeighborhoodVersion(origin));
+
+        docs.index.observe(room("E", "2-e", 1, 0, "E2"));
+        Assert.assertNotEquals("Neighbor update should change the version", version, docs.getNeighborhoodVersion(origin));
+    }
+
+    @Test
+    public void testUpdateIndexedRevision() {
+        RoomInfo info = info("A2");
+
+        Site result = docs.updateRoom(owner, "A", info, "1-a");
+        Assert.assertEquals("A2", result.getInfo().getName());
+        Assert.assertEquals("N", result.getExits().getN().getId());
+
+        new Verifications() {{
+            dbc.get(Site.class, "A"); times = 0;
+            Site updated;
+            dbc.update(updated = withCapture()); times = 1;
+            Assert.assertEquals("1-a", updated.getRev());
+        }};
+    }
+
+    @Test
+    public void testUpdateConflict() {
+        new Expectations() {{
+            dbc.update(any); result = new UpdateConflictException();
+        }};
+
+        try {
+            docs.updateRoom(owner, "A", info("A2"), "1-a");
+            Assert.fail("Expected precondition failure");
+        } catch (MapModificationException e) {
+            Assert.assertEquals(Response.Status.PRECONDITION_FAILED, e.getStatus());
+        }
+    }
+
+    @Test
+    public void testUpdateStaleRevision() {
+        new Expectations() {{
+            dbc.get(Site.class, "A"); result = room("A", "3-a", 0, 0, "A3");
+        }};
+
+        try {
+            docs.updateRoom(owner, "A", info("A2"), "2-a");
+            Assert.fail("Expected precondition failure");
+        } catch (MapModificationException e) {
+            Assert.assertEquals(Response.Status.PRECONDITION_FAILED, e.getStatus());
+        }
+
+        new Verifications() {{
+            dbc.update(any); times = 0;
+        }};
+    }
+
+    private Site room(String id, String rev, int x, int y, String name) {
+        Site site = new Site(x, y);
+        site.setId(id);
+        site.setRev(rev);
+        site.setType("room");
+        site.setOwner(owner);
+        site.setInfo(info(name));
+        return site;
+    }
+
+    private RoomInfo info(String name) {
+        RoomInfo info = new RoomInfo();
+        info.setName(name);
+        info.setFullName(name);
+        return info;
+    }
+}
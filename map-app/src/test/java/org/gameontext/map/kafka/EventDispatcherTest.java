@@ -0,0 +1,134 @@
+package org.gameontext.map.kafka;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class EventDispatcherTest {
+
+    ObjectMapper mapper = new ObjectMapper();
+
+    @Rule
+    public TestName test = new TestName();
+
+    @Before
+    public void before() {
+        System.out.println("\n====== " + test.getMethodName());
+    }
+
+    @Test
+    public void testEventType() throws IOException {
+        EventDispatcher dispatcher = new EventDispatcher(mapper, null);
+        Assert.assertEquals("UPDATE_APIKEY", dispatcher.eventType("{\"type\":\"UPDATE_APIKEY\",\"id\":\"a\"}"));
+        Assert.assertEquals("Nested type attributes are skipped", "CREATE",
+                dispatcher.eventType("{\"site\":{\"type\":\"room\",\"info\":{}},\"type\":\"CREATE\"}"));
+        Assert.assertNull(dispatcher.eventType("{\"site\":{\"type\":\"room\"}}"));
+        Assert.assertNull(dispatcher.eventType("[\"type\"]"));
+        Assert.assertNull(dispatcher.eventType("{\"type\":{\"a\":1}}"));
+    }
+
+    @Test
+    public void testHandlersByTopicAndType() {
+        EventDispatcher dispatcher = new EventDispatcher(mapper, null);
+        List<String> player = Collections.synchronizedList(new ArrayList<>());
+        List<String> sites = Collections.synchronizedList(new ArrayList<>());
+        List<String> sites2 = Collections.synchronizedList(new ArrayList<>());
+
+        Assert.assertTrue(dispatcher.register(handler("playerEvents", "UPDATE_APIKEY", player)));
+        Assert.assertTrue(dispatcher.register(handler("siteEvents", "UPDATE", sites)));
+        Assert.assertFalse(dispatcher.register(handler("siteEvents", "UPDATE", sites2)));
+        Assert.assertEquals(Arrays.asList("playerEvents", "siteEvents"), new ArrayList<>(dispatcher.topics()));
+
+        dispatcher.dispatch(record("playerEvents", 0, "a", "{\"type\":\"UPDATE_APIKEY\"}"));
+        dispatcher.dispatch(record("playerEvents", 0, "b", "{\"type\":\"UPDATE\"}"));
+        dispatcher.dispatch(record("siteEvents", 0, "c", "{\"type\":\"UPDATE\"}"));
+        dispatcher.dispatch(record("siteEvents", 0, "d", "not json"));
+
+        Assert.assertEquals(Arrays.asList("a"), player);
+        Assert.assertEquals(Arrays.asList("c"), sites);
+        Assert.assertEquals(Arrays.asList("c"), sites2);
+    }
+
+    @Test
+    public void testPartitionOrder() {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            EventDispatcher dispatcher = new EventDispatcher(mapper, executor);
+            Map<String, List<String>> seen = new HashMap<>();
+            dispatcher.register(new KafkaEventHandler() {
+                @Override
+                public String getEventType() {
+                    return "UPDATE_APIKEY";
+                }
+
+                @Override
+                public void handleEvent(String key, JsonNode eventData) {
+                    synchronized (seen) {
+                        seen.computeIfAbsent(key, k -> new ArrayList<>()).add(eventData.get("n").asText());
+                    }
+                }
+            });
+
+            Map<TopicPartition, List<ConsumerRecord<String, String>>> batch = new HashMap<>();
+            for (int p = 0; p < 4; p++) {
+                List<ConsumerRecord<String, String>> list = new ArrayList<>();
+                for (int n = 0; n < 50; n++) {
+                    list.add(record("playerEvents", p, "key" + p, "{\"type\":\"UPDATE_APIKEY\",\"n\":\"" + n + "\"}"));
+                }
+                batch.put(new TopicPartition("playerEvents", p), list);
+            }
+            dispatcher.dispatch(new ConsumerRecords<>(batch));
+
+            Assert.assertEquals(4, seen.size());
+            for (List<String> values : seen.values()) {
+                Assert.assertEquals(50, values.size());
+                for (int n = 0; n < 50; n++) {
+                    Assert.assertEquals("Events for a key are handled in order", "" + n, values.get(n));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private ConsumerRecord<String, String> record(String topic, int partition, String key, String value) {
+        return new ConsumerRecord<>(topic, partition, 0, key, value);
+    }
+
+    private KafkaEventHandler handler(String topic, String type, List<String> keys) {
+        return new KafkaEventHandler() {
+            @Override
+            public String getTopic() {
+                return topic;
+            }
+
+            @Override
+            public String getEventType() {
+                return type;
+            }
+
+            @Override
+            public void handleEvent(String key, JsonNode eventData) {
+                keys.add(key);
+            }
+        };
+    }
+}
@@ -0,0 +1,183 @@
+package org.gameontext.map.kafka;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.gameontext.map.kafka.EventOutbox.Event;
+import org.gameontext.map.kafka.Kafka.SiteEvent;
+import org.gameontext.map.kafka.Kafka.SiteEventMessage;
+import org.gameontext.map.model.Exits;
+import org.gameontext.map.model.Site;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class EventPublisherTest {
+
+    ObjectMapper mapper = new ObjectMapper();
+    Path dir;
+
+    @Rule
+    public TestName test = new TestName();
+
+    @Before
+    public void before() throws IOException {
+        System.out.println("\n====== " + test.getMethodName());
+        dir = Files.createTempDirectory("outbox");
+    }
+
+    @After
+    public void after() throws IOException {
+        Files.walk(dir).sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+    }
+
+    @Test
+    public void testPublishSiteEvent() throws IOException {
+        MockProducer<String, String> producer = new MockProducer<>(true, new StringSerializer(), new StringSerializer());
+        EventOutbox outbox = new EventOutbox(mapper, dir.resolve("events.jsonl"));
+        outbox.open();
+        EventPublisher publisher = new EventPublisher(mapper, outbox, producer);
+
+        Site site = new Site(1, 2);
+        site.setId("a");
+        publisher.publish("siteEvents", "a", new SiteEventMessage(SiteEvent.CREATE, site, "i1"));
+        publisher.store(new ArrayList<>());
+        publisher.send();
+
+        Assert.assertEquals(1, producer.history().size());
+        ProducerRecord<String, String> record = producer.history().get(0);
+        Assert.assertEquals("siteEvents", record.topic());
+        Assert.assertEquals("a", record.key());
+        Assert.assertTrue(record.value(), record.value().startsWith("{\"type\":\"CREATE\",\"id\":\"a\",\"site\":{"));
+        Assert.assertEquals("a", mapper.readTree(record.value()).get("site").get("_id").asText());
+        Assert.assertEquals("i1", mapper.readTree(record.value()).get("origin").asText());
+
+        Assert.assertEquals("Acknowledged events leave the outbox", 0, outbox.size());
+        Assert.assertEquals(0, Files.size(dir.resolve("events.jsonl")));
+    }
+
+    @Test
+    public void testSitePatch() throws IOException {
+        Site before = new Site(1, 2);
+        before.setId("a");
+        before.setRev("4-a");
+        before.setType("room");
+        before.setOwner("o");
+
+        Site after = new Site(3, 4);
+        after.setId("a");
+        after.setRev("5-b");
+        after.setType("room");
+        after.setOwner("o");
+        after.setCreatedOn(before.getCreatedOn());
+        after.setExits(new Exits());
+
+        SiteEventMessage move = new SiteEventMessage(SiteEvent.UPDATE, after, before, before.getCoord(), false, "i1", mapper);
+        JsonNode event = mapper.readTree(mapper.writeValueAsString(move));
+        Assert.assertEquals("UPDATE", event.get("type").asText());
+        Assert.assertEquals("5-b", event.get("rev").asText());
+        Assert.assertEquals("4-a", event.get("prevRev").asText());
+        Assert.assertFalse("Patches don't carry the site", event.has("site"));
+        Assert.assertEquals(1, event.get("move").get("from").get("x").asInt());
+        Assert.assertEquals(3, event.get("move").get("to").get("x").asInt());
+        Assert.assertEquals("Only the coordinates changed (exits aren't part of the patch)",
+                mapper.readTree("[{\"op\":\"replace\",\"path\":\"/coord/x\",\"value\":3},"
+                        + "{\"op\":\"replace\",\"path\":\"/coord/y\",\"value\":4}]"),
+                event.get("patch"));
+
+        SiteEventMessage snapshot = new SiteEventMessage(SiteEvent.UPDATE, after, before, null, true, "i1", mapper);
+        event = mapper.readTree(mapper.writeValueAsString(snapshot));
+        Assert.assertEquals("5-b", event.get("site").get("_rev").asText());
+        Assert.assertFalse(event.has("patch"));
+        Assert.assertFalse(event.has("prevRev"));
+        Assert.assertFalse(event.has("move"));
+    }
+
+    @Test
+    public void testTombstone() throws IOException, InterruptedException {
+        MockProducer<String, String> producer = new MockProducer<>(true, new StringSerializer(), new StringSerializer());
+        EventOutbox outbox = new EventOutbox(mapper, dir.resolve("events.jsonl"));
+        outbox.open();
+        EventPublisher publisher = new EventPublisher(mapper, outbox, producer);
+
+        Assert.assertTrue(publisher.offer(Kafka.MAP_STATE_TOPIC, "a", null, 1000));
+        publisher.store(new ArrayList<>());
+
+        // survives a restart as a tombstone
+        outbox.close();
+        outbox = new EventOutbox(mapper, dir.resolve("events.jsonl"));
+        Assert.assertEquals(1, outbox.open());
+        publisher = new EventPublisher(mapper, outbox, producer);
+        publisher.send();
+
+        Assert.assertEquals(1, producer.history().size());
+        ProducerRecord<String, String> record = producer.history().get(0);
+        Assert.assertEquals("mapState", record.topic());
+        Assert.assertEquals("a", record.key());
+        Assert.assertNull("Deleted sites are tombstones", record.value());
+    }
+
+    @Test
+    public void testFailedSend() throws IOException {
+        MockProducer<String, String> producer = new MockProducer<>(false, new StringSerializer(), new StringSerializer());
+        EventOutbox outbox = new EventOutbox(mapper, null);
+        EventPublisher publisher = new EventPublisher(mapper, outbox, producer);
+
+        publisher.publish("siteEvents", "a", "{}");
+        publisher.store(new ArrayList<>());
+        publisher.send();
+        Assert.assertTrue(producer.errorNext(new RuntimeException("broker unavailable")));
+
+        Assert.assertEquals("Failed events stay in the outbox", 1, outbox.size());
+        Assert.assertEquals(1, outbox.takeUnsent(10).size());
+    }
+
+    @Test
+    public void testOutboxSurvivesRestart() throws IOException {
+        Path file = dir.resolve("events.jsonl");
+        EventOutbox outbox = new EventOutbox(mapper, file);
+        outbox.open();
+        outbox.add(Arrays.asList(new Event("t", "a", "1"), new Event("t", "b", "2"), new Event("t", "c", "3")));
+
+        for (Event event : outbox.takeUnsent(2)) {
+            if ( "a".equals(event.key) ) {
+                outbox.sent(event);
+            } else {
+                outbox.failed(event);
+            }
+        }
+        outbox.compact();
+        outbox.close();
+
+        // Partial line written as the server stopped
+        Files.write(file, "{\"topic\":\"t\",\"ke".getBytes("UTF-8"), StandardOpenOption.APPEND);
+
+        // The file isn't rewritten for every acknowledgement: a is sent again (at least once)
+        EventOutbox reopened = new EventOutbox(mapper, file);
+        Assert.assertEquals("Unacknowledged events are read again", 3, reopened.open());
+        List<Event> unsent = reopened.takeUnsent(10);
+        Assert.assertEquals("a", unsent.get(0).key);
+        Assert.assertEquals("b", unsent.get(1).key);
+        Assert.assertEquals("c", unsent.get(2).key);
+
+        unsent.forEach(reopened::sent);
+        reopened.compact();
+        reopened.close();
+        Assert.assertEquals("Nothing pending: the file is emptied", 0, Files.size(file));
+    }
+}
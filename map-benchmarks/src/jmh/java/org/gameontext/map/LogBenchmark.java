@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+import java.util.logging.StreamHandler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * A map operation trace, as {@code getByCoordinate} writes one, by four
+ * request threads doing a little work between calls: {@link Log} against
+ * the implementation it replaced (varargs, written on the calling thread).
+ * <ul>
+ * <li>{@code disabled}: trace is off, as shipped. Run with
+ *     {@code -PjmhProfilers=gc} to see what each call allocates.</li>
+ * <li>{@code caller}: trace is on, and written on the calling thread.</li>
+ * <li>{@code writer}: trace is on, and {@link Log} hands records to its
+ *     writer thread (the old implementation can't).</li>
+ * </ul>
+ * The handler formats each record under its lock, as the server's does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Threads(4)
+public class LogBenchmark {
+
+    /** Work done by a request between trace calls (Blackhole tokens) */
+    static final long WORK = 500;
+
+    @Param({"disabled", "caller", "writer"})
+    String mode;
+
+    final Logger detailLog = Logger.getLogger("map.details");
+    final List<String> sites = Arrays.asList("room00000001", "room00000002");
+
+    StreamHandler handler;
+
+    /** Coordinates looked up by each thread */
+    @State(Scope.Thread)
+    public static class Cell {
+        int x;
+        int y;
+    }
+
+    @Setup
+    public void setup() {
+        handler = new StreamHandler(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }, new SimpleFormatter());
+        detailLog.setUseParentHandlers(false);
+        detailLog.addHandler(handler);
+        detailLog.setLevel("disabled".equals(mode) ? Level.INFO : Level.ALL);
+        if ( "writer".equals(mode) ) {
+            Log.start(Thread::new, 8192);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Log.stop();
+        detailLog.removeHandler(handler);
+    }
+
+    @Benchmark
+    public void previous(Cell cell) {
+        Blackhole.consumeCPU(WORK);
+        PreviousLog.mapOperations(Level.FINEST, this, "Get by coordinate: {0},{1}: {2}", cell.x++, cell.y--, sites);
+    }
+
+    @Benchmark
+    public void facade(Cell cell) {
+        Blackhole.consumeCPU(WORK);
+        Log.mapOperations(Level.FINEST, this, "Get by coordinate: {0},{1}: {2}", cell.x++, cell.y--, sites);
+    }
+
+    /** Log.mapOperations as it was */
+    static class PreviousLog {
+        private final static Logger detailLog = Logger.getLogger("map.details");
+
+        private static final String log_format = "%s: %s";
+
+        static void mapOperations(Level level, Object source, String message, Object... args) {
+            if (detailLog.isLoggable(level)) {
+                String msg = String.format(log_format, getObjectInfo(source), message);
+                detailLog.log(level.intValue() < Level.INFO.intValue() ? Level.INFO : level, msg, args);
+            }
+        }
+
+        private static String getObjectInfo(Object source) {
+            return source == null ? "null" : source.getClass().getSimpleName() + "("+ System.identityHashCode(source) + ")";
+        }
+    }
+}
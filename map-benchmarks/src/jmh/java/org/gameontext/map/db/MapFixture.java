@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map.db;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.gameontext.map.model.ConnectionDetails;
+import org.gameontext.map.model.Coordinates;
+import org.gameontext.map.model.Doors;
+import org.gameontext.map.model.RoomInfo;
+import org.gameontext.map.model.Site;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Deterministic maps for benchmarks, kept in a {@link MemoryMapStore}.
+ * <p>
+ * Rooms are placed ring by ring around the origin, as the map grows. In a
+ * dense map rooms are side by side; in a sparse map they are spread out,
+ * with unused cells between them. Either way, every free side of a room
+ * has an empty site, as it would after {@code connectRoom}. Ids, owners
+ * and names are derived from the position of the room, so the same
+ * parameters always build the same map.
+ * </p>
+ */
+public final class MapFixture {
+
+    /** Seed for anything random in the benchmarks */
+    public static final long SEED = 20180719L;
+
+    /** Owners of the rooms */
+    public static final int OWNERS = 100;
+
+    private final MapRepository repository;
+    private final List<String> roomIds = new ArrayList<>();
+    private final List<Coordinates> roomCoords = new ArrayList<>();
+
+    /**
+     * @param rooms Number of rooms
+     * @param spacing Distance between rooms: 1 for a dense map
+     */
+    public MapFixture(int rooms, int spacing) {
+        ObjectMapper mapper = new ObjectMapper();
+        MemoryMapStore store = new MemoryMapStore(mapper);
+
+        Set<Long> used = new HashSet<>();
+        int n = 0;
+        for (int ring = 0; n < rooms; ring++) {
+            for (Coordinates c : ring(ring)) {
+                if ( n >= rooms ) {
+                    break;
+                }
+                Coordinates coord = new Coordinates(c.getX() * spacing, c.getY() * spacing);
+                store.create(room(n, coord));
+                used.add(SiteGridIndex.pack(coord.getX(), coord.getY()));
+                roomIds.add(id(n));
+                roomCoords.add(coord);
+                n++;
+            }
+        }
+
+        // empty sites on every free side of a room
+        int e = 0;
+        for (Coordinates coord : roomCoords) {
+            int[][] sides = {{0, 1}, {0, -1}, {1, 0}, {-1, 0}};
+            for (int[] side : sides) {
+                int x = coord.getX() + side[0];
+                int y = coord.getY() + side[1];
+                if ( used.add(SiteGridIndex.pack(x, y)) ) {
+                    Site empty = new Site(x, y);
+                    empty.setId(String.format("empty%08d", e++));
+                    empty.setType("empty");
+                    store.create(empty);
+                }
+            }
+        }
+
+        // as postConstruct() with the memory store, but without Kafka
+        repository = new MapRepository();
+        repository.mapper = mapper;
+        repository.sites = new SiteDocuments(store, null, mapper);
+        repository.sites.startIndex(null);
+    }
+
+    /**
+     * @return repository for the map (without Kafka)
+     */
+    public MapRepository getRepository() {
+        return repository;
+    }
+
+    public SiteDocuments getSites() {
+        return repository.sites;
+    }
+
+    public List<String> getRoomIds() {
+        return roomIds;
+    }
+
+    public List<Coordinates> getRoomCoordinates() {
+        return roomCoords;
+    }
+
+    /**
+     * @return ids of rooms in a random (but repeatable) order
+     */
+    public String[] shuffledRoomIds(int count) {
+        Random random = new Random(SEED);
+        String[] ids = new String[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = roomIds.get(random.nextInt(roomIds.size()));
+        }
+        return ids;
+    }
+
+    public static RoomInfo info(String name) {
+        RoomInfo info = new RoomInfo();
+        info.setName(name);
+        info.setFullName("Room " + name);
+        info.setDescription("A room for benchmarks: " + name);
+        info.setDoors(new Doors(name));
+
+        ConnectionDetails details = new ConnectionDetails();
+        details.setType("websocket");
+        details.setTarget("ws://rooms.example.org/" + name);
+        details.setToken("token-" + name);
+        info.setConnectionDetails(details);
+        return info;
+    }
+
+    public static String owner(int n) {
+        return "owner" + (n % OWNERS);
+    }
+
+    private static String id(int n) {
+        return String.format("room%08d", n);
+    }
+
+    private static Site room(int n, Coordinates coord) {
+        Site site = new Site(coord.getX(), coord.getY());
+        site.setId(id(n));
+        site.setType("room");
+        site.setOwner(owner(n));
+        site.setInfo(info("room" + n));
+        return site;
+    }
+
+    /**
+     * @return cells at distance r (Chebyshev) from the origin, in a fixed order
+     */
+    private static List<Coordinates> ring(int r) {
+        List<Coordinates> cells = new ArrayList<>();
+        if ( r == 0 ) {
+            cells.add(new Coordinates(0, 0));
+            return cells;
+        }
+        for (int x = -r; x <= r; x++) {
+            cells.add(new Coordinates(x, r));
+            cells.add(new Coordinates(x, -r));
+        }
+        for (int y = -r + 1; y <= r - 1; y++) {
+            cells.add(new Coordinates(r, y));
+            cells.add(new Coordinates(-r, y));
+        }
+        return cells;
+    }
+}
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map.db;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.gameontext.map.model.Coordinates;
+import org.gameontext.map.model.Site;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Placing rooms: {@code connectRoom}, and the search for an unused cell
+ * that empty sites are created in.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PlacementBenchmark {
+
+    /**
+     * A new map for each iteration: every connectRoom adds a room (and its
+     * empty neighbors), so the map would otherwise keep growing.
+     */
+    @State(Scope.Benchmark)
+    public static class Growing {
+        @Param({"1000", "10000", "100000", "1000000"})
+        int sites;
+
+        MapRepository repository;
+        int next;
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            repository = new MapFixture(sites, 1).getRepository();
+            next = 0;
+        }
+    }
+
+    /**
+     * Dense maps (rooms side by side) and sparse ones (unused cells between
+     * rooms). The map isn't changed.
+     */
+    @State(Scope.Benchmark)
+    public static class Searching {
+        @Param({"1000", "10000", "100000", "1000000"})
+        int sites;
+
+        @Param({"1", "4"})
+        int spacing;
+
+        SiteDocuments documents;
+        Coordinates[] starts;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            MapFixture fixture = new MapFixture(sites, spacing);
+            documents = fixture.getSites();
+
+            // start from rooms, as createEmptySite does
+            List<Coordinates> coords = fixture.getRoomCoordinates();
+            Random random = new Random(MapFixture.SEED);
+            starts = new Coordinates[1024];
+            for (int i = 0; i < starts.length; i++) {
+                starts[i] = coords.get(random.nextInt(coords.size()));
+            }
+        }
+    }
+
+    @Benchmark
+    public Site connectRoom(Growing state) {
+        // names are unique: a name already used by the owner is a conflict
+        int n = state.next++;
+        return state.repository.connectRoom(MapFixture.owner(n), MapFixture.info("new" + n));
+    }
+
+    @Benchmark
+    public Coordinates findUnusedCoordinate(Searching state) {
+        Coordinates start = state.starts[state.next++ & (state.starts.length - 1)];
+        return state.documents.findUnusedCoordinate(start);
+    }
+}
@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map.db;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.gameontext.map.auth.AccessOwnContentPolicy;
+import org.gameontext.map.auth.ResourceAccessPolicy;
+import org.gameontext.map.model.Site;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Reading the map: a room with its exits, and the list of sites with
+ * connection details removed (as seen by someone other than the owners).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReadBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    int sites;
+
+    MapRepository repository;
+    String[] ids;
+    int next;
+
+    /** Not the owner of any room */
+    final ResourceAccessPolicy visitor = new AccessOwnContentPolicy("visitor");
+
+    @Setup
+    public void setup() {
+        MapFixture fixture = new MapFixture(sites, 1);
+        repository = fixture.getRepository();
+        ids = fixture.shuffledRoomIds(1024);
+    }
+
+    @Benchmark
+    public Site getSiteWithExits() {
+        return repository.getRoom(visitor, ids[next++ & (ids.length - 1)], true);
+    }
+
+    @Benchmark
+    public List<JsonNode> listSites() {
+        return repository.listSites(visitor, null, null);
+    }
+
+    @Benchmark
+    public List<JsonNode> listSitesByOwner() {
+        return repository.listSites(visitor, MapFixture.owner(next++), null);
+    }
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.map.kafka;
+
+import java.util.concurrent.TimeUnit;
+
+import org.gameontext.map.db.MapFixture;
+import org.gameontext.map.kafka.Kafka.SiteEvent;
+import org.gameontext.map.kafka.Kafka.SiteEventMessage;
+import org.gameontext.map.model.Coordinates;
+import org.gameontext.map.model.Exits;
+import org.gameontext.map.model.Site;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Serializing site events, as the publisher thread does for each event
+ * queued by {@code Kafka.publishSiteEvent}: a snapshot (the whole site),
+ * and a patch from the previous revision.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SiteEventBenchmark {
+
+    final ObjectMapper mapper = new ObjectMapper();
+
+    Site previous;
+    Site site;
+
+    @Setup
+    public void setup() {
+        previous = new Site(12, -7);
+        previous.setId("room00000042");
+        previous.setRev("11-0123456789abcdef0123456789abcdef");
+        previous.setType("room");
+        previous.setOwner(MapFixture.owner(42));
+        previous.setInfo(MapFixture.info("room42"));
+        previous.setExits(new Exits());
+
+        site = new Site(12, -7);
+        site.setId(previous.getId());
+        site.setRev("12-fedcba9876543210fedcba9876543210");
+        site.setType("room");
+        site.setOwner(previous.getOwner());
+        site.setInfo(MapFixture.info("room42"));
+        site.getInfo().setDescription("A room that has been updated");
+        site.setExits(new Exits());
+    }
+
+    @Benchmark
+    public String snapshot() throws JsonProcessingException {
+        return mapper.writeValueAsString(new SiteEventMessage(SiteEvent.CREATE, site, "benchmark"));
+    }
+
+    @Benchmark
+    public String patch() throws JsonProcessingException {
+        return mapper.writeValueAsString(new SiteEventMessage(SiteEvent.UPDATE, site, previous,
+                previous.getCoord(), false, "benchmark", mapper));
+    }
+
+    @Benchmark
+    public String move() throws JsonProcessingException {
+        return mapper.writeValueAsString(new SiteEventMessage(SiteEvent.UPDATE, site, previous,
+                new Coordinates(3, 4), false, "benchmark", mapper));
+    }
+}